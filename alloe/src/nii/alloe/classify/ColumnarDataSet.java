@@ -0,0 +1,373 @@
+package nii.alloe.classify;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import nii.alloe.corpus.TermList;
+import weka.classifiers.Classifier;
+import weka.core.*;
+
+/**
+ * A data set in the columnar format written by {@link DataSetWriter}. Only the relations,
+ * attribute names and term list are read when the file is opened; the chunks of instances
+ * are memory mapped and read as the rows are iterated, so data sets larger than the heap
+ * can be streamed, for example to ARFF with {@link #writeARFF(String,PrintStream)}.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ColumnarDataSet {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Vector<String> relations = new Vector<String>();
+    private final Map<String, Vector<String>> attributes = new HashMap<String, Vector<String>>();
+    private final Map<String, Vector<ChunkRef>> chunks = new HashMap<String, Vector<ChunkRef>>();
+    private final Map<String, DataSet.PairList> nonOccTermPairs = new HashMap<String, DataSet.PairList>();
+    private TermList termSet;
+
+    /** The position of a chunk in the file */
+    private static class ChunkRef {
+        long offset;
+        int rows, size;
+    }
+
+    private ColumnarDataSet(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        if(file.length() < 8 || file.readInt() != DataSetWriter.MAGIC)
+            throw new IOException(f + " is not a columnar data set");
+        if(file.readInt() != DataSetWriter.VERSION)
+            throw new IOException(f + " is of an unsupported version");
+        long pos = 8;
+        while(pos < file.length()) {
+            file.seek(pos);
+            byte type = file.readByte();
+            long length = file.readLong();
+            long start = pos + 9;
+            if(start + length > file.length())
+                throw new IOException(f + " is truncated");
+            switch(type) {
+                case DataSetWriter.RELATION: {
+                    String relation = file.readUTF();
+                    int count = file.readInt();
+                    Vector<String> names = new Vector<String>(count);
+                    for(int k = 0; k < count; k++) {
+                        names.add(file.readUTF());
+                    }
+                    relations.add(relation);
+                    attributes.put(relation, names);
+                    chunks.put(relation, new Vector<ChunkRef>());
+                    nonOccTermPairs.put(relation, new DataSet.PairList());
+                    break;
+                }
+                case DataSetWriter.CHUNK: {
+                    ChunkRef chunk = new ChunkRef();
+                    String relation = relations.get(file.readInt());
+                    chunk.rows = file.readInt();
+                    chunk.size = file.readInt();
+                    chunk.offset = start + 12;
+                    chunks.get(relation).add(chunk);
+                    break;
+                }
+                case DataSetWriter.NON_OCC: {
+                    String relation = relations.get(file.readInt());
+                    int term1 = file.readInt();
+                    nonOccTermPairs.get(relation).add(term1, file.readInt());
+                    break;
+                }
+                case DataSetWriter.TERMS: {
+                    // If the file was appended to, the last term list is the complete one
+                    int count = file.readInt();
+                    termSet = new TermList(count);
+                    for(int k = 0; k < count; k++) {
+                        termSet.add(file.readUTF());
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException(f + " has an unknown record " + type);
+            }
+            pos = start + length;
+        }
+        if(termSet == null)
+            throw new IOException(f + " has no term list, it may not have been closed");
+    }
+
+    /** Open a columnar data set
+     * @throws IOException If the file is not a columnar data set, or could not be read */
+    public static ColumnarDataSet open(File file) throws IOException {
+        return new ColumnarDataSet(file);
+    }
+
+    /** @return true if the file is a columnar data set (rather than a serialized {@link DataSet}) */
+    public static boolean isColumnar(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= 4 && in.readInt() == DataSetWriter.MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return The relations, in the order they were prepared */
+    public List<String> getRelations() {
+        return Collections.unmodifiableList(relations);
+    }
+
+    /** @return The attribute names of a relation, not including the class, or null if
+     * there is no such relation */
+    public List<String> getAttributes(String relation) {
+        Vector<String> names = attributes.get(relation);
+        return names == null ? null : Collections.unmodifiableList(names);
+    }
+
+    /** @return The term list, which the terms of the rows are indices of */
+    public TermList getTermSet() {
+        return termSet;
+    }
+
+    /** @return The number of instances of a relation */
+    public int numInstances(String relation) {
+        int rval = 0;
+        for(ChunkRef chunk : checkedChunks(relation)) {
+            rval += chunk.rows;
+        }
+        return rval;
+    }
+
+    private Vector<ChunkRef> checkedChunks(String relation) {
+        Vector<ChunkRef> rval = chunks.get(relation);
+        if(rval == null)
+            throw new IllegalArgumentException("No relation " + relation);
+        return rval;
+    }
+
+    /**
+     * A row of the data set. The iterator of {@link #rows(String)} returns the same row each
+     * time, moved to the next instance.
+     */
+    public static class Row {
+        /** The index of term1 in the term list */
+        public int term1;
+        /** The index of term2 in the term list */
+        public int term2;
+        /** The class value, see {@link DataSet#getClassVal(boolean)} */
+        public double classVal;
+        private IntBuffer indices;
+        private DoubleBuffer values;
+        private int start, end;
+
+        /** @return The number of non-zero values, not including the class */
+        public int numValues() {
+            return end - start;
+        }
+
+        /** @return The attribute index of the k-th non-zero value */
+        public int index(int k) {
+            return indices.get(start + k);
+        }
+
+        /** @return The k-th non-zero value */
+        public double value(int k) {
+            return values.get(start + k);
+        }
+    }
+
+    /**
+     * Iterate over the instances of a relation. Each chunk is mapped as it is reached.
+     */
+    public Iterator<Row> rows(String relation) {
+        final Iterator<ChunkRef> chunkIter = checkedChunks(relation).iterator();
+        return new Iterator<Row>() {
+            final Row row = new Row();
+            IntBuffer rowStart, term1, term2;
+            DoubleBuffer classVal;
+            int rows, i;
+
+            public boolean hasNext() {
+                while(i == rows && chunkIter.hasNext()) {
+                    map(chunkIter.next());
+                }
+                return i < rows;
+            }
+
+            private void map(ChunkRef chunk) {
+                long length = 4l * (chunk.rows + 1) + 16l * chunk.rows + 12l * chunk.size;
+                ByteBuffer buf;
+                try {
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, chunk.offset, length);
+                } catch(IOException x) {
+                    throw new RuntimeException("Could not map data set", x);
+                }
+                int pos = 0;
+                rowStart = slice(buf, pos, 4 * (chunk.rows + 1)).asIntBuffer();
+                pos += 4 * (chunk.rows + 1);
+                term1 = slice(buf, pos, 4 * chunk.rows).asIntBuffer();
+                pos += 4 * chunk.rows;
+                term2 = slice(buf, pos, 4 * chunk.rows).asIntBuffer();
+                pos += 4 * chunk.rows;
+                classVal = slice(buf, pos, 8 * chunk.rows).asDoubleBuffer();
+                pos += 8 * chunk.rows;
+                row.indices = slice(buf, pos, 4 * chunk.size).asIntBuffer();
+                pos += 4 * chunk.size;
+                row.values = slice(buf, pos, 8 * chunk.size).asDoubleBuffer();
+                rows = chunk.rows;
+                i = 0;
+            }
+
+            public Row next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                row.term1 = term1.get(i);
+                row.term2 = term2.get(i);
+                row.classVal = classVal.get(i);
+                row.start = rowStart.get(i);
+                row.end = rowStart.get(i + 1);
+                i++;
+                return row;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int length) {
+        ByteBuffer rval = buf.duplicate();
+        rval.position(pos);
+        rval.limit(pos + length);
+        return rval.slice();
+    }
+
+    /** Get the term pairs included as positive even though they have no data
+     * @return The indices of the terms of each pair, term1 then term2 */
+    public List<int[]> getNonOccTermPairs(String relation) {
+        DataSet.PairList pairs = nonOccTermPairs.get(relation);
+        if(pairs == null)
+            throw new IllegalArgumentException("No relation " + relation);
+        Vector<int[]> rval = new Vector<int[]>(pairs.size());
+        for(int i = 0; i < pairs.size(); i++) {
+            rval.add(new int[] { pairs.term1(i), pairs.term2(i) });
+        }
+        return rval;
+    }
+
+    /**
+     * Read the whole data set into memory
+     */
+    public DataSet toDataSet() {
+        DataSet rval = new DataSet(new TermList(termSet));
+        for(String relation : relations) {
+            rval.prepRelation(relation, attributes.get(relation).iterator());
+            int attCount = attributes.get(relation).size();
+            Iterator<Row> iter = rows(relation);
+            while(iter.hasNext()) {
+                Row row = iter.next();
+                rval.addInstance(toInstance(row, attCount), relation, row.term1, row.term2);
+            }
+            DataSet.PairList pairs = nonOccTermPairs.get(relation);
+            for(int i = 0; i < pairs.size(); i++) {
+                rval.nonOccTermPairs.get(relation).add(pairs.term1(i), pairs.term2(i));
+            }
+        }
+        return rval;
+    }
+
+    /**
+     * Build a classifier for each relation, training on the rows as they are stored rather
+     * than on instances
+     * @param classif The classifier to use as base classifier
+     */
+    public Map<String,Classifier> buildClassifierSet(SparseLogisticRegression classif) {
+        Map<String,Classifier> rval = new TreeMap<String,Classifier>();
+        for(String relation : relations) {
+            try {
+                SparseLogisticRegression c = (SparseLogisticRegression)Classifier.makeCopy(classif);
+                c.buildClassifier(this, relation);
+                rval.put(relation,c);
+            } catch(Exception x) {
+                x.printStackTrace();
+            }
+        }
+        return rval;
+    }
+
+    /** @return A row as a sparse instance, with the class as the last attribute */
+    public static Instance toInstance(Row row, int attCount) {
+        int n = row.numValues();
+        double[] values = new double[n + 1];
+        int[] indices = new int[n + 1];
+        for(int k = 0; k < n; k++) {
+            indices[k] = row.index(k);
+            values[k] = row.value(k);
+        }
+        indices[n] = attCount;
+        values[n] = row.classVal;
+        return new SparseInstance(1.0, values, indices, attCount + 1);
+    }
+
+    /**
+     * Write the header of an ARFF file for a relation
+     * @param name The name of the ARFF relation
+     */
+    public void writeARFFHeader(String relation, String name, PrintStream out) {
+        out.println("@relation " + quote(name));
+        for(String att : attributes.get(relation)) {
+            out.println("@attribute " + quote(att) + " numeric");
+        }
+        out.println("@attribute class {0,1}");
+        out.println("@data");
+    }
+
+    /**
+     * Write a row as a sparse ARFF instance. The class is written only if it is not zero, as in
+     * sparse ARFF.
+     * @param attCount The number of attributes of the relation, not including the class
+     */
+    public static void writeARFFRow(Row row, int attCount, PrintStream out) {
+        StringBuilder sb = new StringBuilder("{");
+        for(int k = 0; k < row.numValues(); k++) {
+            if(k > 0)
+                sb.append(",");
+            sb.append(row.index(k)).append(" ").append(format(row.value(k)));
+        }
+        if(row.classVal != 0) {
+            if(row.numValues() > 0)
+                sb.append(",");
+            sb.append(attCount).append(" ").append((int)row.classVal);
+        }
+        sb.append("}");
+        out.println(sb.toString());
+    }
+
+    /**
+     * Write a relation as an ARFF file, one row at a time
+     */
+    public void writeARFF(String relation, PrintStream out) {
+        writeARFFHeader(relation, relation, out);
+        int attCount = attributes.get(relation).size();
+        Iterator<Row> iter = rows(relation);
+        while(iter.hasNext()) {
+            writeARFFRow(iter.next(), attCount, out);
+        }
+    }
+
+    private static String format(double d) {
+        if(d == Math.rint(d) && !Double.isInfinite(d))
+            return Long.toString((long)d);
+        return Double.toString(d);
+    }
+
+    /** Quote a name for ARFF, if it contains spaces or special characters */
+    static String quote(String s) {
+        if(s.length() > 0 && !s.matches(".*[\\s,{}%'\"\\\\?].*"))
+            return s;
+        return "'" + s.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /** Close the file. Rows must not be read after this */
+    public void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+}
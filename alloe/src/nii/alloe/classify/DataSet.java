@@ -31,8 +31,14 @@ public class DataSet implements Serializable {
     
     public Map<String,Instances> instances;
     private Set<String> trainingSets;
-    Map<String,Vector<String>> terms;
-    Map<String,Vector<String>> nonOccTerms;
+    /** The term pairs of the instances, only set in data sets written before termPairs */
+    private Map<String,Vector<String>> terms;
+    /** The term pairs of the non-occuring instances, only set in data sets written before nonOccTermPairs */
+    private Map<String,Vector<String>> nonOccTerms;
+    /** The term pair of each instance, by the indices of the terms in termSet */
+    Map<String,PairList> termPairs;
+    /** The term pairs included by addNonOccInstance */
+    Map<String,PairList> nonOccTermPairs;
     public TermList termSet;
     private FastVector classVec;
     static public final String glue = " => ";
@@ -40,13 +46,50 @@ public class DataSet implements Serializable {
     /** Create a new instance */
     public DataSet(TermList termList) {
         instances = new HashMap<String,Instances>();
-        terms = new HashMap<String,Vector<String>>();
-        nonOccTerms = new HashMap<String,Vector<String>>();
+        termPairs = new HashMap<String,PairList>();
+        nonOccTermPairs = new HashMap<String,PairList>();
         termSet = termList;
         trainingSets = new HashSet<String>();
     }
     
-    public Vector<String> getTerms(String relation) { return terms.get(relation); }
+    /**
+     * Get the term pair of each instance of a relation, as the string "term1 => term2"
+     * @return The term pairs, or null if the relation is not prepared
+     */
+    public Vector<String> getTerms(String relation) {
+        PairList pairs = termPairs.get(relation);
+        if(pairs == null)
+            return null;
+        Vector<String> rval = new Vector<String>(pairs.size());
+        for(int i = 0; i < pairs.size(); i++) {
+            rval.add(termSet.get(pairs.term1(i)) + glue + termSet.get(pairs.term2(i)));
+        }
+        return rval;
+    }
+    
+    /**
+     * A list of term pairs, each stored as the indices in termSet of its terms packed
+     * into a long
+     */
+    static class PairList implements Serializable {
+        private static final long serialVersionUID = 4050075692298207362L;
+        private long[] pairs = new long[16];
+        private int size;
+        
+        void add(int term1, int term2) {
+            if(size == pairs.length)
+                pairs = Arrays.copyOf(pairs, size * 2);
+            pairs[size++] = ((long)term1 << 32) | term2;
+        }
+        
+        int size() { return size; }
+        
+        /** @return the index in termSet of term1 of the i-th pair */
+        int term1(int i) { return (int)(pairs[i] >>> 32); }
+        
+        /** @return the index in termSet of term2 of the i-th pair */
+        int term2(int i) { return (int)pairs[i]; }
+    }
     
     /**
      * Add a new relation with a given set of attributes
@@ -61,8 +104,8 @@ public class DataSet implements Serializable {
         classVec.addElement("1");
         fv.addElement(new Attribute("class",classVec));
         instances.put(relation, new Instances(relation, fv, 0));
-        terms.put(relation, new Vector<String>());
-        nonOccTerms.put(relation, new Vector<String>());
+        termPairs.put(relation, new PairList());
+        nonOccTermPairs.put(relation, new PairList());
     }
     
     public double getClassVal(boolean clasz) {
@@ -76,7 +119,7 @@ public class DataSet implements Serializable {
      * Check if prepRelation has been called
      */
     public boolean isRelationPrepared(String relation) {
-        return terms.get(relation) != null;
+        return termPairs.get(relation) != null;
     }
     
     /**
@@ -84,11 +127,22 @@ public class DataSet implements Serializable {
      * @throws IllegalArgumentException if prepRelation has not been called for this relation
      */
     public void addInstance(Instance i, String relation, String term1, String term2) {
-        if(instances.get(relation) == null || !termSet.contains(term1) || !termSet.contains(term2)) {
+        addInstance(i, relation, termSet.indexOf(term1), termSet.indexOf(term2));
+    }
+    
+    /**
+     * Add a new instance to the data set
+     * @param term1 The index of term1 in termSet
+     * @param term2 The index of term2 in termSet
+     * @throws IllegalArgumentException if prepRelation has not been called for this relation
+     */
+    public void addInstance(Instance i, String relation, int term1, int term2) {
+        if(instances.get(relation) == null || term1 < 0 || term1 >= termSet.size() ||
+                term2 < 0 || term2 >= termSet.size()) {
             throw new IllegalArgumentException();
         }
         instances.get(relation).add(i);
-        terms.get(relation).add(term1 + glue + term2);
+        termPairs.get(relation).add(term1, term2);
     }
     
     /**
@@ -96,11 +150,11 @@ public class DataSet implements Serializable {
      * @throws IllegalArgumentException if prepRelation has not been called for this relation
      */
     public void addNonOccInstance(String relation, String term1, String term2) {
-        if(nonOccTerms.get(relation) == null)
+        if(nonOccTermPairs.get(relation) == null)
             throw new IllegalArgumentException();
-        nonOccTerms.get(relation).add(term1 + glue + term2);
         termSet.add(term1);
         termSet.add(term2);
+        nonOccTermPairs.get(relation).add(termSet.indexOf(term1), termSet.indexOf(term2));
     }
     
     /**
@@ -129,7 +183,7 @@ public class DataSet implements Serializable {
         while(relationIter.hasNext()) {
             String relation = relationIter.next();
             Instances is = instances.get(relation);
-            is.setClassIndex(is.numInstances() - 1);
+            is.setClassIndex(is.numAttributes() - 1);
             try {
                 Classifier c = Classifier.makeCopy(classif);
                 c.buildClassifier(is);
@@ -148,7 +202,6 @@ public class DataSet implements Serializable {
      */
     public Model buildTrueModel(Logic logic) {
         Iterator<String> relationIter = instances.keySet().iterator();
-        Vector<String> termToNum = new Vector<String>(termSet);
         Model rval = new Model(logic);
         rval.addBasicGraphs(logic);
         while(relationIter.hasNext()) {
@@ -156,24 +209,17 @@ public class DataSet implements Serializable {
             Instances is = instances.get(relation);
             
             SpecificGraph sg = rval.addSpecificGraph(relation);
-            Vector<String> termList = terms.get(relation);
+            PairList pairs = termPairs.get(relation);
             
             for(int i = 0; i < is.numInstances(); i++) {
                 if(is.instance(i).value(is.numAttributes() - 1) == 1) {
-                    String s = termList.get(i);
-                    String []ss = s.split(glue);
-                    sg.add(termToNum.indexOf(ss[0]),
-                            termToNum.indexOf(ss[1]));
+                    sg.add(pairs.term1(i), pairs.term2(i));
                 }
             }
             
-            termList = nonOccTerms.get(relation);
-            for(int i = 0; i < termList.size(); i++) {
-                String s = termList.get(i);
-                String []ss = s.split(glue);
-                sg.add(termToNum.indexOf(ss[0]),
-                        termToNum.indexOf(ss[1]));
-                
+            pairs = nonOccTermPairs.get(relation);
+            for(int i = 0; i < pairs.size(); i++) {
+                sg.add(pairs.term1(i), pairs.term2(i));
             }
         }
         
@@ -190,4 +236,28 @@ public class DataSet implements Serializable {
         else
             trainingSets.remove(relation);
     }
+    
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        // Data sets written before the term pairs were stored as indices
+        if(termPairs == null) {
+            termPairs = toPairLists(terms);
+            nonOccTermPairs = toPairLists(nonOccTerms);
+            terms = null;
+            nonOccTerms = null;
+        }
+    }
+    
+    private Map<String,PairList> toPairLists(Map<String,Vector<String>> pairStrings) {
+        Map<String,PairList> rval = new HashMap<String,PairList>();
+        for(Map.Entry<String,Vector<String>> entry : pairStrings.entrySet()) {
+            PairList pairs = new PairList();
+            for(String s : entry.getValue()) {
+                String []ss = s.split(glue);
+                pairs.add(termSet.indexOf(ss[0]), termSet.indexOf(ss[1]));
+            }
+            rval.put(entry.getKey(), pairs);
+        }
+        return rval;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,300 @@
+package nii.alloe.classify;
+import java.io.*;
+import java.util.*;
+import nii.alloe.corpus.TermList;
+import weka.core.*;
+
+/**
+ * Writes a data set incrementally in the columnar format read by {@link ColumnarDataSet}, so
+ * that the instances need not be held in memory. The instances of each relation are buffered
+ * and written in chunks of at most {@link #CHUNK_ROWS} rows. Each chunk stores the sparse
+ * values in compressed rows (the start of each row, then the attribute index and value of
+ * each non-zero value) with a column for each of term1, term2 and the class.
+ * <p>
+ * The file is a sequence of records, each a type byte, the length of the rest of the record,
+ * then the record itself: relations (name and attribute names), chunks, non-occuring term
+ * pairs and, when the writer is closed, the term list. Terms are stored as their index in
+ * the term list.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class DataSetWriter {
+    static final int MAGIC = 0x41465643; // "AFVC"
+    static final int VERSION = 1;
+    static final byte RELATION = 1;
+    static final byte CHUNK = 2;
+    static final byte NON_OCC = 3;
+    static final byte TERMS = 4;
+    /** The maximum number of rows in a chunk */
+    public static final int CHUNK_ROWS = 65536;
+    /** The maximum number of values in a chunk, so that each chunk can be mapped */
+    static final int CHUNK_VALUES = 1 << 24;
+
+    private final DataOutputStream out;
+    private final TermList termSet;
+    private final Map<String, Integer> relations = new HashMap<String, Integer>();
+    private final Map<String, Integer> attCounts = new HashMap<String, Integer>();
+    private final Map<String, Chunk> chunks = new HashMap<String, Chunk>();
+
+    /** Create a new data set file
+     * @param file The file, which is overwritten
+     * @param termSet The term list, which terms are indices of. This is written when the writer
+     * is closed, so terms may be added to it while writing
+     */
+    public DataSetWriter(File file, TermList termSet) throws IOException {
+        this(file, termSet, false);
+    }
+
+    /** Create a writer
+     * @param file The file
+     * @param termSet The term list, which terms are indices of. If appending this must be the term
+     * list of the file, or one which extends it
+     * @param append If true the instances are added to those already in the file
+     * @throws IllegalArgumentException If appending and the term list of the file is not the
+     * start of termSet
+     */
+    public DataSetWriter(File file, TermList termSet, boolean append) throws IOException {
+        this.termSet = termSet;
+        if(append && file.exists()) {
+            ColumnarDataSet existing = ColumnarDataSet.open(file);
+            try {
+                // The term indices already written must still name the same terms
+                TermList oldTerms = existing.getTermSet();
+                if(oldTerms.size() > termSet.size())
+                    throw new IllegalArgumentException("Term list has " + termSet.size() + " terms but " + file + " has " + oldTerms.size());
+                for(int i = 0; i < oldTerms.size(); i++) {
+                    if(!oldTerms.get(i).equals(termSet.get(i)))
+                        throw new IllegalArgumentException("Term " + i + " is " + termSet.get(i) + " but in " + file + " is " + oldTerms.get(i));
+                }
+                for(String relation : existing.getRelations()) {
+                    relations.put(relation, relations.size());
+                    attCounts.put(relation, existing.getAttributes(relation).size());
+                }
+            } finally {
+                existing.close();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } else {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+    }
+
+    /**
+     * Write a data set held in memory
+     */
+    public static void write(DataSet dataSet, File file) throws IOException {
+        DataSetWriter writer = new DataSetWriter(file, dataSet.termSet);
+        for(Map.Entry<String,Instances> entry : dataSet.instances.entrySet()) {
+            String relation = entry.getKey();
+            Instances is = entry.getValue();
+            int classIndex = is.numAttributes() - 1;
+            Vector<String> attNames = new Vector<String>();
+            for(int k = 0; k < classIndex; k++) {
+                attNames.add(is.attribute(k).name());
+            }
+            writer.prepRelation(relation, attNames.iterator());
+            DataSet.PairList pairs = dataSet.termPairs.get(relation);
+            for(int i = 0; i < is.numInstances(); i++) {
+                Instance inst = is.instance(i);
+                int[] indices = new int[inst.numValues()];
+                double[] values = new double[inst.numValues()];
+                int n = 0;
+                for(int k = 0; k < inst.numValues(); k++) {
+                    if(inst.index(k) != classIndex && inst.valueSparse(k) != 0) {
+                        indices[n] = inst.index(k);
+                        values[n++] = inst.valueSparse(k);
+                    }
+                }
+                writer.addInstance(relation, pairs.term1(i), pairs.term2(i), indices, values, n, inst.value(classIndex));
+            }
+            pairs = dataSet.nonOccTermPairs.get(relation);
+            for(int i = 0; i < pairs.size(); i++) {
+                writer.addNonOccInstance(relation, pairs.term1(i), pairs.term2(i));
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Check if prepRelation has been called
+     */
+    public boolean isRelationPrepared(String relation) {
+        return relations.containsKey(relation);
+    }
+
+    /**
+     * Add a new relation with a given set of attributes, not including the class
+     */
+    public void prepRelation(String relation, Iterator<String> attNames) throws IOException {
+        if(relations.containsKey(relation))
+            throw new IllegalArgumentException("Relation " + relation + " already prepared");
+        Vector<String> names = new Vector<String>();
+        while(attNames.hasNext()) {
+            names.add(attNames.next());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeUTF(relation);
+        record.writeInt(names.size());
+        for(String name : names) {
+            record.writeUTF(name);
+        }
+        record.close();
+        out.writeByte(RELATION);
+        out.writeLong(bytes.size());
+        bytes.writeTo(out);
+        relations.put(relation, relations.size());
+        attCounts.put(relation, names.size());
+    }
+
+    /**
+     * Add a new instance
+     * @param term1 The index of term1 in the term list
+     * @param term2 The index of term2 in the term list
+     * @param indices The attributes with non-zero values, in increasing order
+     * @param values The values of these attributes
+     * @param count The number of values, from the start of indices and values
+     * @param classVal The class value, see {@link DataSet#getClassVal(boolean)}
+     * @throws IllegalArgumentException if prepRelation has not been called for this relation
+     */
+    public void addInstance(String relation, int term1, int term2, int[] indices, double[] values,
+            int count, double classVal) throws IOException {
+        Chunk chunk = chunk(relation);
+        if(term1 < 0 || term1 >= termSet.size() || term2 < 0 || term2 >= termSet.size())
+            throw new IllegalArgumentException();
+        for(int k = 0; k < count; k++) {
+            if(indices[k] < 0 || indices[k] >= attCounts.get(relation) || (k > 0 && indices[k] <= indices[k-1]))
+                throw new IllegalArgumentException("Bad attribute index " + indices[k]);
+        }
+        if(chunk.rows == CHUNK_ROWS || chunk.size + count > CHUNK_VALUES)
+            flush(relation, chunk);
+        chunk.add(term1, term2, indices, values, count, classVal);
+    }
+
+    /**
+     * Add a new instance
+     * @see #addInstance(String,int,int,int[],double[],int,double)
+     */
+    public void addInstance(String relation, String term1, String term2, int[] indices, double[] values,
+            int count, double classVal) throws IOException {
+        addInstance(relation, termSet.indexOf(term1), termSet.indexOf(term2), indices, values, count, classVal);
+    }
+
+    /**
+     * Include this term pair as positive even though it has zero data
+     * @param term1 The index of term1 in the term list
+     * @param term2 The index of term2 in the term list
+     * @throws IllegalArgumentException if prepRelation has not been called for this relation
+     */
+    public void addNonOccInstance(String relation, int term1, int term2) throws IOException {
+        Integer r = relations.get(relation);
+        if(r == null || term1 < 0 || term2 < 0)
+            throw new IllegalArgumentException();
+        out.writeByte(NON_OCC);
+        out.writeLong(12);
+        out.writeInt(r);
+        out.writeInt(term1);
+        out.writeInt(term2);
+    }
+
+    private Chunk chunk(String relation) {
+        if(!relations.containsKey(relation))
+            throw new IllegalArgumentException("Relation " + relation + " not prepared");
+        Chunk chunk = chunks.get(relation);
+        if(chunk == null) {
+            chunk = new Chunk();
+            chunks.put(relation, chunk);
+        }
+        return chunk;
+    }
+
+    private void flush(String relation, Chunk chunk) throws IOException {
+        if(chunk.rows == 0)
+            return;
+        out.writeByte(CHUNK);
+        out.writeLong(12l + 4l * (chunk.rows + 1) + 16l * chunk.rows + 12l * chunk.size);
+        out.writeInt(relations.get(relation));
+        out.writeInt(chunk.rows);
+        out.writeInt(chunk.size);
+        for(int i = 0; i <= chunk.rows; i++) {
+            out.writeInt(chunk.rowStart[i]);
+        }
+        for(int i = 0; i < chunk.rows; i++) {
+            out.writeInt(chunk.term1[i]);
+        }
+        for(int i = 0; i < chunk.rows; i++) {
+            out.writeInt(chunk.term2[i]);
+        }
+        for(int i = 0; i < chunk.rows; i++) {
+            out.writeDouble(chunk.classVal[i]);
+        }
+        for(int k = 0; k < chunk.size; k++) {
+            out.writeInt(chunk.indices[k]);
+        }
+        for(int k = 0; k < chunk.size; k++) {
+            out.writeDouble(chunk.values[k]);
+        }
+        chunk.clear();
+    }
+
+    /** Write all buffered instances and the term list
+     * @throws IOException If the file could not be written, it is still closed */
+    public void close() throws IOException {
+        try {
+            for(Map.Entry<String,Chunk> entry : chunks.entrySet()) {
+                flush(entry.getKey(), entry.getValue());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeInt(termSet.size());
+            for(String term : termSet) {
+                record.writeUTF(term);
+            }
+            record.close();
+            out.writeByte(TERMS);
+            out.writeLong(bytes.size());
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** The buffered rows of a relation */
+    private static class Chunk {
+        int rows, size;
+        int[] rowStart = new int[17];
+        int[] term1 = new int[16], term2 = new int[16];
+        double[] classVal = new double[16];
+        int[] indices = new int[64];
+        double[] values = new double[64];
+
+        void add(int t1, int t2, int[] idx, double[] vals, int count, double c) {
+            if(rows == term1.length) {
+                rowStart = Arrays.copyOf(rowStart, rows * 2 + 1);
+                term1 = Arrays.copyOf(term1, rows * 2);
+                term2 = Arrays.copyOf(term2, rows * 2);
+                classVal = Arrays.copyOf(classVal, rows * 2);
+            }
+            if(size + count > indices.length) {
+                int capacity = Math.max(indices.length * 2, size + count);
+                indices = Arrays.copyOf(indices, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            term1[rows] = t1;
+            term2[rows] = t2;
+            classVal[rows] = c;
+            System.arraycopy(idx, 0, indices, size, count);
+            System.arraycopy(vals, 0, values, size, count);
+            size += count;
+            rows++;
+            rowStart[rows] = size;
+        }
+
+        void clear() {
+            rows = 0;
+            size = 0;
+        }
+    }
+}
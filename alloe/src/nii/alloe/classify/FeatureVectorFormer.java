@@ -1,8 +1,11 @@
 package nii.alloe.classify;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import nii.alloe.corpus.Corpus;
+import nii.alloe.corpus.PostingList;
+import nii.alloe.corpus.TermDictionary;
 import nii.alloe.corpus.TermPairSet;
 import nii.alloe.corpus.pattern.*;
 import nii.alloe.tools.process.AlloeProcess;
@@ -11,7 +14,12 @@ import nii.alloe.tools.process.CannotPauseException;
 import weka.core.*;
 
 /**
- * Form a set of feature vectors using a corpus and set of patterns.
+ * Form a set of feature vectors using a corpus and set of patterns. The contexts returned by
+ * the queries of all the patterns of a relation are read once, in document order, and each
+ * context is only matched against the patterns it could match (see {@link PatternBatchScorer}).
+ * Each match of a pattern to a term pair is appended to a buffer as a single key, these are
+ * then sorted and counted. The contexts are split into shards which may be read in parallel,
+ * each with its own buffer, and the counts of the shards are merged at the end.
  *
  * @author John McCrae, National Institute of Informatics
  */
@@ -24,8 +32,14 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
     private Vector<TermPairSet> termPairs;
     /** The data set that the data should be entered into */
     public DataSet dataSet;
-    private HashMap<String, SparseInstance> instances;
-    private static final String glue = " => ";
+    /** The relation being built */
+    private int ri;
+    /** The counts of each shard of the relation being built, or null for shards not yet read */
+    private PairCounts[] shardCounts;
+    /** The ids of the terms, which are used in place of the terms while counting */
+    private transient TermDictionary termIds;
+    /** The writer the feature vectors are written to, or null to put them in dataSet */
+    private transient DataSetWriter output;
 
     /** Create a new feature vector former
      * @param relation The relation to create data for
@@ -39,83 +53,316 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
         this.patterns = patterns;
         this.corpus = corpus;
         this.termPairs = termPairs;
-        instances = new HashMap<String, SparseInstance>();
-        i = 0;
+        ri = 0;
+    }
+
+    /**
+     * Write the feature vectors to a columnar data set as each relation is finished, instead
+     * of putting them in dataSet. The writer should be for the term list of the corpus, and is
+     * not closed by this. If the process is resumed after being deserialized the writer must
+     * be set again, for example with a writer appending to the same file.
+     * @see DataSetWriter#DataSetWriter(File,nii.alloe.corpus.TermList,boolean)
+     */
+    public void setOutput(DataSetWriter output) {
+        this.output = output;
     }
-    private String term1,  term2;
-    private int i;
 
     /**
      * Makes a set of feature vectors
-     * @return dataSet if the value passed was non-null, else a new DataSet with all information inserted */
+     * @return dataSet if the value passed was non-null, else a new DataSet with all information
+     * inserted, or null if the vectors were written to the output */
     public DataSet makeFeatureVectors() {
-        for (int ri = 0; ri < relation.size(); ri++) {
-            if (dataSet == null) {
-                dataSet = new DataSet(corpus.terms);
+        if (dataSet == null && output == null) {
+            dataSet = new DataSet(corpus.terms);
+        }
+        if (termIds == null) {
+            termIds = new TermDictionary(terms);
+        }
+        for (; ri < relation.size(); ri++) {
+            try {
+                if (output != null && !output.isRelationPrepared(relation.get(ri))) {
+                    output.prepRelation(relation.get(ri), getAttNames(patterns.get(ri)));
+                } else if (output == null && !dataSet.isRelationPrepared(relation.get(ri))) {
+                    dataSet.prepRelation(relation.get(ri), getAttNames(patterns.get(ri)));
+                }
+            } catch (IOException x) {
+                throw new RuntimeException("Could not write feature vectors", x);
             }
-            if (!dataSet.isRelationPrepared(relation.get(ri))) {
-                dataSet.prepRelation(relation.get(ri), getAttNames(patterns.get(ri)));
+            Pattern[] pats = patterns.get(ri).keySet().toArray(new Pattern[0]);
+            countRelation(pats);
+            if (state != STATE_OK) {
+                // Resume from the first shard not read
+                return dataSet;
             }
+            PairCounts counts = PairCounts.merge(shardCounts);
+            shardCounts = null;
+            try {
+                addInstances(pats.length, counts);
+            } catch (IOException x) {
+                throw new RuntimeException("Could not write feature vectors", x);
+            }
+            corpus.clearTermsInCorpusCache();
+        }
 
-            fireNewProgressChange((double) i / (double) patterns.get(ri).size());
+        fireFinished();
 
+        return dataSet;
+    }
 
-            Iterator<Pattern> patIter = patterns.get(ri).keySet().iterator();
-            for (int j = 0; j < i; j++) {
-                patIter.next();
+    /** Read the shards of the contexts of the patterns of a relation, into shardCounts */
+    private void countRelation(final Pattern[] pats) {
+        final PostingList[] evaluated = new PostingList[pats.length];
+        PostingList docs = new PostingList();
+        final HashMap<String, Vector<Integer>> index = new HashMap<String, Vector<Integer>>();
+        final Vector<Integer> unindexed = new Vector<Integer>();
+        for (int p = 0; p < pats.length; p++) {
+            evaluated[p] = corpus.getHitsForPattern(pats[p]);
+            docs = docs.union(evaluated[p]);
+            // Index each pattern by its longest word, a context without it cannot match
+            String key = null;
+            for (String word : pats[p].getMatcher(isLazyMatching()).getWords()) {
+                if (key == null || word.length() > key.length()) {
+                    key = word;
+                }
             }
-            double corpusSize = corpus.size();
-            while (patIter.hasNext() && state == STATE_OK) {
-                Pattern p = patIter.next();
-                Iterator<Corpus.Hit> contexts = corpus.getContextsForPattern(p);
-                if (contexts == null) {
+            if (key == null) {
+                unindexed.add(p);
+            } else {
+                Vector<Integer> v = index.get(key);
+                if (v == null) {
+                    index.put(key, v = new Vector<Integer>());
+                }
+                v.add(p);
+            }
+        }
+
+        int shardCount = (docs.size() + shardSize - 1) / shardSize;
+        if (shardCounts == null || shardCounts.length != shardCount) {
+            shardCounts = new PairCounts[shardCount];
+        }
+        int done = 0;
+        for (PairCounts c : shardCounts) {
+            if (c != null) {
+                done++;
+            }
+        }
+        fireNewProgressChange(progress(done, shardCount));
+        if (threads <= 1) {
+            for (int i = 0; i < shardCount && state == STATE_OK; i++) {
+                if (shardCounts[i] == null) {
+                    shardCounts[i] = countShard(pats, evaluated, index, unindexed,
+                            docs.subList(i * shardSize, Math.min(docs.size(), (i + 1) * shardSize)));
+                    fireNewProgressChange(progress(++done, shardCount));
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Vector<Future<PairCounts>> futures = new Vector<Future<PairCounts>>(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                if (shardCounts[i] != null) {
+                    futures.add(null);
                     continue;
                 }
-                while (contexts.hasNext()) {
-                    Corpus.Hit context = contexts.next();
-                    String text = context.getText();
-                    String[] terms = context.getTerms();
-                    for (int j = 0; j < terms.length; j++) {
-                        for (int k = 0; k < terms.length; k++) {
-                            if (p.matches(text, terms[j], terms[k], isLazyMatching())) {
-                                SparseInstance inst = instances.get(terms[j] + glue + terms[k]);
-                                if (inst == null) {
-                                    instances.put(terms[j] + glue + terms[k], inst = new SparseInstance(1.0, new double[patterns.size() + 1]));
-                                }
-                                inst.setValue(i, inst.value(i) + 1.0); // (double)corpusSize);
-                            }
+                final PostingList shard = docs.subList(i * shardSize, Math.min(docs.size(), (i + 1) * shardSize));
+                futures.add(executor.submit(new Callable<PairCounts>() {
+                    public PairCounts call() {
+                        if (state != STATE_OK) {
+                            return null;
+                        }
+                        return countShard(pats, evaluated, index, unindexed, shard);
+                    }
+                }));
+            }
+            executor.shutdown();
+            try {
+                for (int i = 0; i < shardCount; i++) {
+                    if (futures.get(i) != null) {
+                        shardCounts[i] = futures.get(i).get();
+                        if (shardCounts[i] != null) {
+                            fireNewProgressChange(progress(++done, shardCount));
                         }
                     }
                 }
-                i++;
-                fireNewProgressChange((double) i / (double) patterns.get(ri).size() * (ri + 1) / relation.size());
+            } catch (InterruptedException x) {
+                executor.shutdownNow();
+                throw new RuntimeException("Interrupted while building feature vectors");
+            } catch (ExecutionException x) {
+                executor.shutdownNow();
+                if (x.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) x.getCause();
+                }
+                throw new RuntimeException(x.getCause());
             }
-            corpus.clearTermsInCorpusCache();
+        }
+    }
 
-            Iterator<Map.Entry<String, SparseInstance>> entryIter = instances.entrySet().iterator();
-            while (entryIter.hasNext()) {
-                Map.Entry<String, SparseInstance> entry = entryIter.next();
-                String terms = entry.getKey();
-                SparseInstance inst = entry.getValue();
-                String[] ss = terms.split(glue);
-                assert ss.length == 2;
-                term1 = ss[0];
-                term2 = ss[1];
-                if (termPairs != null) {
-                    inst.setValue(patterns.get(ri).size(), dataSet.getClassVal(termPairs.get(ri).contains(term1, term2)));
-                } else {
-                    inst.setValue(patterns.get(ri).size(), dataSet.getClassVal(false));
+    private double progress(int done, int shardCount) {
+        return (ri + (shardCount == 0 ? 1.0 : (double) done / (double) shardCount)) / relation.size();
+    }
+
+    /** Match the patterns to every term pair of every context in a shard */
+    private PairCounts countShard(Pattern[] pats, PostingList[] evaluated, Map<String, Vector<Integer>> index,
+            Vector<Integer> unindexed, PostingList shard) {
+        PairCounts rval = new PairCounts();
+        int[] seen = new int[pats.length];
+        long termCount = termIds.size();
+        Iterator<Corpus.Hit> contexts = corpus.getContextsForHits(shard);
+        for (int k = 0; k < shard.size(); k++) {
+            int doc = shard.get(k);
+            Corpus.Hit hit = contexts.next();
+            PatternMatcher.Context context = hit.getPatternContext();
+            String[] hitTerms = null;
+            int[] ids = null;
+            Vector<Integer> candidates = new Vector<Integer>(unindexed);
+            for (String word : context.getWords()) {
+                Vector<Integer> v = index.get(word);
+                if (v != null) {
+                    candidates.addAll(v);
                 }
-                dataSet.addInstance(inst,
+            }
+            for (int p : candidates) {
+                // Each pattern once per context, and only if its query returned this context
+                if (seen[p] == k + 1 || !evaluated[p].contains(doc)) {
+                    continue;
+                }
+                seen[p] = k + 1;
+                if (!pats[p].canMatch(context, isLazyMatching())) {
+                    continue;
+                }
+                if (hitTerms == null) {
+                    hitTerms = hit.getTerms();
+                    ids = new int[hitTerms.length];
+                    for (int j = 0; j < hitTerms.length; j++) {
+                        ids[j] = termId(hitTerms[j]);
+                    }
+                }
+                for (int j = 0; j < hitTerms.length; j++) {
+                    if (ids[j] < 0) {
+                        continue;
+                    }
+                    for (int l = 0; l < hitTerms.length; l++) {
+                        if (ids[l] >= 0 && pats[p].matches(context, hitTerms[j], hitTerms[l], isLazyMatching())) {
+                            rval.add((ids[j] * termCount + ids[l]) * pats.length + p);
+                        }
+                    }
+                }
+            }
+        }
+        rval.count();
+        return rval;
+    }
+
+    /** @return the id of the term, or -1 if it is not in the term list */
+    private int termId(String term) {
+        int id = termIds.id(term);
+        if (id < 0) {
+            id = termIds.id(Pattern.makeSafe(term));
+        }
+        return id;
+    }
+
+    /** Add an instance to the data set (or output) for every term pair with a count */
+    private void addInstances(int patternCount, PairCounts counts) throws IOException {
+        long termCount = termIds.size();
+        int s = 0;
+        while (s < counts.size) {
+            long pair = counts.keys[s] / patternCount;
+            int e = s;
+            while (e < counts.size && counts.keys[e] / patternCount == pair) {
+                e++;
+            }
+            double[] values = new double[e - s + 1];
+            int[] indices = new int[e - s + 1];
+            for (int k = s; k < e; k++) {
+                indices[k - s] = (int) (counts.keys[k] % patternCount);
+                values[k - s] = counts.counts[k];
+            }
+            String term1 = termIds.term((int) (pair / termCount));
+            String term2 = termIds.term((int) (pair % termCount));
+            boolean positive = termPairs != null && termPairs.get(ri).contains(term1, term2);
+            if (output != null) {
+                // The class values are the indices of "0" and "1", as in DataSet
+                output.addInstance(relation.get(ri), term1, term2, indices, values, e - s, positive ? 1 : 0);
+            } else {
+                indices[e - s] = patternCount;
+                values[e - s] = dataSet.getClassVal(positive);
+                dataSet.addInstance(new SparseInstance(1.0, values, indices, patternCount + 1),
                         relation.get(ri), term1, term2);
-                entryIter.remove();
             }
+            s = e;
+        }
+    }
+
+    /**
+     * The number of times each pattern matches each term pair. The key of a match is
+     * <code>(term1 * terms + term2) * patterns + pattern</code>. Keys are appended by add, then
+     * count sorts them and counts the repeats.
+     */
+    private static class PairCounts implements Serializable {
+        private static final long serialVersionUID = 2123397527733116787L;
+        long[] keys = new long[16];
+        int[] counts;
+        int size;
 
+        void add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size++] = key;
         }
-        
-            fireFinished();
 
-        return dataSet;
+        void count() {
+            Arrays.sort(keys, 0, size);
+            counts = new int[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n > 0 && keys[n - 1] == keys[i]) {
+                    counts[n - 1]++;
+                } else {
+                    keys[n] = keys[i];
+                    counts[n++] = 1;
+                }
+            }
+            size = n;
+            keys = Arrays.copyOf(keys, n);
+            counts = Arrays.copyOf(counts, n);
+        }
+
+        /** Merge two counted sets of keys */
+        static PairCounts merge(PairCounts a, PairCounts b) {
+            PairCounts rval = new PairCounts();
+            rval.keys = new long[a.size + b.size];
+            rval.counts = new int[a.size + b.size];
+            int i = 0, j = 0, n = 0;
+            while (i < a.size || j < b.size) {
+                if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                    rval.keys[n] = a.keys[i];
+                    rval.counts[n++] = a.counts[i++];
+                } else if (i == a.size || b.keys[j] < a.keys[i]) {
+                    rval.keys[n] = b.keys[j];
+                    rval.counts[n++] = b.counts[j++];
+                } else {
+                    rval.keys[n] = a.keys[i];
+                    rval.counts[n++] = a.counts[i++] + b.counts[j++];
+                }
+            }
+            rval.size = n;
+            return rval;
+        }
+
+        /** Merge the counts of all the shards, in pairs */
+        static PairCounts merge(PairCounts[] shards) {
+            LinkedList<PairCounts> queue = new LinkedList<PairCounts>(Arrays.asList(shards));
+            if (queue.isEmpty()) {
+                PairCounts rval = new PairCounts();
+                rval.count();
+                return rval;
+            }
+            while (queue.size() > 1) {
+                queue.add(merge(queue.removeFirst(), queue.removeFirst()));
+            }
+            return queue.getFirst();
+        }
     }
 
     public void run() {
@@ -148,7 +395,7 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
     }
     private transient LinkedList<AlloeProgressListener> aplListeners;
     private transient Thread theThread;
-    private transient int state;
+    private transient volatile int state;
     private static final int STATE_OK = 0;
     private static final int STATE_STOPPING = 1;
     private static final int STATE_UNPAUSEABLE = 2;
@@ -164,6 +411,9 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
     }
 
     private void fireNewProgressChange(double newProgress) {
+        if (aplListeners == null) {
+            return;
+        }
         Iterator<AlloeProgressListener> apliter = aplListeners.iterator();
         while (apliter.hasNext()) {
             apliter.next().progressChange(newProgress);
@@ -171,6 +421,9 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
     }
 
     private void fireFinished() {
+        if (aplListeners == null) {
+            return;
+        }
         Iterator<AlloeProgressListener> apliter = aplListeners.iterator();
         while (apliter.hasNext()) {
             apliter.next().finished();
@@ -237,4 +490,52 @@ public class FeatureVectorFormer implements AlloeProcess, Serializable, Runnable
     public void setLazyMatching(boolean lazyMatching) {
         this.lazyMatching = lazyMatching;
     }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of threads reading shards of contexts.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of threads reading shards of contexts.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Holds value of property shardSize.
+     */
+    private int shardSize = 1000;
+
+    /**
+     * Getter for property shardSize.
+     * @return Value of property shardSize.
+     */
+    public int getShardSize() {
+        return this.shardSize;
+    }
+
+    /**
+     * Setter for property shardSize.
+     * @param shardSize New value of property shardSize, the number of contexts read by each task.
+     */
+    public void setShardSize(int shardSize) {
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("Shard size must be positive");
+        }
+        this.shardSize = shardSize;
+    }
 }
@@ -3,6 +3,7 @@ package nii.alloe.classify;
 import nii.alloe.theory.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import nii.alloe.tools.process.AlloeProcess;
 import nii.alloe.tools.process.AlloeProgressListener;
 import nii.alloe.tools.process.CannotPauseException;
@@ -18,7 +19,7 @@ public class ProbModelBuilder implements AlloeProcess, Serializable, Runnable {
 
     private transient LinkedList<AlloeProgressListener> aplListeners;
     private transient Thread theThread;
-    private transient int state;
+    private transient volatile int state;
     private static final int STATE_OK = 0;
     private static final int STATE_STOPPING = 1;
     private static final int STATE_UNPAUSEABLE = 2;
@@ -61,6 +62,9 @@ public class ProbModelBuilder implements AlloeProcess, Serializable, Runnable {
     }
 
     private void fireNewProgressChange(double newProgress) {
+        if (aplListeners == null) {
+            return;
+        }
         Iterator<AlloeProgressListener> apliter = aplListeners.iterator();
         while (apliter.hasNext()) {
             apliter.next().progressChange(newProgress);
@@ -68,6 +72,9 @@ public class ProbModelBuilder implements AlloeProcess, Serializable, Runnable {
     }
 
     private void fireFinished() {
+        if (aplListeners == null) {
+            return;
+        }
         Iterator<AlloeProgressListener> apliter = aplListeners.iterator();
         while (apliter.hasNext()) {
             apliter.next().finished();
@@ -119,62 +126,192 @@ public class ProbModelBuilder implements AlloeProcess, Serializable, Runnable {
     public void run() {
         buildProbModel();
     }
+    /** The relation being classified, or null if the next relation should be started */
     private String relation;
+    /** The next instance of the relation to classify */
     private int i;
+    /** The relations whose graphs are complete, or null if a new model should be started */
+    private HashSet<String> completed;
     double relationCount, instCount;
 
     /**
-     * Build a probability model
+     * Build a probability model. The instances of each relation are classified in batches,
+     * each batch split across the threads, each thread with its own copy of the classifier.
+     * Instances which are zero (other than the class) are not classified, as they take the
+     * base value of the graph, which is set by classifying the zero vector. If the process
+     * was paused, the relations already complete are kept and the model is continued.
+     * @return The model, or null if an error occured or the process was paused
      */
     public Model buildProbModel() {
         Iterator<String> relationIter = classifs.keySet().iterator();
         final double relationTotal = classifs.keySet().size();
+        if (model == null || completed == null) {
+            relation = null;
+            completed = new HashSet<String>();
+            logic.setModelSize(dataSet.termSet.size());
+            model = new Model(logic);
+            model.addBasicGraphs(logic);
+        }
         relationCount = 0;
-        Vector<String> termToNum = new Vector<String>(dataSet.termSet);
-        logic.setModelSize(dataSet.termSet.size());
-        model = new Model(logic);
-        model.addBasicGraphs(logic);
-        while (relationIter.hasNext() && state == STATE_OK) {
-            relationCount++;
-            if (relation != null) {
-                while (!relation.equals(relationIter.next())) {
-                    ;
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            while (relationIter.hasNext() && state == STATE_OK) {
+                String next = relationIter.next();
+                relationCount++;
+                if (completed.contains(next)) {
+                    continue;
                 }
-            } else {
-                relation = relationIter.next();
-                i = 0;
-            }
-            Instances is = dataSet.instances.get(relation);
-            double instTotal = is.numInstances();
-            is.setClassIndex(is.numAttributes() - 1);
-            ProbabilityGraph pg = model.addProbabilityGraph(dataSetToLogicName.get(relation));
-
-            //Instances zeroVecIs = new Instances(is,1);
-            SparseInstance zeroVec = new SparseInstance(1, new double[is.numAttributes()]);
-            zeroVec.setDataset(is);
-            Classifier classif = classifs.get(relation);
-            try {
-                double[] dist;
-                Vector<String> termList = dataSet.terms.get(relation);
-
-                dist = classif.distributionForInstance(zeroVec);
-                pg.setBaseVal(dist[0]);
-
-                for (; i < is.numInstances() && state == STATE_OK; i++) {
-                    String s = termList.get(i);
-                    String[] ss = s.split(dataSet.glue);
-                    dist = classif.distributionForInstance(is.instance(i));
-                    pg.setVal(termToNum.indexOf(ss[0]), termToNum.indexOf(ss[1]), dist[1]);
+                if (!next.equals(relation)) {
+                    relation = next;
+                    i = 0;
+                }
+                Instances is = dataSet.instances.get(relation);
+                is.setClassIndex(is.numAttributes() - 1);
+                String graphName = dataSetToLogicName.get(relation);
+                ProbabilityGraph pg;
+                if (i > 0 && model.getGraphByName(graphName) instanceof ProbabilityGraph) {
+                    pg = (ProbabilityGraph) model.getGraphByName(graphName);
+                } else {
+                    pg = model.addProbabilityGraph(graphName);
+                }
+
+                SparseInstance zeroVec = new SparseInstance(1, new double[is.numAttributes()]);
+                zeroVec.setDataset(is);
+                Classifier classif = classifs.get(relation);
+                pg.setBaseVal(classif.distributionForInstance(zeroVec)[1]);
+
+                Classifier[] copies = new Classifier[Math.max(threads, 1)];
+                copies[0] = classif;
+                for (int t = 1; t < copies.length; t++) {
+                    // A built SparseLogisticRegression is not modified by classifying, so may be shared
+                    copies[t] = classif instanceof SparseLogisticRegression ? classif : Classifier.makeCopy(classif);
                 }
-                fireNewProgressChange((relationCount / relationTotal) * ((double) i / instTotal));
-            } catch (Exception x) {
-                x.printStackTrace();
-                return null;
+                classifyRelation(is, dataSet.termPairs.get(relation), pg, copies, executor, relationTotal);
+                if (i < is.numInstances()) {
+                    // Paused
+                    return null;
+                }
+                completed.add(relation);
+                relation = null;
             }
-            relation = null;
+        } catch (InterruptedException x) {
+            throw new RuntimeException("Interrupted while classifying instances");
+        } catch (ExecutionException x) {
+            x.getCause().printStackTrace();
+            return null;
+        } catch (Exception x) {
+            x.printStackTrace();
+            return null;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        if (state != STATE_OK) {
+            return null;
         }
         model.addCompulsorys(logic);
+        // The next call builds a new model
+        completed = null;
         fireFinished();
         return model;
     }
+
+    /**
+     * Classify the instances of a relation from i, until they are all done or the process is paused
+     * @param copies The copies of the classifier, one for each thread
+     * @param executor The thread pool, or null if there is only one thread
+     */
+    private void classifyRelation(final Instances is, final DataSet.PairList termPairs, ProbabilityGraph pg,
+            Classifier[] copies, ExecutorService executor, double relationTotal) throws Exception {
+        final int batchSize = BATCH_SIZE * copies.length;
+        final int[] rows = new int[batchSize], cols = new int[batchSize];
+        final double[] probs = new double[batchSize];
+        final boolean[] scored = new boolean[batchSize];
+        while (i < is.numInstances() && state == STATE_OK) {
+            final int start = i;
+            final int end = Math.min(i + batchSize, is.numInstances());
+            if (executor == null) {
+                classify(is, copies[0], start, start, end, probs, scored);
+            } else {
+                Vector<Future<?>> futures = new Vector<Future<?>>(copies.length);
+                for (int t = 0; t < copies.length; t++) {
+                    final Classifier classif = copies[t];
+                    final int from = start + (end - start) * t / copies.length;
+                    final int to = start + (end - start) * (t + 1) / copies.length;
+                    futures.add(executor.submit(new Callable<Object>() {
+                        public Object call() throws Exception {
+                            classify(is, classif, start, from, to, probs, scored);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+            }
+            int count = 0;
+            for (int k = start; k < end; k++) {
+                if (scored[k - start]) {
+                    rows[count] = termPairs.term1(k);
+                    cols[count] = termPairs.term2(k);
+                    probs[count++] = probs[k - start];
+                }
+            }
+            pg.setVals(rows, cols, probs, count);
+            i = end;
+            fireNewProgressChange((relationCount - 1 + (double) i / is.numInstances()) / relationTotal);
+        }
+    }
+
+    /** Classify the instances from..to-1, putting the probability of the positive class of
+     * instance k at probs[k - start], and whether it was classified at scored[k - start] */
+    private static void classify(Instances is, Classifier classif, int start, int from, int to,
+            double[] probs, boolean[] scored) throws Exception {
+        for (int k = from; k < to; k++) {
+            Instance inst = is.instance(k);
+            scored[k - start] = !isZero(inst, is.classIndex());
+            if (scored[k - start]) {
+                if (classif instanceof SparseLogisticRegression) {
+                    probs[k - start] = ((SparseLogisticRegression) classif).probability(inst);
+                } else {
+                    probs[k - start] = classif.distributionForInstance(inst)[1];
+                }
+            }
+        }
+    }
+
+    /** @return true if every value of the instance except the class is zero */
+    private static boolean isZero(Instance inst, int classIndex) {
+        for (int k = 0; k < inst.numValues(); k++) {
+            if (inst.index(k) != classIndex && inst.valueSparse(k) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The number of instances classified by each thread before the results are written to the graph */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of threads classifying instances.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of threads classifying instances.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 }
@@ -0,0 +1,472 @@
+package nii.alloe.classify;
+
+import java.util.*;
+import java.util.concurrent.*;
+import weka.classifiers.Classifier;
+import weka.core.*;
+
+/**
+ * A logistic regression classifier for the sparse feature vectors of a {@link DataSet}. The
+ * instances are copied into primitive arrays (the non-zero values of each row), and the weights
+ * are fit by L-BFGS, minimising the log loss with a ridge penalty. The loss and gradient are
+ * computed over several threads, each taking a share of the rows. The class must be the last
+ * attribute and should be 0 or 1.
+ * <p>
+ * As the probabilities are those of the fitted model they may be used directly as the
+ * probabilities of a {@link nii.alloe.theory.ProbabilityGraph}. Once built the classifier is not
+ * modified by classifying, so one instance may be used by several threads.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class SparseLogisticRegression extends Classifier {
+    private static final long serialVersionUID = -2309584162746501198L;
+
+    /** The weight of each attribute, the class attribute has weight 0 */
+    private double[] weights;
+    private double bias;
+    /** The number of iterations used by the last call to buildClassifier */
+    private int iterations;
+
+    /** The number of corrections kept by L-BFGS */
+    private static final int HISTORY = 10;
+
+    /** Create a new instance */
+    public SparseLogisticRegression() {
+    }
+
+    /**
+     * Build the classifier. The class index is taken to be the last attribute if it is not set.
+     */
+    public void buildClassifier(Instances is) throws Exception {
+        int classIndex = is.classIndex() >= 0 ? is.classIndex() : is.numAttributes() - 1;
+        if (classIndex != is.numAttributes() - 1) {
+            throw new IllegalArgumentException("The class must be the last attribute");
+        }
+        Rows rows = new Rows(is.numInstances());
+        for (int i = 0; i < is.numInstances(); i++) {
+            Instance inst = is.instance(i);
+            rows.startRow(inst.value(classIndex) == 1);
+            for (int k = 0; k < inst.numValues(); k++) {
+                if (inst.index(k) != classIndex) {
+                    rows.add(inst.index(k), inst.valueSparse(k));
+                }
+            }
+        }
+        train(rows, classIndex);
+    }
+
+    /**
+     * Build the classifier from a relation of a columnar data set, without creating
+     * instances.
+     */
+    public void buildClassifier(ColumnarDataSet dataSet, String relation) throws Exception {
+        Rows rows = new Rows(dataSet.numInstances(relation));
+        Iterator<ColumnarDataSet.Row> iter = dataSet.rows(relation);
+        while (iter.hasNext()) {
+            ColumnarDataSet.Row row = iter.next();
+            rows.startRow(row.classVal == 1);
+            for (int k = 0; k < row.numValues(); k++) {
+                rows.add(row.index(k), row.value(k));
+            }
+        }
+        train(rows, dataSet.getAttributes(relation).size());
+    }
+
+    /** @return The probability that an instance is positive */
+    public double probability(Instance inst) {
+        if (weights == null) {
+            throw new IllegalStateException("Classifier not built");
+        }
+        double z = bias;
+        for (int k = 0; k < inst.numValues(); k++) {
+            int j = inst.index(k);
+            double v = inst.valueSparse(k);
+            if (j < weights.length && !Double.isNaN(v)) {
+                z += weights[j] * v;
+            }
+        }
+        return sigmoid(z);
+    }
+
+    public double[] distributionForInstance(Instance inst) throws Exception {
+        double p = probability(inst);
+        return new double[]{1 - p, p};
+    }
+
+    /** The non-zero values of the training instances, in compressed rows */
+    private static class Rows {
+        int n, size;
+        int[] rowStart;
+        boolean[] positive;
+        int[] indices = new int[64];
+        double[] values = new double[64];
+
+        Rows(int capacity) {
+            rowStart = new int[capacity + 1];
+            positive = new boolean[capacity];
+        }
+
+        void startRow(boolean pos) {
+            if (n == positive.length) {
+                positive = Arrays.copyOf(positive, n * 2 + 1);
+                rowStart = Arrays.copyOf(rowStart, n * 2 + 2);
+            }
+            positive[n++] = pos;
+            rowStart[n] = size;
+        }
+
+        void add(int index, double value) {
+            if (value == 0 || Double.isNaN(value)) {
+                return;
+            }
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            indices[size] = index;
+            values[size++] = value;
+            rowStart[n] = size;
+        }
+    }
+
+    /**
+     * Fit the weights
+     * @param d The number of attributes, not including the class
+     */
+    private void train(final Rows rows, int d) throws Exception {
+        // Scale each attribute to [-1,1], so that one ridge and step size suit all attributes
+        double[] scale = new double[d];
+        for (int k = 0; k < rows.size; k++) {
+            scale[rows.indices[k]] = Math.max(scale[rows.indices[k]], Math.abs(rows.values[k]));
+        }
+        for (int k = 0; k < rows.size; k++) {
+            rows.values[k] /= scale[rows.indices[k]];
+        }
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            // The last element of w is the bias
+            double[] w = new double[d + 1];
+            double[] g = new double[d + 1];
+            double f = evaluate(rows, w, g, executor);
+            LinkedList<double[]> ss = new LinkedList<double[]>(), ys = new LinkedList<double[]>();
+            double[] dir = new double[d + 1], w2 = new double[d + 1], g2 = new double[d + 1];
+            for (iterations = 0; iterations < maxIterations; iterations++) {
+                direction(g, ss, ys, dir);
+                double slope = dot(g, dir);
+                if (slope >= 0) {
+                    // Not a descent direction, start again from the gradient
+                    ss.clear();
+                    ys.clear();
+                    direction(g, ss, ys, dir);
+                    slope = dot(g, dir);
+                }
+                if (slope == 0) {
+                    break;
+                }
+                double step = ss.isEmpty() ? 1 / Math.sqrt(-slope) : 1;
+                double f2;
+                while (true) {
+                    for (int j = 0; j <= d; j++) {
+                        w2[j] = w[j] + step * dir[j];
+                    }
+                    f2 = evaluate(rows, w2, g2, executor);
+                    if (f2 <= f + 1e-4 * step * slope || step < 1e-20) {
+                        break;
+                    }
+                    step /= 2;
+                }
+                if (f2 > f) {
+                    // The line search failed, so no better weights can be found
+                    break;
+                }
+                double[] s = new double[d + 1], y = new double[d + 1];
+                for (int j = 0; j <= d; j++) {
+                    s[j] = w2[j] - w[j];
+                    y[j] = g2[j] - g[j];
+                }
+                if (dot(s, y) > 1e-10) {
+                    ss.addLast(s);
+                    ys.addLast(y);
+                    if (ss.size() > HISTORY) {
+                        ss.removeFirst();
+                        ys.removeFirst();
+                    }
+                }
+                double[] t = w;
+                w = w2;
+                w2 = t;
+                t = g;
+                g = g2;
+                g2 = t;
+                boolean converged = f - f2 <= tolerance * Math.max(1, Math.abs(f));
+                f = f2;
+                if (converged) {
+                    iterations++;
+                    break;
+                }
+            }
+            weights = new double[d];
+            for (int j = 0; j < d; j++) {
+                weights[j] = scale[j] == 0 ? 0 : w[j] / scale[j];
+            }
+            bias = w[d];
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /** Set dir to the L-BFGS direction, the gradient multiplied by the approximate inverse
+     * Hessian and negated */
+    private static void direction(double[] g, LinkedList<double[]> ss, LinkedList<double[]> ys, double[] dir) {
+        int m = ss.size();
+        double[] alpha = new double[m];
+        System.arraycopy(g, 0, dir, 0, g.length);
+        for (int k = m - 1; k >= 0; k--) {
+            alpha[k] = dot(ss.get(k), dir) / dot(ys.get(k), ss.get(k));
+            axpy(-alpha[k], ys.get(k), dir);
+        }
+        if (m > 0) {
+            double[] y = ys.getLast();
+            double gamma = dot(ss.getLast(), y) / dot(y, y);
+            for (int j = 0; j < dir.length; j++) {
+                dir[j] *= gamma;
+            }
+        }
+        for (int k = 0; k < m; k++) {
+            double beta = dot(ys.get(k), dir) / dot(ys.get(k), ss.get(k));
+            axpy(alpha[k] - beta, ss.get(k), dir);
+        }
+        for (int j = 0; j < dir.length; j++) {
+            dir[j] = -dir[j];
+        }
+    }
+
+    /**
+     * Calculate the penalised log loss and its gradient
+     * @param executor The thread pool, or null to calculate in this thread
+     * @return The loss
+     */
+    private double evaluate(final Rows rows, final double[] w, double[] g, ExecutorService executor) throws Exception {
+        double f;
+        Arrays.fill(g, 0);
+        if (executor == null) {
+            f = evaluate(rows, w, g, 0, rows.n);
+        } else {
+            f = 0;
+            Vector<Future<Double>> futures = new Vector<Future<Double>>(threads);
+            final double[][] grads = new double[threads][];
+            for (int t = 0; t < threads; t++) {
+                final int from = (int) ((long) rows.n * t / threads);
+                final int to = (int) ((long) rows.n * (t + 1) / threads);
+                final double[] grad = grads[t] = new double[w.length];
+                futures.add(executor.submit(new Callable<Double>() {
+                    public Double call() {
+                        return evaluate(rows, w, grad, from, to);
+                    }
+                }));
+            }
+            try {
+                for (int t = 0; t < threads; t++) {
+                    f += futures.get(t).get();
+                    axpy(1, grads[t], g);
+                }
+            } catch (InterruptedException x) {
+                throw new RuntimeException("Interrupted while training classifier");
+            } catch (ExecutionException x) {
+                if (x.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) x.getCause();
+                }
+                throw new RuntimeException(x.getCause());
+            }
+        }
+        int d = w.length - 1;
+        for (int j = 0; j < d; j++) {
+            f += ridge / 2 * w[j] * w[j];
+            g[j] += ridge * w[j];
+        }
+        return f;
+    }
+
+    /** Add the log loss of rows from..to-1 to g and return it */
+    private static double evaluate(Rows rows, double[] w, double[] g, int from, int to) {
+        int d = w.length - 1;
+        double f = 0;
+        for (int i = from; i < to; i++) {
+            double z = w[d];
+            for (int k = rows.rowStart[i]; k < rows.rowStart[i + 1]; k++) {
+                z += w[rows.indices[k]] * rows.values[k];
+            }
+            // log(1 + e^z) - y z, computed without overflow
+            f += (z > 0 ? z + Math.log1p(Math.exp(-z)) : Math.log1p(Math.exp(z))) - (rows.positive[i] ? z : 0);
+            double r = sigmoid(z) - (rows.positive[i] ? 1 : 0);
+            for (int k = rows.rowStart[i]; k < rows.rowStart[i + 1]; k++) {
+                g[rows.indices[k]] += r * rows.values[k];
+            }
+            g[d] += r;
+        }
+        return f;
+    }
+
+    private static double sigmoid(double z) {
+        return z >= 0 ? 1 / (1 + Math.exp(-z)) : Math.exp(z) / (1 + Math.exp(z));
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double rval = 0;
+        for (int j = 0; j < x.length; j++) {
+            rval += x[j] * y[j];
+        }
+        return rval;
+    }
+
+    /** y += a * x */
+    private static void axpy(double a, double[] x, double[] y) {
+        for (int j = 0; j < x.length; j++) {
+            y[j] += a * x[j];
+        }
+    }
+
+    public Enumeration<Option> listOptions() {
+        Vector<Option> rval = new Vector<Option>();
+        rval.add(new Option("\tSet the ridge (default 1.0)", "R", 1, "-R <ridge>"));
+        rval.add(new Option("\tSet the maximum number of iterations (default 200)", "M", 1, "-M <number>"));
+        rval.add(new Option("\tSet the number of threads (default 1)", "T", 1, "-T <number>"));
+        Enumeration<?> e = super.listOptions();
+        while (e.hasMoreElements()) {
+            rval.add((Option) e.nextElement());
+        }
+        return rval.elements();
+    }
+
+    public void setOptions(String[] options) throws Exception {
+        String s = Utils.getOption('R', options);
+        ridge = s.length() == 0 ? 1.0 : Double.parseDouble(s);
+        s = Utils.getOption('M', options);
+        maxIterations = s.length() == 0 ? 200 : Integer.parseInt(s);
+        s = Utils.getOption('T', options);
+        threads = s.length() == 0 ? 1 : Integer.parseInt(s);
+        super.setOptions(options);
+    }
+
+    public String[] getOptions() {
+        Vector<String> rval = new Vector<String>();
+        rval.add("-R");
+        rval.add("" + ridge);
+        rval.add("-M");
+        rval.add("" + maxIterations);
+        rval.add("-T");
+        rval.add("" + threads);
+        rval.addAll(Arrays.asList(super.getOptions()));
+        return rval.toArray(new String[rval.size()]);
+    }
+
+    public String toString() {
+        if (weights == null) {
+            return "Sparse logistic regression: not built";
+        }
+        int nonZero = 0;
+        for (double w : weights) {
+            if (w != 0) {
+                nonZero++;
+            }
+        }
+        return "Sparse logistic regression: " + nonZero + " non-zero weights, bias " + bias +
+                ", " + iterations + " iterations\n";
+    }
+
+    /** @return The weight of each attribute, the class attribute has weight 0 */
+    public double[] getWeights() {
+        return weights;
+    }
+
+    /** @return The bias, that is the log odds of an instance with every value zero */
+    public double getBias() {
+        return bias;
+    }
+
+    /**
+     * Holds value of property ridge.
+     */
+    private double ridge = 1.0;
+
+    /**
+     * Getter for property ridge.
+     * @return The weight of the squared norm of the weights (other than the bias) in the loss.
+     */
+    public double getRidge() {
+        return this.ridge;
+    }
+
+    /**
+     * Setter for property ridge.
+     * @param ridge The weight of the squared norm of the weights (other than the bias) in the loss.
+     */
+    public void setRidge(double ridge) {
+        this.ridge = ridge;
+    }
+
+    /**
+     * Holds value of property maxIterations.
+     */
+    private int maxIterations = 200;
+
+    /**
+     * Getter for property maxIterations.
+     * @return Maximum number of L-BFGS iterations.
+     */
+    public int getMaxIterations() {
+        return this.maxIterations;
+    }
+
+    /**
+     * Setter for property maxIterations.
+     * @param maxIterations Maximum number of L-BFGS iterations.
+     */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Holds value of property tolerance.
+     */
+    private double tolerance = 1e-7;
+
+    /**
+     * Getter for property tolerance.
+     * @return The relative decrease of the loss below which training stops.
+     */
+    public double getTolerance() {
+        return this.tolerance;
+    }
+
+    /**
+     * Setter for property tolerance.
+     * @param tolerance The relative decrease of the loss below which training stops.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of threads calculating the loss when training.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of threads calculating the loss when training.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+}
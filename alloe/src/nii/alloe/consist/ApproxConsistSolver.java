@@ -10,7 +10,8 @@ public class ApproxConsistSolver extends ConsistSolver {
     public void solve(SparseMatrix matrix) {
         this.matrix = matrix;
         fireNewProgressChange(0);
-        simplex.simplexSolve(matrix.createCopy());
+        Simplex simplex = new Simplex();
+        simplex.simplexSolve(matrix);
         soln = new TreeSet<Integer>();
         cost = 0;
         for(int i : simplex.soln.keySet()) {
@@ -473,14 +473,27 @@ public class ConsistProblem implements AlloeProcess,java.io.Serializable,Runnabl
     
     /** Reduce a matrix. That is remove all rows where one row is a subset of another
      *  and is of higher cost, and all cols where a col is a superset of some other col.
+     * @see MatrixReducer
      */
     public static void reduceMatrix(SparseMatrix m) {
-        while(rowReduce(m) || columnReduce(m));
+        new MatrixReducer(m).reduce();
     }
     
     private void reduceMatrix(int reduceTo) {
         lastReduction = reduceTo;
-        while(rowReduce(reduceTo) || columnReduce(mat));
+        // Only links before reduceTo (or with no order) may be removed
+        final HashSet<Integer> fixedRows = new HashSet<Integer>(
+                linkOrders.subList(Math.max(0, Math.min(reduceTo, linkOrders.size())), linkOrders.size()));
+        MatrixReducer reducer = new MatrixReducer(mat) {
+            protected double rowCost(int row) {
+                return costForRow(row);
+            }
+            protected boolean isRemovable(int row) {
+                return !fixedRows.contains(row);
+            }
+        };
+        if(reducer.reduce())
+            checkMatrixSubsumptions();
         
         // While we are here clear out cached rules
         Iterator<Rule> i = usedRules.iterator();
@@ -493,73 +506,12 @@ public class ConsistProblem implements AlloeProcess,java.io.Serializable,Runnabl
         }
     }
     
-    private static boolean rowReduce(SparseMatrix m) {
-        boolean rval = false;
-        Iterator<Integer> i = m.rows.keySet().iterator();
-        while(i.hasNext()) {
-            Integer row = i.next();
-            for(Integer superRow : m.rows.keySet()) {
-                if(m.elemVal(row,0) > m.elemVal(superRow,0) &&
-                        m.rowSubset(row,superRow)) {
-                    m.removeRow(row,i);
-                    rval = true;
-                    break;
-                }
-            }
-        }
-        return rval;
-    }
-    
-    private boolean rowReduce(int reduceTo) {
-        boolean rval = false;
-        Iterator<Integer> i = mat.rows.keySet().iterator();
-        while(i.hasNext()) {
-            Integer row = i.next();
-            if(linkOrders.indexOf(row) < reduceTo) {
-                for(Integer superRow : mat.rows.keySet()) {
-                    if(costForRow(row) > costForRow(superRow) &&
-                            mat.rowSubset(row, superRow)) {
-                        mat.removeRow(row, i);
-                        rval = true;
-                        break;
-                    }
-                }
-            }
-        }
-        if(rval)
-            checkMatrixSubsumptions();
-        return rval;
-    }
-    
-    private static boolean columnReduce(SparseMatrix mat) {
-        boolean rval = false;
-        Iterator<Integer> i = mat.cols.keySet().iterator();
-        while(i.hasNext()) {
-            Integer col = i.next();
-            if(col.equals(0))
-                continue;
-            for(Integer col2 : mat.cols.keySet()) {
-                if(col2.equals(0))
-                    continue;
-                if(col != col2 && mat.colSubset(col2, col)) {
-                    mat.removeColumn(col, i);
-                    rval = true;
-                    break;
-                }
-            }
-        }
-        return rval;
-    }
-    
-    private double costForRow(Integer row) {
+    private double costForRow(int row) {
         ProbabilityGraph pg = (ProbabilityGraph)probModel.getGraphByID(row);
         int i = probModel.iByID(row);
         int j = probModel.jByID(row);
-        if(pg.isConnected(i,j)) {
-            return pg.removeVal(i,j);
-        } else {
-            return pg.addVal(i,j);
-        }
+        // removeVal if the link is connected, addVal otherwise
+        return Math.abs(pg.removeVal(i,j));
     }
     
     private TreeSet<Integer> columnForRule(Rule r) {
@@ -1,5 +1,8 @@
 package nii.alloe.consist;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import nii.alloe.consist.solvers.ComponentSolver;
 import nii.alloe.theory.Logic;
 import nii.alloe.theory.Model;
 import nii.alloe.tools.process.AlloeProcess;
@@ -11,7 +14,13 @@ import nii.alloe.tools.process.Output;
  * Implements the branch and bound section of the solution. This is carried out by first attempting a
  * relaxed (linear)
  * solution using {@link Simplex#simplexSolve(SparseMatrix)}, if any non integer solutions are found
- * the solver branches on this row (first non-integer row is always chosen).
+ * the solver branches on this row (first non-integer row is always chosen). The branches fix the
+ * bounds of the row to 1 or 0 and solve again from the parent's basis, see {@link Simplex#setBounds(int,double,double)}.
+ * <p>
+ * The open branches are kept in a queue, cheapest parent solution first. Each thread (see
+ * {@link #setThreads(int)}) has its own {@link Simplex} and takes a branch from the queue, then
+ * dives depth first by solving the ADD branch of each node itself and queueing the REMOVE branch.
+ * The cost of the best solution so far is shared between the threads to prune branches.
  *
  * @author John McCrae, National Institute of Informatics
  */
@@ -25,12 +34,6 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
      */
     public double cost;
     
-    static Simplex simplex;
-    
-    static {
-        simplex = new Simplex();
-    }
-    
     /** Creates a new instance of ConsistSolver */
     public ConsistSolver() {
         soln = new TreeSet<Integer>();
@@ -46,17 +49,17 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
         soln = new TreeSet<Integer>();
     }
     
-    private TreeSet<Integer> partSoln;
-    private double partCost;
-    
     /**
-     * Find closest model to data
+     * Find closest model to data. If {@link #setSplitComponents(boolean)} is set the model is
+     * split into components, each solved with its own matrix, see {@link ComponentSolver}.
      *
      * @param logic The logic the model should be made constitent with
      * @param probModel A weighted model of the inconsistent data
-     * @return The complexity of the matrix used
+     * @return The complexity of the matrix used (the sum over the components if split)
      */
     public int solve(Logic logic, Model probModel) {
+        if(splitComponents)
+            return solveComponents(logic, probModel);
         ConsistProblem cp = new ConsistProblem(logic, probModel);
         matrix = cp.buildProblemMatrix();
         if(matrix == null)
@@ -65,10 +68,40 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
         return cp.getComplexity();
     }
     
+    private int solveComponents(Logic logic, Model probModel) {
+        final AtomicInteger complexity = new AtomicInteger();
+        ComponentSolver solver = new ComponentSolver(logic, probModel, new ComponentSolver.Method() {
+            public ComponentSolver.Solution solve(Logic logic, Model probModel) {
+                ConsistSolver cs = new ConsistSolver();
+                complexity.addAndGet(cs.solve(logic, probModel));
+                Model rval = probModel.createSpecificCopy();
+                rval.symmDiffAll(cs.soln);
+                return new ComponentSolver.Solution(rval, cs.cost);
+            }
+        });
+        solver.setThreads(threads);
+        solver.solve();
+        // The solution is the links changed, as for a single matrix
+        Model specific = probModel.createSpecificCopy();
+        soln = new TreeSet<Integer>();
+        for(Integer id : specific) {
+            if(!solver.soln.contains(id))
+                soln.add(id);
+        }
+        for(Integer id : solver.soln) {
+            if(!specific.contains(id))
+                soln.add(id);
+        }
+        cost = solver.cost;
+        matrix = null;
+        return complexity.get();
+    }
     
-    private LinkedList<Branch> branches;
-    private transient int iterationDepth;
+    private PriorityBlockingQueue<Branch> branches;
+    private transient AtomicLong incumbent;
+    private transient AtomicInteger open;
     private transient double progress;
+    private transient long branchCount;
     
     /**
      * Solves a problem matrix
@@ -76,6 +109,7 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
     public void solve(SparseMatrix matrix) {
         this.matrix = matrix;
 	this.solnRows = null;
+        branches = null;
         solve();
     }
     
@@ -86,116 +120,182 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
     public void solve(SparseMatrix matrix, Vector<Double> solnRows) {
 	this.matrix = matrix;
 	this.solnRows = solnRows;
+        branches = null;
 	solve();
     }
 
     private void solve() {
-        partSoln = new TreeSet<Integer>();
-        cost = Double.MAX_VALUE;
-        partCost = 0;
-        iterationDepth = 0;
-        progress = 0;
-        if(branches == null)
-            branches = new LinkedList<Branch>();
-        fireNewProgressChange(0);
-        solve2(matrix);
-        
-        iterationDepth = 0;
-        progress = 0;
-        
-        fireFinished();
-    }
-    
-    private void solve2(SparseMatrix m) {
-        simplex.simplexSolve(m.createCopy(),solnRows);
-        if(simplex.success && simplex.cost + partCost > cost) {
-            progress += Math.pow(2,-iterationDepth);
-            fireNewProgressChange(progress);
-            return;
+        if(branches == null || branches.isEmpty()) {
+            branches = new PriorityBlockingQueue<Branch>();
+            branches.add(new Branch());
+            soln = new TreeSet<Integer>();
+            cost = Double.MAX_VALUE;
+            progress = 0;
         }
-        
-        Iterator<Map.Entry<Integer,Double>> iter = simplex.soln.entrySet().iterator();
-        Branch branch = null;
-        if(branches.size() <= iterationDepth) {
-            while(iter.hasNext()) {
-                Map.Entry<Integer,Double> entry = iter.next();
-                if(!entry.getValue().equals(1.0) && entry.getKey() >= 0) {
-                    branch = new Branch();
-                    branch.branchType = ADD;
-                    branch.row = entry.getKey();
-                    branches.add(branch);
-                    break;
+        incumbent = new AtomicLong(Double.doubleToLongBits(cost));
+        open = new AtomicInteger(branches.size());
+        fireNewProgressChange(progress);
+        if(threads <= 1) {
+            new Worker().run();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Vector<Future<?>> futures = new Vector<Future<?>>();
+            for(int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Worker()));
+            }
+            executor.shutdown();
+            try {
+                for(Future<?> f : futures) {
+                    f.get();
                 }
+            } catch(InterruptedException x) {
+                executor.shutdownNow();
+                throw new RuntimeException("Interrupted while solving matrix");
+            } catch(ExecutionException x) {
+                executor.shutdownNow();
+                if(x.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)x.getCause();
+                throw new RuntimeException(x.getCause());
             }
-        } else {
-            branch = branches.pop();
         }
+
         if(state != STATE_OK)
             return;
-        
-        if(branch == null && !simplex.success) {
-            Output.out.println("Simplex failed with no hints, branching at random");
-            branch = new Branch();
-            branch.branchType = ADD;
-            branch.row = simplex.soln.keySet().iterator().next();
-            branches.add(branch);
+        progress = 0;
+
+        fireFinished();
+    }
+
+    /** Takes branches from the queue and solves them, until there are no open branches */
+    private class Worker implements Runnable {
+        private final Simplex simplex = new Simplex();
+        /** The rows whose bounds are fixed in simplex */
+        private int[] fixed = new int[0];
+
+        Worker() {
+            simplex.load(matrix,solnRows);
         }
-        
-        if(branch != null) {
-            iterationDepth++;
-            if(branch.branchType == ADD) {
-                partCost += m.elemVal(branch.row,0);
-                Set<Integer> cols = m.getRow(branch.row);
-                double[] solnCosts = new double[cols.size()-1];
-                int i = 0;
-                for(int col : cols) {
-                    if(col == 0)
+
+        public void run() {
+            while(state == STATE_OK) {
+                Branch branch = branches.poll();
+                if(branch == null) {
+                    if(open.get() == 0)
+                        return;
+                    // Another worker is solving a branch, wait for its children
+                    try {
+                        branch = branches.poll(POLL_WAIT, TimeUnit.MILLISECONDS);
+                    } catch(InterruptedException x) {
+                        throw new RuntimeException("Interrupted while solving matrix");
+                    }
+                    if(branch == null)
                         continue;
-                    solnCosts[i++] = solnRows.get(col - 1);
-                    solnRows.set(col - 1, solnRows.get(col-1) + m.elemVal(branch.row, col));
                 }
-                m.selectRow(branch.row);
-                partSoln.add(branch.row);
-                Output.out.println("Branching: ADD " + branch.row);
-                solve2(m);
-                partSoln.remove(branch.row);
-                m.restitch();
-                cols = m.getRow(branch.row);
-                i = 0;
-                for(int col : cols) {
-                    if(col == 0)
-                        continue;
-                    solnRows.set(col - 1, solnCosts[i++]);
+                for(int row : fixed) {
+                    simplex.setBounds(row, 0, 1);
+                }
+                for(int i = 0; i < branch.rows.length; i++) {
+                    double value = branch.add[i] ? 1 : 0;
+                    simplex.setBounds(branch.rows[i], value, value);
+                }
+                fixed = branch.rows;
+                if(branch.basis != null)
+                    simplex.setBasis(branch.basis);
+                while(branch != null) {
+                    if(state != STATE_OK) {
+                        // Keep it for when the solver is resumed
+                        branches.add(branch);
+                        return;
+                    }
+                    branch = solve(branch);
                 }
             }
-            if(state != STATE_OK)
-                return;
-            branch.branchType = REMOVE;
-            int colCount = m.cols.size();
-            m.unstitchRow(branch.row);
-            if(m.cols.size() == colCount) { // Is there an impossible column?
-                Output.out.println("Branching: REMOVE " + branch.row);
-                solve2(m);
+        }
+
+        /**
+         * Solve a branch, whose bounds are set in simplex. The simplex starts from the optimal
+         * basis of the parent, which differs only by the bounds of the branch row, so the dual
+         * simplex needs few pivots to reach the new optimum.
+         * @return The ADD branch to solve next, with its bounds set, or null if the branch is closed
+         */
+        private Branch solve(Branch branch) {
+            if(branch.bound >= getIncumbent() - TOLERANCE) {
+                close(branch);
+                return null;
             }
-            m.restitch();
-            iterationDepth--;
-        } else {
-            if(simplex.cost + partCost < cost) {
-                soln.clear();
-                soln.addAll(simplex.soln.keySet());
-                soln.addAll(partSoln);
-                cost = simplex.cost + partCost;
-                progress += Math.pow(2,-iterationDepth);
-                fireNewProgressChange(progress);
+            simplex.solve();
+            if(simplex.infeasible || (simplex.success && simplex.cost >= getIncumbent() - TOLERANCE)) {
+                close(branch);
+                return null;
+            }
+
+            int row = -1;
+            for(Map.Entry<Integer,Double> entry : simplex.soln.entrySet()) {
+                if(Math.abs(entry.getValue() - 1.0) > TOLERANCE && entry.getKey() >= 0) {
+                    row = entry.getKey();
+                    break;
+                }
             }
+            if(row < 0 && !simplex.success) {
+                Output.out.println("Simplex failed with no hints, branching at random");
+                for(int r : simplex.soln.keySet()) {
+                    if(!branch.isFixed(r)) {
+                        row = r;
+                        break;
+                    }
+                }
+                if(row < 0) {
+                    close(branch);
+                    return null;
+                }
+            }
+            if(row < 0) {
+                offer(simplex.soln.keySet(), simplex.cost);
+                close(branch);
+                return null;
+            }
+
+            Simplex.Basis basis = simplex.getBasis();
+            open.incrementAndGet();
+            branches.add(branch.child(row, false, simplex.cost, basis, nextBranch()));
+            Branch add = branch.child(row, true, simplex.cost, basis, nextBranch());
+            simplex.setBounds(row, 1, 1);
+            fixed = add.rows;
+            Output.out.println("Branching: ADD " + row);
+            return add;
         }
     }
-    
+
+    private double getIncumbent() {
+        return Double.longBitsToDouble(incumbent.get());
+    }
+
+    /** A solution has been found, keep it if it is better than the current best */
+    private synchronized void offer(Set<Integer> rows, double solnCost) {
+        if(solnCost < cost) {
+            soln.clear();
+            soln.addAll(rows);
+            cost = solnCost;
+            incumbent.set(Double.doubleToLongBits(solnCost));
+        }
+    }
+
+    /** A branch needs no more solving */
+    private synchronized void close(Branch branch) {
+        progress += Math.pow(2,-branch.depth);
+        fireNewProgressChange(progress);
+        open.decrementAndGet();
+    }
+
+    private synchronized long nextBranch() {
+        return branchCount++;
+    }
+
     public SparseMatrix getMatrix() { return matrix; }
     
     private transient LinkedList<AlloeProgressListener> aplListeners;
     private transient Thread theThread;
-    private transient int state;
+    private transient volatile int state;
     private static final int STATE_OK = 0;
     private static final int STATE_STOPPING = 1;
     private static final int STATE_UNPAUSEABLE = 2;
@@ -266,15 +366,99 @@ public class ConsistSolver implements AlloeProcess,java.io.Serializable,Runnable
     }
     
     
-    private static final int ADD = 0;
-    private static final int REMOVE = 1;
+    private static final double TOLERANCE = 1e-9;
+    /** Time (ms) an idle thread waits for a branch before checking if the solver has finished */
+    private static final long POLL_WAIT = 10;
     
     /** Get a string representation of the current action being performed */
     public String getStateMessage() { return "Solving Matrix: "; }
     
-    private class Branch {
-        int branchType;
-        int row;
+    /**
+     * A node of the branch and bound, ordered by the cost of its parent's solution (cheapest first),
+     * then deepest first
+     */
+    private static class Branch implements Comparable<Branch>, java.io.Serializable {
+        private static final long serialVersionUID = -918497124936980707L;
+        /** The rows fixed to 1 (if add is true) or 0 */
+        int[] rows = new int[0];
+        boolean[] add = new boolean[0];
+        int depth;
+        /** The cost of the parent's solution, which no solution of this branch can be less than */
+        double bound = Double.NEGATIVE_INFINITY;
+        /** The optimal basis of the parent, or null to use the basis the simplex has */
+        Simplex.Basis basis;
+        long order;
+
+        Branch child(int row, boolean addRow, double bound, Simplex.Basis basis, long order) {
+            Branch child = new Branch();
+            child.rows = Arrays.copyOf(rows, depth + 1);
+            child.rows[depth] = row;
+            child.add = Arrays.copyOf(add, depth + 1);
+            child.add[depth] = addRow;
+            child.depth = depth + 1;
+            child.bound = bound;
+            child.basis = basis;
+            child.order = order;
+            return child;
+        }
+
+        boolean isFixed(int row) {
+            for(int r : rows) {
+                if(r == row)
+                    return true;
+            }
+            return false;
+        }
+
+        public int compareTo(Branch b) {
+            if(bound != b.bound)
+                return bound < b.bound ? -1 : 1;
+            if(depth != b.depth)
+                return depth > b.depth ? -1 : 1;
+            return order < b.order ? -1 : (order > b.order ? 1 : 0);
+        }
+    }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of threads solving branches.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of threads solving branches.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Holds value of property splitComponents.
+     */
+    private boolean splitComponents = false;
+
+    /**
+     * Getter for property splitComponents.
+     * @return True if {@link #solve(Logic,Model)} solves each component of the model separately.
+     */
+    public boolean isSplitComponents() {
+        return this.splitComponents;
+    }
+
+    /**
+     * Setter for property splitComponents. The components are solved on the threads of this solver.
+     * @param splitComponents True if {@link #solve(Logic,Model)} should solve each component of the model separately.
+     */
+    public void setSplitComponents(boolean splitComponents) {
+        this.splitComponents = splitComponents;
     }
 
     public void run() {
@@ -0,0 +1,177 @@
+package nii.alloe.consist;
+import java.util.*;
+
+/**
+ * Removes dominated rows and columns from a problem matrix. A row is dominated if its
+ * non-zero columns are a subset of those of a cheaper row, and a column is dominated
+ * if the non-zero rows of some other column are a subset of its own (column 0, the
+ * costs, is never removed or used to remove another column).
+ * <p>
+ * Rather than comparing every pair of rows, a row is only compared with the rows on its
+ * shortest column, as any row containing it must be among these (and likewise for columns).
+ * These candidates are filtered by their size and a 64 bit fingerprint of their elements
+ * before checking the subset. After the first pass only the rows and columns which were
+ * shortened by a removal are checked again, as no others can have become dominated.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class MatrixReducer {
+    private final SparseMatrix m;
+    private int[] rows, cols;
+    private double[] rowCost;
+    private long[] rowPrint, colPrint;
+    private boolean[] rowDirty, colDirty;
+    private int[] rowQueue, colQueue;
+    private int rowQueued, colQueued;
+
+    /** Creates a new instance of MatrixReducer */
+    public MatrixReducer(SparseMatrix m) {
+        this.m = m;
+    }
+
+    /** The cost of a row, by default its value in column 0 */
+    protected double rowCost(int row) {
+        return m.elemVal(row, 0);
+    }
+
+    /** Can a row be removed if it is dominated, by default true */
+    protected boolean isRemovable(int row) {
+        return true;
+    }
+
+    /**
+     * Remove dominated rows and columns, until there are none
+     * @return true if anything was removed
+     */
+    public boolean reduce() {
+        rows = m.rows.keys();
+        cols = m.cols.keys();
+        rowCost = new double[rows.length];
+        rowPrint = new long[rows.length];
+        rowDirty = new boolean[rows.length];
+        rowQueue = new int[rows.length];
+        rowQueued = 0;
+        for(int k = 0; k < rows.length; k++) {
+            rowCost[k] = rowCost(rows[k]);
+            rowPrint[k] = fingerprint(m.getRowArray(rows[k]));
+            markRow(k);
+        }
+        colPrint = new long[cols.length];
+        colDirty = new boolean[cols.length];
+        colQueue = new int[cols.length];
+        colQueued = 0;
+        for(int k = 0; k < cols.length; k++) {
+            colPrint[k] = fingerprint(m.getColArray(cols[k]));
+            markCol(k);
+        }
+
+        boolean rval = false;
+        while(rowQueued > 0 || colQueued > 0) {
+            while(rowQueued > 0) {
+                int k = rowQueue[--rowQueued];
+                rowDirty[k] = false;
+                if(isDominated(k)) {
+                    removeRow(k);
+                    rval = true;
+                }
+            }
+            while(colQueued > 0) {
+                int k = colQueue[--colQueued];
+                colDirty[k] = false;
+                if(removeSupersets(k))
+                    rval = true;
+            }
+        }
+        return rval;
+    }
+
+    /** Is row k a subset of a cheaper row */
+    private boolean isDominated(int k) {
+        int row = rows[k];
+        if(!m.rows.containsKey(row) || !isRemovable(row))
+            return false;
+        int[] rowCols = m.getRowArray(row);
+        rowPrint[k] = fingerprint(rowCols);
+        int shortest = rowCols[0];
+        for(int col : rowCols) {
+            if(m.getColSize(col) < m.getColSize(shortest))
+                shortest = col;
+        }
+        for(int superRow : m.getColArray(shortest)) {
+            int k2 = Arrays.binarySearch(rows, superRow);
+            if(superRow != row && rowCost[k] > rowCost[k2] &&
+                    m.getRowSize(superRow) >= rowCols.length &&
+                    (rowPrint[k] & ~rowPrint[k2]) == 0 &&
+                    m.rowSubset(row, superRow))
+                return true;
+        }
+        return false;
+    }
+
+    /** Remove every column which is a superset of column k */
+    private boolean removeSupersets(int k) {
+        int col = cols[k];
+        if(col == 0 || !m.cols.containsKey(col))
+            return false;
+        int[] colRows = m.getColArray(col);
+        colPrint[k] = fingerprint(colRows);
+        int shortest = colRows[0];
+        for(int row : colRows) {
+            if(m.getRowSize(row) < m.getRowSize(shortest))
+                shortest = row;
+        }
+        boolean rval = false;
+        for(int superCol : m.getRowArray(shortest)) {
+            if(superCol == 0 || superCol == col || !m.cols.containsKey(superCol))
+                continue;
+            int k2 = Arrays.binarySearch(cols, superCol);
+            if(m.getColSize(superCol) >= colRows.length &&
+                    (colPrint[k] & ~colPrint[k2]) == 0 &&
+                    m.colSubset(col, superCol)) {
+                removeCol(k2);
+                rval = true;
+            }
+        }
+        return rval;
+    }
+
+    private void removeRow(int k) {
+        int[] rowCols = m.getRowArray(rows[k]);
+        m.removeRow(rows[k]);
+        for(int col : rowCols) {
+            markCol(Arrays.binarySearch(cols, col));
+        }
+    }
+
+    private void removeCol(int k) {
+        int[] colRows = m.getColArray(cols[k]);
+        m.removeColumn(cols[k]);
+        for(int row : colRows) {
+            markRow(Arrays.binarySearch(rows, row));
+        }
+    }
+
+    private void markRow(int k) {
+        if(!rowDirty[k]) {
+            rowDirty[k] = true;
+            rowQueue[rowQueued++] = k;
+        }
+    }
+
+    private void markCol(int k) {
+        if(!colDirty[k]) {
+            colDirty[k] = true;
+            colQueue[colQueued++] = k;
+        }
+    }
+
+    /** A bit set of the indices, hashed to 64 bits. If a is a subset of b then so is
+     * fingerprint(a) of fingerprint(b) */
+    private static long fingerprint(int[] indices) {
+        long rval = 0;
+        for(int i : indices) {
+            rval |= 1L << ((i * 0x9E3779B97F4A7C15L) >>> 58);
+        }
+        return rval;
+    }
+}
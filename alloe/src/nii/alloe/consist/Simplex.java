@@ -1,23 +1,27 @@
 package nii.alloe.consist;
 import java.util.*;
-import nii.alloe.tools.process.Output;
 
 /**
- * Simplex Algorithm. Implemented as follows, initially set the tableau to be
- * <table>
- *   <tr><td> </td><td> c </td> <td> x1 ... xn </td> <td> s1 ... sm </td> </tr>
- *   <tr><td> Li </td><td> costs </td> <td> consist matrix </td> <td> identity matrix </td> </tr>
- *   <tr><td> P </td> <td> 0 </td> <td> -1 -1 -1 ... </td> <td> 0 0 0 .... </td> </tr>
- * </table>
+ * Simplex Algorithm. Finds the optimal solution to the linear relaxation of a problem
+ * matrix, that is x minimising c.x such that M'x &gt;= 1 (or -b) and 0 &lt;= x &lt;= 1, where
+ * c is the cost column (col index 0) and x has one value for each row of the matrix.
+ * <p>
+ * This is solved by the bounded dual simplex method on the constraints M'x + s = 1, with
+ * a logical variable s &lt;= 0 for each column. The basis of only logical variables is dual
+ * feasible (each row is placed at whichever bound its cost favours), so no first phase is
+ * needed. The inverse of the basis is kept as a product of sparse eta vectors, which is
+ * rebuilt from the basis columns every {@link #REINVERT_FREQUENCY} pivots. The leaving
+ * variable is chosen by dual steepest edge pricing, falling back to Bland's rule if the
+ * objective stops improving, so that the method does not cycle.
+ * <p>
+ * After solving, the bounds of a row may be changed by {@link #setBounds(int,double,double)}
+ * and {@link #solve()} called again. The optimal basis remains dual feasible, so the
+ * new problem is solved from it rather than from scratch. The basis may be saved and restored
+ * with {@link #getBasis()} and {@link #setBasis(Simplex.Basis)}. {@link ConsistSolver} uses this
+ * to start each node of its branch and bound from the basis of its parent.
  *
- * Then choose the column (not c) such that the value in the P row is least (if several satisfy this choose least column sum, (then max row sum or at random) .
- * Choose a pivot row with minimum positive value for c / selected column
- * Subtract this row from all the others such that every value in the column is zero except for the pivot row
- * Repeat until all of row P is non-negative.
- * The value of c in row P is the minimum cost and the value of the variable s1 ... sm are the choice of rows
+ * @author John McCrae, National Institute of Informatics
  */
-
-
 public class Simplex {
     /** The rows and their values, rows are omitted if the value is zero */
     public SortedMap<Integer,Double> soln;
@@ -25,30 +29,55 @@ public class Simplex {
     public double cost;
     /** True only after the simplex algorithm terminated */
     public boolean success;
-    /** Change this to change the number of iterations */
-    public static int ITERATION_MAX = 10000;
-    /** Change this to make the algorithm more cautious about cycling */
-    public static int CYCLE_DEPTH = 3;
-    
-    private transient Random random;
-    
+    /** True if the simplex algorithm terminated as there is no solution */
+    public boolean infeasible;
+    /** Change this to change the number of iterations (of each call to solve) */
+    public static int ITERATION_MAX = 100000;
+    /** Change this to change the number of pivots before the basis is refactored */
+    public static int REINVERT_FREQUENCY = 100;
+
+    private static final double PRIMAL_TOL = 1e-9;
+    private static final double DUAL_TOL = 1e-9;
+    private static final double PIVOT_TOL = 1e-9;
+    private static final double DROP_TOL = 1e-14;
+    /** Number of pivots without improvement before Bland's rule is used */
+    private static final int STALL_MAX = 50;
+
+    // The problem, there are n structural variables (the rows of the matrix) and m constraints
+    // (the columns of the matrix other than 0), variable n+k is the logical of constraint k
+    private int n, m;
+    private int[] rowKeys;
+    private int[] colStart, colIdx;
+    private double[] colVal;
+    private int[] consStart, consIdx;
+    private double[] consVal;
+    private double[] rhs;
+    private double[] c, lower, upper;
+
+    // The basis, the primal values and the reduced costs
+    private int[] head, where;
+    private double[] x, d, weight;
+    private boolean invalid;
+    private int updates;
+
+    // The basis inverse as a product of etas
+    private int etaCount, etaSize;
+    private int[] etaPos = new int[16], etaStart = new int[17], etaIdx = new int[256];
+    private double[] etaPivot = new double[16], etaVal = new double[256];
+
+    // Work vectors, the non-zeros of column and alpha are listed by their indices
+    private double[] rho, alpha, column, tau;
+    private int[] columnIndex, alphaIndex;
+    private int columnCount, alphaCount;
+    private boolean[] columnMark, alphaMark;
+
     /** Creates a new instance of Simplex */
     public Simplex() {
-        
-    }
-    
-    private class Pivot { 
-        double row, col; 
-        public boolean equals(Object o) { 
-            if(!(o instanceof Pivot))
-                return false;
-            return ((Pivot)o).row == row && ((Pivot)o).col == col;
-        }
+
     }
-    private LinkedList<Pivot> pivots;
-    
+
     /**
-     * Find the optimal linear solution 
+     * Find the optimal linear solution
      * Mx &gt;= 1
      * @see #simplexSolve(SparseMatrix,Vector)
      */
@@ -58,145 +87,552 @@ public class Simplex {
 
     /**
      * Find the optimal linear solution to
-     * Mx &gt;= -b
+     * Mx &gt;= -b. The matrix is not changed.
      * @param m The matrix, must contain a column of costs, (col index 0)
      * @param b As above, may be null in which case it defaults to -1
      * @throws ArrayIndexOutOfBoundsException <code>m.size() != b.size() + 1</code>
      * @throws IllegalArgumentException The matrix has no cost column
      */
     public void simplexSolve(SparseMatrix m, Vector<Double> b) {
-        if(m.cols.isEmpty()) {
-            soln = new TreeMap<Integer,Double>();
-            cost = 0;
-            success = true;
-            return;
-        }
-        
-        //System.out.println("Simple in (" + m.rows.size() + ")");
-        
-        Integer slackBegin = m.cols.lastKey() + 1;
-        Integer solnRow = m.rows.lastKey() + 1;
-        success = true;
-        random = new Random();
-        pivots = new LinkedList<Pivot>();
-        
-
-        if(!m.cols.containsKey(0)) {
+        load(m,b);
+        solve();
+    }
+
+    /**
+     * Set up the problem for a matrix, with every row bounded by 0 and 1 and a basis of only
+     * logical variables. Call {@link #solve()} to solve it.
+     * @see #simplexSolve(SparseMatrix,Vector)
+     */
+    public void load(SparseMatrix M, Vector<Double> b) {
+        if(!M.cols.isEmpty() && !M.cols.containsKey(0)) {
             throw new IllegalArgumentException("Matrix does not contain cost col!");
         }
-        for(int i : m.cols.keySet()) {
-            if(i == 0)
-                continue;
-	    if(b == null) 
-		m.setElem(solnRow, i, -1);
-	    else
-		m.setElem(solnRow, i, b.get(i-1));
-        }
-        Iterator<Integer> riter = m.rows.keySet().iterator();
-        Integer i;
-        while(riter.hasNext()) {
-            i = riter.next();
-            if(!i.equals(solnRow))
-                m.setElem(i,slackBegin+i);
+        rowKeys = M.rows.keys();
+        int[] colKeys = M.cols.keys();
+        n = rowKeys.length;
+        m = colKeys.length == 0 ? 0 : colKeys.length - 1;
+
+        // Structural columns, as rows of the matrix
+        colStart = new int[n + 1];
+        int nonZeros = 0;
+        for(int i = 0; i < n; i++) {
+            nonZeros += M.getRowSize(rowKeys[i]);
         }
-        int iterations = 0;
-        
-        while(m.findMinRowVal(solnRow) < 0 && iterations < ITERATION_MAX && success) {
-            // Find Pivot Col
-            TreeSet<Integer> pivotCols = m.findMinRowIdx(solnRow);
-            Integer pivotCol;
-            if(pivotCols.size() == 1) {
-                pivotCol = pivotCols.first();
-            } else {
-                // If there are multiple pivot cols, decide by column sum
-                Iterator<Integer> piter = pivotCols.iterator();
-                Vector<Integer> pivotCols2 = new Vector<Integer>();
-                double mcs = Double.MAX_VALUE;
-                while(piter.hasNext()) {
-                    Integer pc = piter.next();
-                    double cs = m.columnSum(pc);
-                    if(cs < mcs) {
-                        pivotCols2.clear();
-                        pivotCols2.add(pc);
-                        mcs = cs;
-                    } else if(cs == mcs) {
-                        pivotCols2.add(pc);
-                    }
-                }
-                // Then if there is still no winner, choose at random (this also prevents cycling)
-                if(pivotCols2.size() == 1) {
-                    pivotCol = pivotCols2.get(0);
+        colIdx = new int[nonZeros];
+        colVal = new double[nonZeros];
+        c = new double[n + m];
+        nonZeros = 0;
+        for(int i = 0; i < n; i++) {
+            for(int col : M.getRowArray(rowKeys[i])) {
+                if(col == 0) {
+                    c[i] = M.elemVal(rowKeys[i], 0);
                 } else {
-                    pivotCol = pivotCols2.get(random.nextInt(pivotCols2.size()));
+                    colIdx[nonZeros] = Arrays.binarySearch(colKeys, col) - 1;
+                    colVal[nonZeros++] = M.elemVal(rowKeys[i], col);
                 }
             }
-            
-            // Find Pivot row
-            Integer pivotRow = m.minPosRatioIdx(0, pivotCol);
-            
-            if(pivotRow < 0 || pivotRow >= solnRow || pivotCol <= 0) {
-                throw new RuntimeException("Failed to choose a pivot in simplex algorithm, matrix may be unfit!");
-            }
-            pushPivot(pivotRow, pivotCol);
-            
-            // Normalize pivot row
-            Double d = new Double(m.elemVal(pivotRow, pivotCol));
-            m.divideRowBy(pivotRow, d);
-            
-            // Remove non pivot zeros in pivot column
-            riter = m.rows.keySet().iterator();
-            while(riter.hasNext()) {
-                try {
-                    i = riter.next();
-                } catch(ConcurrentModificationException x) {
-                    riter = m.rows.keySet().iterator();
-                    continue;
+            colStart[i + 1] = nonZeros;
+        }
+
+        // The same by constraint
+        consStart = new int[m + 1];
+        for(int e = 0; e < nonZeros; e++) {
+            consStart[colIdx[e] + 1]++;
+        }
+        for(int k = 0; k < m; k++) {
+            consStart[k + 1] += consStart[k];
+        }
+        consIdx = new int[nonZeros];
+        consVal = new double[nonZeros];
+        int[] fill = Arrays.copyOf(consStart, m);
+        for(int i = 0; i < n; i++) {
+            for(int e = colStart[i]; e < colStart[i + 1]; e++) {
+                consIdx[fill[colIdx[e]]] = i;
+                consVal[fill[colIdx[e]]++] = colVal[e];
+            }
+        }
+
+        rhs = new double[m];
+        lower = new double[n + m];
+        upper = new double[n + m];
+        for(int i = 0; i < n; i++) {
+            upper[i] = 1;
+        }
+        for(int k = 0; k < m; k++) {
+            rhs[k] = b == null ? 1 : -b.get(colKeys[k + 1] - 1);
+            // The logical can be no less than this for any x in [0,1], so the bound
+            // never constrains the problem, but with it every variable is boxed
+            double bound = Math.abs(rhs[k]) + 1;
+            for(int e = consStart[k]; e < consStart[k + 1]; e++) {
+                bound += Math.abs(consVal[e]);
+            }
+            lower[n + k] = -bound;
+        }
+
+        head = new int[m];
+        where = new int[n + m];
+        weight = new double[m];
+        Arrays.fill(where, -1);
+        for(int k = 0; k < m; k++) {
+            head[k] = n + k;
+            where[n + k] = k;
+            weight[k] = 1;
+        }
+        x = new double[n + m];
+        d = new double[n + m];
+        rho = new double[m];
+        column = new double[m];
+        tau = new double[m];
+        alpha = new double[n];
+        columnIndex = new int[m];
+        columnMark = new boolean[m];
+        columnCount = 0;
+        alphaIndex = new int[n + m];
+        alphaMark = new boolean[n + m];
+        alphaCount = 0;
+        etaCount = 0;
+        etaSize = 0;
+        invalid = true;
+    }
+
+    /**
+     * Change the bounds of a row. If the problem has been solved, the next call of
+     * {@link #solve()} starts from the current basis
+     * @param row The index of the row in the matrix
+     * @throws IllegalArgumentException If the matrix had no such row
+     */
+    public void setBounds(int row, double lowerBound, double upperBound) {
+        int j = Arrays.binarySearch(rowKeys, row);
+        if(j < 0)
+            throw new IllegalArgumentException("No row " + row);
+        lower[j] = lowerBound;
+        upper[j] = upperBound;
+        if(where[j] < 0) {
+            double oldValue = x[j];
+            x[j] = d[j] < 0 ? upperBound : lowerBound;
+            if(!invalid && x[j] != oldValue) {
+                loadColumn(j);
+                for(int i = 0; i < columnCount; i++) {
+                    int p = columnIndex[i];
+                    x[head[p]] -= (x[j] - oldValue) * column[p];
                 }
-                if(i.equals(pivotRow))
-                    continue;
-                
-                m.subtractRowFromRow(i,pivotRow,m.elemVal(i,pivotCol));
             }
+        }
+    }
+
+    /** A basis of the problem, see {@link #getBasis()} */
+    public static class Basis implements java.io.Serializable {
+        private static final long serialVersionUID = 6749645543490470286L;
+        private final int[] head;
+        private final double[] weight;
+
+        private Basis(int[] head, double[] weight) {
+            this.head = head;
+            this.weight = weight;
+        }
+    }
+
+    /** Get the current basis */
+    public Basis getBasis() {
+        return new Basis(head.clone(), weight.clone());
+    }
+
+    /** Return to a basis returned by {@link #getBasis()}, the next call of {@link #solve()}
+     * starts from it */
+    public void setBasis(Basis basis) {
+        Arrays.fill(where, -1);
+        for(int p = 0; p < m; p++) {
+            head[p] = basis.head[p];
+            where[head[p]] = p;
+            weight[p] = basis.weight[p];
+        }
+        invalid = true;
+    }
+
+    /**
+     * Solve the problem from the current basis, by the dual simplex method. The result is in
+     * {@link #soln}, {@link #cost}, {@link #success} and {@link #infeasible}.
+     */
+    public void solve() {
+        success = false;
+        infeasible = false;
+        if(invalid)
+            refactor();
+        int iterations = 0;
+        int stalled = 0;
+        while(iterations < ITERATION_MAX) {
+            int p = chooseLeaving(stalled >= STALL_MAX);
+            if(p < 0 && updates > 0) {
+                // Check the solution is still optimal without rounding errors
+                refactor();
+                p = chooseLeaving(stalled >= STALL_MAX);
+            }
+            if(p < 0) {
+                success = true;
+                break;
+            }
+            double step = pivot(p, stalled >= STALL_MAX);
+            if(Double.isNaN(step)) {
+                infeasible = true;
+                break;
+            }
+            stalled = step > DUAL_TOL ? 0 : stalled + 1;
             iterations++;
-            
-            //Output.out.println("Negatives: " + m.negativesInRow(solnRow));
-            // Check for cycling
-            for(int n = 1; n <= CYCLE_DEPTH; n++) {
-                if(isCycling(n)) {
-                    Output.err.println("Cycling detected!");
-                    success = false;
-                    break;
-                }
+        }
+
+        soln = new TreeMap<Integer,Double>();
+        cost = 0;
+        for(int i = 0; i < n; i++) {
+            double v = x[i];
+            if(Math.abs(v - Math.rint(v)) < PRIMAL_TOL)
+                v = Math.rint(v);
+            if(v != 0) {
+                soln.put(rowKeys[i], v);
+                cost += c[i] * v;
+            }
+        }
+    }
+
+    /** Choose the position of the variable to leave the basis, or -1 if the basis is optimal */
+    private int chooseLeaving(boolean bland) {
+        int best = -1;
+        double bestScore = 0;
+        for(int p = 0; p < m; p++) {
+            int v = head[p];
+            double infeasibility = Math.max(lower[v] - x[v], x[v] - upper[v]);
+            if(infeasibility <= PRIMAL_TOL)
+                continue;
+            if(bland) {
+                if(best < 0 || v < head[best])
+                    best = p;
+            } else if(infeasibility * infeasibility > bestScore * weight[p]) {
+                best = p;
+                bestScore = infeasibility * infeasibility / weight[p];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Remove the variable at position p from the basis
+     * @return The dual step length, or NaN if there is no entering variable, i.e., the problem is infeasible
+     */
+    private double pivot(int p, boolean bland) {
+        int leaving = head[p];
+        double sigma = x[leaving] < lower[leaving] ? 1 : -1;
+        double target = sigma > 0 ? lower[leaving] : upper[leaving];
+
+        // Row p of the basis inverse and of the basis inverse times the matrix
+        Arrays.fill(rho, 0);
+        rho[p] = 1;
+        btran(rho);
+        for(int i = 0; i < alphaCount; i++) {
+            alphaMark[alphaIndex[i]] = false;
+            if(alphaIndex[i] < n)
+                alpha[alphaIndex[i]] = 0;
+        }
+        alphaCount = 0;
+        for(int k = 0; k < m; k++) {
+            if(rho[k] == 0)
+                continue;
+            markAlpha(n + k);
+            for(int e = consStart[k]; e < consStart[k + 1]; e++) {
+                markAlpha(consIdx[e]);
+                alpha[consIdx[e]] += rho[k] * consVal[e];
+            }
+        }
+
+        // Ratio test, the first pass finds the largest step with the reduced costs
+        // relaxed by the tolerance, the second the largest pivot within that step (Harris)
+        double maxStep = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < alphaCount; i++) {
+            int j = alphaIndex[i];
+            double a = sigma * rowAlpha(j);
+            if(canEnter(j, a)) {
+                double slack = bland ? 0 : DUAL_TOL;
+                maxStep = Math.min(maxStep, (dualSlack(j) + slack) / Math.abs(a));
+            }
+        }
+        if(maxStep == Double.POSITIVE_INFINITY)
+            return Double.NaN;
+        int entering = -1;
+        for(int i = 0; i < alphaCount; i++) {
+            int j = alphaIndex[i];
+            double a = sigma * rowAlpha(j);
+            if(canEnter(j, a) && dualSlack(j) / Math.abs(a) <= maxStep) {
+                if(entering < 0 || (bland ? j < entering : Math.abs(a) > Math.abs(rowAlpha(entering))))
+                    entering = j;
+            }
+        }
+        double step = Math.max(dualSlack(entering) / Math.abs(rowAlpha(entering)), 0);
+
+        loadColumn(entering);
+        double pivot = column[p];
+        if(Math.abs(pivot) < PIVOT_TOL) {
+            // The row and column disagree, so the factors are inaccurate
+            refactor();
+            return 0;
+        }
+
+        // Update the reduced costs
+        for(int i = 0; i < alphaCount; i++) {
+            int j = alphaIndex[i];
+            if(where[j] < 0)
+                d[j] += sigma * step * rowAlpha(j);
+        }
+        d[leaving] = sigma * step;
+        d[entering] = 0;
+
+        // Update the primal values
+        double theta = (x[leaving] - target) / pivot;
+        for(int i = 0; i < columnCount; i++) {
+            x[head[columnIndex[i]]] -= theta * column[columnIndex[i]];
+        }
+        x[entering] += theta;
+        x[leaving] = target;
+
+        // Update the steepest edge weights
+        double weightP = 0;
+        for(int k = 0; k < m; k++) {
+            weightP += rho[k] * rho[k];
+        }
+        System.arraycopy(rho, 0, tau, 0, m);
+        ftran(tau);
+        for(int k = 0; k < columnCount; k++) {
+            int i = columnIndex[k];
+            if(i != p && column[i] != 0) {
+                double ratio = column[i] / pivot;
+                weight[i] = Math.max(weight[i] - 2 * ratio * tau[i] + ratio * ratio * weightP, ratio * ratio);
             }
         }
-        soln = m.getRowVals(solnRow).tailMap(slackBegin);
-        TreeMap<Integer,Double> shiftedSoln = new TreeMap<Integer,Double>();
-        Iterator<Map.Entry<Integer,Double>> eiter = soln.entrySet().iterator();
-        while(eiter.hasNext()) {
-            Map.Entry<Integer,Double> entry = eiter.next();
-            shiftedSoln.put(entry.getKey() - slackBegin, entry.getValue());
-        }
-        soln = shiftedSoln;
-        if(iterations == ITERATION_MAX)
-            success = false;
-        else
-            cost = m.elemVal(solnRow,0);
-        pivots = null;
-        
-       
-        System.out.println("Simple out (" + m.rows.size() + ")");
-    }
-    
-    private void pushPivot(int row, int col) {
-        Pivot p = new Pivot();
-        p.row = row;
-        p.col = col;
-        pivots.add(p);
-    }
-    
-    private boolean isCycling(int n) {
-        if(pivots.size() < 2 * n)
+        weight[p] = Math.max(weightP / (pivot * pivot), PIVOT_TOL);
+
+        head[p] = entering;
+        where[entering] = p;
+        where[leaving] = -1;
+        addEta(p);
+        if(++updates >= REINVERT_FREQUENCY)
+            refactor();
+        return step;
+    }
+
+    private void markAlpha(int j) {
+        if(!alphaMark[j]) {
+            alphaMark[j] = true;
+            alphaIndex[alphaCount++] = j;
+        }
+    }
+
+    /** The value of the pivot row for variable j */
+    private double rowAlpha(int j) {
+        return j < n ? alpha[j] : rho[j - n];
+    }
+
+    /** How far the reduced cost of a nonbasic variable is from making it dual infeasible */
+    private double dualSlack(int j) {
+        return x[j] == lower[j] ? d[j] : -d[j];
+    }
+
+    /** Can a nonbasic variable enter the basis, when its value in the pivot row times sigma is a */
+    private boolean canEnter(int j, double a) {
+        if(where[j] >= 0 || lower[j] == upper[j])
             return false;
-        return pivots.subList(pivots.size() - n, pivots.size()).equals(pivots.subList(pivots.size() - 2 *n, pivots.size() - n));
+        return x[j] == lower[j] ? a < -PIVOT_TOL : a > PIVOT_TOL;
+    }
+
+    /** Rebuild the basis inverse and recalculate the reduced costs and primal values */
+    private void refactor() {
+        invert();
+
+        // Reduced costs
+        for(int p = 0; p < m; p++) {
+            rho[p] = c[head[p]];
+        }
+        btran(rho);
+        for(int j = 0; j < n; j++) {
+            double dj = c[j];
+            for(int e = colStart[j]; e < colStart[j + 1]; e++) {
+                dj -= rho[colIdx[e]] * colVal[e];
+            }
+            d[j] = where[j] < 0 ? dj : 0;
+        }
+        for(int k = 0; k < m; k++) {
+            d[n + k] = where[n + k] < 0 ? -rho[k] : 0;
+        }
+
+        // Put each nonbasic variable at the bound which keeps the basis dual feasible
+        for(int j = 0; j < n + m; j++) {
+            if(where[j] >= 0)
+                continue;
+            if(lower[j] == upper[j])
+                x[j] = lower[j];
+            else if(x[j] == lower[j] && d[j] >= -DUAL_TOL)
+                x[j] = lower[j];
+            else if(x[j] == upper[j] && d[j] <= DUAL_TOL)
+                x[j] = upper[j];
+            else
+                x[j] = d[j] < 0 ? upper[j] : lower[j];
+        }
+
+        // Primal values
+        System.arraycopy(rhs, 0, tau, 0, m);
+        for(int j = 0; j < n; j++) {
+            if(where[j] < 0 && x[j] != 0) {
+                for(int e = colStart[j]; e < colStart[j + 1]; e++) {
+                    tau[colIdx[e]] -= colVal[e] * x[j];
+                }
+            }
+        }
+        for(int k = 0; k < m; k++) {
+            if(where[n + k] < 0)
+                tau[k] -= x[n + k];
+        }
+        ftran(tau);
+        for(int p = 0; p < m; p++) {
+            x[head[p]] = tau[p];
+        }
+        updates = 0;
+        invalid = false;
+    }
+
+    /**
+     * Factorise the basis as a product of etas. The logical variables in the basis keep
+     * the position of their constraint, and the structural variables are pivoted, sparsest
+     * first, into the remaining positions. If the basis is singular, the structural variables
+     * which could not be pivoted are replaced by logical variables.
+     */
+    private void invert() {
+        etaCount = 0;
+        etaSize = 0;
+        int[] newHead = new int[m];
+        double[] newWeight = new double[m];
+        Arrays.fill(newHead, -1);
+        Arrays.fill(newWeight, 1);
+        List<Integer> structurals = new ArrayList<Integer>();
+        for(int p = 0; p < m; p++) {
+            if(head[p] >= n) {
+                newHead[head[p] - n] = head[p];
+                newWeight[head[p] - n] = weight[p];
+            } else {
+                structurals.add(head[p]);
+            }
+        }
+        Collections.sort(structurals, new Comparator<Integer>() {
+            public int compare(Integer j1, Integer j2) {
+                return (colStart[j1 + 1] - colStart[j1]) - (colStart[j2 + 1] - colStart[j2]);
+            }
+        });
+        for(int j : structurals) {
+            loadColumn(j);
+            int best = -1;
+            for(int i = 0; i < columnCount; i++) {
+                int k = columnIndex[i];
+                if(newHead[k] < 0 && (best < 0 || Math.abs(column[k]) > Math.abs(column[best])))
+                    best = k;
+            }
+            if(best < 0 || Math.abs(column[best]) < PIVOT_TOL) {
+                where[j] = -1;
+                x[j] = lower[j];
+                continue;
+            }
+            addEta(best);
+            newHead[best] = j;
+            newWeight[best] = weight[where[j]];
+        }
+        for(int k = 0; k < m; k++) {
+            if(newHead[k] < 0)
+                newHead[k] = n + k;
+        }
+        Arrays.fill(where, -1);
+        for(int p = 0; p < m; p++) {
+            head[p] = newHead[p];
+            where[head[p]] = p;
+            weight[p] = newWeight[p];
+        }
+    }
+
+    /** Set column to the basis inverse times the column of variable j */
+    private void loadColumn(int j) {
+        for(int i = 0; i < columnCount; i++) {
+            column[columnIndex[i]] = 0;
+            columnMark[columnIndex[i]] = false;
+        }
+        columnCount = 0;
+        if(j < n) {
+            for(int e = colStart[j]; e < colStart[j + 1]; e++) {
+                markColumn(colIdx[e]);
+                column[colIdx[e]] = colVal[e];
+            }
+        } else {
+            markColumn(j - n);
+            column[j - n] = 1;
+        }
+        for(int e = 0; e < etaCount; e++) {
+            int p = etaPos[e];
+            if(column[p] == 0)
+                continue;
+            double vp = column[p] / etaPivot[e];
+            column[p] = vp;
+            for(int i = etaStart[e]; i < etaStart[e + 1]; i++) {
+                markColumn(etaIdx[i]);
+                column[etaIdx[i]] -= etaVal[i] * vp;
+            }
+        }
+    }
+
+    private void markColumn(int i) {
+        if(!columnMark[i]) {
+            columnMark[i] = true;
+            columnIndex[columnCount++] = i;
+        }
+    }
+
+    /** Add an eta for replacing the column at position p by column (as set by {@link #loadColumn(int)}) */
+    private void addEta(int p) {
+        if(etaCount + 1 >= etaPos.length) {
+            etaPos = Arrays.copyOf(etaPos, etaPos.length * 2);
+            etaPivot = Arrays.copyOf(etaPivot, etaPivot.length * 2);
+            etaStart = Arrays.copyOf(etaStart, etaStart.length * 2);
+        }
+        etaPos[etaCount] = p;
+        etaPivot[etaCount] = column[p];
+        if(etaSize + columnCount > etaIdx.length) {
+            etaIdx = Arrays.copyOf(etaIdx, Math.max(etaSize + columnCount, etaSize * 2));
+            etaVal = Arrays.copyOf(etaVal, etaIdx.length);
+        }
+        for(int k = 0; k < columnCount; k++) {
+            int i = columnIndex[k];
+            if(i == p || Math.abs(column[i]) <= DROP_TOL)
+                continue;
+            etaIdx[etaSize] = i;
+            etaVal[etaSize++] = column[i];
+        }
+        etaStart[++etaCount] = etaSize;
+    }
+
+    /** Replace v with the basis inverse times v */
+    private void ftran(double[] v) {
+        for(int e = 0; e < etaCount; e++) {
+            int p = etaPos[e];
+            if(v[p] == 0)
+                continue;
+            double vp = v[p] / etaPivot[e];
+            v[p] = vp;
+            for(int i = etaStart[e]; i < etaStart[e + 1]; i++) {
+                v[etaIdx[i]] -= etaVal[i] * vp;
+            }
+        }
+    }
+
+    /** Replace v with the transposed basis inverse times v */
+    private void btran(double[] v) {
+        for(int e = etaCount - 1; e >= 0; e--) {
+            int p = etaPos[e];
+            double vp = v[p];
+            for(int i = etaStart[e]; i < etaStart[e + 1]; i++) {
+                vp -= etaVal[i] * v[etaIdx[i]];
+            }
+            v[p] = vp / etaPivot[e];
+        }
     }
 }
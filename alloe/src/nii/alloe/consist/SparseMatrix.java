@@ -4,345 +4,261 @@ import java.io.*;
 import nii.alloe.theory.*;
 
 /**
- * A sparse matrix. Implemented as a tree map of single linked lists
+ * A sparse matrix. The non-zero elements are held in primitive arrays, and each row
+ * (column) holds the elements on it as an array sorted by column (row) index. Removed
+ * elements are only marked as dead, and are dropped from these arrays when the matrix
+ * is compacted, which is done once most elements are dead. As elements can be
+ * removed and restored cheaply, the matrix can also record its changes and undo them,
+ * see {@link #snapshot()}.
  */
 public class SparseMatrix implements Serializable {
-    TreeMap<Integer, SparseNode> cols;
-    TreeMap<Integer, SparseNode> rows;
-    
+    /** The columns of the matrix */
+    final Lines cols;
+    /** The rows of the matrix */
+    final Lines rows;
+
+    // The elements, by element id. elemRow and elemCol are the slots of the row and column in rows and cols
+    private int[] elemRow, elemCol;
+    private double[] elemVal;
+    private boolean[] elemDead;
+    private int elemCount;
+    private int[] free;
+    private int freeCount;
+    private int liveCount, deadCount;
+
+    // The changes made since the first open snapshot
+    private static final int NEW = 0;
+    private static final int KILL = 1;
+    private static final int REVIVE = 2;
+    private static final int VALUE = 3;
+    private int[] journalOp, journalElem;
+    private double[] journalVal;
+    private int journalSize;
+    private int[] snapshots;
+    private int snapshotCount;
+
     /** Create a new instance */
     public SparseMatrix() {
-        rows = new TreeMap<Integer, SparseNode>();
-        cols = new TreeMap<Integer, SparseNode>();
-        operations = new Stack<Operation>();
+        rows = new Lines(true);
+        cols = new Lines(false);
+        elemRow = new int[64];
+        elemCol = new int[64];
+        elemVal = new double[64];
+        elemDead = new boolean[64];
+        free = new int[16];
+        journalOp = new int[64];
+        journalElem = new int[64];
+        journalVal = new double[64];
+        snapshots = new int[8];
+        stitches = new int[8];
     }
-    
+
     /**
      * Add a new row to the matrix
      * @param index The index of the row
      * @param elems The set of non-zero values (value assumed to be 1)
      */
-    public void addRow(Integer index, Set<Integer> elems) {
+    public void addRow(int index, Set<Integer> elems) {
         if(elems.isEmpty()) {
             throw new IllegalArgumentException("elems is empty");
         }
-        if(rows.get(index) != null) {
+        if(rows.containsKey(index)) {
             throw new IllegalArgumentException("row already exists");
         }
-        Iterator<Integer> i = elems.iterator();
-        SparseNode first = null;
-        SparseNode last = null;
-        while(i.hasNext()) {
-            Integer e = i.next();
-            SparseNode newN = new SparseNode(index, e,1);
-            if(cols.get(e) != null) {
-                SparseNode n = findJustAbove(e, index);
-                if(n != null) {
-                    newN.down = n.down;
-                    n.down = newN;
-                } else {
-                    newN.down = cols.get(e);
-                    cols.put(e,newN);
-                }
-            } else {
-                cols.put(e, newN);
-            }
-            if(last !=  null) {
-                last.right = newN;
-            } else {
-                first = newN;
-            }
-            last = newN;
+        for(int e : elems) {
+            setElem(index, e, 1);
         }
-        rows.put(index, first);
-    }
-    
-    private SparseNode findJustAbove(Integer i, Integer j) {
-        SparseNode n = cols.get(j);
-        if(n == null || n.i >= i)
-            return null;
-        for(; n.down != null && n.down.i < i;
-        n = n.down);
-        return n;
     }
-    
+
     /**
      * Remove a row from the matrix
      * @param index the row to remove
      */
-    public void removeRow(Integer index) {
-        removeRow(index, null);
+    public void removeRow(int index) {
+        int slot = rows.slot(index);
+        if(slot < 0)
+            return;
+        int[] es = rows.elems[slot];
+        for(int p = 0; p < rows.length[slot]; p++) {
+            if(!elemDead[es[p]])
+                kill(es[p]);
+        }
+        compactIfSparse();
     }
-    
+
     /**
-     * Remove a row from the matrix, this should be used if index was gained from an Iterator
-     * generated from {@link #getCol(Integer)} to avoid ConcurrentModificationExceptions.
+     * Remove a row from the matrix, while iterating over the rows. As iterators over the
+     * rows of this matrix do not fail if the matrix is changed, this is the same as
+     * {@link #removeRow(int)}.
      * @param index the index to remove
      * @param iter an iterator currently in use from which index was obtained
      */
-    public void removeRow(Integer index, Iterator<Integer> iter) {
-        for(SparseNode n = rows.get(index); n != null; n = n.right) {
-            SparseNode n2 = findJustAbove(n.i, n.j);
-            if(n2 != null) {
-                n2.down = n.down;
-            } else if(n.down != null) {
-                cols.put(n.j,n.down);
-            } else {
-                cols.remove(n.j);
-            }
-            n.down = null;
-        }
-        if(iter != null) {
-            iter.remove();
-        } else {
-            rows.remove(index);
-        }
+    public void removeRow(int index, Iterator<Integer> iter) {
+        removeRow(index);
     }
-    
-      /**
+
+    /**
      * Add a new column to the matrix
      * @param index The index of the column
      * @param elems The set of non-zero values (value assumed to be 1)
      */
-    public void addColumn(Integer index, TreeSet<Integer> elems) {
+    public void addColumn(int index, TreeSet<Integer> elems) {
         if(elems.isEmpty()) {
             throw new IllegalArgumentException("elems is empty");
         }
-        if(cols.get(index) != null) {
+        if(cols.containsKey(index)) {
             throw new IllegalArgumentException("col already exists");
         }
-        Iterator<Integer> i = elems.iterator();
-        SparseNode first = null;
-        SparseNode last = null;
-        while(i.hasNext()) {
-            Integer e = i.next();
-            SparseNode newN = new SparseNode(e,index,1);
-            if(rows.get(e) != null) {
-                SparseNode n = findJustLeft(e, index);
-                if(n != null) {
-                    newN.right = n.right;
-                    n.right = newN;
-                } else {
-                    newN.right = rows.get(e);
-                    rows.put(e,newN);
-                }
-            } else {
-                rows.put(e, newN);
-            }
-            if(last !=  null) {
-                last.down = newN;
-            } else {
-                first = newN;
-            }
-            last = newN;
+        for(int e : elems) {
+            setElem(e, index, 1);
         }
-        cols.put(index, first);
-    }
-    
-    private SparseNode findJustLeft(Integer i, Integer j) {
-        SparseNode n = rows.get(i);
-        if(n == null || n.j >= j)
-            return null;
-        for(; n.right != null && n.right.j < j;
-        n = n.right);
-        return n;
     }
-    
+
     /**
      * Remove a column from the matrix
      * @param index the column to remove
      */
-    public void removeColumn(Integer index) {
-        removeColumn(index, null);
+    public void removeColumn(int index) {
+        int slot = cols.slot(index);
+        if(slot < 0)
+            return;
+        int[] es = cols.elems[slot];
+        for(int p = 0; p < cols.length[slot]; p++) {
+            if(!elemDead[es[p]])
+                kill(es[p]);
+        }
+        compactIfSparse();
     }
-    
-     /**
-     * Remove a column from the matrix, this should be used if index was gained from an Iterator
-     * generated from {@link #getRow(Integer)} to avoid ConcurrentModificationExceptions.
-     * @param index the index to remove
-     * @param iter an iterator currently in use from which index was obtained
+
+    /**
+     * Remove a column from the matrix, while iterating over the columns
+     * @see #removeRow(int,Iterator)
      */
-    public void removeColumn(Integer index, Iterator<Integer> iter) {
-        for(SparseNode n = cols.get(index); n != null; n = n.down) {
-            SparseNode n2 = findJustLeft(n.i, n.j);
-            if(n2 != null) {
-                n2.right = n.right;
-            } else if(n.right != null) {
-                rows.put(n.i,n.right);
-            } else {
-                rows.remove(n.i);
-            }
-            n.right = null;
-        }
-        if(iter != null) {
-            iter.remove();
-        } else {
-            cols.remove(index);
-        }
+    public void removeColumn(int index, Iterator<Integer> iter) {
+        removeColumn(index);
     }
-    
+
     /**
      * @return true if (i,j) is non-zero */
-    public boolean hasElem(Integer i, Integer j) {
-        SparseNode n = rows.get(i);
-        if(n != null) {
-            for(; n != null && n.j < j; n = n.right);
-            return n != null && n.j.equals(j);
-        } else {
-            return false;
-        }
+    public boolean hasElem(int i, int j) {
+        return elem(i, j) >= 0;
     }
-    
+
     /**
      * @return the element vale at (i,j) */
-    public double elemVal(Integer i, Integer j) {
-        SparseNode n = rows.get(i);
-        if(n != null) {
-            for(; n != null && n.j < j; n = n.right);
-            return n != null && n.j.equals(j) ? n.val : 0;
-        } else {
-            return 0;
-        }
+    public double elemVal(int i, int j) {
+        int e = elem(i, j);
+        return e >= 0 ? elemVal[e] : 0;
     }
-    
+
     /**
      * Set element value at (i,j) to 1 */
-    public void setElem(Integer i , Integer j) {
+    public void setElem(int i, int j) {
         setElem(i,j,1);
     }
-    
+
     /**
      * Set element value at (i,j) to v */
-    public void setElem(Integer i, Integer j, double v) {
+    public void setElem(int i, int j, double v) {
+        put(i, j, v);
+        compactIfSparse();
+    }
+
+    private void put(int i, int j, double v) {
         if(v == 0) {
-            this.removeElem(i,j);
+            int e = elem(i, j);
+            if(e >= 0)
+                kill(e);
             return;
         }
-        if(hasElem(i,j)) {
-            SparseNode nTemp = getElem(i,j);
-            nTemp.val = v;
+        int rslot = rows.slotFor(i);
+        int p = search(rows, rslot, j);
+        if(p >= 0) {
+            int e = rows.elems[rslot][p];
+            if(elemDead[e])
+                revive(e);
+            setValue(e, v);
             return;
         }
-        SparseNode newN = new SparseNode(i,j,v);
-        addElem(newN);
-    }
-    
-    private void addElem(SparseNode newN) {
-        SparseNode above = findJustAbove(newN.i,newN.j);
-        if(above != null) {
-            newN.down = above.down;
-            above.down = newN;
-        } else {
-            newN.down = cols.get(newN.j);
-            cols.put(newN.j,newN);
-        }
-        
-        SparseNode left = findJustLeft(newN.i,newN.j);
-        if(left != null) {
-            newN.right = left.right;
-            left.right = newN;
-        } else {
-            newN.right = rows.get(newN.i);
-            rows.put(newN.i,newN);
-        }
-    }
-    
-    private SparseNode getElem(Integer i, Integer j) {
-        SparseNode n = rows.get(i);
-        if(n != null) {
-            for(; n != null && n.j < j; n = n.right);
-            if(n != null && n.j.equals(j)) {
-                return n;
-            } else {
-                return null;
-            }
-        } else {
-            return null;
-        }
+        int cslot = cols.slotFor(j);
+        int e = allocate();
+        elemRow[e] = rslot;
+        elemCol[e] = cslot;
+        elemVal[e] = v;
+        elemDead[e] = false;
+        rows.insert(rslot, -p - 1, e);
+        cols.insert(cslot, -search(cols, cslot, i) - 1, e);
+        rows.changeLive(rslot, 1);
+        cols.changeLive(cslot, 1);
+        liveCount++;
+        journal(NEW, e, 0);
     }
-    
+
     /**
      * Set value at (i,j) to 0 */
-    public void removeElem(Integer i, Integer j) {
-        removeElem(getElem(i,j));
+    public void removeElem(int i, int j) {
+        setElem(i, j, 0);
     }
-    
-    private void removeElem(SparseNode n) {
-        if(n == null)
-            return;
-        SparseNode above = findJustAbove(n.i,n.j);
-        if(above != null) {
-            above.down = n.down;
-        } else if(n.down != null) {
-            cols.put(n.j,n.down);
-        } else {
-            cols.remove(n.j);
-        }
-        
-        SparseNode left = findJustLeft(n.i,n.j);
-        if(left != null) {
-            left.right = n.right;
-        } else if(n.right != null) {
-            rows.put(n.i,n.right);
-        } else {
-            rows.remove(n.i);
-        }
-    }
-    
+
     /**
      * Get the values on row idx which are non-zero */
-    public TreeSet<Integer> getRow(Integer idx) {
-        SparseNode n = rows.get(idx);
+    public TreeSet<Integer> getRow(int idx) {
         TreeSet<Integer> rval = new TreeSet<Integer>();
-        if(n != null) {
-            do {
-                rval.add(n.j);
-                n = n.right;
-            } while(n != null);
+        for(int j : getRowArray(idx)) {
+            rval.add(j);
         }
         return rval;
     }
-    
+
+    /**
+     * Get the columns on row idx which are non-zero, in order */
+    public int[] getRowArray(int idx) {
+        return otherKeys(rows, rows.slot(idx));
+    }
+
     /**
      * Get the non-zero values on row idx as a map to their values */
-    public TreeMap<Integer,Double> getRowVals(Integer idx) {
-        SparseNode n = rows.get(idx);
+    public TreeMap<Integer,Double> getRowVals(int idx) {
         TreeMap<Integer,Double> rval = new TreeMap<Integer,Double>();
-        if(n != null) {
-            do {
-                rval.put(n.j,n.val);
-                n = n.right;
-            } while(n != null);
+        int slot = rows.slot(idx);
+        if(slot >= 0) {
+            int[] es = rows.elems[slot];
+            for(int p = 0; p < rows.length[slot]; p++) {
+                if(!elemDead[es[p]])
+                    rval.put(cols.key[elemCol[es[p]]], elemVal[es[p]]);
+            }
         }
         return rval;
     }
-    
+
     /** Get a set of the non-zero values on column idx */
-    public TreeSet<Integer> getCol(Integer idx) {
-        SparseNode n = cols.get(idx);
+    public TreeSet<Integer> getCol(int idx) {
         TreeSet<Integer> rval = new TreeSet<Integer>();
-        if(n != null) {
-            do {
-                rval.add(n.i);
-                n = n.down;
-            } while(n != null);
+        for(int i : getColArray(idx)) {
+            rval.add(i);
         }
         return rval;
     }
-    
+
+    /** Get the rows on column idx which are non-zero, in order */
+    public int[] getColArray(int idx) {
+        return otherKeys(cols, cols.slot(idx));
+    }
+
     /** Get a map of the non-zero values on column idx to their values */
-    public TreeMap<Integer,Double> getColVals(Integer idx) {
-        SparseNode n = cols.get(idx);
+    public TreeMap<Integer,Double> getColVals(int idx) {
         TreeMap<Integer,Double> rval = new TreeMap<Integer,Double>();
-        if(n != null) {
-            do {
-                rval.put(n.i,n.val);
-                n = n.down;
-            } while(n != null);
+        int slot = cols.slot(idx);
+        if(slot >= 0) {
+            int[] es = cols.elems[slot];
+            for(int p = 0; p < cols.length[slot]; p++) {
+                if(!elemDead[es[p]])
+                    rval.put(rows.key[elemRow[es[p]]], elemVal[es[p]]);
+            }
         }
         return rval;
     }
-    
+
     /** Print the matrix in simplified form to out e.g.
      * <br>
      * <code>
@@ -352,17 +268,16 @@ public class SparseMatrix implements Serializable {
      * </code>
      */
     public void printMatrix(PrintStream out) {
-        Iterator<Map.Entry<Integer, SparseNode>> i = rows.entrySet().iterator();
-        while(i.hasNext()) {
-            Map.Entry<Integer, SparseNode> e = i.next();
-            out.print(e.getKey() + ": [ ");
-            for(SparseNode n = e.getValue(); n != null; n = n.right) {
-                out.print(n.j + (n.right != null ? ", " : " "));
+        for(int row : rows.keys()) {
+            out.print(row + ": [ ");
+            int[] js = getRowArray(row);
+            for(int k = 0; k < js.length; k++) {
+                out.print(js[k] + (k + 1 < js.length ? ", " : " "));
             }
             out.println("]");
         }
     }
-    
+
     /** Print the matrix in simplified form with values e.g.
      * <br>
      * <code>
@@ -372,19 +287,16 @@ public class SparseMatrix implements Serializable {
      * </code>
      */
     public void printMatrixValued(PrintStream out) {
-         Iterator<Map.Entry<Integer, SparseNode>> i = rows.entrySet().iterator();
-        while(i.hasNext()) {
-            Map.Entry<Integer, SparseNode> e = i.next();
-            out.print(e.getKey() + ": [ ");
-            for(SparseNode n = e.getValue(); n != null; n = n.right) {
-                out.print(n.j + "=" + n.val + (n.right != null ? ", " : " "));
+        for(int row : rows.keys()) {
+            out.print(row + ": [ ");
+            int[] js = getRowArray(row);
+            for(int k = 0; k < js.length; k++) {
+                out.print(js[k] + "=" + elemVal(row, js[k]) + (k + 1 < js.length ? ", " : " "));
             }
             out.println("]");
         }
     }
-            
-    
-    
+
     /** Print the matrix in full form to out e.g.
      * <br>
      * <code>
@@ -396,407 +308,811 @@ public class SparseMatrix implements Serializable {
      */
     public void printFull(PrintStream out) {
         out.print("    ");
-        Iterator<Integer> citer = cols.keySet().iterator();
-        while(citer.hasNext()) {
-            out.printf("%1$4d ", citer.next());
+        int[] colKeys = cols.keys();
+        for(int col : colKeys) {
+            out.printf("%1$4d ", col);
         }
         out.println("");
-        Iterator<Integer> riter =  rows.keySet().iterator();
-        while(riter.hasNext()) {
-            Integer row = riter.next();
+        for(int row : rows.keys()) {
             out.printf("%1$4d ", row);
-            citer = cols.keySet().iterator();
-            while(citer.hasNext()) {
-                out.printf("%1$ 1.1f ", elemVal(row,citer.next()));
+            for(int col : colKeys) {
+                out.printf("%1$ 1.1f ", elemVal(row,col));
             }
             out.println("");
         }
     }
-    
+
     /**
      * @return true if every non-zero column in row 1 is also non-zero in row 2
      */
-    public boolean rowSubset(Integer row1, Integer row2) {
-        SparseNode n1 = rows.get(row1);
-        SparseNode n2 = rows.get(row2);
-        while(n1 != null && n2 != null) {
-            if(n2.j < n1.j)
-                n2 = n2.right;
-            else if(n2.j.equals(n1.j))
-                n1 = n1.right;
-            else if(n2.j > n1.j)
-                return false;
-        }
-        return n1 == null;
+    public boolean rowSubset(int row1, int row2) {
+        return subset(rows, rows.slot(row1), rows.slot(row2));
     }
-    
+
     /**
      * @return true if every non-zero row in col 1 is also non-zero in col 2
      */
-    public boolean colSubset(Integer col1, Integer col2) {
-        SparseNode n1 = cols.get(col1);
-        SparseNode n2 = cols.get(col2);
-        while(n1 != null && n2 != null) {
-            if(n2.i < n1.i)
-                n2 = n2.down;
-            else if(n2.i.equals(n1.i))
-                n1 = n1.down;
-            else if(n2.i > n1.i)
-                return false;
-        }
-        return n1 == null;
+    public boolean colSubset(int col1, int col2) {
+        return subset(cols, cols.slot(col1), cols.slot(col2));
     }
-    
+
     /**
      *  @return true if every non-zero row in col1 is contained in set col 2
      */
-    public boolean colSubset(Integer col1, TreeSet<Integer> col2) {
-        SparseNode n1 = cols.get(col1);
+    public boolean colSubset(int col1, TreeSet<Integer> col2) {
+        int slot = cols.slot(col1);
+        if(slot < 0)
+            return true;
+        int[] es = cols.elems[slot];
+        int p = 0, n = cols.length[slot];
         Iterator<Integer> i2 = col2.iterator();
-        while(n1 != null && i2.hasNext()) {
-            Integer n2 = i2.next();
-            if(n2.equals(n1.i))
-                n1 = n1.down;
-            else if(n2 > n1.i)
+        while(true) {
+            while(p < n && elemDead[es[p]])
+                p++;
+            if(p == n)
+                return true;
+            if(!i2.hasNext())
+                return false;
+            int i = rows.key[elemRow[es[p]]];
+            int n2 = i2.next();
+            if(n2 == i)
+                p++;
+            else if(n2 > i)
                 return false;
         }
-        return n1 == null;
     }
-    
+
     /**
      * Returns number of non-zero elements in matrix */
     public int getElemCount() {
-        int rval = 0;
-        Iterator<SparseNode> si = rows.values().iterator();
-        while(si.hasNext()) {
-            for(SparseNode n = si.next(); n != null; n = n.right) {
-                rval++;
-            }
-        }
-        return rval;
+        return liveCount;
+    }
+
+    /** Returns number of non-zero elements on a row */
+    public int getRowSize(int row) {
+        int slot = rows.slot(row);
+        return slot < 0 ? 0 : rows.live[slot];
     }
-    
+
+    /** Returns number of non-zero elements on a column */
+    public int getColSize(int col) {
+        int slot = cols.slot(col);
+        return slot < 0 ? 0 : cols.live[slot];
+    }
+
     /** Returns number of columns in matrix */
     public int getColumnCount() {
         return cols.size();
     }
-    
+
     /** Returns number of rows in matrix */
     public int getRowCount() {
         return rows.size();
     }
-    
-    /** Convert to three sparse arrays of coordinates and values 
+
+    /** Convert to three sparse arrays of coordinates and values
      * @throws IllegalArguentException is arrays do not match in length
      */
     public void toArrays(int []iArray, int []jArray, double []valArray) throws IllegalArgumentException {
         if(iArray.length != getElemCount() || jArray.length != getElemCount() || valArray.length != getElemCount()) {
             throw new IllegalArgumentException("Arrays passed do not match size of matrix!");
         }
-        int i = 0;
-        Iterator<SparseNode> si = rows.values().iterator();
-        while(si.hasNext()) {
-            for(SparseNode n = si.next(); n != null; n = n.right) {
-                iArray[i] = n.i;
-                jArray[i] = n.j;
-                valArray[i++] = 1;
+        int n = 0;
+        for(int row : rows.keys()) {
+            for(int col : getRowArray(row)) {
+                iArray[n] = row;
+                jArray[n] = col;
+                valArray[n++] = 1;
             }
         }
     }
-    
-    /** clone this matrix */
+
+    /** clone this matrix. If the copy is only needed for a while, {@link #snapshot()} is cheaper */
     public SparseMatrix createCopy() {
         SparseMatrix m = new SparseMatrix();
-        Iterator<SparseNode> i = cols.values().iterator();
-        
-        while(i.hasNext()) {
-            for(SparseNode n = i.next(); n!= null; n = n.down) {
-                m.setElem(n.i,n.j,n.val);
+        for(int row : rows.keys()) {
+            int[] es = rows.elems[rows.slot(row)];
+            for(int p = 0; p < rows.length[rows.slot(row)]; p++) {
+                if(!elemDead[es[p]])
+                    m.setElem(row, cols.key[elemCol[es[p]]], elemVal[es[p]]);
             }
         }
         return m;
     }
-    
+
     public boolean equals(Object obj) {
         if(!(obj instanceof SparseMatrix)) {
             return false;
-        } else {
-            SparseMatrix m = (SparseMatrix)obj;
-            
-            if(!m.cols.keySet().equals(cols.keySet()) || !m.rows.keySet().equals(rows.keySet())) {
+        }
+        SparseMatrix m = (SparseMatrix)obj;
+        if(!Arrays.equals(cols.keys(), m.cols.keys()) || !Arrays.equals(rows.keys(), m.rows.keys())) {
+            return false;
+        }
+        for(int col : cols.keys()) {
+            if(!Arrays.equals(getColArray(col), m.getColArray(col)))
                 return false;
-            }
-            Iterator<Map.Entry<Integer,SparseNode>> i = cols.entrySet().iterator();
-            Iterator<Map.Entry<Integer,SparseNode>> i2 = m.cols.entrySet().iterator();
-            while(i.hasNext()) {
-                Map.Entry<Integer,SparseNode> e = i.next();
-                Map.Entry<Integer,SparseNode> e2 = i2.next();
-                SparseNode n2 = e2.getValue();
-                for(SparseNode n = e.getValue(); n != null; n = n.down) {
-                    if(!n.equals(n2)) {
-                        return false;
-                    }
-                    n2 = n2.down;
-                }
+            for(int row : getColArray(col)) {
+                double val = elemVal(row, col);
+                double val2 = m.elemVal(row, col);
+                if(!(val >= val2 * (1 - ConsistProblem.PERTURBATION_SIZE) && val <= val2 * (1 + ConsistProblem.PERTURBATION_SIZE)))
+                    return false;
             }
         }
         return true;
     }
-    
+
     /** Check the matrix is consistent (for debugging) */
     public void isOK() {
-        Iterator<Map.Entry<Integer,SparseNode>> citer = cols.entrySet().iterator();
-        while(citer.hasNext()) {
-            Map.Entry<Integer,SparseNode> entry = citer.next();
-            for(SparseNode n = entry.getValue(); n != null; n = n.down) {
-                if((n.down != null && n.down.i <= n.i) || !n.j.equals(entry.getKey()) || !rows.containsKey(n.i)) {
+        int live = 0;
+        for(int slot = 0; slot < rows.count; slot++) {
+            int l = 0;
+            for(int p = 0; p < rows.length[slot]; p++) {
+                int e = rows.elems[slot][p];
+                if(elemRow[e] != slot || search(cols, elemCol[e], rows.key[slot]) < 0 ||
+                        (p > 0 && cols.key[elemCol[rows.elems[slot][p-1]]] >= cols.key[elemCol[e]])) {
                     throw new RuntimeException("Invalid matrix!!");
                 }
+                if(!elemDead[e])
+                    l++;
             }
+            if(l != rows.live[slot])
+                throw new RuntimeException("Invalid matrix!!");
+            live += l;
         }
-        Iterator<Map.Entry<Integer,SparseNode>> riter = rows.entrySet().iterator();
-        while(riter.hasNext()) {
-            Map.Entry<Integer,SparseNode> entry = riter.next();
-            for(SparseNode n = entry.getValue(); n != null; n = n.right) {
-                if((n.right != null && n.right.j <= n.j) || !n.i.equals(entry.getKey()) || !cols.containsKey(n.j)) {
+        for(int slot = 0; slot < cols.count; slot++) {
+            int l = 0;
+            for(int p = 0; p < cols.length[slot]; p++) {
+                int e = cols.elems[slot][p];
+                if(elemCol[e] != slot || search(rows, elemRow[e], cols.key[slot]) < 0 ||
+                        (p > 0 && rows.key[elemRow[cols.elems[slot][p-1]]] >= rows.key[elemRow[e]])) {
                     throw new RuntimeException("Invalid matrix!!");
                 }
+                if(!elemDead[e])
+                    l++;
             }
+            if(l != cols.live[slot])
+                throw new RuntimeException("Invalid matrix!!");
         }
+        if(live != liveCount)
+            throw new RuntimeException("Invalid matrix!!");
     }
 
     public Set<Integer> getRows() {
         return rows.keySet();
     }
-    
+
     public Set<Integer> getCols() {
         return cols.keySet();
     }
-    
+
     /** Return the sets where each set has the same value on the row, at the column selected, ignores zeroes */
-    public Vector<Set<Integer>> rowEqualitySets(Integer col) {
+    public Vector<Set<Integer>> rowEqualitySets(int col) {
         Vector<Set<Integer>> rval = new Vector<Set<Integer>>();
         Vector<Double> vals = new Vector<Double>();
-        for(SparseNode n = cols.get(col); n != null; n = n.down) {
+        for(int row : getColArray(col)) {
+            double val = elemVal(row, col);
             boolean cnt = false;
             for(int i = 0; i < vals.size(); i++) {
-                if(n.val == vals.get(i).doubleValue()) {
-                    rval.get(i).add(n.i);
+                if(val == vals.get(i).doubleValue()) {
+                    rval.get(i).add(row);
                     cnt = true;
                     break;
                 }
             }
             if(cnt)
                 continue;
-            vals.add(n.val);
+            vals.add(val);
             Set<Integer> s = new TreeSet<Integer>();
-            s.add(n.i);
+            s.add(row);
             rval.add(s);
         }
         return rval;
     }
-    
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Simplex functions
-    
-    int negativesInRow(Integer row) {
+
+    int negativesInRow(int row) {
         int rval = 0;
-        for(SparseNode n = rows.get(row); n != null; n = n.right) {
-            if(n.val < 0)
+        int slot = rows.slot(row);
+        if(slot < 0)
+            return 0;
+        int[] es = rows.elems[slot];
+        for(int p = 0; p < rows.length[slot]; p++) {
+            if(!elemDead[es[p]] && elemVal[es[p]] < 0)
                 rval++;
         }
         return rval;
     }
-    TreeSet<Integer> findMinRowIdx(Integer row) {
+
+    /** The columns at which row has its least value, in order */
+    int[] findMinRowIdx(int row) {
         double min = Double.MAX_VALUE;
-        TreeSet<Integer> rval = new TreeSet<Integer>();
-        for(SparseNode n = rows.get(row); n != null; n = n.right) {
-            if(n.val < min) {
-                rval.clear();
-                rval.add(new Integer(n.j));
-                min = n.val;
-            } else if(n.val == min) {
-                rval.add(new Integer(n.j));
+        int slot = rows.slot(row);
+        if(slot < 0)
+            return new int[0];
+        int[] es = rows.elems[slot];
+        int[] rval = new int[rows.live[slot]];
+        int n = 0;
+        for(int p = 0; p < rows.length[slot]; p++) {
+            int e = es[p];
+            if(elemDead[e])
+                continue;
+            if(elemVal[e] < min) {
+                n = 0;
+                rval[n++] = cols.key[elemCol[e]];
+                min = elemVal[e];
+            } else if(elemVal[e] == min) {
+                rval[n++] = cols.key[elemCol[e]];
             }
         }
-        return rval;
+        return Arrays.copyOf(rval, n);
     }
-    
-    double findMinRowVal(Integer row) {
+
+    double findMinRowVal(int row) {
         double min = Double.MAX_VALUE;
-        for(SparseNode n = rows.get(row); n != null; n = n.right) {
-            if(n.val < min) {
-                min = n.val;
+        int slot = rows.slot(row);
+        if(slot < 0)
+            return min;
+        int[] es = rows.elems[slot];
+        for(int p = 0; p < rows.length[slot]; p++) {
+            if(!elemDead[es[p]] && elemVal[es[p]] < min) {
+                min = elemVal[es[p]];
             }
         }
         return min;
     }
-    
-    double columnSum(Integer col) {
+
+    double columnSum(int col) {
         double rval = 0;
-        for(SparseNode n = cols.get(col); n != null; n = n.down) {
-            rval += n.val;
+        int slot = cols.slot(col);
+        if(slot < 0)
+            return 0;
+        int[] es = cols.elems[slot];
+        for(int p = 0; p < cols.length[slot]; p++) {
+            if(!elemDead[es[p]])
+                rval += elemVal[es[p]];
         }
         return rval;
     }
-    
-    Integer minPosRatioIdx(Integer col1, Integer col2) {
-        Integer rval = -1;
+
+    int minPosRatioIdx(int col1, int col2) {
+        int rval = -1;
         double min = Double.MAX_VALUE;
-        SparseNode n1 = cols.get(col1);
-        SparseNode n2 = cols.get(col2);
-        while(n1 != null && n2 != null) {
-            if(n2.i < n1.i) {
-                return n2.i;
-            } else if(n2.i.equals(n1.i)) {
-                if(n1.val / n2.val < min && n1.val / n2.val > 0) {
-                    rval = n1.i;
-                    min = n1.val / n2.val;
+        int s1 = cols.slot(col1), s2 = cols.slot(col2);
+        if(s1 < 0 || s2 < 0)
+            return -1;
+        int[] es1 = cols.elems[s1], es2 = cols.elems[s2];
+        int p1 = 0, p2 = 0, n1 = cols.length[s1], n2 = cols.length[s2];
+        while(true) {
+            while(p1 < n1 && elemDead[es1[p1]])
+                p1++;
+            while(p2 < n2 && elemDead[es2[p2]])
+                p2++;
+            if(p1 == n1 || p2 == n2)
+                return rval;
+            int i1 = rows.key[elemRow[es1[p1]]];
+            int i2 = rows.key[elemRow[es2[p2]]];
+            if(i2 < i1) {
+                return i2;
+            } else if(i2 == i1) {
+                double ratio = elemVal[es1[p1]] / elemVal[es2[p2]];
+                if(ratio < min && ratio > 0) {
+                    rval = i1;
+                    min = ratio;
                 }
-                n1 = n1.down;
-                n2 = n2.down;
-            } else if(n2.i > n1.i)
-                n1 = n1.down;
+                p1++;
+                p2++;
+            } else {
+                p1++;
+            }
         }
-        return rval;
     }
-    
+
     /**
      * row = row / val
      */
-    void divideRowBy(Integer row, double val) {
-        for(SparseNode n = rows.get(row); n != null; n = n.right) {
-            n.val = n.val / val;
+    void divideRowBy(int row, double val) {
+        int slot = rows.slot(row);
+        if(slot < 0)
+            return;
+        int[] es = rows.elems[slot];
+        for(int p = 0; p < rows.length[slot]; p++) {
+            if(!elemDead[es[p]])
+                setValue(es[p], elemVal[es[p]] / val);
         }
     }
-    
+
     /**
      * row1 = row1 - row2 * val
      */
-    void subtractRowFromRow(Integer row1, Integer row2, double val) {
-        if(row1.equals(row2) || Double.isNaN(val) || Double.isInfinite(val))
+    void subtractRowFromRow(int row1, int row2, double val) {
+        if(row1 == row2 || Double.isNaN(val) || Double.isInfinite(val))
             throw new IllegalArgumentException();
-        SparseNode n1 = rows.get(row1);
-        SparseNode n2 = rows.get(row2);
-        while(n2 != null) {
-            if(n1 == null || n2.j < n1.j) {
-                setElem(row1, n2.j, -n2.val * val);
-                n2 = n2.right;
-            } else if(n2.j.equals(n1.j)) {
-                n1.val = n1.val - n2.val * val;
-                if(n1.val == 0) {
-                    removeElem(n1);
-                }
-                n1 = n1.right;
-                n2 = n2.right;
-            } else if(n2.j > n1.j) {
-                n1 = n1.right;
+        int slot = rows.slot(row2);
+        if(slot < 0)
+            return;
+        int[] es = rows.elems[slot];
+        for(int p = 0; p < rows.length[slot]; p++) {
+            int e = es[p];
+            if(elemDead[e])
+                continue;
+            int col = cols.key[elemCol[e]];
+            put(row1, col, elemVal(row1, col) - elemVal[e] * val);
+        }
+        compactIfSparse();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Snapshots
+
+    /**
+     * Start recording the changes to this matrix, so that they can be undone.
+     * Snapshots may be nested, and are much cheaper than {@link #createCopy()} if
+     * only a few elements are changed. Every snapshot must be closed by
+     * {@link #restore(int)} or {@link #commit(int)}, otherwise the changes are
+     * recorded for as long as the matrix is used.
+     * @return An id for the snapshot, this is the number of snapshots open before it
+     * @see #restore(int)
+     */
+    public int snapshot() {
+        if(snapshotCount == 0)
+            journalSize = 0;
+        if(snapshotCount == snapshots.length)
+            snapshots = Arrays.copyOf(snapshots, snapshotCount * 2);
+        snapshots[snapshotCount] = journalSize;
+        return snapshotCount++;
+    }
+
+    /**
+     * Undo every change made to the matrix since a snapshot was taken. This snapshot
+     * and every snapshot taken after it are closed.
+     * @param snapshot The value returned by {@link #snapshot()}
+     * @throws IllegalArgumentException If the snapshot is not open
+     */
+    public void restore(int snapshot) {
+        checkSnapshot(snapshot);
+        int mark = snapshots[snapshot];
+        while(journalSize > mark) {
+            journalSize--;
+            int e = journalElem[journalSize];
+            switch(journalOp[journalSize]) {
+                case NEW:
+                    delete(e);
+                    break;
+                case KILL:
+                    setDead(e, false);
+                    break;
+                case REVIVE:
+                    setDead(e, true);
+                    break;
+                case VALUE:
+                    elemVal[e] = journalVal[journalSize];
+                    break;
             }
         }
+        snapshotCount = snapshot;
+        compactIfSparse();
+    }
+
+    /**
+     * Keep the changes made since a snapshot was taken. This snapshot and every
+     * snapshot taken after it are closed, and if no snapshot remains open the changes
+     * are no longer recorded.
+     * @param snapshot The value returned by {@link #snapshot()}
+     * @throws IllegalArgumentException If the snapshot is not open
+     */
+    public void commit(int snapshot) {
+        checkSnapshot(snapshot);
+        snapshotCount = snapshot;
+        if(snapshotCount == 0)
+            journalSize = 0;
+        compactIfSparse();
+    }
+
+    private void checkSnapshot(int snapshot) {
+        if(snapshot < 0 || snapshot >= snapshotCount)
+            throw new IllegalArgumentException("Snapshot " + snapshot + " is not open");
     }
-    
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Solver functions;
-    
-    private class Operation implements Serializable {
-        SparseNode n;
-        //boolean row;
-        int type;
-        public static final int ROW = 0;
-        public static final int COL = 1;
-        public static final int ELEM = 2;
-        Operation(SparseNode n, int type) { this.n = n; this.type = type; }
-    }
-    
-    private Stack<Operation> operations;
-    
-    void unstitchRow(Integer idx) {
-        operations.push(new Operation(rows.get(idx),Operation.ROW));
-        for(SparseNode n = rows.get(idx); n != null; n = n.right) {
-            removeElem(n);
-        }
-    }
-    
-    void unstitchCol(Integer idx) {
-        operations.push(new Operation(cols.get(idx),Operation.COL));
-        for(SparseNode n = cols.get(idx); n != null; n = n.down) {
-            removeElem(n);
-        }
-    }
-    
-    void selectRow(Integer idx) {
-        operations.push(new Operation(rows.get(idx),Operation.ROW));
-        for(SparseNode n = rows.get(idx); n != null;) {
-            Integer i = n.j;
-            double val = n.val;
-            SparseNode oldN = n;
-            n = n.right;
-            if(!i.equals(0) && val == 1.0) {
-                unstitchCol(i);
-            } else if(i != 0) {
-                operations.push(new Operation(oldN,Operation.ELEM));
-                removeElem(oldN);
+
+    private int[] stitches;
+    private int stitchCount;
+
+    private void pushStitch() {
+        if(stitchCount == stitches.length)
+            stitches = Arrays.copyOf(stitches, stitchCount * 2);
+        stitches[stitchCount++] = snapshot();
+    }
+
+    void unstitchRow(int idx) {
+        pushStitch();
+        removeRow(idx);
+    }
+
+    void unstitchCol(int idx) {
+        pushStitch();
+        removeColumn(idx);
+    }
+
+    /** Remove a row and every column with a one on that row. Other
+     * elements on the row are removed but their columns are kept */
+    void selectRow(int idx) {
+        pushStitch();
+        for(int j : getRowArray(idx)) {
+            if(j != 0 && elemVal(idx, j) == 1.0) {
+                removeColumn(j);
             }
         }
-        rows.remove(idx);
+        removeRow(idx);
     }
-    
+
+    /** Undo the last call to unstitchRow, unstitchCol or selectRow */
     void restitch() {
-        Operation o = operations.pop();
-        if(o.type == Operation.ROW) {
-            for(SparseNode n = o.n; n != null;) {
-                SparseNode temp = n.right;
-                addElem(n);
-                n = temp;
-            }
-        } else {
-            while(o.type != Operation.ROW) {
-                if(o.type == Operation.COL) {
-                    for(SparseNode n = o.n; n != null;) {
-                        SparseNode temp = n.down;
-                        addElem(n);
-                        n = temp;
-                    }
-                } else if(o.type == Operation.ELEM) {
-                    addElem(o.n);
-                }
-                o = operations.pop();
-            }
-            o.n.right = rows.get(o.n.i);
-            rows.put(o.n.i,o.n);
-        }
+        restore(stitches[--stitchCount]);
     }
-    
-    public Rule columnToRule(Integer col, Model model) {
+
+    public Rule columnToRule(int col, Model model) {
         LinkedList<Integer> positives = new LinkedList<Integer>();
         LinkedList<Integer> negatives = new LinkedList<Integer>();
-        for(SparseNode n = cols.get(col); n != null; n = n.down) {
-            if(model.isConnected(n.i))
-                positives.add(n.i);
+        for(int row : getColArray(col)) {
+            if(model.isConnected(row))
+                positives.add(row);
             else
-                negatives.add(n.i);
+                negatives.add(row);
         }
-        
+
         return new Rule(positives, negatives, model);
     }
-    
-    public class SparseNode implements Serializable {
-        public SparseNode down,right;
-        public final Integer i,j;
-        public double val;
-        
-        public SparseNode(Integer i, Integer j, double val) {
-            this.i  = i;
-            this.j = j;
-            this.val = val;
-        }
-        
-        public boolean equals(Object o) {
-            if((o instanceof SparseNode)) {
-                SparseNode n = (SparseNode)o;
-                return i.equals(n.i) && j.equals(n.j) && val >= n.val * (1 - ConsistProblem.PERTURBATION_SIZE) && val <= n.val * (1 + ConsistProblem.PERTURBATION_SIZE);
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Storage
+
+    /** @return The id of the live element at (i,j) or -1 if it is zero */
+    private int elem(int i, int j) {
+        int slot = rows.slot(i);
+        if(slot < 0)
+            return -1;
+        int p = search(rows, slot, j);
+        if(p < 0 || elemDead[rows.elems[slot][p]])
+            return -1;
+        return rows.elems[slot][p];
+    }
+
+    /** Binary search a row (column) for the element (dead or alive) at a column (row) index */
+    private int search(Lines lines, int slot, int index) {
+        int[] es = lines.elems[slot];
+        int lo = 0, hi = lines.length[slot] - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int k = lines.isRow ? cols.key[elemCol[es[mid]]] : rows.key[elemRow[es[mid]]];
+            if(k < index)
+                lo = mid + 1;
+            else if(k > index)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    private int[] otherKeys(Lines lines, int slot) {
+        if(slot < 0)
+            return new int[0];
+        int[] es = lines.elems[slot];
+        int[] rval = new int[lines.live[slot]];
+        int n = 0;
+        for(int p = 0; p < lines.length[slot]; p++) {
+            int e = es[p];
+            if(!elemDead[e])
+                rval[n++] = lines.isRow ? cols.key[elemCol[e]] : rows.key[elemRow[e]];
+        }
+        return rval;
+    }
+
+    private boolean subset(Lines lines, int slot1, int slot2) {
+        if(slot1 < 0)
+            return true;
+        if(slot2 < 0)
+            return lines.live[slot1] == 0;
+        int[] es1 = lines.elems[slot1], es2 = lines.elems[slot2];
+        int p1 = 0, p2 = 0, n1 = lines.length[slot1], n2 = lines.length[slot2];
+        while(true) {
+            while(p1 < n1 && elemDead[es1[p1]])
+                p1++;
+            while(p2 < n2 && elemDead[es2[p2]])
+                p2++;
+            if(p1 == n1)
+                return true;
+            if(p2 == n2)
+                return false;
+            int k1 = lines.isRow ? cols.key[elemCol[es1[p1]]] : rows.key[elemRow[es1[p1]]];
+            int k2 = lines.isRow ? cols.key[elemCol[es2[p2]]] : rows.key[elemRow[es2[p2]]];
+            if(k2 < k1)
+                p2++;
+            else if(k2 == k1) {
+                p1++;
+                p2++;
             } else
                 return false;
         }
     }
-}
\ No newline at end of file
+
+    private int allocate() {
+        if(freeCount > 0)
+            return free[--freeCount];
+        if(elemCount == elemRow.length) {
+            int n = elemCount * 2;
+            elemRow = Arrays.copyOf(elemRow, n);
+            elemCol = Arrays.copyOf(elemCol, n);
+            elemVal = Arrays.copyOf(elemVal, n);
+            elemDead = Arrays.copyOf(elemDead, n);
+        }
+        return elemCount++;
+    }
+
+    private void release(int e) {
+        if(freeCount == free.length)
+            free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = e;
+        elemRow[e] = -1;
+    }
+
+    private void setValue(int e, double v) {
+        journal(VALUE, e, elemVal[e]);
+        elemVal[e] = v;
+    }
+
+    private void kill(int e) {
+        setDead(e, true);
+        journal(KILL, e, 0);
+    }
+
+    private void revive(int e) {
+        setDead(e, false);
+        journal(REVIVE, e, 0);
+    }
+
+    private void setDead(int e, boolean dead) {
+        int delta = dead ? -1 : 1;
+        elemDead[e] = dead;
+        rows.changeLive(elemRow[e], delta);
+        cols.changeLive(elemCol[e], delta);
+        liveCount += delta;
+        deadCount -= delta;
+    }
+
+    /** Remove a (live) element from its row and column entirely */
+    private void delete(int e) {
+        rows.remove(elemRow[e], search(rows, elemRow[e], cols.key[elemCol[e]]));
+        cols.remove(elemCol[e], search(cols, elemCol[e], rows.key[elemRow[e]]));
+        rows.changeLive(elemRow[e], -1);
+        cols.changeLive(elemCol[e], -1);
+        liveCount--;
+        release(e);
+    }
+
+    private void journal(int op, int e, double val) {
+        if(snapshotCount == 0)
+            return;
+        if(journalSize == journalOp.length) {
+            int n = journalSize * 2;
+            journalOp = Arrays.copyOf(journalOp, n);
+            journalElem = Arrays.copyOf(journalElem, n);
+            journalVal = Arrays.copyOf(journalVal, n);
+        }
+        journalOp[journalSize] = op;
+        journalElem[journalSize] = e;
+        journalVal[journalSize++] = val;
+    }
+
+    /** Drop the dead elements, if most elements are dead and no snapshot is open */
+    private void compactIfSparse() {
+        if(snapshotCount > 0 || deadCount <= liveCount || deadCount < 64)
+            return;
+        rows.compact();
+        cols.compact();
+        for(int e = 0; e < elemCount; e++) {
+            if(elemDead[e] && elemRow[e] >= 0)
+                release(e);
+        }
+        deadCount = 0;
+    }
+
+    /**
+     * The rows or the columns of the matrix. Each line is held in a slot, found from
+     * its index by an open addressing hash table. A line with no live elements is
+     * treated as absent, but keeps its slot.
+     */
+    class Lines implements Serializable {
+        private static final long serialVersionUID = 5860005387542676613L;
+        final boolean isRow;
+        int count;
+        int[] key = new int[16];
+        int[][] elems = new int[16][];
+        int[] length = new int[16];
+        int[] live = new int[16];
+        private int size;
+        private int[] table = new int[32];
+        // Slots sorted by key, the first sortedCount slots are valid
+        private int[] sorted = new int[16];
+        private int sortedCount;
+
+        Lines(boolean isRow) {
+            this.isRow = isRow;
+        }
+
+        private int hash(int k) {
+            int h = k * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (table.length - 1);
+        }
+
+        /** @return The slot of a line or -1 if there is no such line */
+        int slot(int k) {
+            for(int h = hash(k); table[h] != 0; h = (h + 1) & (table.length - 1)) {
+                if(key[table[h] - 1] == k)
+                    return table[h] - 1;
+            }
+            return -1;
+        }
+
+        /** @return The slot of a line, adding it if necessary */
+        int slotFor(int k) {
+            int h = hash(k);
+            for(; table[h] != 0; h = (h + 1) & (table.length - 1)) {
+                if(key[table[h] - 1] == k)
+                    return table[h] - 1;
+            }
+            if(count == key.length) {
+                int n = count * 2;
+                key = Arrays.copyOf(key, n);
+                elems = Arrays.copyOf(elems, n);
+                length = Arrays.copyOf(length, n);
+                live = Arrays.copyOf(live, n);
+                sorted = Arrays.copyOf(sorted, n);
+            }
+            int slot = count++;
+            key[slot] = k;
+            elems[slot] = new int[4];
+            table[h] = slot + 1;
+            if(sortedCount == slot && (slot == 0 || key[sorted[slot - 1]] < k)) {
+                sorted[sortedCount++] = slot;
+            }
+            if(count * 2 > table.length)
+                rehash();
+            return slot;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            for(int slot = 0; slot < count; slot++) {
+                int h = hash(key[slot]);
+                while(table[h] != 0)
+                    h = (h + 1) & (table.length - 1);
+                table[h] = slot + 1;
+            }
+        }
+
+        private void sort() {
+            if(sortedCount == count)
+                return;
+            long[] pairs = new long[count];
+            for(int slot = 0; slot < count; slot++) {
+                pairs[slot] = ((long)key[slot] << 32) | slot;
+            }
+            Arrays.sort(pairs);
+            for(int k = 0; k < count; k++) {
+                sorted[k] = (int)pairs[k];
+            }
+            sortedCount = count;
+        }
+
+        void insert(int slot, int pos, int e) {
+            if(length[slot] == elems[slot].length)
+                elems[slot] = Arrays.copyOf(elems[slot], length[slot] * 2);
+            System.arraycopy(elems[slot], pos, elems[slot], pos + 1, length[slot] - pos);
+            elems[slot][pos] = e;
+            length[slot]++;
+        }
+
+        void remove(int slot, int pos) {
+            System.arraycopy(elems[slot], pos + 1, elems[slot], pos, length[slot] - pos - 1);
+            length[slot]--;
+        }
+
+        void changeLive(int slot, int delta) {
+            if(live[slot] == 0)
+                size++;
+            live[slot] += delta;
+            if(live[slot] == 0)
+                size--;
+        }
+
+        void compact() {
+            for(int slot = 0; slot < count; slot++) {
+                int[] es = elems[slot];
+                int n = 0;
+                for(int p = 0; p < length[slot]; p++) {
+                    if(!elemDead[es[p]])
+                        es[n++] = es[p];
+                }
+                length[slot] = n;
+            }
+        }
+
+        /** @return The indices of the lines, in order */
+        int[] keys() {
+            sort();
+            int[] rval = new int[size];
+            int n = 0;
+            for(int k = 0; k < count; k++) {
+                if(live[sorted[k]] > 0)
+                    rval[n++] = key[sorted[k]];
+            }
+            return rval;
+        }
+
+        /** @return The indices of the lines, in order. The set may be iterated over while the matrix is changed */
+        public Set<Integer> keySet() {
+            return new AbstractSet<Integer>() {
+                public Iterator<Integer> iterator() {
+                    final int[] keys = keys();
+                    return new Iterator<Integer>() {
+                        int next = 0;
+
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        public Integer next() {
+                            if(next >= keys.length)
+                                throw new NoSuchElementException();
+                            return keys[next++];
+                        }
+
+                        public void remove() {
+                            if(isRow)
+                                removeRow(keys[next - 1]);
+                            else
+                                removeColumn(keys[next - 1]);
+                        }
+                    };
+                }
+
+                public int size() {
+                    return size;
+                }
+
+                public boolean contains(Object o) {
+                    return o instanceof Integer && containsKey((Integer)o);
+                }
+            };
+        }
+
+        public boolean containsKey(int k) {
+            int slot = slot(k);
+            return slot >= 0 && live[slot] > 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** @return The highest index of a line
+         * @throws NoSuchElementException If there are no lines */
+        public int lastKey() {
+            sort();
+            for(int k = count - 1; k >= 0; k--) {
+                if(live[sorted[k]] > 0)
+                    return key[sorted[k]];
+            }
+            throw new NoSuchElementException();
+        }
+    }
+}
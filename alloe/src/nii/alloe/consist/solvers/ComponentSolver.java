@@ -0,0 +1,292 @@
+package nii.alloe.consist.solvers;
+
+import java.util.*;
+import java.util.concurrent.*;
+import nii.alloe.consist.*;
+import nii.alloe.theory.*;
+
+/**
+ * Solves a model by splitting it into components and solving each component separately
+ * (and concurrently if threads is more than one) with one of the other solvers. Two terms
+ * are in the same component if they are linked in the model (that is in the specific copy
+ * of it), or they both occur in an inconsistent rule instance. As a rule instance can
+ * only be inconsistent if its premises are links, no solver needs to change a link between
+ * two components. Terms in no link and no inconsistency are not solved. The solutions of
+ * the components are then merged by {@link Model#joinModels(Collection,Logic)}.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ComponentSolver {
+    /**
+     * The solution is placed here after solve is called
+     */
+    public Model soln;
+    /**
+     * The minimal cost (the sum of the costs of the components) is placed here after solve is called
+     */
+    public double cost;
+    /**
+     * The number of components solved is placed here after solve is called
+     */
+    public int components;
+
+    private final Logic logic;
+    private final Model probModel;
+    private final Method method;
+
+    /** The number of solutions joined at a time, so that only a few solutions are held in memory */
+    private static final int JOIN_SIZE = 64;
+
+    /** Create a new instance
+     * @param logic The logic for consistency
+     * @param probModel The probability model
+     * @param method The solver used for each component, for example {@link #CONSIST}
+     */
+    public ComponentSolver(Logic logic, Model probModel, Method method) {
+        this.logic = logic;
+        this.probModel = probModel;
+        this.method = method;
+    }
+
+    /**
+     * A method of solving a single component
+     */
+    public interface Method {
+        /**
+         * Find the closest consistent model to a component
+         * @param logic A copy of the logic, which is used only by this call
+         * @param probModel The component
+         * @return The solution, with its cost
+         */
+        public Solution solve(Logic logic, Model probModel);
+    }
+
+    /**
+     * The solution of a component
+     */
+    public static class Solution {
+        public final Model soln;
+        public final double cost;
+
+        public Solution(Model soln, double cost) {
+            this.soln = soln;
+            this.cost = cost;
+        }
+    }
+
+    /** Solve components with {@link ConsistSolver} */
+    public static final Method CONSIST = new Method() {
+        public Solution solve(Logic logic, Model probModel) {
+            ConsistSolver cs = new ConsistSolver();
+            cs.solve(logic, probModel);
+            Model rval = probModel.createSpecificCopy();
+            rval.symmDiffAll(cs.soln);
+            return new Solution(rval, cs.cost);
+        }
+    };
+
+    /** Solve components with {@link GrowingSolver} */
+    public static final Method GROWING = new Method() {
+        public Solution solve(Logic logic, Model probModel) {
+            GrowingSolver gs = new GrowingSolver(logic, probModel);
+            gs.solve();
+            return new Solution(gs.soln, gs.cost);
+        }
+    };
+
+    /** Solve components with {@link ResFreeSolver} */
+    public static final Method RES_FREE = new Method() {
+        public Solution solve(Logic logic, Model probModel) {
+            ResFreeSolver rfs = new ResFreeSolver(logic, probModel);
+            rfs.solve();
+            return new Solution(rfs.soln, rfs.cost);
+        }
+    };
+
+    /** Solve components with {@link GreedySat} */
+    public static final Method GREEDY_SAT = new Method() {
+        public Solution solve(Logic logic, Model probModel) {
+            GreedySat gs = new GreedySat(logic, probModel);
+            gs.solve();
+            return new Solution(gs.soln, gs.cost);
+        }
+    };
+
+    /**
+     * Find closest model to data
+     */
+    public void solve() {
+        List<Component> comps = split();
+        components = comps.size();
+        cost = 0;
+        LinkedList<Model> solns = new LinkedList<Model>();
+        if(threads <= 1 || comps.size() <= 1) {
+            for(Component comp : comps) {
+                join(solns, comp.call());
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            LinkedList<Future<Solution>> futures = new LinkedList<Future<Solution>>();
+            for(Component comp : comps) {
+                futures.add(executor.submit(comp));
+            }
+            executor.shutdown();
+            try {
+                while(!futures.isEmpty()) {
+                    join(solns, futures.removeFirst().get());
+                }
+            } catch(InterruptedException x) {
+                executor.shutdownNow();
+                throw new RuntimeException("Interrupted while solving components");
+            } catch(ExecutionException x) {
+                executor.shutdownNow();
+                if(x.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)x.getCause();
+                throw new RuntimeException(x.getCause());
+            }
+        }
+        if(solns.isEmpty())
+            soln = probModel.createSpecificCopy();
+        else
+            soln = Model.joinModels(solns, logic);
+    }
+
+    /** Add a solution, joining the solutions so far if there are many of them */
+    private void join(LinkedList<Model> solns, Solution solution) {
+        cost += solution.cost;
+        solns.add(solution.soln);
+        if(solns.size() >= JOIN_SIZE) {
+            Model joined = Model.joinModels(solns, logic);
+            solns.clear();
+            solns.add(joined);
+        }
+    }
+
+    /** A component of the model, solved with its own copy of the logic */
+    private class Component implements Callable<Solution> {
+        final TreeSet<Integer> terms = new TreeSet<Integer>();
+        /** The ids of the values set in the component */
+        final LinkedList<Integer> rels = new LinkedList<Integer>();
+
+        public Solution call() {
+            Model m = probModel.subModel(rels);
+            m.elems.addAll(terms);
+            Logic l = logic.createCopy();
+            l.setThreads(1);
+            return method.solve(l, m);
+        }
+    }
+
+    /**
+     * Find the components of the model. The terms are joined with a union-find.
+     * @return The components in the order of their smallest term
+     */
+    private List<Component> split() {
+        final int n = probModel.getFullModelSize();
+        final int[] parent = new int[n];
+        final boolean[] used = new boolean[n];
+        for(int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        Model specific = probModel.createSpecificCopy();
+        for(int id : specific) {
+            if(specific.mutable(id)) {
+                int i = specific.iByID(id), j = specific.jByID(id);
+                union(parent, i, j);
+                used[i] = used[j] = true;
+            }
+        }
+        logic.consistCheck(specific, new InconsistentAction() {
+            public boolean doAction(Logic logic, Model m, Rule rule) {
+                int first = -1;
+                for(int k = 0; k < rule.length(); k++) {
+                    for(Rule.Argument arg : rule.terms.get(k)) {
+                        int i = arg.getAssignment();
+                        if(i < 0 || i >= n)
+                            continue;
+                        used[i] = true;
+                        if(first < 0)
+                            first = i;
+                        else
+                            union(parent, first, i);
+                    }
+                }
+                return true;
+            }
+        });
+
+        Component[] byRoot = new Component[n];
+        LinkedList<Component> rval = new LinkedList<Component>();
+        for(int i = 0; i < n; i++) {
+            if(!used[i])
+                continue;
+            int root = find(parent, i);
+            if(byRoot[root] == null) {
+                byRoot[root] = new Component();
+                rval.add(byRoot[root]);
+            }
+            byRoot[root].terms.add(i);
+        }
+
+        Iterator<String> graphNames = probModel.graphNameIterator();
+        while(graphNames.hasNext()) {
+            String name = graphNames.next();
+            Graph g = probModel.graphs.get(name);
+            if(g instanceof ProbabilityGraph) {
+                // Include the values which are not links, as the solver may add them
+                ProbabilityGraph pg = (ProbabilityGraph)g;
+                for(int j = 0; j < n; j++) {
+                    if(!used[j])
+                        continue;
+                    for(int i : pg.columnRows(j)) {
+                        if(used[i] && find(parent, i) == find(parent, j))
+                            byRoot[find(parent, j)].rels.add(probModel.id(name, i, j));
+                    }
+                }
+            } else if(g instanceof SpecificGraph) {
+                Iterator<Integer> links = g.iterator(n);
+                while(links.hasNext()) {
+                    int link = links.next();
+                    int i = link / n, j = link % n;
+                    byRoot[find(parent, i)].rels.add(probModel.id(name, i, j));
+                }
+            }
+        }
+        return rval;
+    }
+
+    private static int find(int[] parent, int i) {
+        while(parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        int ri = find(parent, i), rj = find(parent, j);
+        if(ri != rj)
+            parent[Math.max(ri, rj)] = Math.min(ri, rj);
+    }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of components solved at the same time.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of components solved at the same time.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+}
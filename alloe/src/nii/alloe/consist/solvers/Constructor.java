@@ -13,6 +13,9 @@ public class Constructor {
     
     public Model solvedModel;
     public double cost;
+    /** If false every change is followed by a full consistency check of the model, rather than
+     * a check of only the rules containing the changed links */
+    public boolean deltaCheck = true;
     private int nodeStrategy;
     private int method;
     public static final int ADD_NODES_MOST_LINKS = 0;
@@ -25,6 +28,7 @@ public class Constructor {
     private NextNodeFinder nextNode;
     private Model probModel;
     private Logic logic;
+    private DeltaChecker deltaChecker;
     
     /** Creates a new instance of Constructor */
     public Constructor(int nodeStrategy, int method) {
@@ -35,13 +39,15 @@ public class Constructor {
     public void solve(Model probModel, Logic logic) {
         this.probModel = probModel;
         this.logic = logic;
+        this.deltaChecker = new DeltaChecker(logic);
         Model emptyModel = probModel.createBlankSpecificCopy();
         nextNode = getNextNodeFinder();
         nextNode.init(probModel);
         solutions = new PriorityQueue<Solution>(new TreeSet<Solution>());
         double baseCost = getBaseCost();
         solutions.add(new Solution(baseCost,-baseCost,emptyModel,-1));
-        logic.consistCheck(emptyModel, new ConclusionBranchingInconsistentAction(new TreeSet<Solution>(),solutions.peek()));
+        logic.consistCheck(emptyModel, new ConclusionBranchingInconsistentAction(new TreeSet<Solution>(),solutions.peek(),false));
+        solutions.peek().changes.clear();
         while(solutions.peek() != null) {
             //System.out.println(solutions);
             Solution soln = solutions.poll();
@@ -121,12 +127,31 @@ public class Constructor {
         if(!newSoln.disallowed.contains(newLink)) {
             newSoln.add(newLink);
             solutions.add(newSoln);
-            logic.consistCheck(newSoln.model, new ConclusionBranchingInconsistentAction(solutions,newSoln));
+            checkChanges(solutions,newSoln);
         }
         
         return solutions;
     }
     
+    /**
+     * Make a solution consistent again after some links have been changed. The solution's model
+     * was consistent before these changes, so only rules containing a changed link need to be checked.
+     * Links added while doing this are queued and checked in turn.
+     */
+    private void checkChanges(TreeSet<Solution> solns, Solution soln) {
+        if(!deltaCheck) {
+            logic.consistCheck(soln.model, new ConclusionBranchingInconsistentAction(solns,soln,false));
+            soln.changes.clear();
+            return;
+        }
+        ConclusionBranchingInconsistentAction action = new ConclusionBranchingInconsistentAction(solns,soln,true);
+        while(!soln.changes.isEmpty() && !action.fail) {
+            // The link stays queued while it is checked, so branches made meanwhile also check it
+            deltaChecker.consistCheck(soln.model, soln.changes.getFirst(), action);
+            soln.changes.removeFirst();
+        }
+    }
+    
     private double getBaseCost() {
         Iterator<Integer> linkIter = probModel.iterator();
         double baseCost = 0.0;
@@ -146,9 +171,11 @@ public class Constructor {
         boolean fail;
         TreeSet<Solution> solns;
         Solution thisBranch;
-        ConclusionBranchingInconsistentAction(TreeSet<Solution> solns, Solution thisBranch) {
+        boolean incremental;
+        ConclusionBranchingInconsistentAction(TreeSet<Solution> solns, Solution thisBranch, boolean incremental) {
             this.solns = solns;
             this.thisBranch = thisBranch;
+            this.incremental = incremental;
             fail = false;
         }
         public boolean doAction(Logic logic, Model m, Rule rule) {
@@ -187,7 +214,12 @@ public class Constructor {
                     newBranch.remove(m.id(rule,i-1));
                     newBranch.add(m.id(rule,i));
                     solns.add(newBranch);
-                    logic.consistCheck(newBranch.model, new ConclusionBranchingInconsistentAction(solns,newBranch));
+                    if(incremental) {
+                        checkChanges(solns,newBranch);
+                    } else {
+                        logic.consistCheck(newBranch.model, new ConclusionBranchingInconsistentAction(solns,newBranch,false));
+                        newBranch.changes.clear();
+                    }
                 }
                 return false;
             }
@@ -314,6 +346,8 @@ public class Constructor {
         public Model model;
         public int prevNode;
         public TreeSet<Integer> disallowed;
+        /** Links changed since the model was last known to be consistent */
+        public LinkedList<Integer> changes;
         
         public Solution(double cost, double heuristicCost, Model model, int prevNode) {
             this.cost = cost;
@@ -321,6 +355,7 @@ public class Constructor {
             this.model = model;
             this.prevNode = prevNode;
             disallowed = new TreeSet<Integer>();
+            changes = new LinkedList<Integer>();
         }
         
         public Solution(Solution s) {
@@ -329,6 +364,7 @@ public class Constructor {
             this.model = s.model.createCopy();
             this.prevNode = s.prevNode;
             disallowed = new TreeSet<Integer>(s.disallowed);
+            changes = new LinkedList<Integer>(s.changes);
         }
         
         public int compareTo(Solution sol) {
@@ -345,6 +381,7 @@ public class Constructor {
             if(model.contains(newLink))
                 throw new RuntimeException();
             model.add((Integer)newLink); 
+            changes.add(newLink);
             double c = ((ProbabilityGraph)probModel.getGraphByID(newLink)).removeVal(
                     model.iByID(newLink),model.jByID(newLink));
             cost -= c;
@@ -355,6 +392,7 @@ public class Constructor {
         
         public void remove(int link) {
             model.remove(link);
+            changes.add(link);
             double c = ((ProbabilityGraph)probModel.getGraphByID(link)).addVal(
                     model.iByID(link),model.jByID(link));
             cost -= c;
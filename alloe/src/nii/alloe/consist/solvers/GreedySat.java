@@ -32,11 +32,19 @@ public class GreedySat {
     private Logic logic;
     private Model candidate;
     private GreedySatSet greedySats;
+    private DeltaChecker deltaChecker;
+    private LinkedList<Integer> flipped;
     public boolean canFail = false;
+    /** If false each pass starts with a full consistency check of the candidate, rather than
+     * updating the violations with the links flipped in the last pass */
+    public boolean deltaCheck = true;
     public static int iterationLimit = 2000;
     
     public boolean solve() {
         candidate = probModel.createSpecificCopy();
+        allRules = new TreeSet<Rule>();
+        deltaChecker = null;
+        flipped = new LinkedList<Integer>();
         cost = 0;
         buildInitialSet(probModel);
         int iter = -1;
@@ -73,6 +81,7 @@ public class GreedySat {
                 candidate.remove((Integer)maxID);
             else
                 candidate.add(maxID);
+            flipped.add(maxID);
             if(MULTI_PASS) {
                 if(greedySats.isEmpty()) {
                     buildInitialSet(candidate);
@@ -95,12 +104,13 @@ public class GreedySat {
         double maxCost = 0;
         for(Map.Entry<Integer,GreedySatNode> entry : greedySats.entrySet()) {
             Graph g;
-            if((g = probModel.getGraphByID(entry.getKey())) instanceof ProbabilityGraph) {
+            int id = entry.getKey();
+            if((g = probModel.getGraphByID(id)) instanceof ProbabilityGraph) {
                 double consistGain = (double)(entry.getValue().satisfys.size() - entry.getValue().breaks.size());
-                double cost = Math.abs(((ProbabilityGraph)g).addVal(probModel.iByID(entry.getKey()),probModel.jByID(entry.getKey())));
+                double cost = Math.abs(((ProbabilityGraph)g).addVal(probModel.iByID(id),probModel.jByID(id)));
                 cost = consistGain / cost;
                 if(cost > maxCost) {
-                    maxID = entry.getKey();
+                    maxID = id;
                     maxCost = cost;
                 }
             }
@@ -121,7 +131,22 @@ public class GreedySat {
     private void buildInitialSet(Model model) {
         baseRules = new LinkedList<Rule>();
         greedySats = new GreedySatSet();
-        logic.consistCheck(model, new BaseRuleBuilder());
+        if(model == candidate && deltaCheck) {
+            // Only rules containing a link flipped since the last pass can have changed
+            if(deltaChecker == null) {
+                deltaChecker = new DeltaChecker(logic);
+                deltaChecker.trackViolations(candidate);
+            } else {
+                deltaChecker.update(flipped);
+            }
+            flipped.clear();
+            BaseRuleBuilder builder = new BaseRuleBuilder();
+            for(Rule r : deltaChecker.getViolations()) {
+                builder.doAction(logic, candidate, r);
+            }
+        } else {
+            logic.consistCheck(model, new BaseRuleBuilder());
+        }
         for(Rule r : baseRules) {
             for(int i = 0; i < r.length(); i++) {
                 Integer id = model.id(r,i);
@@ -251,12 +276,9 @@ public class GreedySat {
         }
     }
     
-    // For Memory management
-    private static TreeSet<Rule> allRules;
-    
-    static {
-        allRules = new TreeSet<Rule>();
-    }
+    // For Memory management. This belongs to the instance so that several
+    // instances may solve at the same time (see ComponentSolver)
+    private TreeSet<Rule> allRules;
     
     private class BaseRuleBuilder implements InconsistentAction {
         public boolean doAction(Logic logic,
@@ -0,0 +1,364 @@
+package nii.alloe.corpus;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import nii.alloe.corpus.pattern.Pattern;
+
+/**
+ * A binary file holding the text of every context in the corpus, with the terms it
+ * contains (as ids into a term dictionary) and the boundaries of its word tokens. The
+ * file is memory mapped so reading a context needs no Lucene document load or parsing
+ * of stored fields.
+ * <br>
+ * The file consists of a header (magic, version, number of the first document, number of
+ * documents, position of the offset table, the term dictionary),
+ * an offset table with the position of each document's record, and then one record per
+ * document: the UTF-8 text, the term ids and the token boundaries (start and end of each
+ * word token). Records never cross a {@link #SEGMENT_SIZE} boundary of the record data so
+ * each segment can be mapped separately.
+ * <br>
+ * Documents added to the corpus later are written to further parts (the file name followed
+ * by ".1", ".2" etc.), each starting at the document after the end of the last part, so the
+ * store never needs to be rewritten to append. The term dictionary of each part begins with
+ * that of the part before it, so term ids mean the same in every part.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ContextStore {
+    static final int MAGIC = 0x414c4f43;
+    static final int VERSION = 1;
+    static final int SEGMENT_BITS = 30;
+    /** The size of each mapped segment of the file */
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final Part[] parts;
+    private final String[] termDictionary;
+    private final int docCount;
+
+    /** A single file of the store */
+    private static class Part {
+        String[] dictionary;
+        int firstDoc;
+        int docCount;
+        LongBuffer offsets;
+        MappedByteBuffer[] segments;
+    }
+
+    private ContextStore(Part[] parts) {
+        this.parts = parts;
+        Part last = parts[parts.length - 1];
+        this.termDictionary = last.dictionary;
+        this.docCount = last.firstDoc + last.docCount;
+    }
+
+    /** Open an existing context store
+     * @param file The file written by {@link Writer}. Any parts appended to it are also opened
+     * @throws IOException If the file could not be read or is not a context store
+     */
+    public static ContextStore open(File file) throws IOException {
+        Vector<Part> parts = new Vector<Part>();
+        int next = 0;
+        for (File f = file; f.exists(); f = partFile(file, parts.size())) {
+            Part part = openPart(f);
+            if (part.firstDoc != next) {
+                throw new IOException("Context store part " + f + " does not follow the previous part");
+            }
+            next += part.docCount;
+            parts.add(part);
+        }
+        if (parts.isEmpty()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return new ContextStore(parts.toArray(new Part[parts.size()]));
+    }
+
+    /** @return the file holding a part of the store */
+    static File partFile(File file, int part) {
+        return part == 0 ? file : new File(file.getPath() + "." + part);
+    }
+
+    private static Part openPart(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            Part part = new Part();
+            long offsetTable;
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a context store: " + file);
+                }
+                part.firstDoc = in.readInt();
+                part.docCount = in.readInt();
+                offsetTable = in.readLong();
+                part.dictionary = new String[in.readInt()];
+                for (int i = 0; i < part.dictionary.length; i++) {
+                    part.dictionary[i] = in.readUTF();
+                }
+            } finally {
+                in.close();
+            }
+            FileChannel channel = raf.getChannel();
+            part.offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetTable, 8L * part.docCount).asLongBuffer();
+            long dataStart = offsetTable + 8L * part.docCount;
+            long length = channel.size() - dataStart;
+            part.segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+            for (int i = 0; i < part.segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                part.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + start,
+                        Math.min(SEGMENT_SIZE, length - start));
+            }
+            return part;
+        } finally {
+            // The mappings remain valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /** @return the number of documents in the store */
+    public int size() {
+        return docCount;
+    }
+
+    /** @return the term dictionary, that is the term for each term id */
+    public String[] getTermDictionary() {
+        return termDictionary;
+    }
+
+    private ByteBuffer record(int doc) {
+        if (doc < 0 || doc >= docCount) {
+            throw new IndexOutOfBoundsException("No document " + doc + " in context store");
+        }
+        Part part = parts[parts.length - 1];
+        for (int i = parts.length - 2; doc < part.firstDoc; i--) {
+            part = parts[i];
+        }
+        long offset = part.offsets.get(doc - part.firstDoc);
+        ByteBuffer b = part.segments[(int) (offset >> SEGMENT_BITS)].duplicate();
+        b.position((int) (offset & (SEGMENT_SIZE - 1)));
+        return b;
+    }
+
+    /** @return the text of a document */
+    public String getText(int doc) {
+        ByteBuffer b = record(doc);
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x.getMessage());
+        }
+    }
+
+    /** @return the ids of the terms occuring in a document
+     * @see #getTermDictionary()
+     */
+    public int[] getTermIds(int doc) {
+        ByteBuffer b = record(doc);
+        b.position(b.position() + 4 + b.getInt());
+        int[] rval = new int[b.getInt()];
+        b.asIntBuffer().get(rval);
+        return rval;
+    }
+
+    /** @return the terms occuring in a document */
+    public String[] getTerms(int doc) {
+        int[] ids = getTermIds(doc);
+        String[] rval = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            rval[i] = termDictionary[ids[i]];
+        }
+        return rval;
+    }
+
+    /** @return the token boundaries of a document, the start and end (exclusive) offset
+     * of each word token in turn
+     * @see #tokenize(String)
+     */
+    public int[] getTokens(int doc) {
+        ByteBuffer b = record(doc);
+        b.position(b.position() + 4 + b.getInt());
+        b.position(b.position() + 4 + 4 * b.getInt());
+        int[] rval = new int[b.getInt()];
+        b.asIntBuffer().get(rval);
+        return rval;
+    }
+
+    /** Find the word tokens in a context. A word token is a maximal sequence of
+     * word characters, as defined by {@link Pattern#isWordChar(char)}.
+     * @return The start and end (exclusive) offset of each word token in turn
+     */
+    public static int[] tokenize(String text) {
+        int[] rval = new int[16];
+        int n = 0;
+        int i = 0;
+        while (i < text.length()) {
+            if (Pattern.isWordChar(text.charAt(i))) {
+                int start = i;
+                while (i < text.length() && Pattern.isWordChar(text.charAt(i))) {
+                    i++;
+                }
+                if (n + 2 > rval.length) {
+                    rval = Arrays.copyOf(rval, rval.length * 2);
+                }
+                rval[n++] = start;
+                rval[n++] = i;
+            } else {
+                i++;
+            }
+        }
+        return Arrays.copyOf(rval, n);
+    }
+
+    /** Writes a context store. Documents must be added in order of document number */
+    public static class Writer {
+        private final File file;
+        private final File partFile;
+        private final File dataFile;
+        private final DataOutputStream data;
+        private final HashMap<String, Integer> termIds;
+        private final Vector<String> dictionary;
+        private final int firstDoc;
+        private long[] offsets;
+        private int docCount;
+        private long position;
+
+        /** Start writing a new context store, replacing any existing store and its parts
+         * @param file The file to write
+         * @param terms The initial term dictionary (other terms are added as they are seen)
+         */
+        public Writer(File file, Collection<String> terms) throws IOException {
+            this(file, 0, 0, new String[0], terms);
+        }
+
+        /** Start writing a new part of an existing context store. The first document
+         * added is the document after the last in the store.
+         * @param file The file the store was opened from
+         * @param store The existing store
+         * @param terms Terms to add to the term dictionary of the store
+         */
+        public Writer(File file, ContextStore store, Collection<String> terms) throws IOException {
+            this(file, store.parts.length, store.size(), store.getTermDictionary(), terms);
+        }
+
+        private Writer(File file, int part, int firstDoc, String[] dictionary, Collection<String> terms) throws IOException {
+            this.file = file;
+            this.partFile = partFile(file, part);
+            this.firstDoc = firstDoc;
+            this.dataFile = new File(partFile.getPath() + ".tmp");
+            this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16));
+            this.termIds = new HashMap<String, Integer>();
+            this.dictionary = new Vector<String>();
+            for (String term : dictionary) {
+                termId(term);
+            }
+            for (String term : terms) {
+                termId(term.toLowerCase());
+            }
+            offsets = new long[1024];
+            docCount = 0;
+            position = 0;
+        }
+
+        private int termId(String term) {
+            Integer id = termIds.get(term);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.add(term);
+                termIds.put(term, id);
+            }
+            return id;
+        }
+
+        /** Add the next document
+         * @param text The text of the document
+         * @param terms The terms in this document
+         */
+        public void add(String text, String[] terms) throws IOException {
+            byte[] bytes = text.getBytes("UTF-8");
+            int[] tokens = tokenize(text);
+            long length = 12 + bytes.length + 4L * terms.length + 4L * tokens.length;
+            // Records are not allowed to cross segments
+            if ((position >> SEGMENT_BITS) != ((position + length - 1) >> SEGMENT_BITS)) {
+                long pad = SEGMENT_SIZE - (position & (SEGMENT_SIZE - 1));
+                for (long i = 0; i < pad; i++) {
+                    data.write(0);
+                }
+                position += pad;
+            }
+            if (docCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[docCount++] = position;
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            data.writeInt(terms.length);
+            for (String term : terms) {
+                data.writeInt(termId(term));
+            }
+            data.writeInt(tokens.length);
+            for (int token : tokens) {
+                data.writeInt(token);
+            }
+            position += length;
+        }
+
+        /** Finish writing the store. The records are written after the header and offset
+         * table. The file is written under a temporary name and then renamed, so a store
+         * that is open (and mapped) is not overwritten while it is being read. */
+        public void close() throws IOException {
+            data.close();
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(firstDoc);
+            header.writeInt(docCount);
+            header.writeLong(0);
+            header.writeInt(dictionary.size());
+            for (String term : dictionary) {
+                header.writeUTF(term);
+            }
+            header.close();
+            byte[] headerArray = headerBytes.toByteArray();
+            // Fill in the position of the offset table
+            ByteBuffer.wrap(headerArray).putLong(16, headerArray.length);
+
+            File newFile = new File(partFile.getPath() + ".new");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), 1 << 16));
+            try {
+                out.write(headerArray);
+                for (int i = 0; i < docCount; i++) {
+                    out.writeLong(offsets[i]);
+                }
+                InputStream in = new BufferedInputStream(new FileInputStream(dataFile), 1 << 16);
+                try {
+                    byte[] buf = new byte[1 << 16];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        out.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            } finally {
+                out.close();
+            }
+            dataFile.delete();
+            if (!newFile.renameTo(partFile)) {
+                partFile.delete();
+                if (!newFile.renameTo(partFile)) {
+                    throw new IOException("Could not write " + partFile);
+                }
+            }
+            if (firstDoc == 0) {
+                // Remove the parts of any store this replaces
+                for (int i = 1; partFile(file, i).exists(); i++) {
+                    partFile(file, i).delete();
+                }
+            }
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package nii.alloe.corpus;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import nii.alloe.corpus.pattern.*;
 import nii.alloe.corpus.analyzer.*;
-import nii.alloe.tools.strings.Strings;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.*;
 import org.apache.lucene.analysis.*;
@@ -24,39 +24,69 @@ public class Corpus {
     public TermList terms;
     private File indexFile;
     private transient Directory directory;
-    private transient HashMap<String, TreeSet<Integer>> termHits;
+    private transient PostingListCache termHits;
+    private transient TermMatcher termMatcher;
+    private transient int termMatcherSize;
+    private transient ContextStore contextStore;
+    private transient ContextStore appendStore;
+    private transient int sketchBaseContexts;
+    private transient int sketchBaseDocs;
     int trueContextNumber;
     int maxSketchSize;
     int docsSketched;
     HashMap<String, Integer> sketchSize;
     HashSet<String> sketchComplete;
+    HashMap<String, PostingList> extendedTermHits;
     
     /** Creates a new instance of Corpus */
     public Corpus(TermList terms, String indexFile) {
         this(terms, new File(indexFile));
         sketchSize = new HashMap<String, Integer>();
         sketchComplete = new HashSet<String>();
+        extendedTermHits = new HashMap<String, PostingList>();
     }
     
     public Corpus(TermList terms, File indexFile) {
         this.terms = terms;
         this.indexFile = indexFile;
-        termHits = new HashMap<String, TreeSet<Integer>>(terms.size());
+        termHits = new PostingListCache(DEFAULT_HIT_CACHE_SIZE);
         sketchSize = new HashMap<String, Integer>();
         sketchComplete = new HashSet<String>();
+        extendedTermHits = new HashMap<String, PostingList>();
     }
     
     private Corpus(TermList terms) {
         this.terms = terms;
-        termHits = new HashMap<String, TreeSet<Integer>>(terms.size());
+        termHits = new PostingListCache(DEFAULT_HIT_CACHE_SIZE);
         sketchSize = new HashMap<String, Integer>();
         sketchComplete = new HashSet<String>();
+        extendedTermHits = new HashMap<String, PostingList>();
     }
     
+    /** The name of the context store file within the corpus directory
+     * @see ContextStore */
+    public static final String CONTEXT_STORE_FILE = "contexts";
+    
+    /** The default memory budget of the term hit cache, in bytes */
+    public static final long DEFAULT_HIT_CACHE_SIZE = 256L * 1024L * 1024L;
+
+    /** Approximate size in bytes of an entry in the map from documents to terms built by
+     * {@link #initTermsInCorpusCache()} */
+    private static final long TERMS_BY_DOC_ENTRY_SIZE = 64;
+    
     /** Opens the corpus so that new documents can be added
-     * @param newIndex If true any index on existing path will be removed
+     * @param newIndex If true any index on existing path will be removed, otherwise new
+     *      documents are appended to the existing index
      */
     public void openIndex(boolean newIndex) throws IOException {
+        if (newIndex) {
+            appendStore = null;
+            extendedTermHits.clear();
+        } else {
+            // Only the documents added from now on need to be written to the context store
+            appendStore = contextStore;
+        }
+        contextStore = null;
         indexWriter = new IndexWriter(indexFile, new AlloeAnalyzer(), newIndex);
     }
     
@@ -65,36 +95,63 @@ public class Corpus {
      * @throws IllegalStateException if {@link #openIndex(boolean)} has not been called
      */
     public void addDoc(String contents) throws IOException {
-        if (indexWriter == null) {
-            throw new IllegalStateException("Attempting to add document to closed index");
-        }
+        addDocument(makeDocument(contents));
+    }
+    
+    /** Create the document for a context, tagging it with the terms it contains. This
+     * does not touch the index so it may be called from several threads at once.
+     * @param contents The text of the new document
+     * @see #addDocument(Document)
+     */
+    Document makeDocument(String contents) {
         Document d = new Document();
         contents = contents.replaceAll("'", "");
         d.add(new Field("contents", contents.toLowerCase(), Field.Store.YES, Field.Index.TOKENIZED));
-        Iterator<String> termIter = terms.iterator();
-        while (termIter.hasNext()) {
-            String term = termIter.next();
-            
-            if (contents.matches(".*\\b" + Strings.quoteMeta(term.toLowerCase()) + "\\b.*")) {
-                d.add(new Field("term", term.toLowerCase(), Field.Store.YES, Field.Index.TOKENIZED));
-            }
+        for (String term : getTermMatcher().findTerms(contents)) {
+            d.add(new Field("term", term, Field.Store.YES, Field.Index.TOKENIZED));
+        }
+        return d;
+    }
+    
+    /** Add a document created by {@link #makeDocument(String)} to the corpus
+     * @throws IllegalStateException if {@link #openIndex(boolean)} has not been called
+     */
+    void addDocument(Document d) throws IOException {
+        if (indexWriter == null) {
+            throw new IllegalStateException("Attempting to add document to closed index");
         }
         indexWriter.addDocument(d);
     }
     
-    /** Close the corpus, after which no more documents can be added. Also commits the corpus to disk */
+    /** Get the compiled term dictionary used to tag documents. This is built on first use
+     * and rebuilt if the term list changes size.
+     */
+    public synchronized TermMatcher getTermMatcher() {
+        if (termMatcher == null || termMatcherSize != terms.size()) {
+            termMatcher = new TermMatcher(terms);
+            termMatcherSize = terms.size();
+        }
+        return termMatcher;
+    }
+    
+    /** Close the corpus, after which no more documents can be added. Also optimizes and commits the corpus to disk */
     public void closeIndex() throws IOException {
-        indexWriter.optimize();
+        closeIndex(true);
+    }
+    
+    /** Close the corpus, after which no more documents can be added. Also commits the corpus to disk.
+     * The counts of sketches which are not complete are kept, so they continue if documents are
+     * appended later.
+     * @param optimize If true the index is optimized. This merges the whole index, so it may be
+     *      skipped when appending a few documents to a large index
+     */
+    public void closeIndex(boolean optimize) throws IOException {
+        if (optimize) {
+            indexWriter.optimize();
+        }
         Directory d = indexWriter.getDirectory();
         indexWriter.close();
         
-        Iterator<Map.Entry<String, Integer>> sketchIter = sketchSize.entrySet().iterator();
-        while (sketchIter.hasNext()) {
-            if (!sketchComplete.contains(sketchIter.next().getKey())) {
-                sketchIter.remove();
-            }
-        }
-        
         if(d instanceof RAMDirectory) {
             d = new RAMDirectory();
         } else {
@@ -103,13 +160,178 @@ public class Corpus {
         
         indexSearcher = new IndexSearcher(d);
         indexWriter = null;
+        // Any documents appended have changed the hits of their terms
+        termHits.clear();
+        clearTermsInCorpusCache();
+        saveInfo();
+        writeContextStore();
+    }
+    
+    /** Write the terms, sketches and extended term hits to the corpus directory
+     * @see CorpusSave */
+    private void saveInfo() throws IOException {
         ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(indexFile.getAbsolutePath() + "/info"));
         oos.writeObject(new CorpusSave(this));
         oos.close();
     }
     
+    /** Write the text and terms of every document to the context store, so that hits
+     * can be read without loading documents from the index. If documents were appended
+     * to a corpus with a context store only the new documents are written. */
+    private void writeContextStore() throws IOException {
+        File file = new File(indexFile, CONTEXT_STORE_FILE);
+        ContextStore base = appendStore;
+        appendStore = null;
+        int n = indexSearcher.maxDoc();
+        if (base != null && base.size() == n) {
+            contextStore = base;
+            return;
+        }
+        ContextStore.Writer writer;
+        int first;
+        if (base != null && base.size() < n) {
+            writer = new ContextStore.Writer(file, base, terms);
+            first = base.size();
+        } else {
+            writer = new ContextStore.Writer(file, terms);
+            first = 0;
+        }
+        IndexReader reader = indexSearcher.getIndexReader();
+        for (int i = first; i < n; i++) {
+            if (reader != null && reader.isDeleted(i)) {
+                // Keep the document numbering
+                writer.add("", new String[0]);
+            } else {
+                Document d = indexSearcher.doc(i);
+                writer.add(d.get("contents"), docTerms(i, d.getFields("term")));
+            }
+        }
+        writer.close();
+        contextStore = ContextStore.open(file);
+    }
+    
+    /** Open the context store for this corpus, if it exists and matches the index */
+    private void openContextStore() {
+        File file = new File(indexFile, CONTEXT_STORE_FILE);
+        contextStore = null;
+        if (file.exists()) {
+            try {
+                ContextStore store = ContextStore.open(file);
+                if (store.size() == indexSearcher.maxDoc()) {
+                    contextStore = store;
+                } else {
+                    System.err.println("Context store does not match index, reading contexts from index");
+                }
+            } catch (IOException x) {
+                System.err.println("Could not open context store: " + x.getMessage());
+            }
+        }
+    }
+    
+    /** Get the terms of a document, those tagged in the index and any extended terms it contains
+     * @see #extendTerms(Collection) */
+    private String[] docTerms(int doc, Field[] fields) {
+        String[] rval = fieldValues(fields);
+        if (extendedTermHits.isEmpty()) {
+            return rval;
+        }
+        Vector<String> extended = new Vector<String>();
+        for (Map.Entry<String, PostingList> e : extendedTermHits.entrySet()) {
+            if (e.getValue().contains(doc)) {
+                extended.add(e.getKey());
+            }
+        }
+        if (extended.isEmpty()) {
+            return rval;
+        }
+        extended.addAll(0, Arrays.asList(rval));
+        return extended.toArray(new String[extended.size()]);
+    }
+    
+    /** Add terms to the corpus, finding the documents already in the corpus that contain them.
+     * Lucene cannot add a field to a document in the index, so rather than reindexing, the stored
+     * contexts are searched for the new terms only and the hits are kept with the corpus information
+     * (and written to the context store). Documents added later are tagged with the new terms as usual.
+     * @param newTerms The terms to add, those already in the corpus are ignored
+     * @return The number of terms added
+     * @throws IllegalStateException If the index is open for adding documents
+     */
+    public int extendTerms(Collection<String> newTerms) throws IOException {
+        if (indexWriter != null) {
+            throw new IllegalStateException("Cannot extend the terms of an open index");
+        }
+        TermList added = new TermList();
+        for (String term : newTerms) {
+            if (!terms.contains(term) && !added.contains(term)) {
+                added.add(term);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        TermMatcher matcher = new TermMatcher(added);
+        HashMap<String, PostingList> hits = new HashMap<String, PostingList>();
+        ContextStore store = contextStore;
+        File file = new File(indexFile, CONTEXT_STORE_FILE);
+        ContextStore.Writer writer = null;
+        if (store != null) {
+            Vector<String> allTerms = new Vector<String>(terms);
+            allTerms.addAll(added);
+            writer = new ContextStore.Writer(file, allTerms);
+        }
+        IndexReader reader = indexSearcher.getIndexReader();
+        int n = indexSearcher.maxDoc();
+        for (int i = 0; i < n; i++) {
+            String text;
+            if (store != null) {
+                text = store.getText(i);
+            } else if (reader != null && reader.isDeleted(i)) {
+                continue;
+            } else {
+                text = indexSearcher.doc(i).get("contents");
+            }
+            Set<String> found = matcher.findTerms(text);
+            for (String term : found) {
+                PostingList pl = hits.get(term);
+                if (pl == null) {
+                    hits.put(term, pl = new PostingList());
+                }
+                pl.add(i);
+            }
+            if (writer != null) {
+                Vector<String> docTerms = new Vector<String>(Arrays.asList(store.getTerms(i)));
+                docTerms.addAll(found);
+                writer.add(text, docTerms.toArray(new String[docTerms.size()]));
+            }
+        }
+        for (PostingList pl : hits.values()) {
+            pl.trim();
+        }
+        extendedTermHits.putAll(hits);
+        terms.addAll(added);
+        termHits.clear();
+        clearTermsInCorpusCache();
+        if (writer != null) {
+            writer.close();
+            contextStore = ContextStore.open(file);
+        }
+        saveInfo();
+        return added.size();
+    }
+    
+    private static String[] fieldValues(Field[] fields) {
+        if (fields == null) {
+            return new String[0];
+        }
+        String[] rval = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            rval[i] = fields[i].stringValue();
+        }
+        return rval;
+    }
+    
     private HitsIterator queryTerm(String term) {
-        TreeSet<Integer> h = termHits.get(term);
+        PostingList h = termHits.get(term);
         if (h == null) {
             try {
                 QueryParser qp = new QueryParser("term", new AlloeAnalyzer());
@@ -119,6 +341,10 @@ public class Corpus {
                     hi.limit = sketchSize.get(term);
                 }
                 indexSearcher.search(q, hi);
+                PostingList extended = extendedTermHits.get(term.toLowerCase());
+                if (extended != null) {
+                    hi.hits = hi.hits.union(extended.headList(hi.limit));
+                }
                 termHits.put(term, hi.hits);
                 return hi;
             } catch (Exception x) {
@@ -132,11 +358,9 @@ public class Corpus {
     
     // TODO: Why is this private??? and copied a dozen lines below???
     private HitsIterator queryTerms(String term1, String term2) {
-        TreeSet<Integer> h1 = queryTerm(term1).hits;
-        TreeSet<Integer> h2 = queryTerm(term2).hits;
-        TreeSet<Integer> hr = (TreeSet<Integer>) h1.clone();
-        hr.retainAll(h2);
-        return new HitsIterator(hr);
+        PostingList h1 = queryTerm(term1).hits;
+        PostingList h2 = queryTerm(term2).hits;
+        return new HitsIterator(h1.intersect(h2));
     }
     
     /** Return the occurences of a particular string */
@@ -171,6 +395,13 @@ public class Corpus {
         }
     }
     
+    /** Get the documents returned by the query for a pattern, without reading them
+     * @see #getContextsForPattern(Pattern)
+     */
+    public PostingList getHitsForPattern(nii.alloe.corpus.pattern.Pattern p) {
+        return ((HitsIterator) getContextsForPattern(p)).hits;
+    }
+    
     /** Get all the contexts matching pattern with term1 and term inserted */
     public Iterator<Hit> getContextsForTermInPattern(nii.alloe.corpus.pattern.Pattern p, String term1, String term2) {
         try {
@@ -278,7 +509,8 @@ public class Corpus {
             throw new IllegalArgumentException("query passed to getContextsForTermPrepared not valid");
         }
         
-        if ((termHits.get(term1) == null || termHits.get(term2) == null) && !cache) {
+        if ((!termHits.contains(term1) || !termHits.contains(term2)) && !cache &&
+                !extendedTermHits.containsKey(term1.toLowerCase()) && !extendedTermHits.containsKey(term2.toLowerCase())) {
             try {
                 QueryParser qp = new QueryParser("term", new AlloeAnalyzer());
                 Query q = qp.parse("\"" + cleanQuery(term1) + "\" AND \"" + cleanQuery(term2) + "\"");
@@ -291,42 +523,136 @@ public class Corpus {
             }
         } else {
             HitsIterator th = queryTerms(term1, term2);
-            TreeSet<Integer> th2 = (TreeSet<Integer>) th.hits.clone();
-            th2.retainAll(((PreparedQuery) query).preparedHits);
-            return new HitsIterator(th2);
+            return new HitsIterator(th.hits.intersect(((PreparedQuery) query).preparedHits));
         }
     }
     private transient HashSet<String> singleTermsInCorpus;
     private transient HashSet<TermPair> termPairsInCorpus;
     
+    /** Find every term and term pair occuring in the corpus. Rather than querying each
+     * pair, this reads the hits of each term and collects the pairs from the terms found
+     * in each document, so the cost depends on the number of hits and not the square of
+     * the number of terms. The terms are taken in blocks, so that the documents held for
+     * a block fit in the hit cache budget, and the hits of every term are read once per block.
+     */
     public void initTermsInCorpusCache() {
         HashSet<String> tempSingleTermsInCorpus = new HashSet<String>();
         HashSet<TermPair> tempTermPairsInCorpus = new HashSet<TermPair>();
+        long blockSize = Math.max(1, termHits.getMemoryBudget() / TERMS_BY_DOC_ENTRY_SIZE);
         
-        Iterator<String> termIter1 = terms.iterator();
-        while (termIter1.hasNext()) {
-            String term1 = termIter1.next();
-            if (isTermInCorpus(term1)) {
-                tempSingleTermsInCorpus.add(term1);
-            }
-        }
-        termIter1 = tempSingleTermsInCorpus.iterator();
-        while (termIter1.hasNext()) {
-            String term1 = termIter1.next();
-            Iterator<String> termIter2 = tempSingleTermsInCorpus.iterator();
-            while (termIter2.hasNext()) {
-                String term2 = termIter2.next();
-                
-                if (areTermsInCorpus(term1, term2)) {
-                    tempTermPairsInCorpus.add(new TermPair(term1, term2));
+        for (String term : terms) {
+            if (queryTerm(term).hits.size() > 0) {
+                tempSingleTermsInCorpus.add(term);
+            }
+        }
+        Iterator<String> blockIter = terms.iterator();
+        while (blockIter.hasNext()) {
+            HashMap<Integer, Vector<String>> termsByDoc = new HashMap<Integer, Vector<String>>();
+            long entries = 0;
+            while (blockIter.hasNext() && entries < blockSize) {
+                String term = blockIter.next();
+                PostingList hits = queryTerm(term).hits;
+                for (int i = 0; i < hits.size(); i++) {
+                    Vector<String> docTerms = termsByDoc.get(hits.get(i));
+                    if (docTerms == null) {
+                        docTerms = new Vector<String>();
+                        termsByDoc.put(hits.get(i), docTerms);
+                    }
+                    docTerms.add(term);
+                }
+                entries += hits.size();
+            }
+            if (termsByDoc.isEmpty()) {
+                continue;
+            }
+            for (String term2 : tempSingleTermsInCorpus) {
+                PostingList hits = queryTerm(term2).hits;
+                for (int i = 0; i < hits.size(); i++) {
+                    Vector<String> docTerms = termsByDoc.get(hits.get(i));
+                    if (docTerms == null) {
+                        continue;
+                    }
+                    for (String term1 : docTerms) {
+                        tempTermPairsInCorpus.add(new TermPair(term1, term2));
+                        tempTermPairsInCorpus.add(new TermPair(term2, term1));
+                    }
                 }
             }
-            
         }
         singleTermsInCorpus = tempSingleTermsInCorpus;
         termPairsInCorpus = tempTermPairsInCorpus;
     }
     
+    /** Find the contexts in which each pair of a term pair set occur together. The hits for
+     * each term are read once, and intersected with the hits for each of its partners.
+     * @param termPairs The term pairs
+     * @param threads The number of threads to split the left hand terms across
+     * @return A map from each term pair that co-occurs at least once to the documents it occurs in.
+     * The number of co-occurences is the size of the posting list.
+     * @see #getContextsForHits(PostingList)
+     */
+    public Map<TermPair, PostingList> getCooccurrences(TermPairSet termPairs, int threads) {
+        final HashMap<String, Vector<String>> byLHS = new HashMap<String, Vector<String>>();
+        for (String[] pair : termPairs) {
+            Vector<String> rhs = byLHS.get(pair[0]);
+            if (rhs == null) {
+                rhs = new Vector<String>();
+                byLHS.put(pair[0], rhs);
+            }
+            rhs.add(pair[1]);
+        }
+        final Map<TermPair, PostingList> rval = Collections.synchronizedMap(new HashMap<TermPair, PostingList>());
+        if (threads <= 1 || byLHS.size() <= 1) {
+            for (Map.Entry<String, Vector<String>> e : byLHS.entrySet()) {
+                cooccurrencesForLHS(e.getKey(), e.getValue(), rval);
+            }
+            return rval;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Vector<Future<?>> futures = new Vector<Future<?>>(byLHS.size());
+        for (final Map.Entry<String, Vector<String>> e : byLHS.entrySet()) {
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    cooccurrencesForLHS(e.getKey(), e.getValue(), rval);
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException x) {
+            executor.shutdownNow();
+            throw new RuntimeException("Interrupted while counting co-occurrences");
+        } catch (ExecutionException x) {
+            executor.shutdownNow();
+            throw new RuntimeException(x.getCause());
+        }
+        return rval;
+    }
+    
+    private void cooccurrencesForLHS(String term1, Vector<String> rhs, Map<TermPair, PostingList> rval) {
+        PostingList h1 = queryTerm(term1).hits;
+        if (h1.size() == 0) {
+            return;
+        }
+        for (String term2 : rhs) {
+            PostingList hr = h1.intersect(queryTerm(term2).hits);
+            if (hr.size() > 0) {
+                rval.put(new TermPair(term1, term2), hr);
+            }
+        }
+    }
+    
+    /** Get the contexts for a set of hits, for example as returned by
+     * {@link #getCooccurrences(TermPairSet,int)}
+     * @param hits The hits, or null for no hits
+     */
+    public Iterator<Hit> getContextsForHits(PostingList hits) {
+        return new HitsIterator(hits == null ? new PostingList() : hits);
+    }
+    
     public void clearTermsInCorpusCache() {
         singleTermsInCorpus = null;
         termPairsInCorpus = null;
@@ -352,7 +678,7 @@ public class Corpus {
         }
     }
     
-    public class TermPair implements Comparable<TermPair> {
+    public static class TermPair implements Comparable<TermPair> {
         
         public TermPair(String term1, String term2) {
             this.term1 = term1;
@@ -435,16 +761,18 @@ public class Corpus {
         in.defaultReadObject();
         // We need to restore indexSearcher after loading
         indexSearcher = new IndexSearcher(indexFile.getAbsolutePath());
-        termHits = new HashMap<String, TreeSet<Integer>>();
+        termHits = new PostingListCache(DEFAULT_HIT_CACHE_SIZE);
     }*/
     
     /** Open the corpus.
      * @param file A directory containing all the files for this corpus
-     * @return The corpus object */
+     * @return The corpus object, a {@link ShardedCorpus} if the directory holds one */
     public static Corpus openCorpus(File file) throws IOException {
         try {
             if(!file.isDirectory())
                 throw new IOException("Passed corpus file is not a directory!");
+            if(new File(file, ShardedCorpus.SHARDS_FILE).exists())
+                return ShardedCorpus.open(file);
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.getAbsolutePath() + "/info"));
             CorpusSave cs = (CorpusSave)ois.readObject();
             ois.close();
@@ -455,6 +783,10 @@ public class Corpus {
             c.sketchComplete = cs.sketchComplete;
             c.sketchSize = cs.sketchSize;
             c.trueContextNumber = cs.trueContextNumber;
+            if (cs.extendedTermHits != null) {
+                c.extendedTermHits = cs.extendedTermHits;
+            }
+            c.openContextStore();
             return c;
         } catch(ClassNotFoundException x) {
             throw new IOException("Sketch information file exists in corpus directory but is not valid");
@@ -495,15 +827,18 @@ public class Corpus {
         TreeMap<Integer,Integer> sketchTranslator = new TreeMap<Integer,Integer>();
         int i = 0;
         for(Integer sketch : sketches) {
-            corpus.addDoc(indexSearcher.doc(sketch).get("contents"));
+            corpus.addDoc(contextStore != null ? contextStore.getText(sketch) : indexSearcher.doc(sketch).get("contents"));
             sketchTranslator.put(sketch,i++);
         }
         corpus.closeIndex();
         corpus.sketchComplete = new HashSet<String>();
         for(String term : corpus.sketchSize.keySet()) {
             corpus.sketchComplete.add(term);
-            corpus.sketchSize.put(term,sketchTranslator.get(corpus.sketchSize.get(term)));
+            // The first hit past the sketch need not be in the new corpus
+            Map.Entry<Integer,Integer> next = sketchTranslator.ceilingEntry(corpus.sketchSize.get(term));
+            corpus.sketchSize.put(term,next == null ? i : next.getValue());
         }
+        corpus.saveInfo();
         return corpus;
     }
     
@@ -511,40 +846,62 @@ public class Corpus {
     public class Hit {
         private String text;
         private String[] terms;
+        private final ContextStore store;
+        private final int doc;
         
-        Hit(String text, Field[] fields) {
+        Hit(String text, String[] terms) {
             this.text = text;
-            if(fields == null) {
-                this.terms = new String[0];
-            } else {
-                this.terms = new String[fields.length];
-                for(int i = 0; i < fields.length; i++) {
-                    terms[i] = fields[i].stringValue();
-                }
-            }
+            this.terms = terms;
+            this.store = null;
+            this.doc = -1;
+        }
+        
+        /** A hit read lazily from the context store */
+        Hit(ContextStore store, int doc) {
+            this.store = store;
+            this.doc = doc;
         }
         
         /** Get the text for this section */
-        public String getText() { return text; }
+        public String getText() {
+            if (text == null) {
+                text = store.getText(doc);
+            }
+            return text;
+        }
         /** Get the terms in this section of text (note this is much faster than searching) */
-        public String[] getTerms() { return terms; }
+        public String[] getTerms() {
+            if (terms == null) {
+                terms = store.getTerms(doc);
+            }
+            return terms;
+        }
+        /** Get the start and end offset of each word token in the text
+         * @see ContextStore#tokenize(String) */
+        public int[] getTokens() {
+            return store != null ? store.getTokens(doc) : ContextStore.tokenize(getText());
+        }
+        /** Get this section of text prepared for pattern matching */
+        public PatternMatcher.Context getPatternContext() {
+            return new PatternMatcher.Context(getText(), getTokens());
+        }
     }
     
     class HitsIterator extends HitCollector implements Iterator<Hit> {
         
-        TreeSet<Integer> hits;
-        Iterator<Integer> i;
+        PostingList hits;
+        int i;
         int limit;
         
         HitsIterator() {
-            hits = new TreeSet<Integer>();
-            i = null;
+            hits = new PostingList();
+            i = 0;
             limit = Integer.MAX_VALUE;
         }
         
-        HitsIterator(TreeSet<Integer> hits) {
+        HitsIterator(PostingList hits) {
             this.hits = hits;
-            i = null;
+            i = 0;
         }
         
         public void collect(int doc, float score) {
@@ -558,13 +915,18 @@ public class Corpus {
         }
         
         public Hit next() {
-            if (i == null) {
-                i = hits.iterator();
+            if (i >= hits.size()) {
+                throw new NoSuchElementException();
+            }
+            ContextStore store = contextStore;
+            if (store != null) {
+                return new Hit(store, hits.get(i++));
             }
             try {
-                Document d = indexSearcher.doc(i.next());
+                int doc = hits.get(i++);
+                Document d = indexSearcher.doc(doc);
                 //String s = d.getField("term").stringValue();
-                return new Hit(d.getField("contents").stringValue(), d.getFields("term"));
+                return new Hit(d.getField("contents").stringValue(), docTerms(doc, d.getFields("term")));
             } catch (IOException x) {
                 x.printStackTrace();
                 throw new RuntimeException("An IO Exception occurred");
@@ -572,22 +934,19 @@ public class Corpus {
         }
         
         public boolean hasNext() {
-            if (i == null) {
-                i = hits.iterator();
-            }
-            return i.hasNext();
+            return i < hits.size();
         }
     }
     
     private class PreparedQuery extends HitsIterator {
         
-        private TreeSet<Integer> preparedHits;
+        private PostingList preparedHits;
         boolean preparing;
         
         PreparedQuery() {
             super();
-            preparedHits = new TreeSet<Integer>();
-            hits = new TreeSet<Integer>();
+            preparedHits = new PostingList();
+            hits = new PostingList();
             preparing = true;
         }
         
@@ -604,11 +963,26 @@ public class Corpus {
         public PreparedQuery preparedCopy() {
             PreparedQuery pq = new PreparedQuery();
             pq.preparedHits = this.preparedHits;
-            pq.preparing = this.preparing;
+            pq.preparing = false;
             return pq;
         }
     }
     
+    /**
+     * The approximate memory budget of the term hit cache in bytes.
+     */
+    public long getHitCacheSize() {
+        return termHits.getMemoryBudget();
+    }
+    
+    /**
+     * Set the approximate memory budget of the term hit cache in bytes (-1 for no limit). When
+     * the budget is exceeded the least recently used terms are evicted.
+     */
+    public void setHitCacheSize(long hitCacheSize) {
+        termHits.setMemoryBudget(hitCacheSize);
+    }
+    
     /**
      * The maximum size of a sketch
      */
@@ -641,100 +1015,84 @@ public class Corpus {
         }
     }
     
-    private void updateSketches(Vector<String> contexts, HashSet<String> terms, double progress) {
-        Iterator<String> termIter = terms.iterator();
+    /** Update the sketch counts with a set of contexts returned from {@link #getContexts(String,int,Set)}
+     * @param contexts The contexts
+     * @param terms The terms found when extracting the contexts
+     * @param progress How far we are through the corpus file
+     */
+    synchronized void updateSketches(Vector<String> contexts, Set<String> terms, double progress) {
         docsSketched += contexts.size();
-        while (termIter.hasNext()) {
-            String term = termIter.next();
-            Iterator<String> contextIter = contexts.iterator();
-            while (contextIter.hasNext()) {
-                String context = contextIter.next();
-                if (context.matches(".*\\b" + term + "\\b.*")) {
-                    if (sketchSize.get(term) == null) {
-                        sketchSize.put(term, 1);
-                    } else if (!sketchComplete.contains(term)) {
-                        sketchSize.put(term, sketchSize.get(term) + 1);
-                        if (sketchSize.get(term) >= maxSketchSize) {
-                            sketchComplete.add(term);
-                            sketchSize.put(term, docsSketched);
-                            if (trueContextNumber == 0) {
-                                trueContextNumber = (int) ((double) docsSketched / progress);
-                            }
+        Iterator<String> contextIter = contexts.iterator();
+        while (contextIter.hasNext()) {
+            String context = contextIter.next();
+            for (String term : getTermMatcher().findTerms(context)) {
+                if (!terms.contains(term)) {
+                    continue;
+                }
+                if (sketchSize.get(term) == null) {
+                    sketchSize.put(term, 1);
+                } else if (!sketchComplete.contains(term)) {
+                    sketchSize.put(term, sketchSize.get(term) + 1);
+                    if (sketchSize.get(term) >= maxSketchSize) {
+                        sketchComplete.add(term);
+                        sketchSize.put(term, docsSketched);
+                        if (trueContextNumber == 0) {
+                            trueContextNumber = estimateContexts(progress);
                         }
                     }
                 }
             }
         }
+        if (sketchBaseContexts > 0 && trueContextNumber != 0) {
+            // Appending, so the estimate grows with the new file
+            trueContextNumber = estimateContexts(progress);
+        }
     }
-    private transient java.util.regex.Pattern allTerms;
-    private transient HashSet<String> isSubbed;
     
-    private void buildSubTerms() {
-        HashMap<String, TreeSet<String>> wordAssoc = new HashMap<String, TreeSet<String>>();
-        for (String term : terms) {
-            String[] words = term.toLowerCase().split(("\\W+"));
-            for (String word : words) {
-                TreeSet<String> wa = wordAssoc.get(word);
-                if (wa == null) {
-                    wa = new TreeSet<String>();
-                    wordAssoc.put(word, wa);
-                }
-                wa.add(term.toLowerCase());
-            }
-        }
-        
-        isSubbed = new HashSet<String>();
-        for (TreeSet<String> wa : wordAssoc.values()) {
-            if (wa.size() == 1) {
-                continue;
-            }
-            for (String longTerm : wa) {
-                for (String shortTerm : wa) {
-                    if (shortTerm.equals(longTerm)) {
-                        continue;
-                    }
-                    if (longTerm.contains(shortTerm)) {
-                        isSubbed.add(longTerm);
-                    }
-                }
-            }
-        }
+    /** Estimate the number of contexts in the corpus, when progress of the current corpus file has been read */
+    private int estimateContexts(double progress) {
+        return sketchBaseContexts + (int) ((double) (docsSketched - sketchBaseDocs) / progress);
     }
     
-    // TODO: Fix for subterms
-    private void compileAllTerms() {
-        buildSubTerms();
-        String regex = "\\b(";
-        for (String term : terms) {
-            if (isSubbed.contains(term)) {
-                continue;
-            }
-            regex = regex + Strings.quoteMeta(term.toLowerCase()) + "|";
-        }
-        regex = Strings.chop(regex) + ")\\b";
-        allTerms = java.util.regex.Pattern.compile(regex);
-        isSubbed = null;
+    /** Called before the contexts of another corpus file are appended to this corpus, so that the
+     * number of contexts is estimated from the progress through the new file added to the
+     * contexts already in the corpus
+     * @see #updateSketches(Vector,Set,double)
+     */
+    void startAppend() {
+        sketchBaseContexts = trueContextNumber != 0 ? trueContextNumber : docsSketched;
+        sketchBaseDocs = docsSketched;
     }
     
     /** Returns only those areas in a fixed window of a particular term
      * @param progress For use with CorpusLoader really... important for sketching
      */
     public Vector<String> getContexts(String doc, int wordWindow, double progress) {
+        HashSet<String> termsFound = new HashSet<String>();
+        Vector<String> rval = getContexts(doc, wordWindow, termsFound);
+        
+        if (maxSketchSize > 0) {
+            updateSketches(rval, termsFound, progress);
+        }
+        
+        return rval;
+    }
+    
+    /** Returns only those areas in a fixed window of a particular term, without updating the
+     * sketches. This may be called from several threads at once.
+     * @param termsFound Filled with the terms the contexts were extracted for
+     * @see #updateSketches(Vector,Set,double)
+     */
+    Vector<String> getContexts(String doc, int wordWindow, Set<String> termsFound) {
         TreeSet<Integer> bounds = new TreeSet<Integer>();
         doc = doc.toLowerCase();
         
-        if(allTerms == null) {
-            compileAllTerms();
-        }
-        java.util.regex.Matcher matcher = allTerms.matcher(doc);
         int idx = 0;
-        HashSet<String> termsFound = new HashSet<String>();
-        while (matcher.find()) {
-            String term = matcher.group(1);
-            idx = matcher.start(1);
+        for (TermMatcher.Match match : getTermMatcher().findLongest(doc)) {
+            String term = match.term;
+            idx = match.start;
             
-            if (sketchComplete.contains(term)) {
-                idx = matcher.end(1);
+            if (isSketchComplete(term)) {
                 continue;
             }
             termsFound.add(term);
@@ -765,7 +1123,6 @@ public class Corpus {
             // Clone to avoid those concurrent mod exes (grrr...)
             TreeSet<Integer> inBounds = new TreeSet<Integer>(bounds.subSet(before, false, after, false));
             bounds.removeAll(inBounds);
-            idx = matcher.end(1);
         }
         Vector<String> rval = new Vector<String>(bounds.size() / 2);
         Iterator<Integer> bIter = bounds.iterator();
@@ -776,11 +1133,17 @@ public class Corpus {
             rval.add(doc.substring(before, after));
         }
         
+        return rval;
+    }
+    
+    private boolean isSketchComplete(String term) {
         if (maxSketchSize > 0) {
-            updateSketches(rval, termsFound, progress);
+            synchronized (this) {
+                return sketchComplete.contains(term);
+            }
+        } else {
+            return sketchComplete.contains(term);
         }
-        
-        return rval;
     }
     /** The maximum number of non-word characters to count as a single window */
     private static final String nonWordMax = nii.alloe.corpus.pattern.Pattern.nonWord + "{10,}";
@@ -866,6 +1229,7 @@ class CorpusSave implements Serializable {
     int docsSketched;
     HashMap<String, Integer> sketchSize;
     HashSet<String> sketchComplete;
+    HashMap<String, PostingList> extendedTermHits;
     static final long serialVersionUID = 3520181165581067933L;
 
     CorpusSave(Corpus corpus) {
@@ -875,5 +1239,6 @@ class CorpusSave implements Serializable {
         docsSketched = corpus.docsSketched;
         sketchSize = corpus.sketchSize;
         sketchComplete = corpus.sketchComplete;
+        extendedTermHits = corpus.extendedTermHits;
     }
 }
\ No newline at end of file
@@ -1,12 +1,27 @@
 package nii.alloe.corpus;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import nii.alloe.tools.process.AlloeProcessAdapter;
-import nii.alloe.tools.process.AlloeProgressListener;
 import nii.alloe.tools.process.CannotPauseException;
+import org.apache.lucene.document.Document;
 
 /**
+ * Loads a corpus file into an indexed {@link Corpus}. If more than one thread is
+ * requested the loading is done as a pipeline: the calling thread reads lines from the
+ * corpus file, a number of worker threads split these into sentences, extract the contexts
+ * and tag them with terms, and a single writer thread adds the documents to the index in
+ * the same order as they were read, so the index is identical to that built by a single thread.
+ * When sketching, the sketch counts are updated by the writer, so lines already in the
+ * pipeline when a term's sketch completes are still indexed for that term.
+ * <br>
+ * If append is set and a corpus already exists at the index location, the corpus file is
+ * added to it: any new terms are first found in the existing contexts (see
+ * {@link Corpus#extendTerms(Collection)}) and the sketch counts continue from those saved.
+ * <br>
+ * If more than one shard is requested a {@link ShardedCorpus} is built, and the documents are
+ * written to the shards in parallel.
  *
  * @author John McCrae, National Institute of Informatics
  */
@@ -18,27 +33,26 @@ public class CorpusLoader extends AlloeProcessAdapter {
     /** Corpus file */
     public CorpusFile corpusFile;  
       
-    private transient int state;
-    private transient Thread theThread;
-    private transient LinkedList<AlloeProgressListener> listeners;
     private transient File indexFile;
-    private static final int STATE_OK = 0;
-    private static final int STATE_STOPPING = 1;
     
     /** Creates a new instance of CorpusLoader */
     public CorpusLoader(TermList terms, CorpusFile corpusFile, File indexFile) {
         this.terms = terms;
         this.corpusFile = corpusFile;
         this.indexFile = indexFile;
-        listeners = new LinkedList<AlloeProgressListener>();
         contextSize = 3;
         maxSketchSize = -1;
+        threads = 1;
+        queueSize = 1000;
+        append = false;
+        optimize = true;
+        shards = 1;
     }
     
     public void pause() throws CannotPauseException {
         try {
             super.pause();
-            corpus.closeIndex();
+            corpus.closeIndex(isOptimize());
         } catch(IOException x) {
             throw new CannotPauseException(x.getMessage());
         }
@@ -56,27 +70,33 @@ public class CorpusLoader extends AlloeProcessAdapter {
     
     public void run() {
         try {
-            corpus = new Corpus(terms,indexFile);
-            corpus.setMaxSketchSize(getMaxSketchSize());
-            corpus.openIndex(true);
-            
-            String s = corpusFile.getNextLine();
-            while(s != null && state == STATE_OK) {
-              
-                String[] ss = s.split("[\\.;]");
-                for(int i = 0; i < ss.length; i++) {
-                    Vector<String> ss2 = corpus.getContexts(ss[i],getContextSize(),corpusFile.getProgress());
-                    Iterator<String> siter = ss2.iterator();
-                    while(siter.hasNext()) {
-                        String s2 = siter.next();
-                        corpus.addDoc(s2);
+            if(corpus == null) {
+                if(isAppend() && (new File(indexFile, "info").exists() ||
+                        new File(indexFile, ShardedCorpus.SHARDS_FILE).exists())) {
+                    corpus = Corpus.openCorpus(indexFile);
+                    corpus.extendTerms(terms);
+                    corpus.startAppend();
+                    corpus.openIndex(false);
+                } else {
+                    if(getShards() > 1) {
+                        ShardedCorpus sharded = new ShardedCorpus(terms,indexFile,getShards());
+                        sharded.setQueueSize(getQueueSize());
+                        corpus = sharded;
+                    } else {
+                        corpus = new Corpus(terms,indexFile);
                     }
+                    corpus.setMaxSketchSize(getMaxSketchSize());
+                    corpus.openIndex(true);
                 }
-                
-                s = corpusFile.getNextLine();
-                fireNewProgressChange(corpusFile.getProgress());
             }
-            corpus.closeIndex();
+            
+            if(getThreads() > 1) {
+                runPipelined();
+            } else {
+                runSequential();
+            }
+            if(state == STATE_OK)
+                corpus.closeIndex(isOptimize());
         } catch(IOException x) {
             throw new RuntimeException(x.getMessage());
         }
@@ -84,7 +104,191 @@ public class CorpusLoader extends AlloeProcessAdapter {
             fireFinished();
     }
     
-   
+    private void runSequential() throws IOException {
+        String s;
+        while(state == STATE_OK && (s = corpusFile.getNextLine()) != null) {
+            String[] ss = s.split("[\\.;]");
+            for(int i = 0; i < ss.length; i++) {
+                Vector<String> ss2 = corpus.getContexts(ss[i],getContextSize(),corpusFile.getProgress());
+                Iterator<String> siter = ss2.iterator();
+                while(siter.hasNext()) {
+                    String s2 = siter.next();
+                    corpus.addDoc(s2);
+                }
+            }
+            
+            fireNewProgressChange(corpusFile.getProgress());
+        }
+    }
+    
+    /** A line read from the corpus file, or if line is null the end of the input */
+    private static class Line {
+        final long seq;
+        final String line;
+        final double progress;
+        Line(long seq, String line, double progress) {
+            this.seq = seq;
+            this.line = line;
+            this.progress = progress;
+        }
+    }
+    
+    /** The tagged contexts for a line, or if docs is null a worker has finished */
+    private static class TaggedLine {
+        final long seq;
+        final double progress;
+        final Vector<String> contexts;
+        final Set<String> termsFound;
+        final Vector<Document> docs;
+        final RuntimeException error;
+        TaggedLine(Line line, Vector<String> contexts, Set<String> termsFound, Vector<Document> docs, RuntimeException error) {
+            this.seq = line.seq;
+            this.progress = line.progress;
+            this.contexts = contexts;
+            this.termsFound = termsFound;
+            this.docs = docs;
+            this.error = error;
+        }
+    }
+    
+    private static final Line END_OF_INPUT = new Line(-1, null, 0.0);
+    
+    private void runPipelined() throws IOException {
+        final BlockingQueue<Line> lines = new ArrayBlockingQueue<Line>(getQueueSize());
+        final BlockingQueue<TaggedLine> tagged = new ArrayBlockingQueue<TaggedLine>(getQueueSize());
+        // Limits the lines between the reader and the index, including those the writer is
+        // holding back to keep the documents in order
+        final Semaphore inFlight = new Semaphore(2 * getQueueSize());
+        final int nThreads = getThreads();
+        final int window = getContextSize();
+        
+        // Build the term matcher before the workers need it
+        corpus.getTermMatcher();
+        
+        for(int i = 0; i < nThreads; i++) {
+            Thread worker = new Thread("CorpusLoader worker " + i) {
+                public void run() {
+                    try {
+                        Line line;
+                        while((line = lines.take()) != END_OF_INPUT) {
+                            tagged.put(tagLine(line, window));
+                        }
+                        tagged.put(new TaggedLine(END_OF_INPUT, null, null, null, null));
+                    } catch(InterruptedException x) {
+                        throw new RuntimeException("Corpus loader worker interrupted");
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+        
+        final IndexSink sink = new IndexSink(tagged, inFlight, nThreads);
+        Thread writer = new Thread(sink, "CorpusLoader writer");
+        writer.start();
+        
+        IOException readError = null;
+        try {
+            long seq = 0;
+            String s;
+            while(state == STATE_OK && sink.error == null && (s = corpusFile.getNextLine()) != null) {
+                inFlight.acquire();
+                lines.put(new Line(seq++, s, corpusFile.getProgress()));
+            }
+        } catch(IOException x) {
+            readError = x;
+        } catch(InterruptedException x) {
+            readError = new IOException("Corpus loader interrupted");
+        } finally {
+            try {
+                for(int i = 0; i < nThreads; i++) {
+                    lines.put(END_OF_INPUT);
+                }
+                writer.join();
+            } catch(InterruptedException x) {
+                throw new RuntimeException("Corpus loader interrupted");
+            }
+        }
+        if(readError != null)
+            throw readError;
+        if(sink.error instanceof IOException)
+            throw (IOException)sink.error;
+        if(sink.error != null)
+            throw (RuntimeException)sink.error;
+    }
+    
+    /** Split, extract contexts and tag a single line (called by the worker threads) */
+    private TaggedLine tagLine(Line line, int window) {
+        try {
+            Vector<String> contexts = new Vector<String>();
+            HashSet<String> termsFound = new HashSet<String>();
+            String[] ss = line.line.split("[\\.;]");
+            for(int i = 0; i < ss.length; i++) {
+                contexts.addAll(corpus.getContexts(ss[i], window, termsFound));
+            }
+            Vector<Document> docs = new Vector<Document>(contexts.size());
+            for(String context : contexts) {
+                docs.add(corpus.makeDocument(context));
+            }
+            return new TaggedLine(line, contexts, termsFound, docs, null);
+        } catch(RuntimeException x) {
+            return new TaggedLine(line, null, null, new Vector<Document>(), x);
+        }
+    }
+    
+    /** Writes the tagged lines to the index in the order they were read */
+    private class IndexSink implements Runnable {
+        final BlockingQueue<TaggedLine> tagged;
+        final Semaphore inFlight;
+        final int nThreads;
+        volatile Exception error;
+        
+        IndexSink(BlockingQueue<TaggedLine> tagged, Semaphore inFlight, int nThreads) {
+            this.tagged = tagged;
+            this.inFlight = inFlight;
+            this.nThreads = nThreads;
+        }
+        
+        public void run() {
+            TreeMap<Long,TaggedLine> pending = new TreeMap<Long,TaggedLine>();
+            long next = 0;
+            int finished = 0;
+            try {
+                while(finished < nThreads) {
+                    TaggedLine t = tagged.take();
+                    if(t.docs == null) {
+                        finished++;
+                        continue;
+                    }
+                    pending.put(t.seq, t);
+                    while(!pending.isEmpty() && pending.firstKey() == next) {
+                        t = pending.remove(next++);
+                        if(error == null) {
+                            write(t);
+                        }
+                        inFlight.release();
+                    }
+                }
+            } catch(InterruptedException x) {
+                error = new IOException("Corpus loader interrupted");
+            }
+        }
+        
+        private void write(TaggedLine t) {
+            try {
+                if(t.error != null)
+                    throw t.error;
+                if(corpus.getMaxSketchSize() > 0)
+                    corpus.updateSketches(t.contexts, t.termsFound, t.progress);
+                for(Document d : t.docs) {
+                    corpus.addDocument(d);
+                }
+                fireNewProgressChange(t.progress);
+            } catch(Exception x) {
+                error = x;
+            }
+        }
+    }
     
     public String getStateMessage() { return "Indexing corpus: "; }
 
@@ -131,4 +335,109 @@ public class CorpusLoader extends AlloeProcessAdapter {
         if(corpus != null)
             corpus.setMaxSketchSize(maxSketchSize);
     }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads;
+
+    /**
+     * Getter for property threads.
+     * @return Number of worker threads used to extract and tag contexts (1 to load on a single thread).
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of worker threads used to extract and tag contexts (1 to load on a single thread).
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Holds value of property queueSize.
+     */
+    private int queueSize;
+
+    /**
+     * Getter for property queueSize.
+     * @return The number of lines that may be waiting between each stage of the pipeline.
+     */
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    /**
+     * Setter for property queueSize.
+     * @param queueSize The number of lines that may be waiting between each stage of the pipeline.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Holds value of property append.
+     */
+    private boolean append;
+
+    /**
+     * Getter for property append.
+     * @return If true the corpus file is added to any corpus already at the index location.
+     */
+    public boolean isAppend() {
+        return this.append;
+    }
+
+    /**
+     * Setter for property append.
+     * @param append If true the corpus file is added to any corpus already at the index location.
+     */
+    public void setAppend(boolean append) {
+        this.append = append;
+    }
+
+    /**
+     * Holds value of property optimize.
+     */
+    private boolean optimize;
+
+    /**
+     * Getter for property optimize.
+     * @return If true the index is optimized whenever it is closed.
+     */
+    public boolean isOptimize() {
+        return this.optimize;
+    }
+
+    /**
+     * Setter for property optimize.
+     * @param optimize If true the index is optimized whenever it is closed.
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * Holds value of property shards.
+     */
+    private int shards;
+
+    /**
+     * Getter for property shards.
+     * @return The number of index directories the corpus is split across (sketching is not supported with more than one).
+     */
+    public int getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Setter for property shards.
+     * @param shards The number of index directories the corpus is split across (sketching is not supported with more than one).
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
 }
@@ -0,0 +1,210 @@
+package nii.alloe.corpus;
+
+import java.util.*;
+import java.io.Serializable;
+
+/**
+ * A sorted list of distinct document numbers, stored as a primitive array. Documents
+ * may be added in any order, but adding in increasing order (as Lucene normally
+ * collects them) avoids a sort. Intersection uses galloping search so intersecting
+ * a short list with a long one costs little more than the length of the short list.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PostingList implements Iterable<Integer>, Serializable {
+    static final long serialVersionUID = 4418275361019744820L;
+    private int[] docs;
+    private int size;
+    private boolean sorted;
+
+    /** Create a new empty list */
+    public PostingList() {
+        this(8);
+    }
+
+    /** Create a new empty list
+     * @param capacity The initial capacity
+     */
+    public PostingList(int capacity) {
+        docs = new int[Math.max(capacity, 1)];
+        size = 0;
+        sorted = true;
+    }
+
+    private PostingList(int[] docs, int size) {
+        this.docs = docs;
+        this.size = size;
+        this.sorted = true;
+    }
+
+    /** Add a document to the list */
+    public void add(int doc) {
+        if (size == docs.length) {
+            docs = Arrays.copyOf(docs, docs.length * 2);
+        }
+        if (size > 0 && docs[size - 1] >= doc) {
+            sorted = false;
+        }
+        docs[size++] = doc;
+    }
+
+    private void ensureSorted() {
+        if (!sorted) {
+            Arrays.sort(docs, 0, size);
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                if (j == 0 || docs[j - 1] != docs[i]) {
+                    docs[j++] = docs[i];
+                }
+            }
+            size = j;
+            sorted = true;
+        }
+    }
+
+    /** Release any unused capacity */
+    public void trim() {
+        ensureSorted();
+        if (docs.length > size) {
+            docs = Arrays.copyOf(docs, Math.max(size, 1));
+        }
+    }
+
+    /** @return the number of documents in this list */
+    public int size() {
+        ensureSorted();
+        return size;
+    }
+
+    /** @return the i-th smallest document in this list */
+    public int get(int i) {
+        ensureSorted();
+        if (i >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        return docs[i];
+    }
+
+    /** @return true if doc is in this list */
+    public boolean contains(int doc) {
+        ensureSorted();
+        return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+    }
+
+    /** Approximate heap usage in bytes */
+    public long memoryUsage() {
+        return 32 + 4L * docs.length;
+    }
+
+    /** @return a new list containing the documents in both this list and pl */
+    public PostingList intersect(PostingList pl) {
+        ensureSorted();
+        pl.ensureSorted();
+        PostingList small = size <= pl.size ? this : pl;
+        PostingList large = small == this ? pl : this;
+        int[] rval = new int[small.size];
+        int n = 0;
+        int lo = 0;
+        for (int i = 0; i < small.size && lo < large.size; i++) {
+            int doc = small.docs[i];
+            lo = gallop(large.docs, lo, large.size, doc);
+            if (lo < large.size && large.docs[lo] == doc) {
+                rval[n++] = doc;
+                lo++;
+            }
+        }
+        return new PostingList(rval, n);
+    }
+
+    /** Find the first index at or after from with a[index] >= key */
+    private static int gallop(int[] a, int from, int to, int key) {
+        int step = 1;
+        int hi = from;
+        while (hi < to && a[hi] < key) {
+            from = hi + 1;
+            hi += step;
+            step <<= 1;
+        }
+        if (hi > to) {
+            hi = to;
+        }
+        // a[from-1] < key and (hi == to or a[hi] >= key)
+        while (from < hi) {
+            int mid = (from + hi) >>> 1;
+            if (a[mid] < key) {
+                from = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return from;
+    }
+
+    /** @return a new list containing the documents in either this list or pl */
+    public PostingList union(PostingList pl) {
+        ensureSorted();
+        pl.ensureSorted();
+        int[] rval = new int[Math.max(size + pl.size, 1)];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < pl.size) {
+            if (docs[i] < pl.docs[j]) {
+                rval[n++] = docs[i++];
+            } else if (docs[i] > pl.docs[j]) {
+                rval[n++] = pl.docs[j++];
+            } else {
+                rval[n++] = docs[i++];
+                j++;
+            }
+        }
+        while (i < size) {
+            rval[n++] = docs[i++];
+        }
+        while (j < pl.size) {
+            rval[n++] = pl.docs[j++];
+        }
+        return new PostingList(rval, n);
+    }
+
+    /** @return a new list containing the from-th (inclusive) to to-th (exclusive) smallest documents */
+    public PostingList subList(int from, int to) {
+        ensureSorted();
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new PostingList(Arrays.copyOfRange(docs, from, Math.max(to, from + 1)), to - from);
+    }
+
+    /** @return a new list containing only the documents less than limit */
+    public PostingList headList(int limit) {
+        ensureSorted();
+        int n = Arrays.binarySearch(docs, 0, size, limit);
+        if (n < 0) {
+            n = -n - 1;
+        }
+        return new PostingList(Arrays.copyOf(docs, Math.max(n, 1)), n);
+    }
+
+    public Iterator<Integer> iterator() {
+        ensureSorted();
+        return new Iterator<Integer>() {
+            int i = 0;
+            public boolean hasNext() {
+                return i < size;
+            }
+            public Integer next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return docs[i++];
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public String toString() {
+        ensureSorted();
+        return Arrays.toString(Arrays.copyOf(docs, size));
+    }
+}
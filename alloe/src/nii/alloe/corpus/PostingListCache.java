@@ -0,0 +1,76 @@
+package nii.alloe.corpus;
+
+import java.util.*;
+
+/**
+ * A cache of posting lists keyed by term, limited by an approximate memory budget.
+ * When the budget is exceeded the least recently used lists are evicted.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+class PostingListCache {
+    private final LinkedHashMap<String, PostingList> lists;
+    private long memoryBudget;
+    private long memoryUsed;
+
+    /** Create a new cache
+     * @param memoryBudget The maximum approximate size of the cache in bytes (or -1 for no limit)
+     */
+    PostingListCache(long memoryBudget) {
+        this.lists = new LinkedHashMap<String, PostingList>(16, 0.75f, true);
+        this.memoryBudget = memoryBudget;
+        this.memoryUsed = 0;
+    }
+
+    /** @return the cached list for term, or null if it is not cached */
+    synchronized PostingList get(String term) {
+        return lists.get(term);
+    }
+
+    /** @return true if the list for term is cached (this does not count as a use) */
+    synchronized boolean contains(String term) {
+        return lists.containsKey(term);
+    }
+
+    /** Cache the list for term. The list should not be modified after it is cached */
+    synchronized void put(String term, PostingList hits) {
+        hits.trim();
+        PostingList old = lists.put(term, hits);
+        if (old != null) {
+            memoryUsed -= old.memoryUsage();
+        }
+        memoryUsed += hits.memoryUsage();
+        evict();
+    }
+
+    synchronized void clear() {
+        lists.clear();
+        memoryUsed = 0;
+    }
+
+    synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /** @return approximate size of the cached lists in bytes */
+    synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    private void evict() {
+        if (memoryBudget < 0) {
+            return;
+        }
+        Iterator<PostingList> iter = lists.values().iterator();
+        // Always keep the most recent list, even if it alone exceeds the budget
+        while (memoryUsed > memoryBudget && lists.size() > 1 && iter.hasNext()) {
+            memoryUsed -= iter.next().memoryUsage();
+            iter.remove();
+        }
+    }
+}
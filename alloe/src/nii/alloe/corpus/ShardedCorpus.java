@@ -0,0 +1,650 @@
+package nii.alloe.corpus;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import nii.alloe.corpus.pattern.Pattern;
+import org.apache.lucene.document.Document;
+
+/**
+ * A corpus whose contexts are partitioned across several index directories (shards), for
+ * example on different disks. Each shard is a {@link Corpus} in its own directory under the
+ * corpus directory. Queries are run on every shard on a thread pool and the hits are
+ * returned shard by shard, so the contexts of the first shard can be read while the others
+ * are still being searched. Documents are dealt to the shards in turn and each shard is
+ * written by its own thread.
+ * <br>
+ * The documents of the sharded corpus are numbered shard by shard, so document d of shard s
+ * is document d plus the number of documents in the shards before s. Sketching is not
+ * supported.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ShardedCorpus extends Corpus {
+    /** The name of the file recording the number of shards within the corpus directory */
+    public static final String SHARDS_FILE = "shards";
+
+    private final File indexFile;
+    private final Corpus[] shards;
+    /** The number of the first document of each shard, and the total number of documents */
+    private int[] shardBase;
+    private transient ShardWriter[] writers;
+    private transient int nextShard;
+    private transient ExecutorService executor;
+    private transient HashSet<TermPair> termPairsInCorpus;
+
+    /** Creates a new sharded corpus
+     * @param terms The terms
+     * @param indexFile The corpus directory
+     * @param shards The number of shards
+     */
+    public ShardedCorpus(TermList terms, File indexFile, int shards) {
+        super(terms, indexFile);
+        if (shards < 1) {
+            throw new IllegalArgumentException("Need at least one shard");
+        }
+        this.indexFile = indexFile;
+        this.shards = new Corpus[shards];
+        for (int i = 0; i < shards; i++) {
+            // Each shard keeps its own copy of the terms, as they are extended separately
+            this.shards[i] = new Corpus(new TermList(terms), shardFile(indexFile, i));
+        }
+        this.shardBase = new int[shards + 1];
+    }
+
+    private ShardedCorpus(TermList terms, File indexFile, Corpus[] shards) {
+        super(terms, indexFile);
+        this.indexFile = indexFile;
+        this.shards = shards;
+        updateShardBase();
+    }
+
+    private static File shardFile(File indexFile, int shard) {
+        return new File(indexFile, "shard" + shard);
+    }
+
+    /** Open a sharded corpus
+     * @param file The corpus directory
+     * @see Corpus#openCorpus(File)
+     */
+    public static ShardedCorpus open(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(new File(file, SHARDS_FILE)));
+        int n;
+        try {
+            n = Integer.parseInt(in.readLine().trim());
+        } catch (RuntimeException x) {
+            throw new IOException("Shards file in corpus directory is not valid");
+        } finally {
+            in.close();
+        }
+        Corpus[] shards = new Corpus[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = Corpus.openCorpus(shardFile(file, i));
+        }
+        return new ShardedCorpus(new TermList(shards[0].terms), file, shards);
+    }
+
+    /** @return the number of shards */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** @return a shard of this corpus */
+    public Corpus getShard(int shard) {
+        return shards[shard];
+    }
+
+    private void updateShardBase() {
+        shardBase = new int[shards.length + 1];
+        for (int i = 0; i < shards.length; i++) {
+            shardBase[i + 1] = shardBase[i] + shards[i].getTotalDocs();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(shards.length, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ShardedCorpus query");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /** A query on a single shard */
+    private interface ShardQuery<E> {
+        E query(int shard, Corpus corpus) throws IOException;
+    }
+
+    /** Run a query on every shard on the thread pool
+     * @return The result for each shard, which may not be ready yet */
+    private <E> List<Future<E>> scatter(final ShardQuery<E> query) {
+        Vector<Future<E>> rval = new Vector<Future<E>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final int shard = i;
+            rval.add(getExecutor().submit(new Callable<E>() {
+                public E call() throws IOException {
+                    return query.query(shard, shards[shard]);
+                }
+            }));
+        }
+        return rval;
+    }
+
+    /** Run a query on every shard and wait for all the results */
+    private <E> List<E> gather(ShardQuery<E> query) {
+        Vector<E> rval = new Vector<E>(shards.length);
+        for (Future<E> f : scatter(query)) {
+            rval.add(waitFor(f));
+        }
+        return rval;
+    }
+
+    private static <E> E waitFor(Future<E> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException x) {
+            throw new RuntimeException("Interrupted while querying shards");
+        } catch (ExecutionException x) {
+            throw new RuntimeException(x.getCause());
+        }
+    }
+
+    /** The hits of a query on every shard, read shard by shard as they become available */
+    private class ShardedHits implements Iterator<Hit> {
+        private final List<Future<Iterator<Hit>>> results;
+        private int shard;
+        private Iterator<Hit> current;
+
+        ShardedHits(List<Future<Iterator<Hit>>> results) {
+            this.results = results;
+            this.shard = 0;
+        }
+
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (shard >= results.size()) {
+                    return false;
+                }
+                current = waitFor(results.get(shard++));
+            }
+            return true;
+        }
+
+        public Hit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        int size() {
+            int rval = 0;
+            for (int i = 0; i < results.size(); i++) {
+                rval += shards[i].getHitsFromIterator(waitFor(results.get(i)));
+            }
+            return rval;
+        }
+    }
+
+    /** The prepared queries of every shard */
+    private static class PreparedShards {
+        final Object[] queries;
+
+        PreparedShards(List<Object> queries) {
+            this.queries = queries.toArray();
+        }
+    }
+
+    private static PreparedShards prepared(Object query) {
+        if (!(query instanceof PreparedShards)) {
+            throw new IllegalArgumentException("query not prepared by this corpus");
+        }
+        return (PreparedShards) query;
+    }
+
+    /** Writes the documents dealt to a single shard */
+    private static class ShardWriter extends Thread {
+        private static final Document END = new Document();
+        final Corpus shard;
+        final BlockingQueue<Document> queue;
+        volatile IOException error;
+
+        ShardWriter(Corpus shard, int shardNo, int queueSize) {
+            super("ShardedCorpus writer " + shardNo);
+            this.shard = shard;
+            this.queue = new ArrayBlockingQueue<Document>(queueSize);
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Document d;
+                while ((d = queue.take()) != END) {
+                    if (error == null) {
+                        shard.addDocument(d);
+                    }
+                }
+            } catch (IOException x) {
+                error = x;
+            } catch (InterruptedException x) {
+                error = new IOException("Shard writer interrupted");
+            }
+        }
+
+        void add(Document d) throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            try {
+                queue.put(d);
+            } catch (InterruptedException x) {
+                throw new IOException("Interrupted while adding document");
+            }
+        }
+
+        void finish() throws IOException {
+            try {
+                queue.put(END);
+                join();
+            } catch (InterruptedException x) {
+                throw new IOException("Interrupted while closing shard");
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    public void openIndex(final boolean newIndex) throws IOException {
+        if (newIndex) {
+            if (!indexFile.exists() && !indexFile.mkdirs()) {
+                throw new IOException("Could not create corpus directory " + indexFile);
+            }
+            // Writing the shards file first means the corpus can be reopened after a pause
+            PrintWriter out = new PrintWriter(new FileWriter(new File(indexFile, SHARDS_FILE)));
+            out.println(shards.length);
+            out.close();
+        }
+        gatherIO(new ShardQuery<Object>() {
+            public Object query(int shard, Corpus corpus) throws IOException {
+                corpus.openIndex(newIndex);
+                return null;
+            }
+        });
+        writers = new ShardWriter[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            writers[i] = new ShardWriter(shards[i], i, getQueueSize());
+            writers[i].start();
+        }
+        nextShard = newIndex ? 0 : shardBase[shards.length] % shards.length;
+    }
+
+    /** As {@link #gather(ShardQuery)} but rethrows IOExceptions */
+    private <E> List<E> gatherIO(ShardQuery<E> query) throws IOException {
+        try {
+            return gather(query);
+        } catch (RuntimeException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw x;
+        }
+    }
+
+    /** Deal a document to the next shard */
+    void addDocument(Document d) throws IOException {
+        if (writers == null) {
+            throw new IllegalStateException("Attempting to add document to closed index");
+        }
+        writers[nextShard].add(d);
+        nextShard = (nextShard + 1) % shards.length;
+    }
+
+    public void closeIndex(final boolean optimize) throws IOException {
+        if (writers == null) {
+            throw new IllegalStateException("Index is not open");
+        }
+        IOException error = null;
+        for (ShardWriter writer : writers) {
+            try {
+                writer.finish();
+            } catch (IOException x) {
+                error = x;
+            }
+        }
+        writers = null;
+        if (error != null) {
+            throw error;
+        }
+        // Optimizing is the slow part, so the shards are closed in parallel
+        gatherIO(new ShardQuery<Object>() {
+            public Object query(int shard, Corpus corpus) throws IOException {
+                corpus.closeIndex(optimize);
+                return null;
+            }
+        });
+        updateShardBase();
+        termPairsInCorpus = null;
+    }
+
+    public int extendTerms(Collection<String> newTerms) throws IOException {
+        final TermList added = new TermList();
+        for (String term : newTerms) {
+            if (!terms.contains(term) && !added.contains(term)) {
+                added.add(term);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        gatherIO(new ShardQuery<Object>() {
+            public Object query(int shard, Corpus corpus) throws IOException {
+                corpus.extendTerms(added);
+                return null;
+            }
+        });
+        terms.addAll(added);
+        termPairsInCorpus = null;
+        return added.size();
+    }
+
+    public int getHitsForTerm(final String term) {
+        int rval = 0;
+        for (Integer hits : gather(new ShardQuery<Integer>() {
+            public Integer query(int shard, Corpus corpus) {
+                return corpus.getHitsForTerm(term);
+            }
+        })) {
+            rval += hits;
+        }
+        return rval;
+    }
+
+    public Iterator<Hit> getContextsForTerm(final String term) {
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getContextsForTerm(term);
+            }
+        }));
+    }
+
+    public Iterator<Hit> getContextsForTerms(final String term1, final String term2) {
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getContextsForTerms(term1, term2);
+            }
+        }));
+    }
+
+    public Iterator<Hit> getContextsForPattern(final Pattern p) {
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getContextsForPattern(p);
+            }
+        }));
+    }
+
+    public PostingList getHitsForPattern(final Pattern p) {
+        return join(gather(new ShardQuery<PostingList>() {
+            public PostingList query(int shard, Corpus corpus) {
+                return corpus.getHitsForPattern(p);
+            }
+        }));
+    }
+
+    /** Number the documents of the posting list of each shard for the whole corpus */
+    private PostingList join(List<PostingList> shardHits) {
+        int size = 0;
+        for (PostingList hits : shardHits) {
+            size += hits.size();
+        }
+        PostingList rval = new PostingList(size);
+        for (int i = 0; i < shardHits.size(); i++) {
+            PostingList hits = shardHits.get(i);
+            for (int j = 0; j < hits.size(); j++) {
+                rval.add(shardBase[i] + hits.get(j));
+            }
+        }
+        return rval;
+    }
+
+    public Iterator<Hit> getContextsForTermInPattern(final Pattern p, final String term1, final String term2) {
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getContextsForTermInPattern(p, term1, term2);
+            }
+        }));
+    }
+
+    public int getHitsFromIterator(Iterator<Hit> iterator) {
+        if (iterator instanceof ShardedHits) {
+            return ((ShardedHits) iterator).size();
+        } else {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    public int getHitsForString(final String str) {
+        int rval = 0;
+        for (Integer hits : gather(new ShardQuery<Integer>() {
+            public Integer query(int shard, Corpus corpus) {
+                return corpus.getHitsForString(str);
+            }
+        })) {
+            rval += hits;
+        }
+        return rval;
+    }
+
+    public Object prepareQueryPattern(final Pattern p) {
+        return new PreparedShards(gather(new ShardQuery<Object>() {
+            public Object query(int shard, Corpus corpus) {
+                return corpus.prepareQueryPattern(p);
+            }
+        }));
+    }
+
+    public int getPreparedQueryHits(Object query) {
+        PreparedShards ps = prepared(query);
+        int rval = 0;
+        for (int i = 0; i < shards.length; i++) {
+            rval += shards[i].getPreparedQueryHits(ps.queries[i]);
+        }
+        return rval;
+    }
+
+    public Iterator<Hit> getPreparedQuery(Object query) {
+        final PreparedShards ps = prepared(query);
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getPreparedQuery(ps.queries[shard]);
+            }
+        }));
+    }
+
+    public Iterator<Hit> getContextsForTermPrepared(final String term1, final String term2, Object query, final boolean cache) {
+        final PreparedShards ps = prepared(query);
+        return new ShardedHits(scatter(new ShardQuery<Iterator<Hit>>() {
+            public Iterator<Hit> query(int shard, Corpus corpus) {
+                return corpus.getContextsForTermPrepared(term1, term2, ps.queries[shard], cache);
+            }
+        }));
+    }
+
+    public void initTermsInCorpusCache() {
+        HashSet<TermPair> pairs = new HashSet<TermPair>();
+        gather(new ShardQuery<Object>() {
+            public Object query(int shard, Corpus corpus) {
+                corpus.initTermsInCorpusCache();
+                return null;
+            }
+        });
+        for (Corpus shard : shards) {
+            Iterator<TermPair> iter = shard.getTermsInCorpus();
+            while (iter.hasNext()) {
+                pairs.add(iter.next());
+            }
+        }
+        termPairsInCorpus = pairs;
+    }
+
+    public Map<TermPair, PostingList> getCooccurrences(final TermPairSet termPairs, int threads) {
+        final int shardThreads = Math.max(1, threads / shards.length);
+        List<Map<TermPair, PostingList>> shardCooccs = gather(new ShardQuery<Map<TermPair, PostingList>>() {
+            public Map<TermPair, PostingList> query(int shard, Corpus corpus) {
+                return corpus.getCooccurrences(termPairs, shardThreads);
+            }
+        });
+        HashMap<TermPair, PostingList> rval = new HashMap<TermPair, PostingList>();
+        for (int i = 0; i < shards.length; i++) {
+            for (Map.Entry<TermPair, PostingList> e : shardCooccs.get(i).entrySet()) {
+                PostingList hits = rval.get(e.getKey());
+                if (hits == null) {
+                    rval.put(e.getKey(), hits = new PostingList(e.getValue().size()));
+                }
+                for (int j = 0; j < e.getValue().size(); j++) {
+                    hits.add(shardBase[i] + e.getValue().get(j));
+                }
+            }
+        }
+        return rval;
+    }
+
+    public Iterator<Hit> getContextsForHits(PostingList hits) {
+        if (hits == null) {
+            hits = new PostingList();
+        }
+        final PostingList[] shardHits = new PostingList[shards.length];
+        int shard = 0;
+        shardHits[0] = new PostingList();
+        for (int i = 0; i < hits.size(); i++) {
+            int doc = hits.get(i);
+            while (shard < shards.length - 1 && doc >= shardBase[shard + 1]) {
+                shardHits[++shard] = new PostingList();
+            }
+            shardHits[shard].add(doc - shardBase[shard]);
+        }
+        // Reading the hits needs no search, so there is nothing to run on the pool
+        Vector<Future<Iterator<Hit>>> results = new Vector<Future<Iterator<Hit>>>(shard + 1);
+        for (int i = 0; i <= shard; i++) {
+            final Corpus corpus = shards[i];
+            final PostingList docs = shardHits[i];
+            FutureTask<Iterator<Hit>> result = new FutureTask<Iterator<Hit>>(new Callable<Iterator<Hit>>() {
+                public Iterator<Hit> call() {
+                    return corpus.getContextsForHits(docs);
+                }
+            });
+            result.run();
+            results.add(result);
+        }
+        return new ShardedHits(results);
+    }
+
+    public void clearTermsInCorpusCache() {
+        for (Corpus shard : shards) {
+            shard.clearTermsInCorpusCache();
+        }
+        termPairsInCorpus = null;
+    }
+
+    public boolean isTermInCorpus(String term1) {
+        for (Corpus shard : shards) {
+            if (shard.isTermInCorpus(term1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean areTermsInCorpus(String term1, String term2) {
+        for (Corpus shard : shards) {
+            if (shard.areTermsInCorpus(term1, term2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Iterator<TermPair> getTermsInCorpus() {
+        if (termPairsInCorpus != null) {
+            return termPairsInCorpus.iterator();
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    public int size() {
+        int rval = 0;
+        for (Corpus shard : shards) {
+            rval += shard.size();
+        }
+        return rval;
+    }
+
+    public int getTotalDocs() {
+        int rval = 0;
+        for (Corpus shard : shards) {
+            rval += shard.getTotalDocs();
+        }
+        return rval;
+    }
+
+    public Corpus sketchCorpus(int sketchSize, String newCorpusDirectory) throws IOException {
+        throw new UnsupportedOperationException("Cannot sketch a sharded corpus");
+    }
+
+    public long getHitCacheSize() {
+        long rval = 0;
+        for (Corpus shard : shards) {
+            if (shard.getHitCacheSize() < 0) {
+                return -1;
+            }
+            rval += shard.getHitCacheSize();
+        }
+        return rval;
+    }
+
+    /** Set the approximate memory budget of the term hit cache in bytes (-1 for no limit). This
+     * is divided equally between the shards. */
+    public void setHitCacheSize(long hitCacheSize) {
+        for (Corpus shard : shards) {
+            shard.setHitCacheSize(hitCacheSize < 0 ? hitCacheSize : hitCacheSize / shards.length);
+        }
+    }
+
+    public void setMaxSketchSize(int maxSketchSize) {
+        if (maxSketchSize > 0) {
+            throw new UnsupportedOperationException("Cannot sketch a sharded corpus");
+        }
+        super.setMaxSketchSize(maxSketchSize);
+    }
+
+    /**
+     * Holds value of property queueSize.
+     */
+    private int queueSize = 1000;
+
+    /**
+     * Getter for property queueSize.
+     * @return The number of documents that may be waiting to be written to each shard.
+     */
+    public int getQueueSize() {
+        return this.queueSize;
+    }
+
+    /**
+     * Setter for property queueSize.
+     * @param queueSize The number of documents that may be waiting to be written to each shard.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+}
@@ -0,0 +1,106 @@
+package nii.alloe.corpus;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Assigns each term a dense integer id, in the order the terms are first added, so that terms
+ * can be handled as ints (and pairs of terms as longs, see {@link TermPairSet}). A dictionary
+ * may be shared between several term pair sets. Looking up ids and terms is safe from several
+ * threads, even while other threads add terms.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class TermDictionary implements Serializable {
+    private static final long serialVersionUID = 7677523130485799446L;
+    private final boolean ignoreCase;
+    private transient ConcurrentHashMap<String, Integer> ids;
+    private transient volatile String[] terms;
+    private transient volatile int size;
+
+    /** Create a new instance, in which terms are case sensitive */
+    public TermDictionary() {
+        this(false);
+    }
+
+    /** Create a new instance
+     * @param ignoreCase If true terms which differ only by case have the same id, and the term
+     * for the id is the first spelling added
+     */
+    public TermDictionary(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        ids = new ConcurrentHashMap<String, Integer>();
+        terms = new String[16];
+    }
+
+    /** Create a new instance, in which terms are case sensitive, containing a set of terms.
+     * The id of each term is its index in terms, if terms contains no duplicates */
+    public TermDictionary(Collection<String> terms) {
+        this(false);
+        for (String term : terms) {
+            add(term);
+        }
+    }
+
+    /** @return true if terms which differ only by case have the same id */
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    private String key(String term) {
+        return ignoreCase ? term.toLowerCase() : term;
+    }
+
+    /** Add a term if it is not already in the dictionary
+     * @return The id of the term */
+    public synchronized int add(String term) {
+        String key = key(term);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (size == terms.length) {
+            terms = Arrays.copyOf(terms, terms.length * 2);
+        }
+        // The term must be readable before its id can be looked up
+        int newId = size;
+        terms[newId] = term;
+        size = newId + 1;
+        ids.put(key, newId);
+        return newId;
+    }
+
+    /** @return The id of the term, or -1 if it is not in the dictionary */
+    public int id(String term) {
+        Integer id = ids.get(key(term));
+        return id == null ? -1 : id;
+    }
+
+    /** @return The term with a given id
+     * @throws IndexOutOfBoundsException If there is no term with the id */
+    public String term(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No term with id " + id);
+        }
+        return terms[id];
+    }
+
+    /** @return The number of terms, all ids are less than this */
+    public int size() {
+        return size;
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        oos.defaultWriteObject();
+        oos.writeObject(Arrays.copyOf(terms, size));
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        ids = new ConcurrentHashMap<String, Integer>();
+        terms = new String[16];
+        for (String term : (String[]) ois.readObject()) {
+            add(term);
+        }
+    }
+}
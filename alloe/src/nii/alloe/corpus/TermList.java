@@ -3,10 +3,20 @@ import java.util.*;
 import nii.alloe.corpus.pattern.*;
 
 /**
+ * A list of terms. The terms are made safe, see {@link Pattern#makeSafe(String)}, when they are
+ * added or looked up. The index of each term is kept in a hash table (rebuilt when the list has
+ * been modified other than by adding to its end) so that indexOf and contains do not scan the list.
  *
  * @author John McCrae, National Institute of Informatics
  */
 public class TermList extends Vector<String> {
+    /** The value computed for earlier versions, so that saved term lists can still be read */
+    private static final long serialVersionUID = -8542191902642913633L;
+    
+    /** The index of the first occurrence of each term, or null if not built */
+    private transient HashMap<String,Integer> index;
+    /** The value of modCount when index was built */
+    private transient int indexModCount;
     
     /** Creates a new instance of TermList */
     public TermList() {
@@ -26,8 +36,16 @@ public class TermList extends Vector<String> {
         super(initialCapacity,capacityIncrement);
     }
     
-    public boolean add(String s) {
-        return super.add(Pattern.makeSafe(s));
+    public synchronized boolean add(String s) {
+        String safe = Pattern.makeSafe(s);
+        boolean indexed = index != null && indexModCount == modCount;
+        super.add(safe);
+        if(indexed) {
+            if(!index.containsKey(safe))
+                index.put(safe, size() - 1);
+            indexModCount = modCount;
+        }
+        return true;
     }
     
     public void add(int index, String s) {
@@ -35,7 +53,7 @@ public class TermList extends Vector<String> {
     }
     
     public void addElement(String s) {
-        super.addElement(Pattern.makeSafe(s));
+        add(s);
     }
 
     public void addAll(Collection<String> ss) {
@@ -46,11 +64,31 @@ public class TermList extends Vector<String> {
     }
     
     public boolean contains(String s) {
-        return super.contains(Pattern.makeSafe(s));
+        return indexOf(s) >= 0;
     }
 
-    public int indexOf(String s) {
-        return super.indexOf(Pattern.makeSafe(s));
+    public synchronized int indexOf(String s) {
+        String safe = Pattern.makeSafe(s);
+        if(index == null || indexModCount != modCount) {
+            index = new HashMap<String,Integer>(size() * 2);
+            for(int i = size() - 1; i >= 0; i--) {
+                index.put(get(i), i);
+            }
+            indexModCount = modCount;
+        }
+        Integer i = index.get(safe);
+        return i == null ? -1 : i;
+    }
+    
+    /** Replace a term. This does not change modCount, so the index is dropped here */
+    public synchronized String set(int i, String s) {
+        index = null;
+        return super.set(i, s);
+    }
+    
+    public synchronized void setElementAt(String s, int i) {
+        index = null;
+        super.setElementAt(s, i);
     }
     
     public int indexOf(String s, int i) {
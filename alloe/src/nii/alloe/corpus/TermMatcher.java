@@ -0,0 +1,236 @@
+package nii.alloe.corpus;
+
+import java.util.*;
+
+/**
+ * A compiled dictionary of terms which can find every occurence of any term in
+ * a text in a single pass (Aho-Corasick). Matching is done on the lower cased
+ * text and a match is only reported if it lies on word boundaries, in the same
+ * sense as <code>\b</code> in a regular expression, so that <code>findTerms(s)</code>
+ * contains <code>term</code> iff <code>s.matches(".*\\b" + quoteMeta(term) + "\\b.*")</code>.
+ * The cost of a search is proportional to the length of the text (plus the
+ * number of matches) and does not depend on the number of terms.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class TermMatcher {
+    /** The terms (lower cased) indexed by term id */
+    private final String[] termStrings;
+    /** Sorted outgoing characters for each node */
+    private char[][] labels;
+    /** Target node of each outgoing character */
+    private int[][] children;
+    /** Failure link for each node */
+    private int[] fail;
+    /** Term id ending at each node, or -1 */
+    private int[] termAt;
+    /** The nearest node on the failure chain which ends a term, or -1 */
+    private int[] outLink;
+    private int nodeCount;
+
+    /** Compile a new matcher
+     * @param terms The terms to search for, these are lower cased before compiling
+     */
+    public TermMatcher(Collection<String> terms) {
+        LinkedHashSet<String> distinct = new LinkedHashSet<String>();
+        for(String term : terms) {
+            if(term.length() > 0)
+                distinct.add(term.toLowerCase());
+        }
+        termStrings = distinct.toArray(new String[distinct.size()]);
+        build();
+    }
+
+    /** A single occurence of a term in a text */
+    public static class Match {
+        /** The term (lower cased) */
+        public final String term;
+        /** The index of the term in {@link #getTerms()} */
+        public final int termId;
+        /** The start offset (inclusive) */
+        public final int start;
+        /** The end offset (exclusive) */
+        public final int end;
+
+        Match(String term, int termId, int start, int end) {
+            this.term = term;
+            this.termId = termId;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String toString() {
+            return term + "@" + start + "-" + end;
+        }
+    }
+
+    /** @return the terms in this dictionary, lower cased and indexed by term id */
+    public String[] getTerms() {
+        return termStrings;
+    }
+
+    /** @return the number of distinct terms in this dictionary */
+    public int size() {
+        return termStrings.length;
+    }
+
+    private void build() {
+        // Build the trie with maps, then freeze it into sorted arrays
+        ArrayList<TreeMap<Character,Integer>> trie = new ArrayList<TreeMap<Character,Integer>>();
+        ArrayList<Integer> terminal = new ArrayList<Integer>();
+        trie.add(new TreeMap<Character,Integer>());
+        terminal.add(-1);
+        for(int t = 0; t < termStrings.length; t++) {
+            String term = termStrings[t];
+            int node = 0;
+            for(int i = 0; i < term.length(); i++) {
+                Integer next = trie.get(node).get(term.charAt(i));
+                if(next == null) {
+                    next = trie.size();
+                    trie.get(node).put(term.charAt(i), next);
+                    trie.add(new TreeMap<Character,Integer>());
+                    terminal.add(-1);
+                }
+                node = next;
+            }
+            terminal.set(node, t);
+        }
+        nodeCount = trie.size();
+        labels = new char[nodeCount][];
+        children = new int[nodeCount][];
+        termAt = new int[nodeCount];
+        for(int n = 0; n < nodeCount; n++) {
+            TreeMap<Character,Integer> m = trie.get(n);
+            labels[n] = new char[m.size()];
+            children[n] = new int[m.size()];
+            int i = 0;
+            for(Map.Entry<Character,Integer> e : m.entrySet()) {
+                labels[n][i] = e.getKey();
+                children[n][i] = e.getValue();
+                i++;
+            }
+            termAt[n] = terminal.get(n);
+            trie.set(n, null);
+        }
+
+        // Breadth first construction of failure and output links
+        fail = new int[nodeCount];
+        outLink = new int[nodeCount];
+        outLink[0] = -1;
+        int[] queue = new int[nodeCount];
+        int head = 0, tail = 0;
+        for(int i = 0; i < children[0].length; i++) {
+            fail[children[0][i]] = 0;
+            outLink[children[0][i]] = -1;
+            queue[tail++] = children[0][i];
+        }
+        while(head < tail) {
+            int node = queue[head++];
+            for(int i = 0; i < children[node].length; i++) {
+                int child = children[node][i];
+                char c = labels[node][i];
+                int f = fail[node];
+                int g;
+                while((g = child(f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = g < 0 || g == child ? 0 : g;
+                outLink[child] = termAt[fail[child]] >= 0 ? fail[child] : outLink[fail[child]];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private int child(int node, char c) {
+        char[] l = labels[node];
+        int lo = 0, hi = l.length - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(l[mid] < c) {
+                lo = mid + 1;
+            } else if(l[mid] > c) {
+                hi = mid - 1;
+            } else {
+                return children[node][mid];
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isBoundary(String text, int idx) {
+        boolean before = idx > 0 && isWordChar(text.charAt(idx - 1));
+        boolean after = idx < text.length() && isWordChar(text.charAt(idx));
+        return before != after;
+    }
+
+    /** Find every occurence of every term in text, including overlapping and nested
+     * occurences.
+     * @param text The text to search (this is lower cased before searching)
+     * @return The matches ordered by end position, then by decreasing length
+     */
+    public List<Match> findAll(String text) {
+        text = text.toLowerCase();
+        ArrayList<Match> rval = new ArrayList<Match>();
+        int node = 0;
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int g;
+            while((g = child(node, c)) < 0 && node != 0) {
+                node = fail[node];
+            }
+            node = g < 0 ? 0 : g;
+            int out = termAt[node] >= 0 ? node : outLink[node];
+            while(out >= 0) {
+                int t = termAt[out];
+                int start = i + 1 - termStrings[t].length();
+                if(isBoundary(text, start) && isBoundary(text, i + 1)) {
+                    rval.add(new Match(termStrings[t], t, start, i + 1));
+                }
+                out = outLink[out];
+            }
+        }
+        return rval;
+    }
+
+    /** Find the leftmost-longest non-overlapping occurences of terms in text. That is,
+     * scanning from left to right, at each point the longest term is chosen, and
+     * any shorter terms nested inside it are not reported.
+     * @param text The text to search (this is lower cased before searching)
+     * @return The matches, ordered by start position
+     */
+    public List<Match> findLongest(String text) {
+        List<Match> all = findAll(text);
+        Collections.sort(all, new Comparator<Match>() {
+            public int compare(Match m1, Match m2) {
+                if(m1.start != m2.start)
+                    return m1.start < m2.start ? -1 : 1;
+                return m2.end - m1.end;
+            }
+        });
+        ArrayList<Match> rval = new ArrayList<Match>();
+        int lastEnd = 0;
+        for(Match m : all) {
+            if(m.start >= lastEnd) {
+                rval.add(m);
+                lastEnd = m.end;
+            }
+        }
+        return rval;
+    }
+
+    /** Find the set of all terms occuring in text
+     * @param text The text to search (this is lower cased before searching)
+     * @return The set of terms (lower cased) found in the text
+     */
+    public Set<String> findTerms(String text) {
+        TreeSet<String> rval = new TreeSet<String>();
+        for(Match m : findAll(text)) {
+            rval.add(m.term);
+        }
+        return rval;
+    }
+}
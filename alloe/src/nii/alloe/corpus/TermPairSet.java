@@ -4,58 +4,203 @@ import java.util.*;
 import nii.alloe.tools.process.PauseSignal;
 
 /**
- * A set of term pairs. Implemented via a tree set on the string "term1 => term2"
+ * A set of term pairs. The terms are given ids by a {@link TermDictionary} (by default one
+ * that ignores case) and each pair is stored as a long, the id of term1 in the upper 32 bits
+ * and the id of term2 in the lower, in an open addressing hash table. Pairs are iterated in
+ * order of the id of term1 then term2, that is the order the terms were added to the dictionary.
+ * The set may be read from several threads, but not modified.
  *
  * @author John McCrae, National Institute of Informatics
  */
 public class TermPairSet extends AbstractCollection<String[]> implements Serializable {
-    
-    private transient TreeSet<String> termPairs;
+    private static final long serialVersionUID = 4641935011292058131L;
+
+    /** Serialized so the order of the pairs, and so resume tokens, survive a save and load, and
+     * sets sharing a dictionary still share it when written to the same stream. Null when
+     * read from a file written before the dictionary was */
+    private TermDictionary dictionary;
+    /** The hash table, EMPTY marks a free slot */
+    private transient long[] table;
+    private transient int size;
+    /** The pairs in order, or null if the set has changed since they were sorted */
+    private transient volatile long[] sorted;
+    private static final long EMPTY = -1l;
     static final String glue = " => ";
-    
+
     /** Create a new instance */
     public TermPairSet() {
-        termPairs = new TreeSet<String>(new Comparator<String>() {
-            public int compare(String s1, String s2) {
-                return s1.toLowerCase().compareTo(s2.toLowerCase());
-            }
-            public boolean equals(Object object) {
-               if(this == object) return true; return false;
-            }
-        });
+        this(new TermDictionary(true));
+    }
+
+    /** Create a new instance, using a given dictionary for the ids of its terms. Case is
+     * ignored only if it is ignored by the dictionary.
+     */
+    public TermPairSet(TermDictionary dictionary) {
+        this.dictionary = dictionary;
+        table = new long[16];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /** @return The dictionary giving the ids of the terms of this set */
+    public TermDictionary getDictionary() {
+        return dictionary;
     }
-    
-    /** Add term1 => term2 to the set 
+
+    private static long key(int id1, int id2) {
+        return ((long)id1 << 32) | id2;
+    }
+
+    private static int id1(long key) {
+        return (int)(key >>> 32);
+    }
+
+    private static int id2(long key) {
+        return (int)key;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15l;
+        return (int)(h ^ (h >>> 32)) & (table.length - 1);
+    }
+
+    /** Add term1 => term2 to the set
      * @return true if the set did not contain the specific
      */
     public boolean add(String term1, String term2) {
-        return termPairs.add(term1 + glue + term2);
+        return add(dictionary.add(term1), dictionary.add(term2));
     }
-    
-    /** Remove term1 => term2 from the set 
+
+    /** Add a pair by the ids of its terms in the dictionary
+     * @return true if the set did not contain the pair
+     */
+    public boolean add(int id1, int id2) {
+        if(id1 < 0 || id2 < 0 || id1 >= dictionary.size() || id2 >= dictionary.size())
+            throw new IllegalArgumentException("No term with id " + (id1 < 0 || id1 >= dictionary.size() ? id1 : id2));
+        long key = key(id1, id2);
+        int s = slot(key);
+        while(table[s] != EMPTY) {
+            if(table[s] == key)
+                return false;
+            s = (s + 1) & (table.length - 1);
+        }
+        table[s] = key;
+        size++;
+        sorted = null;
+        if(size * 2 > table.length)
+            rehash(table.length * 2);
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        for(long key : old) {
+            if(key != EMPTY) {
+                int s = slot(key);
+                while(table[s] != EMPTY)
+                    s = (s + 1) & (table.length - 1);
+                table[s] = key;
+            }
+        }
+    }
+
+    /** Remove term1 => term2 from the set
      * @return true if the set contained the specific element
      */
     public boolean remove(String term1, String term2) {
-        return termPairs.remove(term1 + glue + term2);
+        return remove(dictionary.id(term1), dictionary.id(term2));
     }
-    
+
+    /** Remove a pair by the ids of its terms in the dictionary
+     * @return true if the set contained the pair
+     */
+    public boolean remove(int id1, int id2) {
+        if(id1 < 0 || id2 < 0)
+            return false;
+        long key = key(id1, id2);
+        int s = slot(key);
+        while(table[s] != key) {
+            if(table[s] == EMPTY)
+                return false;
+            s = (s + 1) & (table.length - 1);
+        }
+        // Move back any later entry of the run that could have been placed in the free slot
+        int mask = table.length - 1;
+        int free = s;
+        for(int next = (s + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(table[next]);
+            if(((next - home) & mask) >= ((next - free) & mask)) {
+                table[free] = table[next];
+                free = next;
+            }
+        }
+        table[free] = EMPTY;
+        size--;
+        sorted = null;
+        return true;
+    }
+
     /** @return true if the set contains term1 => term2 */
     public boolean contains(String term1, String term2) {
-        return termPairs.contains(term1 + glue + term2);
+        return contains(dictionary.id(term1), dictionary.id(term2));
     }
-    
+
+    /** @return true if the set contains the pair of the terms with these ids in the dictionary */
+    public boolean contains(int id1, int id2) {
+        if(id1 < 0 || id2 < 0)
+            return false;
+        long key = key(id1, id2);
+        int s = slot(key);
+        while(table[s] != EMPTY) {
+            if(table[s] == key)
+                return true;
+            s = (s + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    /** @return The pairs in order */
+    private long[] sorted() {
+        long[] rval = sorted;
+        if(rval == null) {
+            rval = new long[size];
+            int i = 0;
+            for(long key : table) {
+                if(key != EMPTY)
+                    rval[i++] = key;
+            }
+            Arrays.sort(rval);
+            sorted = rval;
+        }
+        return rval;
+    }
+
+    /** @return The index in the pairs in order of the first pair not before v */
+    private int position(long[] pairs, String v) {
+        String[] ss = v.split(glue);
+        if(ss.length != 2)
+            throw new IllegalArgumentException("Not a term pair: " + v);
+        int id1 = dictionary.id(ss[0]), id2 = dictionary.id(ss[1]);
+        if(id1 < 0)
+            return 0;
+        int i = Arrays.binarySearch(pairs, key(id1, Math.max(id2, 0)));
+        return i < 0 ? -i - 1 : i;
+    }
+
+    private String pairString(long key) {
+        return dictionary.term(id1(key)) + glue + dictionary.term(id2(key));
+    }
+
     /**
      * Apply an action to each term pair occuring in this set
      * @param etpa The action to be performed in the doAction method of etpa */
     public void forEachPair(EachTermPairAction etpa) {
-        Iterator<String> i = termPairs.iterator();
-        while(i.hasNext()) {
-            String s = i.next();
-            String []ss = s.split(glue);
-            etpa.doAction(ss[0],ss[1]);
+        for(long key : sorted()) {
+            etpa.doAction(dictionary.term(id1(key)),dictionary.term(id2(key)));
         }
     }
-    
+
     /**
      * Similar to {@link #forEachPair(EachTermPairAction)} but allows the action to be stopped
      * and resumed at will
@@ -65,36 +210,31 @@ public class TermPairSet extends AbstractCollection<String[]> implements Seriali
      * @return the next value to be passed to from to resume, null is action complete
      */
     public String forEachPair(EachTermPairAction etpa, String from, PauseSignal signal) {
-        Iterator<String> i;
-        if(from != null) {
-            i = termPairs.tailSet(from).iterator();
-        } else {
-            i = termPairs.iterator();
+        long[] pairs = sorted();
+        int i = from == null ? 0 : position(pairs, from);
+        for(; i < pairs.length && !signal.shouldPause(); i++) {
+            etpa.doAction(dictionary.term(id1(pairs[i])),dictionary.term(id2(pairs[i])));
         }
-        while(i.hasNext() && !signal.shouldPause()) {
-            String s = i.next();
-            String []ss = s.split(glue);
-            etpa.doAction(ss[0],ss[1]);
-        }
-        return i.hasNext() ? i.next() : null;
+        return i < pairs.length ? pairString(pairs[i]) : null;
     }
-    
+
     /**
      * Get the progress of a forEachPair action
      * @return the ratio of term pairs done over all term pairs */
     public double getForEachPairProgress(String term1, String term2) {
         return getForEachPairProgress(term1 + glue + term2);
     }
-    
+
     /**
      * Get the progress of a forEachPair action
-     * @param v Internal representation of a term pair, for example return value of 
+     * @param v Internal representation of a term pair, for example return value of
      * {@link #forEachPair(EachTermPairAction,String,PauseSignal)}
      * @return the ratio of term pairs done over all term pairs */
      public double getForEachPairProgress(String v) {
-        return (double)termPairs.headSet(v).size() / (double)termPairs.size();
+        long[] pairs = sorted();
+        return (double)position(pairs, v) / (double)pairs.length;
      }
-     
+
     /**
      * Apply an action to each term pair whose left hand side is term1. If you have a choice
      * this function is faster than forEachLHS.
@@ -102,66 +242,99 @@ public class TermPairSet extends AbstractCollection<String[]> implements Seriali
      * passed to etpa.doAction(String,String) will be the same as the term1 passed to this
      * method */
     public void forEachRHS(String term1, EachTermPairAction etpa) {
-        Iterator<String> i = termPairs.subSet(term1 + " => \0", true, term1 + " =>~",true).iterator();
-        while(i.hasNext()) {
-            String s = i.next();
-            String []ss = s.split(glue);
-            etpa.doAction(term1,ss[1]);
+        int id1 = dictionary.id(term1);
+        if(id1 < 0)
+            return;
+        long[] pairs = sorted();
+        int i = Arrays.binarySearch(pairs, key(id1, 0));
+        for(i = i < 0 ? -i - 1 : i; i < pairs.length && id1(pairs[i]) == id1; i++) {
+            etpa.doAction(term1,dictionary.term(id2(pairs[i])));
         }
     }
-    
+
     // TODO: Resumable/Progress monitors for forEachRHS&LHS
-    
+
     /**
-     * Apply an action to each term pair whose right hand side is term2. For speed forEachRHS 
+     * Apply an action to each term pair whose right hand side is term2. For speed forEachRHS
      * is generally prefered.
      * @param etpa The action to be performed in the doAction method of etpa, the term2
      * passed to etpa.doAction(String,String) will be the same as the term2 passed to this
      * method */
     public void forEachLHS(String term2, EachTermPairAction etpa) {
-        Iterator<String> i = termPairs.iterator();
-        while(i.hasNext()) {
-            String s = i.next();
-            String []ss = s.split(glue);
-            if(ss[1].equals(term2)) {
-                etpa.doAction(ss[0],ss[1]);
+        int id2 = dictionary.id(term2);
+        if(id2 < 0)
+            return;
+        for(long key : sorted()) {
+            if(id2(key) == id2) {
+                etpa.doAction(dictionary.term(id1(key)),term2);
             }
         }
     }
-    
+
     /** number of elements in set */
     public int size() {
-        return termPairs.size();
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        sorted = null;
     }
-    
+
+    /** Add all pairs of a collection. This is fast if c is a term pair set sharing the
+     * dictionary of this set */
+    public boolean addAll(Collection<? extends String[]> c) {
+        if(!(c instanceof TermPairSet) || ((TermPairSet)c).dictionary != dictionary)
+            return super.addAll(c);
+        boolean rval = false;
+        for(long key : ((TermPairSet)c).table) {
+            if(key != EMPTY)
+                rval = add(id1(key), id2(key)) || rval;
+        }
+        return rval;
+    }
+
     private void writeObject(ObjectOutputStream oos) throws IOException  {
         oos.defaultWriteObject();
-        oos.writeObject(new Vector<String>(termPairs));
+        Vector<String> pairs = new Vector<String>(size);
+        for(long key : sorted()) {
+            pairs.add(pairString(key));
+        }
+        oos.writeObject(pairs);
     }
-    
+
     private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
         ois.defaultReadObject();
-        termPairs = new TreeSet<String>(new Comparator<String>() {
-            public int compare(String s1, String s2) {
-                return s1.toLowerCase().compareTo(s2.toLowerCase());
-            }
-            public boolean equals(Object object) {
-               if(this == object) return true; return false;
-            }
-        });
-        termPairs.addAll((Vector<String>)ois.readObject());
+        if(dictionary == null)
+            dictionary = new TermDictionary(true);
+        table = new long[16];
+        Arrays.fill(table, EMPTY);
+        for(String s : (Vector<String>)ois.readObject()) {
+            String[] ss = s.split(glue);
+            add(ss[0],ss[1]);
+        }
     }
 
     public Iterator<String[]> iterator() {
         return new TPSIterator();
     }
-    
+
     private class TPSIterator implements Iterator<String[]> {
-        Iterator<String> iter;
-        public TPSIterator() { iter = termPairs.iterator(); }
-        public String[] next() { return iter.next().split(glue); }
-        public boolean hasNext() { return iter.hasNext(); }
-        public void remove() { iter.remove(); }
+        long[] pairs = sorted();
+        int i = 0;
+        public String[] next() {
+            if(i >= pairs.length)
+                throw new NoSuchElementException();
+            long key = pairs[i++];
+            return new String[] { dictionary.term(id1(key)), dictionary.term(id2(key)) };
+        }
+        public boolean hasNext() { return i < pairs.length; }
+        public void remove() {
+            if(i == 0)
+                throw new IllegalStateException();
+            TermPairSet.this.remove(id1(pairs[i - 1]), id2(pairs[i - 1]));
+        }
     }
 
     public boolean add(String[] ss) {
@@ -0,0 +1,19 @@
+package nii.alloe.corpus.pattern;
+
+import java.util.*;
+
+/**
+ * A pattern metric which can score many patterns together, reading each context in
+ * the corpus only once.
+ *
+ * @see PatternBatchScorer
+ * @author John McCrae, National Institute of Informatics
+ */
+public interface BatchPatternMetric extends PatternMetric {
+    /** Score several patterns at once
+     * @param patterns The patterns to score
+     * @param threads The number of threads to use
+     * @return The score for each pattern, as {@link #scorePattern(Pattern)} would return it
+     */
+    public Map<Pattern, Double> scorePatterns(Collection<Pattern> patterns, int threads);
+}
@@ -6,7 +6,7 @@ import java.util.*;
  *
  * @author John McCrae, National Institute of Informatics
  */
-public class MinSupportPrecisionMetric implements PatternMetric {
+public class MinSupportPrecisionMetric implements BatchPatternMetric {
     Corpus corpus;
     TermPairSet termPairs;
     
@@ -26,7 +26,7 @@ public class MinSupportPrecisionMetric implements PatternMetric {
             return 0;
         LOOP : while(contexts.hasNext()) {
             Corpus.Hit context = contexts.next();
-            String text = context.getText();
+            PatternMatcher.Context text = context.getPatternContext();
             String[] terms = context.getTerms();
             for(int i = 0; i < terms.length; i++) {
                 for(int j = 0; j < terms.length; j++) {
@@ -47,6 +47,32 @@ public class MinSupportPrecisionMetric implements PatternMetric {
             }
         }
         
+        return score(n, N);
+    }
+    
+    /** Score several patterns at once, with the same sketch of each pattern's contexts as
+     * {@link #scorePattern(Pattern)} */
+    public Map<Pattern, Double> scorePatterns(Collection<Pattern> patterns, int threads) {
+        PatternBatchScorer scorer = new PatternBatchScorer(corpus, termPairs);
+        scorer.setThreads(threads);
+        scorer.setCountNegatives(true);
+        scorer.setSketchSize(sketchSize);
+        HashMap<Pattern, Double> rval = new HashMap<Pattern, Double>();
+        for(Map.Entry<Pattern, PatternBatchScorer.Counts> e : scorer.count(patterns).entrySet()) {
+            PatternBatchScorer.Counts c = e.getValue();
+            int n = c.positiveContexts;
+            int N = c.positiveContexts + c.negativeContexts;
+            if(c.sketchExceeded) {
+                int contextsSeen = c.contexts - c.positiveContexts;
+                N = (int)Math.round(((double)N / (double)contextsSeen) * c.hits);
+                n = (int)Math.round(((double)n / (double)contextsSeen) * c.hits);
+            }
+            rval.put(e.getKey(), score(n, N));
+        }
+        return rval;
+    }
+    
+    private double score(int n, int N) {
         double precision = (double) n / (double) N;
         if(n < minSupport) {
             return n;
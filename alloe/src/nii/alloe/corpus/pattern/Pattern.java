@@ -22,6 +22,8 @@ import nii.alloe.corpus.analyzer.AlloeAnalyzer;
  * @author John McCrae, National Institute of Informatics
  */
 public class Pattern implements java.io.Serializable, Comparable<Pattern> {
+    /** The value computed for earlier versions, so that saved patterns can still be read */
+    private static final long serialVersionUID = -6804010266356161413L;
 
     /** The string representation of the pattern */
     private final String val;
@@ -36,6 +38,12 @@ public class Pattern implements java.io.Serializable, Comparable<Pattern> {
     /** Meta-character */
     public static final String regexMetachars = "([\\.\\[\\]\\^\\$\\|\\?\\(\\)\\\\\\+\\{\\}\uff0a])";
     public static final Collection<String> stopWords;
+
+    /** @return true if c is a word character, that is in {@link #word} */
+    public static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '*' || c == '\uff11' || c == '\uff12';
+    }
     
     static {
         stopWords = new TreeSet<String>();
@@ -137,7 +145,8 @@ public class Pattern implements java.io.Serializable, Comparable<Pattern> {
      */
     public String[] split() {
         String[] s = val.split("\\b|((?<=\\*))|(?=\\*)");
-        return Arrays.copyOfRange(s, 1, s.length);
+        // Older JREs give an empty first element for the match at the start of the pattern
+        return s.length > 0 && s[0].length() == 0 ? Arrays.copyOfRange(s, 1, s.length) : s;
     }
 
     /** @return a subset of the split of this pattern. If s1 = pattern1.getAlignmentWith(pattern2) and
@@ -181,9 +190,25 @@ public class Pattern implements java.io.Serializable, Comparable<Pattern> {
         }
         return true;
     }
-    // Caching for matches
-    private transient String matchesCache1,  matchesCache2,  matchesCache3;
-    private transient int matchesCacheOr;
+    // Compiled matchers, non-lazy and lazy
+    private transient PatternMatcher matcher, lazyMatcher;
+
+    /** Get the compiled form of this pattern
+     * @param lazy Use lazy matching (wildcards may be empty)
+     */
+    public PatternMatcher getMatcher(boolean lazy) {
+        if (lazy) {
+            if (lazyMatcher == null) {
+                lazyMatcher = new PatternMatcher(this, true);
+            }
+            return lazyMatcher;
+        } else {
+            if (matcher == null) {
+                matcher = new PatternMatcher(this, false);
+            }
+            return matcher;
+        }
+    }
 
     /** @return true if this pattern matches str, with the capturers replaced by term1 and term2
      * @param term1 the left hand side of the relation
@@ -200,80 +225,40 @@ public class Pattern implements java.io.Serializable, Comparable<Pattern> {
      * @param lazy Use lazy matching (drop any wildcard)
      */
     public boolean matches(String str, String term1, String term2, boolean lazy) {
-        String regex;
-        term1 = cleanTerm(term1);
-        term2 = cleanTerm(term2);
-        if (matchesCacheOr == 0 || Math.abs(matchesCacheOr) == (lazy ? 1 : 2)) {
-            regex = val.replaceAll(regexMetachars, "\\\\$1");
-            Matcher m = java.util.regex.Pattern.compile(".*((\\* ){3,}).*").matcher(regex);
-            // Replace "* * * * " with "(* ){4}", helps prevent the java regex engine breaking
-            while(m.matches()) {
-                regex = regex.replaceAll("(\\* ){3,}", "(" + wordDBS +
-                        nonWordDBS + "){" + (lazy ? "0," : "") + (m.group(1).length() / 2) + "}");
-                m = java.util.regex.Pattern.compile(".*((\\* ){3,}).*").matcher(regex);
-            }
-            regex = regex.replaceAll("\\*", wordDBS + (lazy ? "*" : "+"));
-            regex = regex.replaceAll("\\s+", nonWordDBS + (lazy ? "*" : "+"));
-            regex = ".*" + regex + ".*";
-            m = java.util.regex.Pattern.compile("(.*)([12])(.*)([12])(.*)").matcher(regex);
-            if (!m.matches()) {
-                assert false;
-            }
-            matchesCache1 = deSafe(m.group(1));
-            matchesCache2 = deSafe(m.group(3));
-            matchesCache3 = deSafe(m.group(5));
-            if (m.group(2).equals("1") && m.group(4).equals("2")) {
-                matchesCacheOr = lazy ? 2 : 1;
-            } else if (m.group(2).equals("2") && m.group(4).equals("1")) {
-                matchesCacheOr = lazy ? -2 : -1;
-            } else {
-                assert false;
-            }
-            regex = regex.replaceAll("1", term1);
-            regex = deSafe(regex.replaceAll("2", term2));
-        } else if (matchesCacheOr > 0) {
-            regex = matchesCache1 + term1 + matchesCache2 + term2 + matchesCache3;
-        } else {
-            regex = matchesCache1 + term2 + matchesCache2 + term1 + matchesCache3;
-        }
-        return str.matches(regex);
+        return getMatcher(lazy).matches(new PatternMatcher.Context(str), term1, term2);
     }
 
+    /** @return true if this pattern matches context, with the capturers replaced by term1 and term2
+     * @param term1 the left hand side of the relation
+     * @param term2 the right hand side of the relation */
+    public boolean matches(PatternMatcher.Context context, String term1, String term2) {
+        return matches(context, term1, term2, false);
+    }
+
+    /** Does this pattern match. Use this when matching one context several times
+     * @return true if this pattern matches context, with the capturers replaced by term1 and term2
+     * @param term1 the left hand side of the relation
+     * @param term2 the right hand side of the relation
+     * @param lazy Use lazy matching (drop any wildcard)
+     */
+    public boolean matches(PatternMatcher.Context context, String term1, String term2, boolean lazy) {
+        return getMatcher(lazy).matches(context, term1, term2);
+    }
       
     /** Can this pattern match the context for any term pair.
      * @return true if this pattern matches str, with captureres replaced with .+
      * @param lazy use lazy matching
      */
     public boolean canMatch(String str, boolean lazy) {
-        String regex;
-        if (matchesCacheOr == 0 || Math.abs(matchesCacheOr) == (lazy ? 1 : 2)) {
-            regex = val.replaceAll(regexMetachars, "\\\\$1");
-            regex = regex.replaceAll("\\*", wordDBS + (lazy ? "*" : "+"));
-            regex = regex.replaceAll("\\s+", nonWordDBS + (lazy ? "*" : "+"));
-            regex = ".*" + regex + ".*";
-            java.util.regex.Matcher m = java.util.regex.Pattern.compile("(.*)([12])(.*)([12])(.*)").matcher(regex);
-            if (!m.matches()) {
-                assert false;
-            }
-            matchesCache1 = deSafe(m.group(1));
-            matchesCache2 = deSafe(m.group(3));
-            matchesCache3 = deSafe(m.group(5));
-            if (m.group(2).equals("1") && m.group(4).equals("2")) {
-                matchesCacheOr = lazy ? 2 : 1;
-            } else if (m.group(2).equals("2") && m.group(4).equals("1")) {
-                matchesCacheOr = lazy ? -2 : -1;
-            } else {
-                assert false;
-            }
-            regex = regex.replaceAll("1", ".+");
-            regex = deSafe(regex.replaceAll("2", ".+"));
-        } else if (matchesCacheOr > 0) {
-            regex = matchesCache1 + ".+" + matchesCache2 + ".+" + matchesCache3;
-        } else {
-            regex = matchesCache1 + ".+" + matchesCache2 + ".+" + matchesCache3;
-        }
+        return getMatcher(lazy).canMatch(new PatternMatcher.Context(str));
+    }
 
-        return str.matches(regex);
+    /** Can this pattern match the context for any term pair.
+     * @return true if this pattern matches context, with captureres replaced with .+
+     * @param lazy use lazy matching
+     */
+    public boolean canMatch(PatternMatcher.Context context, boolean lazy) {
+        return getMatcher(lazy).canMatch(context);
     }
 
     /** Match this pattern to str
@@ -353,6 +338,10 @@ public class Pattern implements java.io.Serializable, Comparable<Pattern> {
         }
     }
 
+    public int hashCode() {
+        return val.hashCode();
+    }
+
     public String toString() {
         return deSafe(val);
     }
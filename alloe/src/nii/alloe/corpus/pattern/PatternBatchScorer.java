@@ -0,0 +1,328 @@
+package nii.alloe.corpus.pattern;
+
+import java.util.*;
+import java.util.concurrent.*;
+import nii.alloe.corpus.*;
+
+/**
+ * Counts the matches of many patterns together. The contexts returned by the queries of
+ * all the patterns are read once, in document order, and each context is only matched
+ * against the patterns it could match, found through an index of the patterns' literal
+ * words. The contexts are split into shards which may be counted in parallel.
+ *
+ * @see BatchPatternMetric
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PatternBatchScorer {
+    private final Corpus corpus;
+    private final TermPairSet termPairs;
+
+    /** Create a new scorer
+     * @param corpus The corpus
+     * @param termPairs The term pairs which are considered positive
+     */
+    public PatternBatchScorer(Corpus corpus, TermPairSet termPairs) {
+        this.corpus = corpus;
+        this.termPairs = termPairs;
+    }
+
+    /** The counts for a single pattern */
+    public static class Counts {
+        /** The number of contexts returned by the query for the pattern */
+        public int hits;
+        /** The number of contexts the pattern was matched against. This is less than hits
+         * only if the sketch size was exceeded */
+        public int contexts;
+        /** Whether more than sketchSize contexts with no positive term pair were seen, so
+         * that the rest of the hits were not matched */
+        public boolean sketchExceeded;
+        /** The number of contexts in which the pattern matches some term pair from the set */
+        public int positiveContexts;
+        /** The number of contexts in which the pattern matches but with no term pair from the
+         * set. Only counted if {@link #isCountNegatives()} is set. */
+        public int negativeContexts;
+        /** The term pairs from the set which the pattern matches */
+        public final TermPairSet positivePairs;
+
+        /** @param dictionary The dictionary of the term pair set, which positivePairs shares */
+        Counts(TermDictionary dictionary) {
+            positivePairs = new TermPairSet(dictionary);
+        }
+
+        void add(Counts c) {
+            positiveContexts += c.positiveContexts;
+            negativeContexts += c.negativeContexts;
+            positivePairs.addAll(c.positivePairs);
+        }
+    }
+
+    /** Count the matches of several patterns. If there is a sketch size, the contexts of
+     * each pattern are read in order until more than sketchSize of them have no positive
+     * term pair, as {@link MinSupportPrecisionMetric#scorePattern(Pattern)} does. As this
+     * point is not known in advance, the contexts are read in rounds, each round taking just
+     * enough of the next contexts of each pattern which has not yet reached it.
+     * @param patterns The patterns
+     * @return The counts for each pattern
+     */
+    public Map<Pattern, Counts> count(Collection<Pattern> patterns) {
+        Pattern[] pats = new LinkedHashSet<Pattern>(patterns).toArray(new Pattern[0]);
+        PostingList[] hits = new PostingList[pats.length];
+        Counts[] counts = new Counts[pats.length];
+        HashMap<String, Vector<Integer>> index = new HashMap<String, Vector<Integer>>();
+        Vector<Integer> unindexed = new Vector<Integer>();
+        for (int i = 0; i < pats.length; i++) {
+            hits[i] = corpus.getHitsForPattern(pats[i]);
+            counts[i] = new Counts(termPairs.getDictionary());
+            counts[i].hits = hits[i].size();
+            // Index each pattern by its longest word, a context without it cannot match
+            String key = null;
+            for (String word : pats[i].getMatcher(false).getWords()) {
+                if (key == null || word.length() > key.length()) {
+                    key = word;
+                }
+            }
+            if (key == null) {
+                unindexed.add(i);
+            } else {
+                Vector<Integer> v = index.get(key);
+                if (v == null) {
+                    index.put(key, v = new Vector<Integer>());
+                }
+                v.add(i);
+            }
+        }
+
+        while (true) {
+            PostingList[] evaluated = new PostingList[pats.length];
+            PostingList docs = new PostingList();
+            for (int i = 0; i < pats.length; i++) {
+                int from = counts[i].contexts;
+                if (counts[i].sketchExceeded || from == hits[i].size()) {
+                    evaluated[i] = new PostingList();
+                    continue;
+                }
+                int to = hits[i].size();
+                if (sketchSize >= 0) {
+                    // The sketch cannot be exceeded before this many more contexts
+                    int needed = sketchSize + 1 - (counts[i].contexts - counts[i].positiveContexts);
+                    to = Math.min(to, from + needed);
+                }
+                evaluated[i] = hits[i].subList(from, to);
+                docs = docs.union(evaluated[i]);
+            }
+            if (docs.size() == 0) {
+                break;
+            }
+            countRound(pats, evaluated, index, unindexed, docs, counts);
+            for (int i = 0; i < pats.length; i++) {
+                counts[i].contexts += evaluated[i].size();
+                if (sketchSize >= 0 && counts[i].contexts - counts[i].positiveContexts > sketchSize) {
+                    counts[i].sketchExceeded = true;
+                }
+            }
+        }
+
+        LinkedHashMap<Pattern, Counts> rval = new LinkedHashMap<Pattern, Counts>();
+        for (int i = 0; i < pats.length; i++) {
+            rval.put(pats[i], counts[i]);
+        }
+        return rval;
+    }
+
+    /** Match each pattern against the contexts in evaluated, adding the matches to counts */
+    private void countRound(final Pattern[] pats, final PostingList[] evaluated, final Map<String, Vector<Integer>> index,
+            final Vector<Integer> unindexed, PostingList docs, Counts[] counts) {
+        int shardCount = (docs.size() + shardSize - 1) / shardSize;
+        Vector<Counts[]> shardCounts = new Vector<Counts[]>(shardCount);
+        if (threads <= 1 || shardCount <= 1) {
+            for (int i = 0; i < shardCount; i++) {
+                shardCounts.add(countShard(pats, evaluated, index, unindexed,
+                        docs.subList(i * shardSize, Math.min(docs.size(), (i + 1) * shardSize))));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            Vector<Future<Counts[]>> futures = new Vector<Future<Counts[]>>(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                final PostingList shard = docs.subList(i * shardSize, Math.min(docs.size(), (i + 1) * shardSize));
+                futures.add(executor.submit(new Callable<Counts[]>() {
+                    public Counts[] call() {
+                        return countShard(pats, evaluated, index, unindexed, shard);
+                    }
+                }));
+            }
+            executor.shutdown();
+            try {
+                for (Future<Counts[]> f : futures) {
+                    shardCounts.add(f.get());
+                }
+            } catch (InterruptedException x) {
+                executor.shutdownNow();
+                throw new RuntimeException("Interrupted while scoring patterns");
+            } catch (ExecutionException x) {
+                executor.shutdownNow();
+                throw new RuntimeException(x.getCause());
+            }
+        }
+
+        // Merge in shard order so the result does not depend on scheduling
+        for (int i = 0; i < pats.length; i++) {
+            for (Counts[] sc : shardCounts) {
+                if (sc[i] != null) {
+                    counts[i].add(sc[i]);
+                }
+            }
+        }
+    }
+
+    private Counts[] countShard(Pattern[] pats, PostingList[] evaluated, Map<String, Vector<Integer>> index,
+            Vector<Integer> unindexed, PostingList shard) {
+        Counts[] rval = new Counts[pats.length];
+        int[] seen = new int[pats.length];
+        Iterator<Corpus.Hit> contexts = corpus.getContextsForHits(shard);
+        for (int k = 0; k < shard.size(); k++) {
+            int doc = shard.get(k);
+            Corpus.Hit hit = contexts.next();
+            PatternMatcher.Context context = hit.getPatternContext();
+            String[] terms = null;
+            int[] ids = null;
+            Vector<Integer> candidates = new Vector<Integer>(unindexed);
+            for (String word : context.getWords()) {
+                Vector<Integer> v = index.get(word);
+                if (v != null) {
+                    candidates.addAll(v);
+                }
+            }
+            for (int p : candidates) {
+                // Each pattern once per context, and only if its query returned this context
+                if (seen[p] == k + 1 || !evaluated[p].contains(doc)) {
+                    continue;
+                }
+                seen[p] = k + 1;
+                if (terms == null) {
+                    terms = hit.getTerms();
+                    ids = new int[terms.length];
+                    for (int j = 0; j < terms.length; j++) {
+                        ids[j] = termPairs.getDictionary().id(terms[j]);
+                    }
+                }
+                if (rval[p] == null) {
+                    rval[p] = new Counts(termPairs.getDictionary());
+                }
+                countContext(pats[p], context, terms, ids, rval[p]);
+            }
+        }
+        return rval;
+    }
+
+    /** @param ids The ids of the terms in the dictionary of the term pair set */
+    private void countContext(Pattern pattern, PatternMatcher.Context context, String[] terms, int[] ids, Counts counts) {
+        boolean positive = false;
+        for (int i = 0; i < terms.length; i++) {
+            if (ids[i] < 0) {
+                continue;
+            }
+            for (int j = 0; j < terms.length; j++) {
+                if (termPairs.contains(ids[i], ids[j]) && pattern.matches(context, terms[i], terms[j])) {
+                    counts.positivePairs.add(ids[i], ids[j]);
+                    positive = true;
+                }
+            }
+        }
+        if (positive) {
+            counts.positiveContexts++;
+        } else if (countNegatives && pattern.canMatch(context, false)) {
+            counts.negativeContexts++;
+        }
+    }
+
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Value of property threads.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads New value of property threads.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Holds value of property shardSize.
+     */
+    private int shardSize = 1000;
+
+    /**
+     * Getter for property shardSize.
+     * @return Value of property shardSize.
+     */
+    public int getShardSize() {
+        return this.shardSize;
+    }
+
+    /**
+     * Setter for property shardSize.
+     * @param shardSize New value of property shardSize, the number of contexts counted by each task.
+     */
+    public void setShardSize(int shardSize) {
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("Shard size must be positive");
+        }
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Holds value of property countNegatives.
+     */
+    private boolean countNegatives = false;
+
+    /**
+     * Getter for property countNegatives.
+     * @return Value of property countNegatives.
+     */
+    public boolean isCountNegatives() {
+        return this.countNegatives;
+    }
+
+    /**
+     * Setter for property countNegatives.
+     * @param countNegatives New value of property countNegatives.
+     */
+    public void setCountNegatives(boolean countNegatives) {
+        this.countNegatives = countNegatives;
+    }
+
+    /**
+     * Holds value of property sketchSize.
+     */
+    private int sketchSize = -1;
+
+    /**
+     * Getter for property sketchSize.
+     * @return Value of property sketchSize.
+     */
+    public int getSketchSize() {
+        return this.sketchSize;
+    }
+
+    /**
+     * Setter for property sketchSize. If this is not negative, the contexts of each pattern are
+     * only matched until more than sketchSize of them have no positive term pair.
+     * @param sketchSize New value of property sketchSize.
+     */
+    public void setSketchSize(int sketchSize) {
+        this.sketchSize = sketchSize;
+    }
+}
@@ -2,8 +2,10 @@ package nii.alloe.corpus.pattern;
 
 import nii.alloe.corpus.Corpus;
 import nii.alloe.corpus.EachTermPairAction;
+import nii.alloe.corpus.PostingList;
 import nii.alloe.corpus.TermPairSet;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import nii.alloe.tools.process.*;
 import nii.alloe.tools.struct.ConcurrentLinkedList;
@@ -50,6 +52,8 @@ public class PatternBuilder extends AlloeProcessAdapter {
     transient MultiSet<Pattern> patternCounter;
     transient PatternMetric pm;
     HashMap<String, List<Pattern>> patternsByElems;
+    transient Map<Corpus.TermPair, PostingList> baseHits;
+    transient String baseHitsTerm;
     static final int STATE_BASE = 3;
 
     /** Creates a new instance of PatternBuilder
@@ -94,72 +98,210 @@ public class PatternBuilder extends AlloeProcessAdapter {
         }
 
 
-        while (patternQueue.peek() != null && iterations < maxIterations && state == STATE_OK) {
-            Pattern pattern = patternQueue.poll();
+        ExecutorService executor = null;
+        if (getThreads() > 1 && getFrontierSize() > 1) {
+            executor = Executors.newFixedThreadPool(getThreads());
+        }
+        try {
+            while (patternQueue.peek() != null && iterations < maxIterations && state == STATE_OK) {
+                expandFrontier(executor);
+                if (maxIterations == Integer.MAX_VALUE) {
+                    fireNewProgressChange((double) iterations / (double) (iterations + patternQueue.size()));
+                } else {
+                    fireNewProgressChange((double) iterations / (double) maxIterations);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        if (getMaxPatterns() > 0) {
+            Iterator<Pattern> psIter = patternScores.keySet().iterator();
+            while (psIter.hasNext()) {
+                Pattern p2 = psIter.next();
+                if (!patternCounter.contains(p2)) {
+                    psIter.remove();
+                }
+            }
+        }
+        if (state == STATE_OK) {
+            fireFinished();
+        }
+    //corpus.clearTermsInCorpusCache();
+    }
+
+    /** Take the best {@link #getFrontierSize()} patterns from the queue and add all the
+     * unifications of these with the patterns already expanded. If an executor is given the
+     * patterns are unified and scored in parallel. The patterns are added in the same order
+     * as if the frontier were expanded one pattern at a time, so the result does not depend
+     * on the scheduling of the threads.
+     * @param executor The executor, or null to expand in this thread
+     */
+    private void expandFrontier(ExecutorService executor) {
+        final Vector<Pattern> frontier = new Vector<Pattern>();
+        while (frontier.size() < getFrontierSize() && patternQueue.peek() != null) {
+            frontier.add(patternQueue.poll());
+        }
+        final Vector<String[]> frontierKeys = new Vector<String[]>();
+        for (Pattern pattern : frontier) {
+            frontierKeys.add(elemKeys(pattern));
+        }
 
-            String[] elems = pattern.split();
-            int capture1 = -1, capture2 = -1;
-            for(int i = 0; i < elems.length; i++) {
-                if(elems[i].equals("1") || elems[i].equals("2")) {
-                    if(capture1 == -1) {
-                        capture1 = i;
-                    } else {
-                        capture2 = i;
+        // Each new pattern is credited to the first frontier pattern to find it
+        final ConcurrentHashMap<Pattern, Long> claims = new ConcurrentHashMap<Pattern, Long>();
+        Vector<LinkedHashMap<Pattern, String>> found = new Vector<LinkedHashMap<Pattern, String>>();
+        if (executor == null) {
+            for (int k = 0; k < frontier.size(); k++) {
+                found.add(findUnifications(k, frontier, frontierKeys, claims));
+            }
+        } else {
+            Vector<Future<LinkedHashMap<Pattern, String>>> futures = new Vector<Future<LinkedHashMap<Pattern, String>>>();
+            for (int k = 0; k < frontier.size(); k++) {
+                final int k2 = k;
+                futures.add(executor.submit(new Callable<LinkedHashMap<Pattern, String>>() {
+                    public LinkedHashMap<Pattern, String> call() {
+                        return findUnifications(k2, frontier, frontierKeys, claims);
                     }
+                }));
+            }
+            found.addAll(waitFor(futures));
+        }
+        Vector<Pattern> newPatterns = new Vector<Pattern>();
+        for (int k = 0; k < frontier.size(); k++) {
+            Iterator<Pattern> iter = found.get(k).keySet().iterator();
+            for (long rank = (long) k << 32; iter.hasNext(); rank++) {
+                Pattern p = iter.next();
+                if (claims.get(p) != rank) {
+                    iter.remove();
+                } else {
+                    newPatterns.add(p);
                 }
             }
-            for (int i = 0; i < elems.length; i++) {
-                String where = i < capture1 ? (i > capture2 ? "+" + (i - capture1) : "=" + (i - capture1)) : "-" + (capture1 - i);
-                if(patternsByElems.get(where + elems[i]) == null)
-                    continue;
-                for (Pattern unifier : patternsByElems.get(where + elems[i])) {
-                    if (unifier == null) {
-                        break;
-                    }
-                    Pattern unification = unify(pattern, unifier);
-                    if (unification == null) {
-                        continue;
-                    }
-                    unification = unification.getMostDominant();
-                   if (unification != null && patternScores.get(unification) == null) {
-                        iterations++;  
-                        System.out.print(iterations + ": ");
-                        addPattern(unification, pattern.toString(), unifier.toString());
+        }
+        Map<Pattern, Double> scores = scorePatterns(newPatterns, executor);
+
+        for (int k = 0; k < frontier.size(); k++) {
+            if (k > 0 && (iterations >= maxIterations || state != STATE_OK)) {
+                // Not expanded, so return to the queue
+                for (Pattern pattern : frontier.subList(k, frontier.size())) {
+                    if (patternScores.get(pattern) != null) {
+                        patternQueue.add(pattern);
                     }
                 }
+                break;
+            }
+            Pattern pattern = frontier.get(k);
+            for (Map.Entry<Pattern, String> e : found.get(k).entrySet()) {
+                iterations++;  
+                System.out.print(iterations + ": ");
+                addPattern(e.getKey(), scores == null ? null : scores.get(e.getKey()), pattern.toString(), e.getValue());
             }
-             
-            for (int i = 0; i < elems.length; i++) {
-                if(i == capture1 || i == capture2)
+            String[] keys = frontierKeys.get(k);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == null) {
                     continue;
-                String where = i < capture1 ? (i > capture2 ? "+" + (i - capture1) : "=" + (i - capture1)) : "-" + (capture1 - i);
-                if (patternsByElems.get(where + elems[i]) != null) {
-                    patternsByElems.get(where + elems[i]).add(pattern);
+                }
+                if (patternsByElems.get(keys[i]) != null) {
+                    patternsByElems.get(keys[i]).add(pattern);
                 } else {
                     List<Pattern> l = new ConcurrentLinkedList<Pattern>();
                     l.add(pattern);
-                    patternsByElems.put(where + elems[i], l);
+                    patternsByElems.put(keys[i], l);
                 }
             }
-            if (maxIterations == Integer.MAX_VALUE) {
-                fireNewProgressChange((double) iterations / (double) (iterations + patternQueue.size()));
-            } else {
-                fireNewProgressChange((double) iterations / (double) maxIterations);
+        }
+    }
+
+    /** @return The key in patternsByElems for each element of the pattern, or null for the capturers */
+    private static String[] elemKeys(Pattern pattern) {
+        String[] elems = pattern.split();
+        int capture1 = -1, capture2 = -1;
+        for(int i = 0; i < elems.length; i++) {
+            if(elems[i].equals("1") || elems[i].equals("2")) {
+                if(capture1 == -1) {
+                    capture1 = i;
+                } else {
+                    capture2 = i;
+                }
             }
         }
-        if (getMaxPatterns() > 0) {
-            Iterator<Pattern> psIter = patternScores.keySet().iterator();
-            while (psIter.hasNext()) {
-                Pattern p2 = psIter.next();
-                if (!patternCounter.contains(p2)) {
-                    psIter.remove();
+        String[] keys = new String[elems.length];
+        for (int i = 0; i < elems.length; i++) {
+            if(i == capture1 || i == capture2)
+                continue;
+            String where = i < capture1 ? (i > capture2 ? "+" + (i - capture1) : "=" + (i - capture1)) : "-" + (capture1 - i);
+            keys[i] = where + elems[i];
+        }
+        return keys;
+    }
+
+    /** Find the unifications of the k-th frontier pattern with the patterns already expanded
+     * and the frontier patterns before it. This only reads the state of the builder, so may be
+     * called for several frontier patterns at once.
+     * @return The new patterns, in the order found, and the pattern each was unified with
+     */
+    private LinkedHashMap<Pattern, String> findUnifications(int k, List<Pattern> frontier, List<String[]> frontierKeys,
+            ConcurrentHashMap<Pattern, Long> claims) {
+        LinkedHashMap<Pattern, String> unifications = new LinkedHashMap<Pattern, String>();
+        Pattern pattern = frontier.get(k);
+        String[] keys = frontierKeys.get(k);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) {
+                continue;
+            }
+            Vector<Pattern> unifiers = new Vector<Pattern>();
+            if (patternsByElems.get(keys[i]) != null) {
+                for (Pattern unifier : patternsByElems.get(keys[i])) {
+                    if (unifier == null) {
+                        break;
+                    }
+                    unifiers.add(unifier);
+                }
+            }
+            for (int j = 0; j < k; j++) {
+                if (Arrays.asList(frontierKeys.get(j)).contains(keys[i])) {
+                    unifiers.add(frontier.get(j));
+                }
+            }
+            for (Pattern unifier : unifiers) {
+                Pattern unification = unify(pattern, unifier);
+                if (unification == null) {
+                    continue;
+                }
+                unification = unification.getMostDominant();
+                if (unification != null && patternScores.get(unification) == null &&
+                        !unifications.containsKey(unification)) {
+                    claim(claims, unification, ((long) k << 32) + unifications.size());
+                    unifications.put(unification, unifier.toString());
                 }
             }
         }
-        if (state == STATE_OK) {
-            fireFinished();
+        return unifications;
+    }
+
+    /** Record that a pattern was found with rank, unless it was found with a lower rank */
+    private static void claim(ConcurrentHashMap<Pattern, Long> claims, Pattern p, long rank) {
+        while (true) {
+            Long old = claims.putIfAbsent(p, rank);
+            if (old == null || old <= rank || claims.replace(p, old, rank)) {
+                return;
+            }
         }
-    //corpus.clearTermsInCorpusCache();
+    }
+
+    private static <E> Vector<E> waitFor(List<Future<E>> futures) {
+        Vector<E> rval = new Vector<E>(futures.size());
+        try {
+            for (Future<E> f : futures) {
+                rval.add(f.get());
+            }
+        } catch (InterruptedException x) {
+            throw new RuntimeException("Interrupted while building patterns");
+        } catch (ExecutionException x) {
+            throw new RuntimeException(x.getCause());
+        }
+        return rval;
     }
 
     protected void buildBasePatterns() {
@@ -186,6 +328,8 @@ public class PatternBuilder extends AlloeProcessAdapter {
                 return state == STATE_STOPPING;
             }
         });
+        baseHits = null;
+        baseHitsTerm = null;
     }
 
     protected Pattern unify(Pattern pattern1, Pattern pattern2) {
@@ -211,7 +355,60 @@ public class PatternBuilder extends AlloeProcessAdapter {
         }
     }
 
+    /** Score several new patterns together, if the metric can do so
+     * @return The scores of the new non-trivial patterns or null if the patterns should be scored
+     * one at a time
+     */
+    Map<Pattern, Double> scorePatterns(Collection<Pattern> patterns) {
+        return scorePatterns(patterns, null);
+    }
+
+    /** Score several new patterns together, if the metric can do so, or in parallel
+     * @param executor Used to score the patterns in parallel if the metric cannot score them together,
+     * may be null
+     * @return The scores of the new non-trivial patterns or null if the patterns should be scored
+     * one at a time
+     */
+    Map<Pattern, Double> scorePatterns(Collection<Pattern> patterns, ExecutorService executor) {
+        if (!(pm instanceof BatchPatternMetric) && executor == null) {
+            return null;
+        }
+        Vector<Pattern> newPatterns = new Vector<Pattern>();
+        for (Pattern p : patterns) {
+            if (patternScores.get(p) == null && !p.isTrivial()) {
+                newPatterns.add(p);
+            }
+        }
+        if (newPatterns.size() <= 1) {
+            return null;
+        }
+        if (pm instanceof BatchPatternMetric) {
+            return ((BatchPatternMetric) pm).scorePatterns(newPatterns, getThreads());
+        }
+        Vector<Future<Double>> futures = new Vector<Future<Double>>(newPatterns.size());
+        for (final Pattern p : newPatterns) {
+            futures.add(executor.submit(new Callable<Double>() {
+                public Double call() {
+                    return pm.scorePattern(p);
+                }
+            }));
+        }
+        Vector<Double> d = waitFor(futures);
+        HashMap<Pattern, Double> rval = new HashMap<Pattern, Double>();
+        for (int i = 0; i < newPatterns.size(); i++) {
+            rval.put(newPatterns.get(i), d.get(i));
+        }
+        return rval;
+    }
+
     void addPattern(Pattern p, String f1, String f2) {
+        addPattern(p, null, f1, f2);
+    }
+
+    /** Add a pattern
+     * @param score The score of the pattern, or null to score it now
+     */
+    void addPattern(Pattern p, Double score, String f1, String f2) {
         if (patternScores.get(p) != null) {
             return;
         }
@@ -219,7 +416,7 @@ public class PatternBuilder extends AlloeProcessAdapter {
             return;
         }
         System.out.println(p.toString());
-        double d = pm.scorePattern(p);
+        double d = score != null ? score : pm.scorePattern(p);
         if (d < 0 || d > 1 || Double.isInfinite(d) || Double.isNaN(d)) {
             Output.err.println(p.toString());
             Output.err.println("From 1: " + f1);
@@ -268,7 +465,22 @@ public class PatternBuilder extends AlloeProcessAdapter {
             if (isIgnoreReflexives() && term1.equals(term2)) {
                 return;
             }
-            Iterator<Corpus.Hit> learnData = corpus.getContextsForTerms(term1, term2);
+            // The pairs come sorted by their left hand term, so the co-occurrences are found
+            // one left hand term at a time rather than held for the whole term pair set
+            if (!term1.equals(baseHitsTerm)) {
+                final TermPairSet group = new TermPairSet();
+                termPairSet.forEachRHS(term1, new EachTermPairAction() {
+
+                    public void doAction(String t1, String t2) {
+                        group.add(t1, t2);
+                    }
+                });
+                baseHits = corpus.getCooccurrences(group, getThreads());
+                baseHitsTerm = term1;
+            }
+            Iterator<Corpus.Hit> learnData = corpus.getContextsForHits(baseHits.get(new Corpus.TermPair(term1, term2)));
+            // Collect the patterns from every context, then score them together
+            LinkedHashSet<Pattern> patterns = new LinkedHashSet<Pattern>();
             while (learnData.hasNext()) {
                 String s1 = learnData.next().getText();
                 s1 = Pattern.makeSafe(s1);
@@ -311,10 +523,14 @@ public class PatternBuilder extends AlloeProcessAdapter {
                                 s2 = s2 + Pattern.cleanTerm(term2).toLowerCase();
                             }
                         }
-                        addPattern(new Pattern(s2), term1, term2);
+                        patterns.add(new Pattern(s2));
                     }
                 }
             }
+            Map<Pattern, Double> scores = scorePatterns(patterns);
+            for (Pattern p : patterns) {
+                addPattern(p, scores == null ? null : scores.get(p), term1, term2);
+            }
             fireNewProgressChange(termPairSet.getForEachPairProgress(term1, term2));
         }
     }
@@ -569,6 +785,50 @@ public class PatternBuilder extends AlloeProcessAdapter {
     public void unsetMaxIterations() {
         this.maxIterations = Integer.MAX_VALUE;
     }
+    /**
+     * Holds value of property threads.
+     */
+    int threads = 1;
+
+    /**
+     * Getter for property threads.
+     * @return Number of threads used to find the contexts of the term pairs.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Setter for property threads.
+     * @param threads Number of threads used to find the contexts of the term pairs.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    /**
+     * Holds value of property frontierSize.
+     */
+    int frontierSize = 1;
+
+    /**
+     * Getter for property frontierSize.
+     * @return Number of patterns taken from the queue and expanded together.
+     */
+    public int getFrontierSize() {
+        return this.frontierSize;
+    }
+
+    /**
+     * Setter for property frontierSize. If this and threads are more than one the patterns
+     * are expanded and scored in parallel.
+     * @param frontierSize Number of patterns taken from the queue and expanded together.
+     */
+    public void setFrontierSize(int frontierSize) {
+        if (frontierSize < 1) {
+            throw new IllegalArgumentException("Frontier size must be positive");
+        }
+        this.frontierSize = frontierSize;
+    }
     /**
      * Holds value of property ignoreReflexives.
      */
@@ -0,0 +1,315 @@
+package nii.alloe.corpus.pattern;
+
+import java.util.*;
+
+/**
+ * A pattern compiled for matching against contexts. The pattern is split once into
+ * literals, wildcards, gaps and capturers, and matched directly against the runs of
+ * word and non-word characters of a {@link Context}, so no regular expression is built
+ * or compiled for each match. The semantics are those of {@link Pattern#matches(String,String,String,boolean)}:
+ * a '*' matches a run of word characters, a space matches a run of non-word characters
+ * (in lazy mode both runs may be empty), the capturers match the (lower cased) terms,
+ * other characters match themselves and the pattern may occur anywhere in the context.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PatternMatcher {
+    private static final int LITERAL = 0;
+    private static final int WILDCARD = 1;
+    private static final int GAP = 2;
+    private static final int TERM1 = 3;
+    private static final int TERM2 = 4;
+
+    private final int[] types;
+    private final String[] literals;
+    private final boolean lazy;
+
+    /** Compile a pattern
+     * @param pattern The pattern
+     * @param lazy If true wildcards and gaps may match the empty string
+     */
+    public PatternMatcher(Pattern pattern, boolean lazy) {
+        this.lazy = lazy;
+        String val = pattern.getVal();
+        ArrayList<Integer> t = new ArrayList<Integer>();
+        ArrayList<String> l = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            int type;
+            if (c == '*') {
+                type = WILDCARD;
+            } else if (Character.isWhitespace(c)) {
+                type = GAP;
+                while (i + 1 < val.length() && Character.isWhitespace(val.charAt(i + 1))) {
+                    i++;
+                }
+            } else if (c == '1') {
+                type = TERM1;
+            } else if (c == '2') {
+                type = TERM2;
+            } else {
+                literal.append(deSafe(c));
+                continue;
+            }
+            if (literal.length() > 0) {
+                t.add(LITERAL);
+                l.add(literal.toString());
+                literal.setLength(0);
+            }
+            t.add(type);
+            l.add(null);
+        }
+        if (literal.length() > 0) {
+            t.add(LITERAL);
+            l.add(literal.toString());
+        }
+        types = new int[t.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = t.get(i);
+        }
+        literals = l.toArray(new String[l.size()]);
+    }
+
+    private static char deSafe(char c) {
+        switch (c) {
+            case '\uff11':
+                return '1';
+            case '\uff12':
+                return '2';
+            case '\uff0a':
+                return '*';
+            default:
+                return c;
+        }
+    }
+
+    /** @return true if this matcher uses lazy matching */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /** @return the words in the pattern which a matching context must contain as whole word
+     * tokens. These are the literal words with a gap or a non-word character on either side.
+     */
+    public String[] getWords() {
+        ArrayList<String> rval = new ArrayList<String>();
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != LITERAL) {
+                continue;
+            }
+            String literal = literals[i];
+            int j = 0;
+            while (j < literal.length()) {
+                if (Pattern.isWordChar(literal.charAt(j))) {
+                    int start = j;
+                    while (j < literal.length() && Pattern.isWordChar(literal.charAt(j))) {
+                        j++;
+                    }
+                    boolean left = start > 0 || (i > 0 && types[i - 1] == GAP && !lazy);
+                    boolean right = j < literal.length() || (i + 1 < types.length && types[i + 1] == GAP && !lazy);
+                    if (left && right) {
+                        rval.add(literal.substring(start, j));
+                    }
+                } else {
+                    j++;
+                }
+            }
+        }
+        return rval.toArray(new String[rval.size()]);
+    }
+
+    /**
+     * A context split into runs of word and non-word characters. A context may be matched
+     * against any number of patterns and term pairs.
+     */
+    public static class Context {
+        final String text;
+        /** The end of the run containing each character */
+        final int[] runEnd;
+
+        /** Tokenize a context */
+        public Context(String text) {
+            this.text = text;
+            this.runEnd = new int[text.length()];
+            int i = text.length();
+            while (i > 0) {
+                int end = i;
+                boolean word = Pattern.isWordChar(text.charAt(i - 1));
+                while (i > 0 && Pattern.isWordChar(text.charAt(i - 1)) == word) {
+                    runEnd[--i] = end;
+                }
+            }
+        }
+
+        /** Create a context from an existing tokenization
+         * @param text The text
+         * @param tokens The start and end of each word token, as given by
+         *      {@link nii.alloe.corpus.ContextStore#tokenize(String)}
+         */
+        public Context(String text, int[] tokens) {
+            this.text = text;
+            this.runEnd = new int[text.length()];
+            int pos = 0;
+            for (int i = 0; i < tokens.length; i += 2) {
+                while (pos < tokens[i]) {
+                    runEnd[pos++] = tokens[i];
+                }
+                while (pos < tokens[i + 1]) {
+                    runEnd[pos++] = tokens[i + 1];
+                }
+            }
+            while (pos < runEnd.length) {
+                runEnd[pos++] = runEnd.length;
+            }
+        }
+
+        /** @return the text of this context */
+        public String getText() {
+            return text;
+        }
+
+        /** @return the word tokens of this context, in order */
+        public List<String> getWords() {
+            ArrayList<String> rval = new ArrayList<String>();
+            int i = 0;
+            while (i < runEnd.length) {
+                if (Pattern.isWordChar(text.charAt(i))) {
+                    rval.add(text.substring(i, runEnd[i]));
+                }
+                i = runEnd[i];
+            }
+            return rval;
+        }
+
+        /** @return the end of the run of word characters starting at pos */
+        int wordEnd(int pos) {
+            return pos < runEnd.length && Pattern.isWordChar(text.charAt(pos)) ? runEnd[pos] : pos;
+        }
+
+        /** @return the end of the run of non-word characters starting at pos */
+        int nonWordEnd(int pos) {
+            return pos < runEnd.length && !Pattern.isWordChar(text.charAt(pos)) ? runEnd[pos] : pos;
+        }
+    }
+
+    /** @return true if the pattern matches the context with the capturers replaced by term1 and term2 */
+    public boolean matches(Context context, String term1, String term2) {
+        return match(context, term1, term2) != null;
+    }
+
+    /** @return true if the pattern matches the context with the capturers replaced by any text */
+    public boolean canMatch(Context context) {
+        return match(context, null, null) != null;
+    }
+
+    /** Match the pattern against a context
+     * @param context The context
+     * @param term1 The left hand side term, or null to let the capturer match any (non-empty) text
+     * @param term2 The right hand side term, or null to let the capturer match any (non-empty) text
+     * @return The start and end of the text matched by the left hand side and right hand side capturers
+     *      (in that order) of the leftmost match, or null if the pattern does not match
+     */
+    public int[] match(Context context, String term1, String term2) {
+        String text = context.text;
+        if (term1 != null) {
+            term1 = term1.toLowerCase();
+            if (text.indexOf(term1) < 0) {
+                return null;
+            }
+        }
+        if (term2 != null) {
+            term2 = term2.toLowerCase();
+            if (text.indexOf(term2) < 0) {
+                return null;
+            }
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == LITERAL && text.indexOf(literals[i]) < 0) {
+                return null;
+            }
+        }
+        Matcher m = new Matcher(context, term1, term2);
+        for (int start = 0; start <= text.length(); start++) {
+            if (m.match(0, start)) {
+                return m.positions;
+            }
+        }
+        return null;
+    }
+
+    /** The state of a single match */
+    private class Matcher {
+        final Context context;
+        final String term1, term2;
+        final int[] positions = new int[4];
+        /** Failed (element, position) states */
+        final BitSet failed = new BitSet();
+        final int width;
+
+        Matcher(Context context, String term1, String term2) {
+            this.context = context;
+            this.term1 = term1;
+            this.term2 = term2;
+            this.width = context.text.length() + 1;
+        }
+
+        boolean match(int elem, int pos) {
+            if (elem == types.length) {
+                return true;
+            }
+            int state = elem * width + pos;
+            if (failed.get(state)) {
+                return false;
+            }
+            boolean rval;
+            switch (types[elem]) {
+                case LITERAL:
+                    rval = context.text.startsWith(literals[elem], pos) &&
+                            match(elem + 1, pos + literals[elem].length());
+                    break;
+                case WILDCARD:
+                    rval = matchRun(elem, pos, context.wordEnd(pos));
+                    break;
+                case GAP:
+                    rval = matchRun(elem, pos, context.nonWordEnd(pos));
+                    break;
+                default:
+                    rval = matchTerm(elem, pos, types[elem] == TERM1 ? term1 : term2);
+            }
+            if (!rval) {
+                failed.set(state);
+            }
+            return rval;
+        }
+
+        private boolean matchRun(int elem, int pos, int end) {
+            for (int i = end; i > pos || (lazy && i == pos); i--) {
+                if (match(elem + 1, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchTerm(int elem, int pos, String term) {
+            int slot = types[elem] == TERM1 ? 0 : 2;
+            if (term != null) {
+                if (context.text.startsWith(term, pos) && match(elem + 1, pos + term.length())) {
+                    positions[slot] = pos;
+                    positions[slot + 1] = pos + term.length();
+                    return true;
+                }
+                return false;
+            }
+            for (int i = context.text.length(); i > pos; i--) {
+                if (match(elem + 1, i)) {
+                    positions[slot] = pos;
+                    positions[slot + 1] = i;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
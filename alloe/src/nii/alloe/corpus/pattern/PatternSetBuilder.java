@@ -114,7 +114,7 @@ public class PatternSetBuilder extends PatternBuilder {
         //System.out.print(pattern.toString());
         while (contexts.hasNext()) {
             Corpus.Hit context = contexts.next();
-            String text = context.getText();
+            PatternMatcher.Context text = context.getPatternContext();
             String[] terms = context.getTerms();
             for (int i = 0; i < terms.length; i++) {
                 for (int j = 0; j < terms.length; j++) {
@@ -159,7 +159,7 @@ public class PatternSetBuilder extends PatternBuilder {
     void finishCalculatingPositivesNegatives(Pattern pattern) {
         while (contexts.hasNext()) {
             Corpus.Hit context = contexts.next();
-            String text = context.getText();
+            PatternMatcher.Context text = context.getPatternContext();
             String[] terms = context.getTerms();
             for (int i = 0; i < terms.length; i++) {
                 for (int j = 0; j < terms.length; j++) {
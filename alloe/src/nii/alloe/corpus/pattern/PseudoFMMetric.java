@@ -14,7 +14,7 @@ import java.util.*;
  *
  * @author John McCrae, National Institute of Informatics
  */
-public class PseudoFMMetric implements PatternMetric {
+public class PseudoFMMetric implements BatchPatternMetric {
 
     Corpus corpus;
     TermPairSet termPairs;
@@ -35,7 +35,7 @@ public class PseudoFMMetric implements PatternMetric {
             return 0;
         LOOP : while(contexts.hasNext()) {
             Corpus.Hit context = contexts.next();
-            String text = context.getText();
+            PatternMatcher.Context text = context.getPatternContext();
             String[] terms = context.getTerms();
             boolean goodContext = false;
             for(int i = 0; i < terms.length; i++) {
@@ -52,7 +52,22 @@ public class PseudoFMMetric implements PatternMetric {
             N++;
         }
         
-        double pseudoRecall = (double) foundTerms.size() / (double) termPairs.size();
+        return score(foundTerms.size(), n, N);
+    }
+
+    public Map<Pattern, Double> scorePatterns(Collection<Pattern> patterns, int threads) {
+        PatternBatchScorer scorer = new PatternBatchScorer(corpus, termPairs);
+        scorer.setThreads(threads);
+        HashMap<Pattern, Double> rval = new HashMap<Pattern, Double>();
+        for (Map.Entry<Pattern, PatternBatchScorer.Counts> e : scorer.count(patterns).entrySet()) {
+            PatternBatchScorer.Counts c = e.getValue();
+            rval.put(e.getKey(), score(c.positivePairs.size(), c.positiveContexts, c.hits));
+        }
+        return rval;
+    }
+
+    private double score(int found, int n, int N) {
+        double pseudoRecall = (double) found / (double) termPairs.size();
         double pseudoPrecision = (double) n / (double) N;
         if (pseudoRecall == 0 && pseudoPrecision == 0 || Double.isInfinite(pseudoRecall) || Double.isInfinite(pseudoPrecision)
             || Double.isNaN(pseudoRecall) || Double.isNaN(pseudoPrecision)) {
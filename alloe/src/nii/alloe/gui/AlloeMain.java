@@ -2137,8 +2137,8 @@ public class AlloeMain extends javax.swing.JFrame {
     private HashMap<String, String> classifierNameToFullName;
 
     public Vector<String> getClassifierNames() {
-        Vector<String> r = new Vector<String>(8);
-        classifierNameToFullName = new HashMap<String, String>(7);
+        Vector<String> r = new Vector<String>(9);
+        classifierNameToFullName = new HashMap<String, String>(8);
         classifierNameToFullName.put("Bayesian Network", "weka.classifiers.bayes.BayesNet");
         classifierNameToFullName.put("Decision Tree", "weka.classifiers.trees.J48");
         classifierNameToFullName.put("Rule Learner", "weka.classifiers.rules.JRip");
@@ -2146,12 +2146,14 @@ public class AlloeMain extends javax.swing.JFrame {
         classifierNameToFullName.put("Multilayer Perceptron", "weka.classifiers.functions.MultilayerPerceptron");
         classifierNameToFullName.put("Naive Bayes", "weka.classifiers.bayes.NaiveBayes");
         classifierNameToFullName.put("SVM", "weka.classifiers.functions.SMO");
+        classifierNameToFullName.put("Sparse Logistic Regression", "nii.alloe.classify.SparseLogisticRegression");
 
         r.add("SVM");
         r.add("Naive Bayes");
         r.add("Bayesian Network");
         r.add("Multilayer Perceptron");
         r.add("Linear Regression");
+        r.add("Sparse Logistic Regression");
         r.add("Rule Learner");
         r.add("Decision Tree");
         r.add("Other");
@@ -23,6 +23,10 @@ public class AttachZeroesToDataSet {
             System.exit(-1);
         }
         try {
+            if (ColumnarDataSet.isColumnar(new File(args[0]))) {
+                attachColumnar(args);
+                return;
+            }
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[0]));
             DataSet dataSet = (DataSet) ois.readObject();
             ois.close();
@@ -30,11 +34,12 @@ public class AttachZeroesToDataSet {
             TermPairSet tps = (TermPairSet) ois.readObject();
             ois.close();
             String rel = args[2];
-            Vector<String> terms = dataSet.getTerms(rel);
-            if(terms == null) {
+            Vector<String> termList = dataSet.getTerms(rel);
+            if(termList == null) {
                 System.err.println("Invalid relation name, valid names are: " + Strings.join(",", dataSet.instances.keySet()));
                 System.exit(-1);
             }
+            HashSet<String> terms = new HashSet<String>(termList);
             for (int i = 0; i < Integer.parseInt(args[3]); i++) {
                 Random r = new Random();
                 int r1, r2;
@@ -46,6 +51,7 @@ public class AttachZeroesToDataSet {
                     term2 = dataSet.termSet.get(r2);
                 } while (terms.contains(term1 + dataSet.glue + term2) || tps.contains(term1, term2));
                 dataSet.addInstance(new Instance(1.0, new double[dataSet.instances.get(rel).numAttributes()]), rel, term1, term2);
+                terms.add(term1 + dataSet.glue + term2);
             }
             ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(args[0]));
             oos.writeObject(dataSet);
@@ -55,4 +61,40 @@ public class AttachZeroesToDataSet {
             System.exit(-1);
         }
     }
+
+    /**
+     * Attach zeroes to a columnar data set. The term pairs of the relation are read from the
+     * term columns and the zero instances are appended to the file
+     */
+    private static void attachColumnar(String[] args) throws IOException, ClassNotFoundException {
+        ColumnarDataSet cds = ColumnarDataSet.open(new File(args[0]));
+        String rel = args[2];
+        if (cds.getAttributes(rel) == null) {
+            System.err.println("Invalid relation name, valid names are: " + Strings.join(",", cds.getRelations()));
+            System.exit(-1);
+        }
+        HashSet<Long> pairs = new HashSet<Long>();
+        Iterator<ColumnarDataSet.Row> rows = cds.rows(rel);
+        while (rows.hasNext()) {
+            ColumnarDataSet.Row row = rows.next();
+            pairs.add(((long) row.term1 << 32) | row.term2);
+        }
+        TermList termSet = cds.getTermSet();
+        cds.close();
+        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[1]));
+        TermPairSet tps = (TermPairSet) ois.readObject();
+        ois.close();
+        DataSetWriter writer = new DataSetWriter(new File(args[0]), termSet, true);
+        Random r = new Random();
+        for (int i = 0; i < Integer.parseInt(args[3]); i++) {
+            int r1, r2;
+            do {
+                r1 = r.nextInt(termSet.size());
+                r2 = r.nextInt(termSet.size());
+            } while (pairs.contains(((long) r1 << 32) | r2) || tps.contains(termSet.get(r1), termSet.get(r2)));
+            writer.addInstance(rel, r1, r2, new int[0], new double[0], 0, 0);
+            pairs.add(((long) r1 << 32) | r2);
+        }
+        writer.close();
+    }
 }
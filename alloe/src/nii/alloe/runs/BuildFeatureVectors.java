@@ -24,6 +24,7 @@ public class BuildFeatureVectors {
     
     private static String outputFile;
     private static FeatureVectorFormer fvf;
+    private static DataSetWriter writer;
     /**
      * @param args the command line arguments
      */
@@ -31,6 +32,7 @@ public class BuildFeatureVectors {
         try {
             if(args.length != 6 && args.length != 5) {
                 System.err.println("Usage: command corpus patternSet termPairSet relationName output [-lazy]");
+                System.err.println("If output ends with .cfv the feature vectors are written as a columnar data set as they are made");
                 return;
             }
             Corpus corpus = Corpus.openCorpus(new File(args[0]));
@@ -51,9 +53,17 @@ public class BuildFeatureVectors {
                 fvf.setLazyMatching(true);
             }
             outputFile = args[4];
+            if(outputFile.endsWith(".cfv")) {
+                writer = new DataSetWriter(new File(outputFile), corpus.terms);
+                fvf.setOutput(writer);
+            }
             fvf.addProgressListener(new AlloeProgressListener() {
                 public void finished() {
-                    try {                    
+                    try {
+                        if(writer != null) {
+                            writer.close();
+                            return;
+                        }
                         ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFile));
                         oos.writeObject(fvf.dataSet);
                         oos.close();
@@ -37,6 +37,19 @@ public class DataSetToARFF {
             Object o = ois.readObject();
             TermPairSet tps = (TermPairSet)o;
             System.out.println(tps.size());*/
+            if(ColumnarDataSet.isColumnar(new File(args[0]))) {
+                // Stream the rows, rather than loading the data set
+                ColumnarDataSet cds = ColumnarDataSet.open(new File(args[0]));
+                if(cds.getAttributes(args[1]) == null) {
+                    System.err.println("No " + args[1] + "in dataset");
+                    System.exit(-1);
+                }
+                PrintStream ps = new PrintStream(args[2]);
+                cds.writeARFF(args[1], ps);
+                ps.close();
+                cds.close();
+                return;
+            }
             ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[0]));
             Object o = ois.readObject();
             if(!(o instanceof DataSet)) {
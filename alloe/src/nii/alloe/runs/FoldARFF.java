@@ -24,7 +24,7 @@ public class FoldARFF {
      */
     public static void main(String[] args) {
         if(args.length != 2) {
-            System.err.print("Usage java nii.alloe.runs.FoldARFF arffOrAfvFile foldCount");
+            System.err.print("Usage java nii.alloe.runs.FoldARFF arffOrAfvOrCfvFile foldCount");
             System.exit(-1);
         }
         try {
@@ -33,13 +33,16 @@ public class FoldARFF {
             if(args[0].matches(".*\\.arff")) {
                 fileName = args[0].substring(0,args[0].length() -5);
                 is = new Instances(new FileReader(args[0]));
+            } else if(args[0].matches(".*\\.cfv")) {
+                foldColumnar(args[0], Integer.parseInt(args[1]));
+                return;
             } else if(args[0].matches(".*\\.afv")) {
                 fileName = args[0].substring(0,args[0].length() - 4);
                 ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[0]));
                 DataSet ds = (DataSet) ois.readObject();
                 is = ds.instances.get(ds.instances.keySet().iterator().next());
             } else {
-                System.err.println("First parameter not arff or afv");
+                System.err.println("First parameter not arff, afv or cfv");
                 return;
             }
             int n = Integer.parseInt(args[1]);
@@ -86,6 +89,47 @@ public class FoldARFF {
         }
     }
     
+    /**
+     * Fold the first relation of a columnar data set, streaming the rows so the data set is
+     * never held in memory
+     */
+    private static void foldColumnar(String file, int n) throws IOException {
+        String fileName = file.substring(0,file.length() - 4);
+        ColumnarDataSet cds = ColumnarDataSet.open(new File(file));
+        String rel = cds.getRelations().get(0);
+        int attCount = cds.getAttributes(rel).size();
+        int numInstances = cds.numInstances(rel);
+        int[] counts = new int[n];
+        double d = (double)numInstances / (double)n;
+        for(double i = 0; i < n; i++) {
+            counts[(int)i] = (int)(i * d);
+        }
+        PrintStream[] testout = new PrintStream[n];
+        PrintStream[] trainout = new PrintStream[n];
+        PrintStream members = new PrintStream(fileName + "-members");
+        for(int i = 0; i < n; i++) {
+            testout[i] = new PrintStream(fileName + "-test-" + i + ".arff");
+            trainout[i] = new PrintStream(fileName + "-train-" + i + ".arff");
+            cds.writeARFFHeader(rel, fileName + "-test-" + i, testout[i]);
+            cds.writeARFFHeader(rel, fileName + "-train-" + i, trainout[i]);
+        }
+        Iterator<ColumnarDataSet.Row> rows = cds.rows(rel);
+        for(int i = 0; rows.hasNext(); i++) {
+            ColumnarDataSet.Row row = rows.next();
+            int set = select(counts,numInstances-i);
+            for(int j = 0; j < n; j++) {
+                ColumnarDataSet.writeARFFRow(row, attCount, j == set ? testout[j] : trainout[j]);
+            }
+            members.println(i + "," + set);
+        }
+        members.close();
+        for(int i = 0; i < n; i++) {
+            testout[i].close();
+            trainout[i].close();
+        }
+        cds.close();
+    }
+    
     private static Random r = new Random();
     
     private static int select(int[] counts, int n) {
@@ -0,0 +1,94 @@
+package nii.alloe.runs;
+
+import java.io.*;
+import java.util.*;
+import nii.alloe.consist.*;
+import nii.alloe.simulate.Simulate;
+
+/**
+ * Times the reduction of problem matrices built from simulated data by
+ * {@link ConsistProblem#buildGrowingProblemMatrix(nii.alloe.theory.Model)}, with
+ * {@link MatrixReducer} and with the pairwise comparison of every row and column
+ * (as ConsistProblem used to reduce matrices).
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class MatrixReduceBenchmark {
+
+    /**
+     * @param args [logicFile [n1 n2 ...]], defaults to logics/sh.logic and 50 100 200 300 400 500
+     */
+    public static void main(String[] args) throws IOException {
+        String logicFile = args.length > 0 ? args[0] : "logics/sh.logic";
+        int[] sizes = { 50, 100, 200, 300, 400, 500 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int n : sizes) {
+            Simulate s = new Simulate(logicFile, .8, .8, n);
+            for (String relation : s.relationDensity.keySet()) {
+                s.relationDensity.put(relation, -.8);
+            }
+            s.sparsePercent = .15;
+            s.createModels();
+            ConsistProblem cp = new ConsistProblem(s.l, s.probModel);
+            SparseMatrix matrix = cp.buildGrowingProblemMatrix(s.probModel.createSpecificCopy());
+            if (matrix == null) {
+                System.out.println("n=" + n + " data is consistent");
+                continue;
+            }
+
+            SparseMatrix pairwise = matrix.createCopy();
+            long time = System.nanoTime();
+            while (rowReduce(pairwise) || columnReduce(pairwise));
+            double pairwiseTime = (System.nanoTime() - time) / 1000000.0;
+
+            SparseMatrix reduced = matrix.createCopy();
+            time = System.nanoTime();
+            new MatrixReducer(reduced).reduce();
+            double reducerTime = (System.nanoTime() - time) / 1000000.0;
+
+            System.out.println("n=" + n +
+                    " matrix=" + matrix.getRowCount() + "x" + matrix.getColumnCount() +
+                    " reduced=" + reduced.getRowCount() + "x" + reduced.getColumnCount() +
+                    " (pairwise " + pairwise.getRowCount() + "x" + pairwise.getColumnCount() + ")" +
+                    " reducer=" + (int) reducerTime + "ms" +
+                    " pairwise=" + (int) pairwiseTime + "ms" +
+                    " speedup=" + String.format("%.1f", pairwiseTime / Math.max(reducerTime, 0.001)));
+        }
+    }
+
+    private static boolean rowReduce(SparseMatrix m) {
+        boolean rval = false;
+        for (int row : new ArrayList<Integer>(m.getRows())) {
+            for (int superRow : m.getRows()) {
+                if (m.elemVal(row, 0) > m.elemVal(superRow, 0) && m.rowSubset(row, superRow)) {
+                    m.removeRow(row);
+                    rval = true;
+                    break;
+                }
+            }
+        }
+        return rval;
+    }
+
+    private static boolean columnReduce(SparseMatrix m) {
+        boolean rval = false;
+        for (int col : new ArrayList<Integer>(m.getCols())) {
+            if (col == 0 || !m.getCols().contains(col)) {
+                continue;
+            }
+            for (int col2 : m.getCols()) {
+                if (col2 != 0 && col != col2 && m.colSubset(col2, col)) {
+                    m.removeColumn(col);
+                    rval = true;
+                    break;
+                }
+            }
+        }
+        return rval;
+    }
+}
@@ -11,6 +11,8 @@ package nii.alloe.runs;
 import weka.core.*;
 import weka.attributeSelection.*;
 import java.io.*;
+import java.util.*;
+import nii.alloe.classify.*;
 
 /**
  *
@@ -24,8 +26,13 @@ public class SelectAttributes {
        	try {
 	    if(args.length < 3) {
 		System.out.println("Usage: java SelectAttributes train-set.arff test-set.arff number");
+		System.out.println("   or: java SelectAttributes train-set.cfv test-set.cfv number");
 		System.exit(0);
 	    }
+	    if(args[0].endsWith(".cfv")) {
+		selectColumnar(args[0], args[1], Integer.parseInt(args[2]));
+		return;
+	    }
 	    Instances train_insts = new Instances(new FileReader(args[0]));
 	    System.out.println("Loaded Train Set: " + train_insts.numAttributes() + " attributes & " + train_insts.numInstances() + " instances");
 
@@ -69,5 +76,105 @@ public class SelectAttributes {
 	    x.printStackTrace();
 	}
     }
+
+    /**
+     * Select attributes of the first relation of columnar data sets. The attributes are ranked
+     * by the information gain of whether they are non-zero, which is computed in a single pass
+     * over the rows, and the reduced sets are streamed to ARFF.
+     */
+    private static void selectColumnar(String trainFile, String testFile, int number) throws IOException {
+        ColumnarDataSet train = ColumnarDataSet.open(new File(trainFile));
+        String rel = train.getRelations().get(0);
+        List<String> attNames = train.getAttributes(rel);
+        System.out.println("Loaded Train Set: " + (attNames.size() + 1) + " attributes & " + train.numInstances(rel) + " instances");
+
+        System.out.println("Selecting Attributes...");
+        int[] nonZero = new int[attNames.size()];
+        int[] nonZeroPos = new int[attNames.size()];
+        int total = 0, pos = 0;
+        Iterator<ColumnarDataSet.Row> rows = train.rows(rel);
+        while(rows.hasNext()) {
+            ColumnarDataSet.Row row = rows.next();
+            boolean positive = row.classVal != 0;
+            total++;
+            if(positive)
+                pos++;
+            for(int k = 0; k < row.numValues(); k++) {
+                nonZero[row.index(k)]++;
+                if(positive)
+                    nonZeroPos[row.index(k)]++;
+            }
+        }
+        final double[] gain = new double[attNames.size()];
+        Integer[] ranked = new Integer[attNames.size()];
+        for(int j = 0; j < gain.length; j++) {
+            gain[j] = entropy(pos, total) - entropy(nonZeroPos[j], nonZero[j]) * nonZero[j] / total
+                    - entropy(pos - nonZeroPos[j], total - nonZero[j]) * (total - nonZero[j]) / total;
+            ranked[j] = j;
+        }
+        Arrays.sort(ranked, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return gain[i1] > gain[i2] ? -1 : (gain[i1] < gain[i2] ? 1 : i1 - i2);
+            }
+        });
+        // The selected attributes, in their original order
+        int[] selected = new int[Math.min(number, ranked.length)];
+        for(int j = 0; j < selected.length; j++) {
+            selected[j] = ranked[j];
+        }
+        Arrays.sort(selected);
+
+        System.out.println("Reducing Dimensionality");
+        writeReduced(train, rel, selected, trainFile.substring(0,trainFile.length()-4) + "-sample.arff");
+        train.close();
+        ColumnarDataSet test = ColumnarDataSet.open(new File(testFile));
+        writeReduced(test, test.getRelations().get(0), selected, testFile.substring(0,testFile.length()-4) + "-sample.arff");
+        test.close();
+    }
+
+    /** Entropy of the class, given the number of positive instances and all instances */
+    private static double entropy(int pos, int total) {
+        if(pos == 0 || pos == total)
+            return 0;
+        double p = (double)pos / total;
+        return -p * Math.log(p) / Math.log(2) - (1 - p) * Math.log(1 - p) / Math.log(2);
+    }
+
+    private static void writeReduced(ColumnarDataSet cds, String rel, int[] selected, String fileName) throws IOException {
+        List<String> attNames = cds.getAttributes(rel);
+        int[] newIndex = new int[attNames.size()];
+        Arrays.fill(newIndex, -1);
+        Vector<String> selectedNames = new Vector<String>();
+        for(int j = 0; j < selected.length; j++) {
+            newIndex[selected[j]] = j;
+            selectedNames.add(attNames.get(selected[j]));
+        }
+        PrintStream ps = new PrintStream(fileName);
+        ps.println("@relation '" + rel + "'");
+        for(String name : selectedNames) {
+            ps.println(new Attribute(name).toString());
+        }
+        ps.println("@attribute class {0,1}");
+        ps.println("@data");
+        Iterator<ColumnarDataSet.Row> rows = cds.rows(rel);
+        while(rows.hasNext()) {
+            ColumnarDataSet.Row row = rows.next();
+            StringBuilder sb = new StringBuilder("{");
+            for(int k = 0; k < row.numValues(); k++) {
+                if(newIndex[row.index(k)] >= 0) {
+                    if(sb.length() > 1)
+                        sb.append(",");
+                    sb.append(newIndex[row.index(k)]).append(" ").append(row.value(k));
+                }
+            }
+            if(row.classVal != 0) {
+                if(sb.length() > 1)
+                    sb.append(",");
+                sb.append(selected.length).append(" ").append((int)row.classVal);
+            }
+            ps.println(sb.append("}").toString());
+        }
+        ps.close();
+    }
     
 }
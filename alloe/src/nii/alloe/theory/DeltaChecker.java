@@ -0,0 +1,154 @@
+package nii.alloe.theory;
+import java.util.*;
+
+/**
+ * Checks for inconsistencies caused by changing a few links of a model. Only the
+ * rule instances which contain a changed link can have become inconsistent (or
+ * consistent), so only these are searched, by assigning the link to each term of
+ * each rule in turn and completing the assignment with
+ * {@link Logic#consistCheck(Model,Rule,int,InconsistentAction,Logic.CheckerCondition)}.
+ * <p>
+ * The checker can also keep the set of inconsistent rule instances of one model
+ * up to date as its links change, see {@link #trackViolations(Model)}.
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class DeltaChecker {
+    private final Logic logic;
+    private Model model;
+    private TreeSet<Rule> violations;
+    private HashMap<Integer, TreeSet<Rule>> violationsByLink;
+
+    /** Creates a new instance of DeltaChecker */
+    public DeltaChecker(Logic logic) {
+        this.logic = logic;
+    }
+
+    /**
+     * Search for inconsistencies in the rule instances which contain a link. The
+     * link may have been added or removed. As for
+     * {@link Logic#consistCheck(Model,InconsistentAction)}, inconsist.doAction(...)
+     * is called for each inconsistency found, however the search is not repeated if
+     * the action changes the model.
+     * @param m The model
+     * @param link The id of the link
+     * @param inconsist The action
+     * @return false if any action returned false
+     */
+    public boolean consistCheck(Model m, int link, InconsistentAction inconsist) {
+        String relation = m.relationByID(link);
+        int i = m.iByID(link);
+        int j = m.jByID(link);
+        boolean rval = true;
+        for(Rule r : logic.rules) {
+            for(int k = 0; k < r.length(); k++) {
+                if(!r.relations.get(k).equals(relation))
+                    continue;
+                Rule.Argument arg1 = r.terms.get(k)[0];
+                Rule.Argument arg2 = r.terms.get(k)[1];
+                boolean ihasAssign = arg1.hasAssignment();
+                boolean jhasAssign = arg2.hasAssignment();
+                if(r.tryAssign(k, i, j)) {
+                    rval = logic.consistCheck(m, r, 0, inconsist, Logic.INCONSISTENT) && rval;
+                    if(!ihasAssign)
+                        arg1.unsetAssignment();
+                    if(!jhasAssign && arg1 != arg2)
+                        arg2.unsetAssignment();
+                }
+            }
+        }
+        return rval;
+    }
+
+    /**
+     * Search for inconsistencies in the rule instances which contain any of a set of links
+     * @see #consistCheck(Model,int,InconsistentAction)
+     */
+    public boolean consistCheck(Model m, Collection<Integer> links, InconsistentAction inconsist) {
+        boolean rval = true;
+        for(int link : links) {
+            rval = consistCheck(m, link, inconsist) && rval;
+        }
+        return rval;
+    }
+
+    /**
+     * Start keeping the set of inconsistent rule instances of a model. This does a
+     * full check of the model, after which {@link #update(Collection)} should be
+     * called whenever links of the model are changed.
+     */
+    public void trackViolations(Model m) {
+        model = m;
+        violations = new TreeSet<Rule>();
+        violationsByLink = new HashMap<Integer, TreeSet<Rule>>();
+        logic.consistCheck(m, new ViolationCollector());
+    }
+
+    /**
+     * Update the inconsistent rule instances after some links of the tracked model
+     * have been added or removed
+     * @param links The ids of the changed links
+     * @throws IllegalStateException If no model is being tracked
+     */
+    public void update(Collection<Integer> links) {
+        if(model == null)
+            throw new IllegalStateException("No model is being tracked");
+        for(int link : links) {
+            TreeSet<Rule> touching = violationsByLink.get(link);
+            if(touching == null)
+                continue;
+            for(Rule r : new ArrayList<Rule>(touching)) {
+                if(r.isRuleSatisfied(model))
+                    removeViolation(r);
+            }
+        }
+        consistCheck(model, links, new ViolationCollector());
+    }
+
+    /**
+     * Update the inconsistent rule instances after a link of the tracked model has been
+     * added or removed
+     * @see #update(Collection)
+     */
+    public void update(int link) {
+        update(Collections.singleton(link));
+    }
+
+    /**
+     * @return The inconsistent rule instances of the tracked model (this set should not be modified)
+     */
+    public Set<Rule> getViolations() {
+        return Collections.unmodifiableSet(violations);
+    }
+
+    private void removeViolation(Rule r) {
+        violations.remove(r);
+        for(int k = 0; k < r.length(); k++) {
+            TreeSet<Rule> set = violationsByLink.get(model.id(r, k));
+            if(set != null) {
+                set.remove(r);
+                if(set.isEmpty())
+                    violationsByLink.remove(model.id(r, k));
+            }
+        }
+    }
+
+    private class ViolationCollector implements InconsistentAction {
+        public boolean doAction(Logic logic, Model m, Rule rule) {
+            if(violations.contains(rule))
+                return true;
+            Rule r = new Rule(rule);
+            violations.add(r);
+            for(int k = 0; k < r.length(); k++) {
+                int id = m.id(r, k);
+                TreeSet<Rule> set = violationsByLink.get(id);
+                if(set == null) {
+                    set = new TreeSet<Rule>();
+                    violationsByLink.put(id, set);
+                }
+                set.add(r);
+            }
+            return true;
+        }
+    }
+}
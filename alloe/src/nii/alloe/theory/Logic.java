@@ -10,6 +10,8 @@ import java.util.*;
  * @author John McCrae, National Institute of Informatics */
 
 public class Logic implements Serializable {
+    /** The value computed for earlier versions, so that saved logics can still be read */
+    private static final long serialVersionUID = -8950517029276858175L;
     /** The set of rules that constitute this logic */
     public LinkedList<Rule> rules;
     /** Names of relations used in the rules */
@@ -49,6 +51,24 @@ public class Logic implements Serializable {
         }
     }
     
+    private Logic() {
+    }
+    
+    /** Create a copy of this logic which can be used independently of it, for
+     * example by another thread. The rules are copied (see {@link Rule#createCopy()}),
+     * the sets and rule symbols are shared */
+    public Logic createCopy() {
+        Logic rval = new Logic();
+        rval.rules = new LinkedList<Rule>();
+        for(Rule r : rules) {
+            rval.rules.add(r.createCopy());
+        }
+        rval.sets = sets;
+        rval.ruleSymbols = ruleSymbols;
+        rval.threads = threads;
+        return rval;
+    }
+    
     private void loadFile(Reader reader) throws IllegalArgumentException, IOException {
         BufferedReader in = new BufferedReader(reader);
         //relationNames = new TreeMap<String,String>();
@@ -136,28 +156,39 @@ public class Logic implements Serializable {
      * When a inconsistency is found inconsist.doAction(...) is called, thus
      * this function can (and does) do a number of different things */
     public void consistCheck(Model m, InconsistentAction inconsist) {
+        if(threads > 1) {
+            new ParallelChecker(this, threads).check(m, inconsist, INCONSISTENT);
+            return;
+        }
         boolean finished;
         do{
             finished = true;
             Iterator<Rule> i = rules.iterator();
             
             while(i.hasNext()) {
-                finished = consistCheck(m, i.next(), 0, inconsist, new CheckerCondition() {
-                    public boolean check(int argument, Rule rule, Graph g, int i, int j) {
-                        return (argument < rule.premiseCount && g.isConnected(i,j)) ||
-                                (argument >= rule.premiseCount && !g.isConnected(i,j));
-                    }
-                    public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
-                })
+                finished = consistCheck(m, i.next(), 0, inconsist, INCONSISTENT)
                 && finished;
             }
         } while(!finished);
     }
     
+    /** The condition used by consistCheck: every premise is connected and no conclusion is */
+    static final OrderFreeCondition INCONSISTENT = new OrderFreeCondition() {
+        public boolean check(int argument, Rule rule, Graph g, int i, int j) {
+            return (argument < rule.premiseCount && g.isConnected(i,j)) ||
+                    (argument >= rule.premiseCount && !g.isConnected(i,j));
+        }
+        public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
+    };
+    
     /** Check the model for any case where we can assign a rule so that its premise
      * is satisfied. We then called premiseFound.doAction(...), similarly to
      * consistCheck, this function actually does several things */
     public void premiseSearch(Model m, InconsistentAction premiseFound) {
+        if(threads > 1) {
+            new ParallelChecker(this, threads).check(m, premiseFound, PREMISES);
+            return;
+        }
         boolean finished;
         do {
             finished = true;
@@ -165,18 +196,21 @@ public class Logic implements Serializable {
             Iterator<Rule> i = rules.iterator();
             
             while(i.hasNext()) {
-                finished = consistCheck(m, i.next(), 0, premiseFound, new CheckerCondition() {
-                    public boolean check(int argument, Rule rule, Graph g, int i, int j) {
-                        return (argument < rule.premiseCount && g.isConnected(i,j)) ||
-                                argument >= rule.premiseCount;
-                    }
-                    public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
-                })
+                finished = consistCheck(m, i.next(), 0, premiseFound, PREMISES)
                 && finished;
             }
         } while(!finished);
     }
     
+    /** The condition used by premiseSearch: every premise is connected */
+    static final OrderFreeCondition PREMISES = new OrderFreeCondition() {
+        public boolean check(int argument, Rule rule, Graph g, int i, int j) {
+            return (argument < rule.premiseCount && g.isConnected(i,j)) ||
+                    argument >= rule.premiseCount;
+        }
+        public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
+    };
+    
     /** Search for all rules that can resolve with a set of rule from the following set
      */
     public void findAllPotentialResolvers(Model model, Set<Integer> resolvePoints, Collection<Rule> potentialResolvers) {
@@ -200,7 +234,7 @@ public class Logic implements Serializable {
         }
     }
     
-    private class PotentialResolverCheck implements CheckerCondition {
+    private class PotentialResolverCheck implements OrderFreeCondition {
         int arg;
         public PotentialResolverCheck(int arg) { this.arg = arg; }
         public boolean check(int argument, Rule rule, Graph g, int i, int j) {
@@ -225,18 +259,118 @@ public class Logic implements Serializable {
         }
     }
     
-    /** The workhorse for both consistCheck and premiseCheck */
+    /** The workhorse for both consistCheck and premiseCheck. If the checker is an
+     * {@link OrderFreeCondition} and argument is 0, the terms are assigned in the
+     * cheapest order for the model (see {@link #joinOrder(Model,Rule,CheckerCondition)}),
+     * otherwise they are assigned in order from argument */
     public boolean consistCheck(Model m,
             Rule rule,
             int argument,
             InconsistentAction inconsist,
             CheckerCondition checker) {
-        if(argument == rule.length()) {
+        int[] order;
+        if(argument == 0 && checker instanceof OrderFreeCondition) {
+            order = joinOrder(m, rule, checker);
+        } else {
+            order = new int[rule.length() - argument];
+            for(int k = 0; k < order.length; k++)
+                order[k] = argument + k;
+        }
+        return consistCheck(m, rule, order, 0, inconsist, checker);
+    }
+    
+    /** A condition which only depends on the term it is given, so the terms of
+     * a rule may be assigned in any order */
+    public interface OrderFreeCondition extends CheckerCondition { }
+    
+    /**
+     * Choose the order to assign the terms of a rule in. The terms which must be
+     * connected are taken first (as they are in the rule), each time taking the
+     * term which is expected to have the fewest assignments given the arguments
+     * assigned by the terms before it. These are followed by the other terms, chosen
+     * in the same way. Rules with functional arguments are taken in order.
+     * @return The indexes of the terms in the order they should be assigned
+     */
+    public int[] joinOrder(Model m, Rule rule, CheckerCondition checker) {
+        int length = rule.length();
+        int[] order = new int[length];
+        for(int k = 0; k < length; k++) {
+            order[k] = k;
+            for(Rule.Argument a : rule.terms.get(k)) {
+                if(a instanceof Rule.FunctionalArgument)
+                    return order;
+            }
+        }
+        Set<Rule.Argument> assigned = new HashSet<Rule.Argument>();
+        for(Rule.Argument[] args : rule.terms) {
+            for(Rule.Argument a : args) {
+                if(a.hasAssignment())
+                    assigned.add(a);
+            }
+        }
+        boolean[] used = new boolean[length];
+        int connectCount = 0;
+        for(int k = 0; k < length; k++) {
+            if(checker.mustConnect(k, rule))
+                connectCount++;
+        }
+        for(int step = 0; step < length; step++) {
+            boolean connect = step < connectCount;
+            int best = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            for(int k = 0; k < length; k++) {
+                if(used[k] || checker.mustConnect(k, rule) != connect)
+                    continue;
+                double cost = assignmentCost(m, rule, k, connect, assigned);
+                if(best == -1 || cost < bestCost) {
+                    best = k;
+                    bestCost = cost;
+                }
+            }
+            used[best] = true;
+            order[step] = best;
+            assigned.add(rule.terms.get(best)[0]);
+            assigned.add(rule.terms.get(best)[1]);
+        }
+        return order;
+    }
+    
+    /** The expected number of assignments to a term, given the arguments already assigned */
+    private static double assignmentCost(Model m, Rule rule, int argument, boolean connect, Set<Rule.Argument> assigned) {
+        Rule.Argument[] args = rule.terms.get(argument);
+        int free = 0;
+        if(!assigned.contains(args[0]))
+            free++;
+        if(args[1] != args[0] && !assigned.contains(args[1]))
+            free++;
+        if(free == 0)
+            return 0.0;
+        double size;
+        if(connect) {
+            Graph g = m.graphs.get(rule.relations.get(argument));
+            int n = Math.max(m.getFullModelSize(), 1);
+            double links = g instanceof EquivalenceGraph ? n : g.linkCount();
+            size = free == 1 && args[1] != args[0] ? links / n : links;
+        } else {
+            size = free == 1 ? m.elems.size() : (double)m.elems.size() * m.elems.size();
+        }
+        // break ties towards binding as few arguments as possible
+        return 1.0 + size + free * 1e-6;
+    }
+    
+    private boolean consistCheck(Model m,
+            Rule rule,
+            int[] order,
+            int step,
+            InconsistentAction inconsist,
+            CheckerCondition checker) {
+        if(step == order.length) {
             if(inconsist != null)
                 return inconsist.doAction(this, m, rule);
             else
                 return rule.isRuleSatisfied(m);
         }
+        int argument = order[step];
         Graph g = m.graphs.get(rule.relations.get(argument));
         if(g == null) {
             System.err.println(rule.toString());
@@ -247,8 +381,33 @@ public class Logic implements Serializable {
         if(checker.mustConnect(argument, rule)) {
             boolean ihasAssign = rule.terms.get(argument)[0].hasAssignment();
             boolean jhasAssign = rule.terms.get(argument)[1].hasAssignment();
-            if(!ihasAssign || !jhasAssign) {
-                int n = m.getFullModelSize();
+            int n = m.getFullModelSize();
+            if(ihasAssign && !jhasAssign && g instanceof SpecificGraph) {
+                // Scan the row for links
+                SpecificGraph sg = (SpecificGraph)g;
+                int i = rule.terms.get(argument)[0].getAssignment();
+                if(i >= n)
+                    return rval;
+                for(int j = sg.nextConnected(i, 0); j >= 0; j = sg.nextConnected(i, j + 1)) {
+                    rval = tryAssignment(m, rule, order, step, i, j, ihasAssign, jhasAssign, inconsist, checker, g) && rval;
+                }
+            } else if(!ihasAssign && jhasAssign && (g instanceof SpecificGraph || g instanceof ProbabilityGraph)) {
+                // Scan the column for links
+                int j = rule.terms.get(argument)[1].getAssignment();
+                if(j >= n)
+                    return rval;
+                if(g instanceof SpecificGraph) {
+                    SpecificGraph sg = (SpecificGraph)g;
+                    for(int i = sg.nextConnectedTo(j, 0); i >= 0; i = sg.nextConnectedTo(j, i + 1)) {
+                        rval = tryAssignment(m, rule, order, step, i, j, ihasAssign, jhasAssign, inconsist, checker, g) && rval;
+                    }
+                } else {
+                    for(int i : ((ProbabilityGraph)g).columnRows(j)) {
+                        if(g.isConnected(i, j))
+                            rval = tryAssignment(m, rule, order, step, i, j, ihasAssign, jhasAssign, inconsist, checker, g) && rval;
+                    }
+                }
+            } else if(!ihasAssign || !jhasAssign) {
                 Iterator<Integer> i1 = g.iterator(n);
                 int assign = -1;
                 while(i1.hasNext()) {
@@ -270,20 +429,12 @@ public class Logic implements Serializable {
                                 return rval;
                         }
                     }
-                    if(checker.check(argument,rule,g,assign / n, assign % n)) {
-                        if(rule.tryAssign(argument, assign / n, assign % n)) {
-                            rval = consistCheck(m,rule,argument +1, inconsist, checker) && rval;
-                            if(!ihasAssign)
-                                rule.terms.get(argument)[0].unsetAssignment();
-                            if(!jhasAssign && rule.terms.get(argument)[0] != rule.terms.get(argument)[1])
-                                rule.terms.get(argument)[1].unsetAssignment();
-                        }
-                    }
+                    rval = tryAssignment(m, rule, order, step, assign / n, assign % n, ihasAssign, jhasAssign, inconsist, checker, g) && rval;
                 }
             } else {
                 if(checker.check(argument,rule,m.getGraphByName(rule.relations.get(argument)),
                         rule.terms.get(argument)[0].getAssignment(),rule.terms.get(argument)[1].getAssignment()))
-                    rval = consistCheck(m, rule, argument + 1,inconsist,checker);
+                    rval = consistCheck(m, rule, order, step + 1,inconsist,checker);
             }
         } else {
             if(rule.terms.get(argument)[0] == rule.terms.get(argument)[1] &&
@@ -295,7 +446,7 @@ public class Logic implements Serializable {
                         rule.terms.get(argument)[0].setAssignment(i);
                         
                         rval = consistCheck(m, rule,
-                                argument + 1,inconsist,checker) && rval;
+                                order, step + 1,inconsist,checker) && rval;
                         
                         rule.terms.get(argument)[0].unsetAssignment();
                     }
@@ -313,7 +464,7 @@ public class Logic implements Serializable {
                             rule.terms.get(argument)[1].setAssignment(j);
                             
                             rval = consistCheck(m, rule,
-                                    argument + 1,inconsist,checker) && rval;
+                                    order, step + 1,inconsist,checker) && rval;
                             rule.terms.get(argument)[0].unsetAssignment();
                             rule.terms.get(argument)[1].unsetAssignment();
                         }
@@ -327,7 +478,7 @@ public class Logic implements Serializable {
                     if(checker.check(argument,rule,g,i,j)) {
                         rule.terms.get(argument)[1].setAssignment(j);
                         
-                        rval = consistCheck(m, rule, argument + 1,inconsist,checker) && rval;
+                        rval = consistCheck(m, rule, order, step + 1,inconsist,checker) && rval;
                         rule.terms.get(argument)[1].unsetAssignment();
                     }
                 }
@@ -339,7 +490,7 @@ public class Logic implements Serializable {
                     if(checker.check(argument,rule,g,i,j)) {
                         rule.terms.get(argument)[0].setAssignment(i);
                         
-                        rval = consistCheck(m, rule, argument + 1,inconsist,checker) && rval;
+                        rval = consistCheck(m, rule, order, step + 1,inconsist,checker) && rval;
                         
                         rule.terms.get(argument)[0].unsetAssignment();
                     }
@@ -347,13 +498,32 @@ public class Logic implements Serializable {
             } else {
                 if(checker.check(argument,rule,m.getGraphByName(rule.relations.get(argument)),
                         rule.terms.get(argument)[0].getAssignment(),rule.terms.get(argument)[1].getAssignment()))
-                    rval = consistCheck(m, rule, argument + 1,inconsist,checker);
+                    rval = consistCheck(m, rule, order, step + 1,inconsist,checker);
             }
         }
         return rval;
         
     }
     
+    /** Assign a link to a term which must be connected, if the checker allows it, and
+     * check the rest of the rule */
+    private boolean tryAssignment(Model m, Rule rule, int[] order, int step, int i, int j,
+            boolean ihasAssign, boolean jhasAssign, InconsistentAction inconsist,
+            CheckerCondition checker, Graph g) {
+        int argument = order[step];
+        boolean rval = true;
+        if(checker.check(argument,rule,g,i,j)) {
+            if(rule.tryAssign(argument, i, j)) {
+                rval = consistCheck(m,rule,order,step + 1, inconsist, checker);
+                if(!ihasAssign)
+                    rule.terms.get(argument)[0].unsetAssignment();
+                if(!jhasAssign && rule.terms.get(argument)[0] != rule.terms.get(argument)[1])
+                    rule.terms.get(argument)[1].unsetAssignment();
+            }
+        }
+        return rval;
+    }
+    
     /** This function can also be used to save the logic */
     public String toString() {
         String rval = "";
@@ -449,7 +619,7 @@ public class Logic implements Serializable {
         }
     }
     
-    private class NegativeModelAction2 implements InconsistentAction {
+    class NegativeModelAction2 implements InconsistentAction {
         List<Integer> rv;
         public NegativeModelAction2(List<Integer> rv) {
             this.rv = rv;
@@ -465,6 +635,8 @@ public class Logic implements Serializable {
     
     public List<Integer> getNegativeModel(Model m) {
         Model model = m.createImmutableCopy();
+        if(threads > 1)
+            return new ParallelChecker(this, threads).getNegativeModel(model);
         List<Integer> rv = new LinkedList<Integer>();
         Iterator<Rule> ruleIter = rules.iterator();
         while(ruleIter.hasNext()) {
@@ -476,14 +648,46 @@ public class Logic implements Serializable {
                 //    }
                 //});
                 
-                consistCheck(model,rule,1, new NegativeModelAction2(rv), new CheckerCondition() {
-                    public boolean check(int argument, Rule r, Graph g, int i, int j) {
-                        return !g.mutable(i,j) && g.isConnected(i,j);
-                    }
-                    public boolean mustConnect(int arg, Rule r) { return true; }
-                });
+                consistCheck(model,rule,1, new NegativeModelAction2(rv), IMMUTABLE_CONNECTED);
             }
         }
         return rv;
     }
-}
\ No newline at end of file
+    
+    /** The condition used by getNegativeModel: every term is an immutable link */
+    static final CheckerCondition IMMUTABLE_CONNECTED = new CheckerCondition() {
+        public boolean check(int argument, Rule r, Graph g, int i, int j) {
+            return !g.mutable(i,j) && g.isConnected(i,j);
+        }
+        public boolean mustConnect(int arg, Rule r) { return true; }
+    };
+    
+    /**
+     * Holds value of property threads.
+     */
+    private int threads = 1;
+    
+    /**
+     * Getter for property threads.
+     * @return Number of threads used by consistCheck, premiseSearch, getCompulsoryModel and getNegativeModel.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+    
+    /**
+     * Setter for property threads. If this is more than one, the rules are searched in parallel
+     * and actions are called once the search has finished.
+     * @param threads Number of threads used by consistCheck, premiseSearch, getCompulsoryModel and getNegativeModel.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ois.defaultReadObject();
+        // Logics saved before threads was added have none
+        if(threads < 1)
+            threads = 1;
+    }
+}
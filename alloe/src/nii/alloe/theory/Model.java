@@ -95,9 +95,9 @@ public class Model extends AbstractSet<Integer> implements Serializable {
             if (g instanceof EquivalenceGraph || g instanceof MembershipGraph) {
                 rval.graphs.put(relID, g);
             } else if (g instanceof SpecificGraph) {
-                rval.graphs.put(relID, new SpecificGraph(getModelSize(), relID));
+                rval.graphs.put(relID, new SpecificGraph(getFullModelSize(), relID));
             } else if (g instanceof ProbabilityGraph) {
-                ProbabilityGraph pg = new ProbabilityGraph(getModelSize());
+                ProbabilityGraph pg = new ProbabilityGraph(getFullModelSize());
                 rval.graphs.put(relID, pg);
                 pg.setBaseVal(((ProbabilityGraph) g).getBaseValPos(),
                         ((ProbabilityGraph) g).getBaseValNeg());
@@ -341,10 +341,8 @@ public class Model extends AbstractSet<Integer> implements Serializable {
                     rval.relationIdx.add(rel);
                 }
             }
-            for (int id : m) {
-                String rel = m.relationByID(id);
-                int i = m.iByID(id);
-                int j = m.jByID(id);
+            // Add every graph, even if no model has a link in it
+            for (String rel : m.relationIdx) {
                 if (rval.graphs.get(rel) == null) {
                     Graph g = m.graphs.get(rel);
                     if (g instanceof EquivalenceGraph || g instanceof MembershipGraph) {
@@ -355,6 +353,11 @@ public class Model extends AbstractSet<Integer> implements Serializable {
                         rval.addProbabilityGraph(rel);
                     }
                 }
+            }
+            for (int id : m) {
+                String rel = m.relationByID(id);
+                int i = m.iByID(id);
+                int j = m.jByID(id);
                 if (rval.relationIdx.size() <= id / rval.getFullModelSize() / rval.getFullModelSize()) {
                     System.out.println("Oh noes!");
                 }
@@ -480,14 +483,27 @@ public class Model extends AbstractSet<Integer> implements Serializable {
 
         Graph g;
         TermList tl;
+        /** The index in tl of each term, by its id in the dictionary of the term pair set, or -2 if not yet found */
+        int[] index;
+        TermDictionary dictionary;
 
-        SetGraphAction(Graph g, TermList tl) {
+        SetGraphAction(Graph g, TermList tl, TermDictionary dictionary) {
             this.g = g;
             this.tl = tl;
+            this.dictionary = dictionary;
+            index = new int[dictionary.size()];
+            Arrays.fill(index, -2);
+        }
+
+        private int indexOf(String term) {
+            int id = dictionary.id(term);
+            if(index[id] == -2)
+                index[id] = tl.indexOf(term);
+            return index[id];
         }
 
         public void doAction(String term1, String term2) {
-            g.add(tl.indexOf(term1), tl.indexOf(term2));
+            g.add(indexOf(term1), indexOf(term2));
         }
     }
 
@@ -504,7 +520,7 @@ public class Model extends AbstractSet<Integer> implements Serializable {
             g.remove(i / getFullModelSize(), i % getFullModelSize());
         }
 
-        termPairs.forEachPair(new SetGraphAction(g, termList));
+        termPairs.forEachPair(new SetGraphAction(g, termList, termPairs.getDictionary()));
     }
 
     /**
@@ -853,6 +869,13 @@ public class Model extends AbstractSet<Integer> implements Serializable {
 
     private void readObject(java.io.ObjectInputStream ios) throws java.io.IOException, ClassNotFoundException {
         ios.defaultReadObject();
-        ProbabilityGraph.n = getFullModelSize();
+        // Graphs written before they held their own size take the size of the model
+        for (Graph g : graphs.values()) {
+            if (g instanceof ProbabilityGraph) {
+                ((ProbabilityGraph) g).readLegacy(getFullModelSize());
+            } else if (g instanceof SpecificGraph) {
+                ((SpecificGraph) g).readLegacy(getFullModelSize());
+            }
+        }
     }
 }
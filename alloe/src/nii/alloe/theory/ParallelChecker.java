@@ -0,0 +1,238 @@
+package nii.alloe.theory;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches the rules of a logic on several threads. Each rule is searched on
+ * copies of the rule (see {@link Rule#createCopy()}), and the assignments of the
+ * first term the rule is joined on are split between the copies. The assignments
+ * found are kept as arrays of values and merged in the order of the rules and of
+ * the parts of each rule, so the results do not depend on the scheduling of the
+ * threads. Actions are then called on the calling thread, as they may change the model.
+ *
+ * @see Logic#setThreads(int)
+ * @author John McCrae, National Institute of Informatics
+ */
+class ParallelChecker {
+    private final Logic logic;
+    private final int threads;
+
+    ParallelChecker(Logic logic, int threads) {
+        this.logic = logic;
+        this.threads = threads;
+    }
+
+    /**
+     * Call an action for every assignment of a rule which satisfies a condition, until
+     * every action returns true. As in the single-threaded search, once the model has
+     * been changed by an action, assignments which no longer satisfy the condition are skipped.
+     */
+    void check(Model m, InconsistentAction action, Logic.OrderFreeCondition checker) {
+        boolean finished;
+        do {
+            finished = true;
+            boolean changed = false;
+            Iterator<Assignments> found = findAll(m, checker).iterator();
+            for(Rule rule : logic.rules) {
+                Assignments assignments = found.next();
+                if(assignments == null) {
+                    if(!logic.consistCheck(m, rule, 0, action, checker)) {
+                        finished = false;
+                        changed = true;
+                    }
+                    continue;
+                }
+                List<Rule.Argument> args = freeArguments(rule);
+                int width = args.size();
+                for(int h = 0; h < assignments.size; h += width) {
+                    for(int k = 0; k < width; k++) {
+                        args.get(k).setAssignment(assignments.values[h + k]);
+                    }
+                    if(!changed || satisfies(m, rule, checker)) {
+                        if(!action.doAction(logic, m, rule)) {
+                            finished = false;
+                            changed = true;
+                        }
+                    }
+                    for(int k = 0; k < width; k++) {
+                        args.get(k).unsetAssignment();
+                    }
+                }
+            }
+        } while(!finished);
+    }
+
+    /**
+     * Find every assignment of each rule which satisfies a condition
+     * @return The values of the free arguments (see {@link #freeArguments(Rule)}) of each
+     * assignment, for each rule, or null for a rule which should not be searched in parallel
+     */
+    List<Assignments> findAll(final Model m, final Logic.OrderFreeCondition checker) {
+        Vector<Callable<Assignments>> tasks = new Vector<Callable<Assignments>>();
+        Vector<Integer> partCounts = new Vector<Integer>();
+        for(Rule rule : logic.rules) {
+            if(hasFunctionalArgument(rule)) {
+                partCounts.add(0);
+                continue;
+            }
+            int parts = rule.length() == 0 ? 1 : threads;
+            partCounts.add(parts);
+            for(int part = 0; part < parts; part++) {
+                final Rule copy = rule.createCopy();
+                final List<Rule.Argument> args = freeArguments(copy);
+                final PartCondition condition = new PartCondition(checker,
+                        copy.length() == 0 ? -1 : logic.joinOrder(m, copy, checker)[0], part, parts);
+                tasks.add(new Callable<Assignments>() {
+                    public Assignments call() {
+                        final Assignments found = new Assignments();
+                        logic.consistCheck(m, copy, 0, new InconsistentAction() {
+                            public boolean doAction(Logic logic, Model m, Rule rule) {
+                                for(Rule.Argument arg : args) {
+                                    found.add(arg.getAssignment());
+                                }
+                                return true;
+                            }
+                        }, condition);
+                        return found;
+                    }
+                });
+            }
+        }
+        Iterator<Assignments> results = invokeAll(tasks).iterator();
+        List<Assignments> rval = new ArrayList<Assignments>(partCounts.size());
+        for(int parts : partCounts) {
+            if(parts == 0) {
+                rval.add(null);
+                continue;
+            }
+            Assignments merged = results.next();
+            for(int part = 1; part < parts; part++) {
+                merged.addAll(results.next());
+            }
+            rval.add(merged);
+        }
+        return rval;
+    }
+
+    /** The arguments a search of the rule assigns, in the order they occur */
+    private static List<Rule.Argument> freeArguments(Rule rule) {
+        List<Rule.Argument> rval = new ArrayList<Rule.Argument>();
+        for(Rule.Argument[] args : rule.terms) {
+            for(Rule.Argument arg : args) {
+                if(!arg.hasAssignment() && !rval.contains(arg))
+                    rval.add(arg);
+            }
+        }
+        return rval;
+    }
+
+    private static boolean hasFunctionalArgument(Rule rule) {
+        for(Rule.Argument[] args : rule.terms) {
+            if(args[0] instanceof Rule.FunctionalArgument || args[1] instanceof Rule.FunctionalArgument)
+                return true;
+        }
+        return false;
+    }
+
+    /** The assignments found by a search, as a list of values */
+    static class Assignments {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if(size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(Assignments a) {
+            if(size + a.size > values.length)
+                values = Arrays.copyOf(values, Math.max(size + a.size, size * 2));
+            System.arraycopy(a.values, 0, values, size, a.size);
+            size += a.size;
+        }
+    }
+
+    /**
+     * Find the links which must be removed from a model, see {@link Logic#getNegativeModel(Model)}.
+     * Each rule is searched on its own thread.
+     */
+    List<Integer> getNegativeModel(final Model model) {
+        Vector<Callable<List<Integer>>> tasks = new Vector<Callable<List<Integer>>>();
+        for(Rule rule : logic.rules) {
+            if(rule.premiseCount != 1)
+                continue;
+            final Rule copy = rule.createCopy();
+            tasks.add(new Callable<List<Integer>>() {
+                public List<Integer> call() {
+                    List<Integer> rv = new LinkedList<Integer>();
+                    logic.consistCheck(model, copy, 1, logic.new NegativeModelAction2(rv), Logic.IMMUTABLE_CONNECTED);
+                    return rv;
+                }
+            });
+        }
+        List<Integer> rv = new LinkedList<Integer>();
+        for(List<Integer> found : invokeAll(tasks)) {
+            rv.addAll(found);
+        }
+        return rv;
+    }
+
+    /** Run the tasks and return their results in order */
+    private <T> List<T> invokeAll(Vector<Callable<T>> tasks) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Vector<Future<T>> futures = new Vector<Future<T>>(tasks.size());
+        for(Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        executor.shutdown();
+        List<T> rval = new ArrayList<T>(tasks.size());
+        try {
+            for(Future<T> f : futures) {
+                rval.add(f.get());
+            }
+        } catch(InterruptedException x) {
+            executor.shutdownNow();
+            throw new RuntimeException("Interrupted while checking rules");
+        } catch(ExecutionException x) {
+            executor.shutdownNow();
+            if(x.getCause() instanceof RuntimeException)
+                throw (RuntimeException)x.getCause();
+            throw new RuntimeException(x.getCause());
+        }
+        return rval;
+    }
+
+    /** Does an assigned rule still satisfy a condition */
+    private static boolean satisfies(Model m, Rule rule, Logic.CheckerCondition checker) {
+        for(int k = 0; k < rule.length(); k++) {
+            if(!checker.check(k, rule, m.graphs.get(rule.relations.get(k)),
+                    rule.terms.get(k)[0].getAssignment(), rule.terms.get(k)[1].getAssignment()))
+                return false;
+        }
+        return true;
+    }
+
+    /** Restricts the assignments of one term to one part of the links */
+    private static class PartCondition implements Logic.OrderFreeCondition {
+        private final Logic.CheckerCondition checker;
+        private final int term, part, parts;
+
+        PartCondition(Logic.CheckerCondition checker, int term, int part, int parts) {
+            this.checker = checker;
+            this.term = term;
+            this.part = part;
+            this.parts = parts;
+        }
+
+        public boolean check(int argument, Rule rule, Graph g, int i, int j) {
+            if(argument == term && ((i * 31 + j) & 0x7fffffff) % parts != part)
+                return false;
+            return checker.check(argument, rule, g, i, j);
+        }
+
+        public boolean mustConnect(int argument, Rule rule) {
+            return checker.mustConnect(argument, rule);
+        }
+    }
+}
@@ -4,84 +4,229 @@ import java.io.*;
 import nii.alloe.tools.process.Output;
 
 /**
- * Represents a matrix that contains probabilities of links
+ * Represents a matrix that contains probabilities of links. Only the links which
+ * have been given a value are stored, in an open-addressing hash table keyed by
+ * i * n + j, and the links of every column are chained together so a column can
+ * be read without scanning the table. All other links take the base value.
  */
 public class ProbabilityGraph implements Graph, Serializable {
-    static int n;
-    // TODO sort this out so we can have a sparse prob matrix
-    private TreeMap<Integer,Double> pm_pos;
-    private TreeMap<Integer,Double> pm_neg;
+    /** As computed for the form written before the values were held in a hash table */
+    private static final long serialVersionUID = 6633523442392201736L;
+    private int n;
+    /** The link (i * n + j) in each slot, or EMPTY */
+    private transient long[] keys;
+    private transient double[] pm_pos;
+    private transient double[] pm_neg;
+    /** The next slot in the same column, or -1 */
+    private transient int[] columnNext;
+    /** The first slot in each column, or -1 */
+    private transient int[] columnHead;
+    private transient int size;
+    /** The number of set values in each row/column */
+    private transient int[] rowEntries, columnEntries;
+    /** The number of set values in each row/column which are links */
+    private transient int[] rowLinks, columnLinks;
+    private transient int links;
     private double baseValPos, baseValNeg;
+    /** The values of a graph read in the old form, until the size of the graph is known */
+    private transient TreeMap<Integer,Double> legacyPos, legacyNeg;
     /** If attempts are made to set a prob value to 1 or zero, this value is used to avoid
      * -Infinitys appearing.*/
     public static final double MIN_PROB = -1e+99;
-    
+
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
      * Create a n x n probability matrix
      */
     ProbabilityGraph(int n) {
-        this.n = n;
-        pm_pos = new TreeMap<Integer,Double>();
-        pm_neg = new TreeMap<Integer,Double>();
+        init(n);
         baseValPos = 0;
         baseValNeg = MIN_PROB;
     }
-    
-    private ProbabilityGraph(int n, TreeMap<Integer,Double> pm_pos, TreeMap<Integer,Double> pm_neg, double baseValPos, double baseValNeg) {
+
+    /** Make an empty table for an n x n matrix */
+    private void init(int n) {
         this.n = n;
-        this.pm_pos = pm_pos;
-        this.pm_neg = pm_neg;
-        this.baseValPos = baseValPos;
-        this.baseValNeg = baseValNeg;
+        keys = new long[INITIAL_CAPACITY];
+        Arrays.fill(keys, EMPTY);
+        pm_pos = new double[INITIAL_CAPACITY];
+        pm_neg = new double[INITIAL_CAPACITY];
+        columnNext = new int[INITIAL_CAPACITY];
+        columnHead = new int[n];
+        Arrays.fill(columnHead, -1);
+        rowEntries = new int[n];
+        columnEntries = new int[n];
+        rowLinks = new int[n];
+        columnLinks = new int[n];
+    }
+
+    private ProbabilityGraph(ProbabilityGraph g) {
+        this.n = g.n;
+        this.keys = g.keys.clone();
+        this.pm_pos = g.pm_pos.clone();
+        this.pm_neg = g.pm_neg.clone();
+        this.columnNext = g.columnNext.clone();
+        this.columnHead = g.columnHead.clone();
+        this.size = g.size;
+        this.rowEntries = g.rowEntries.clone();
+        this.columnEntries = g.columnEntries.clone();
+        this.rowLinks = g.rowLinks.clone();
+        this.columnLinks = g.columnLinks.clone();
+        this.links = g.links;
+        this.baseValPos = g.baseValPos;
+        this.baseValNeg = g.baseValNeg;
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    /** @return the slot holding link (i,j) or -1 if it has no value */
+    private int slot(int i, int j) {
+        long key = (long)i * n + j;
+        int mask = keys.length - 1;
+        for(int s = hash(key, mask); ; s = (s + 1) & mask) {
+            if(keys[s] == key)
+                return s;
+            if(keys[s] == EMPTY)
+                return -1;
+        }
+    }
+
+    /** @return the slot holding link (i,j), adding a slot if needed */
+    private int insertSlot(int i, int j) {
+        if((size + 1) * 4 > keys.length * 3)
+            rehash(keys.length * 2);
+        long key = (long)i * n + j;
+        int mask = keys.length - 1;
+        int s = hash(key, mask);
+        for(; keys[s] != EMPTY; s = (s + 1) & mask) {
+            if(keys[s] == key)
+                return s;
+        }
+        keys[s] = key;
+        // Not a link until the caller sets its values
+        pm_pos[s] = MIN_PROB;
+        pm_neg[s] = 0.0;
+        columnNext[s] = columnHead[j];
+        columnHead[j] = s;
+        size++;
+        rowEntries[i]++;
+        columnEntries[j]++;
+        return s;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        double[] oldPos = pm_pos;
+        double[] oldNeg = pm_neg;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        pm_pos = new double[capacity];
+        pm_neg = new double[capacity];
+        columnNext = new int[capacity];
+        Arrays.fill(columnHead, -1);
+        int mask = capacity - 1;
+        for(int t = 0; t < oldKeys.length; t++) {
+            if(oldKeys[t] == EMPTY)
+                continue;
+            int s = hash(oldKeys[t], mask);
+            while(keys[s] != EMPTY)
+                s = (s + 1) & mask;
+            keys[s] = oldKeys[t];
+            pm_pos[s] = oldPos[t];
+            pm_neg[s] = oldNeg[t];
+            int j = (int)(oldKeys[t] % n);
+            columnNext[s] = columnHead[j];
+            columnHead[j] = s;
+        }
+    }
+
+    private void put(int i, int j, double p, double ng) {
+        int s = insertSlot(i, j);
+        boolean wasLink = pm_pos[s] > pm_neg[s];
+        pm_pos[s] = p;
+        pm_neg[s] = ng;
+        boolean isLink = p > ng;
+        if(wasLink != isLink) {
+            int d = isLink ? 1 : -1;
+            rowLinks[i] += d;
+            columnLinks[j] += d;
+            links += d;
+        }
     }
-    
+
+    private boolean baseConnected() {
+        return baseValPos > baseValNeg;
+    }
+
     public boolean isConnected(int i, int j) {
-        return posVal(i,j) > negVal(i,j);
+        if(i >= 0 && j >= 0) {
+            int s = slot(i, j);
+            return s < 0 ? baseConnected() : pm_pos[s] > pm_neg[s];
+        } else if(i >= 0) {
+            return rowLinks[i] > 0 || (baseConnected() && rowEntries[i] < n);
+        } else if(j >= 0) {
+            return columnLinks[j] > 0 || (baseConnected() && columnEntries[j] < n);
+        } else {
+            return linkCount() > 0;
+        }
     }
-    
+
     public boolean mutable(int i, int j) {
         return true;
     }
-    
+
     public void add(int i, int j) {
     //    Output.err.println("WARNING: Adding link (" + i + " -> " + j + " with absolute probability!");
         setVal(i,j,1);
     }
-    
+
     public void remove(int i, int j) {
      //   Output.err.println("WARNING: Adding link (" + i + " -> " + j + " with absolute probability!");
         setVal(i,j,0);
     }
 
-    
+
     public int linkCount() {
-        int rval = 0;
-        Iterator<Double> posIter = pm_pos.values().iterator();
-        Iterator<Double> negIter = pm_neg.values().iterator();
-        while(posIter.hasNext()) {
-            if(posIter.next() > negIter.next())
-                rval++;
-        }
+        int rval = links;
         if(baseValPos < baseValNeg) {
-            rval = rval + n * n  - pm_pos.size();
+            rval = rval + n * n  - size;
         }
         return rval;
     }
-    
+
+    /**
+     * The rows which have been given a value in a column
+     * @param j The column
+     * @return The rows i for which (i,j) does not take the base value
+     */
+    public int[] columnRows(int j) {
+        int[] rval = new int[columnEntries[j]];
+        int k = 0;
+        for(int s = columnHead[j]; s >= 0; s = columnNext[s]) {
+            rval[k++] = (int)(keys[s] / n);
+        }
+        Arrays.sort(rval);
+        return rval;
+    }
+
     public void dumpToDot(String dotFile) {
         try {
             PrintStream dot = new PrintStream(new FileOutputStream(dotFile));
             dot.println("digraph G {");
-            Iterator<Map.Entry<Integer,Double>> posIter = pm_pos.entrySet().iterator();
-            Iterator<Double> negIter = pm_neg.values().iterator();
-            while(posIter.hasNext()) {
-                Map.Entry<Integer,Double> e = posIter.next();
-                int i = e.getKey() % n;
-                int j = e.getKey() / n;
-                
-                dot.println("\tn"+i+" -> n"+j+" .get(label=\"" +
-                        (e.getValue() - negIter.next()) + "\");");
-                
+            for(int s = 0; s < keys.length; s++) {
+                if(keys[s] == EMPTY)
+                    continue;
+                int i = (int)(keys[s] / n);
+                int j = (int)(keys[s] % n);
+
+                dot.println("\tn"+i+" -> n"+j+" [label=\"" +
+                        (pm_pos[s] - pm_neg[s]) + "\"];");
+
             }
             dot.println("}");
             dot.close();
@@ -90,47 +235,43 @@ public class ProbabilityGraph implements Graph, Serializable {
             System.exit(0);
         }
     }
-    
+
     public Graph createCopy() {
-        return new ProbabilityGraph(n,new TreeMap<Integer,Double>(pm_pos), new TreeMap<Integer,Double>(pm_neg), baseValPos,baseValNeg);
+        return new ProbabilityGraph(this);
     }
-    
+
     /**
      * @return log(P_ij)
      */
     public double posVal(int i, int j) {
-        Double d = pm_pos.get(i*n+j);
-        if(d == null)
-            return baseValPos;
-        else 
-            return (double)d;
+        int s = slot(i, j);
+        return s < 0 ? baseValPos : pm_pos[s];
     }
-    
+
     /**
      * @return log(1 - P_ij)
      */
     public double negVal(int i, int j) {
-        Double d = pm_neg.get(i*n+j);
-        if(d == null)
-            return baseValNeg;
-        else
-            return (double)d;
+        int s = slot(i, j);
+        return s < 0 ? baseValNeg : pm_neg[s];
     }
-    
+
     /**
      * @return log(1 - P_ij) - log(P_ij)
      */
     public double addVal(int i, int j) {
-        return negVal(i,j) - posVal(i,j);
+        int s = slot(i, j);
+        return s < 0 ? baseValNeg - baseValPos : pm_neg[s] - pm_pos[s];
     }
-    
+
     /**
      * @return log(P_ij) - log(1 - P_ij)
      */
     public double removeVal(int i, int j) {
-        return posVal(i,j) - negVal(i,j);
+        int s = slot(i, j);
+        return s < 0 ? baseValPos - baseValNeg : pm_pos[s] - pm_neg[s];
     }
-    
+
     /**
      * Set the probablity value. Setting the value to zero will not remove a
      * value, neither will setting it to the base value.
@@ -138,31 +279,44 @@ public class ProbabilityGraph implements Graph, Serializable {
      */
     public void setVal(int i, int j, double prob) {
         if(prob > 0 && prob < 1) {
-            pm_pos.put(i*n+j,Math.log(prob));
-            pm_neg.put(i*n+j,Math.log(1 - prob));
+            put(i,j,Math.log(prob),Math.log(1 - prob));
         } else if(prob == 1) {
-            pm_pos.put(i*n+j,0.0);
-            pm_neg.put(i*n+j,MIN_PROB);
+            put(i,j,0.0,MIN_PROB);
         } else if(prob == 0) {
-            pm_pos.put(i*n+j,MIN_PROB);
-            pm_neg.put(i*n+j,0.0);
+            put(i,j,MIN_PROB,0.0);
         } else {
 	    throw new IllegalArgumentException("Non-probability value");
         }
     }
 
+    /**
+     * Set several probability values, as by {@link #setVal(int,int,double)}. The table is
+     * grown once for all the values.
+     * @param is The rows of the values
+     * @param js The columns of the values
+     * @param probs The probabilities
+     * @param count The number of values to set, from the start of the arrays
+     */
+    public void setVals(int[] is, int[] js, double[] probs, int count) {
+        int capacity = keys.length;
+        while((size + count) * 4 > capacity * 3)
+            capacity *= 2;
+        if(capacity != keys.length)
+            rehash(capacity);
+        for(int k = 0; k < count; k++) {
+            setVal(is[k], js[k], probs[k]);
+        }
+    }
+
     /**
      * Get the probability value.
      * Note it is stored as a logarithm, so there is no guarantee of an exact
      * conversion.
      */
     public double getVal(int i, int j) {
-        if(pm_pos.containsKey(i * n + j))
-            return Math.exp(pm_pos.get(i * n + j));
-        else
-            return Math.exp(baseValPos);
+        return Math.exp(posVal(i, j));
     }
-    
+
     /**
      * Set the two log probability values directly
      * @param p The positive value i.e. log(P_ij)
@@ -176,18 +330,17 @@ public class ProbabilityGraph implements Graph, Serializable {
                     + i + "," + j + ") do not sum to 1: p=" + p +
                     " n=" + ng + " sum to " + (Math.exp(p) + Math.exp(ng)));
         }
-        pm_pos.put(i*n+j,p);
-        pm_neg.put(i*n+j,ng);
+        put(i,j,p,ng);
     }
-    
+
     public double getBaseValPos() {
         return baseValPos;
     }
-    
+
     public double getBaseValNeg() {
         return baseValNeg;
     }
-    
+
     public void setBaseVal(double prob) {
         if(prob > 0 && prob < 1) {
             setBaseVal(Math.log(prob), Math.log(1-prob));
@@ -199,7 +352,7 @@ public class ProbabilityGraph implements Graph, Serializable {
             throw new IllegalArgumentException("Probability value should be between 0 and 1");
         }
     }
-    
+
     public void setBaseVal(double p, double ng) {
         if(Math.exp(p) + Math.exp(ng) < 0.99 ||
                 Math.exp(p) + Math.exp(ng) > 1.01 ||
@@ -210,7 +363,7 @@ public class ProbabilityGraph implements Graph, Serializable {
         baseValPos = p;
         baseValNeg = ng;
     }
-    
+
     /**
      * Deprecated prefer serialization
      */
@@ -220,8 +373,9 @@ public class ProbabilityGraph implements Graph, Serializable {
             for(int i = 0; i < n*n; i++) {
                 if(i%n == i/n)
                     continue;
-                p.printf("x %+d %1.9f %+d\n", (pm_pos.get(i) > Math.log(0.5) ? 1 : -1),
-                        Math.exp(pm_pos.get(i)), (g.isConnected(i/n,i%n) ? 1 : -1));
+                double pos = posVal(i/n,i%n);
+                p.printf("x %+d %1.9f %+d\n", (pos > Math.log(0.5) ? 1 : -1),
+                        Math.exp(pos), (g.isConnected(i/n,i%n) ? 1 : -1));
             }
             p.close();
         } catch(Exception x) {
@@ -229,38 +383,88 @@ public class ProbabilityGraph implements Graph, Serializable {
             System.exit(0);
         }
     }
-    
-    
+
+    /** The values which have been set are written after n and the base values, as a count
+     * followed by the link, positive and negative value of each */
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        oos.defaultWriteObject();
+        oos.writeInt(size);
+        for(int s = 0; s < keys.length; s++) {
+            if(keys[s] != EMPTY) {
+                oos.writeLong(keys[s]);
+                oos.writeDouble(pm_pos[s]);
+                oos.writeDouble(pm_neg[s]);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = ois.readFields();
+        baseValPos = fields.get("baseValPos", 0.0);
+        baseValNeg = fields.get("baseValNeg", MIN_PROB);
+        if(fields.getObjectStreamClass().getField("pm_pos") != null) {
+            // The old form held the values in tree maps and did not hold n, see readLegacy
+            legacyPos = (TreeMap<Integer,Double>)fields.get("pm_pos", null);
+            legacyNeg = (TreeMap<Integer,Double>)fields.get("pm_neg", null);
+            init(0);
+            return;
+        }
+        init(fields.get("n", 0));
+        int count = ois.readInt();
+        for(int k = 0; k < count; k++) {
+            long key = ois.readLong();
+            double p = ois.readDouble();
+            double ng = ois.readDouble();
+            put((int)(key / n), (int)(key % n), p, ng);
+        }
+    }
+
+    /** Complete a graph read in the form written before the values were held in a hash
+     * table. That form did not hold the size of the graph, which was that of the model
+     * holding it.
+     * @param n The full size of the model the graph was read with
+     */
+    void readLegacy(int n) {
+        if(legacyPos == null)
+            return;
+        init(n);
+        for(Map.Entry<Integer,Double> e : legacyPos.entrySet()) {
+            Double ng = legacyNeg.get(e.getKey());
+            put(e.getKey() / n, e.getKey() % n, e.getValue(), ng == null ? baseValNeg : ng);
+        }
+        legacyPos = null;
+        legacyNeg = null;
+    }
+
+    /**
+     * Iterates in order over the links which have been set and are connected
+     */
     public Iterator<Integer> iterator(int n) {
         if(this.n != n)
             throw new IllegalArgumentException();
-        return new PGIterator(pm_pos.keySet().iterator());
+        long[] linkKeys = new long[links];
+        int k = 0;
+        for(int s = 0; s < keys.length; s++) {
+            if(keys[s] != EMPTY && pm_pos[s] > pm_neg[s])
+                linkKeys[k++] = keys[s];
+        }
+        Arrays.sort(linkKeys);
+        return new PGIterator(linkKeys);
     }
-    
-    private class PGIterator implements Iterator<Integer> {
+
+    private static class PGIterator implements Iterator<Integer> {
+        final long[] linkKeys;
         int idx;
-        Iterator<Integer> baseIter;
-        PGIterator(Iterator<Integer> baseIter) {
-            this.baseIter = baseIter;
-            while(baseIter.hasNext()) {
-                idx = baseIter.next();
-                if(pm_pos.get(idx) > pm_neg.get(idx))
-                    return;
-            }
-            idx = -1;
+        PGIterator(long[] linkKeys) {
+            this.linkKeys = linkKeys;
         }
-        
+
         public Integer next() {
-            Integer rv = idx;
-            while(baseIter.hasNext()) {
-                idx = baseIter.next();
-                if(pm_pos.get(idx) > pm_neg.get(idx))
-                    return rv;
-            }
-            idx = -1;
-            return rv;
+            if(idx >= linkKeys.length)
+                throw new NoSuchElementException();
+            return (int)linkKeys[idx++];
         }
-        public boolean hasNext() { return idx >= 0; }
+        public boolean hasNext() { return idx < linkKeys.length; }
         public void remove() { throw new UnsupportedOperationException("Cannot remove from PGIterator"); }
     }
 }
@@ -19,6 +19,8 @@ import nii.alloe.consist.ConsistProblem;
  * NB Skolemized arguments are not yet implemented either
  */
 public class Rule implements Comparable<Rule>, java.io.Serializable {
+    /** The value computed for earlier versions, so that saved rules can still be read */
+    private static final long serialVersionUID = -80323853599127324L;
     /** The list of relationship names for each term */
     transient public Vector<String> relations;
     /** The arguments of each term. The array is always two-dimensional */
@@ -331,6 +333,50 @@ public class Rule implements Comparable<Rule>, java.io.Serializable {
         return newRule;
     }
     
+    /**
+     * Create a copy of this rule which can be searched independently of it, for
+     * example by another thread. Unlike {@link #Rule(Rule)} an argument which occurs
+     * in several terms is a single argument in the copy, and the arguments belong
+     * to the copy. Assignments are copied.
+     */
+    public Rule createCopy() {
+        Rule rval = new Rule();
+        rval.ruleSymbols = ruleSymbols;
+        rval.premiseCount = premiseCount;
+        rval.relations = (Vector<String>)relations.clone();
+        rval.terms = new Vector<Argument[]>(length());
+        IdentityHashMap<Argument,Argument> copies = new IdentityHashMap<Argument,Argument>();
+        for(Argument[] args : terms) {
+            rval.terms.add(new Argument[] { rval.copyArgument(args[0], copies), rval.copyArgument(args[1], copies) });
+        }
+        for(Argument arg : copies.values()) {
+            rval.arguments.put(arg, arg);
+        }
+        return rval;
+    }
+    
+    /** Copy an argument of another rule into this rule */
+    private Argument copyArgument(Argument arg, IdentityHashMap<Argument,Argument> copies) {
+        Argument rval = copies.get(arg);
+        if(rval != null)
+            return rval;
+        if(arg instanceof ConstantArgument) {
+            rval = new ConstantArgument(arg.assignment);
+        } else if(arg instanceof FunctionalArgument) {
+            Argument[] functionArgs = ((FunctionalArgument)arg).functionArgs;
+            Argument[] newArgs = new Argument[functionArgs.length];
+            for(int i = 0; i < functionArgs.length; i++) {
+                newArgs[i] = copyArgument(functionArgs[i], copies);
+            }
+            rval = new FunctionalArgument(arg.id, newArgs);
+            rval.assignment = arg.assignment;
+        } else {
+            rval = new Argument(arg);
+        }
+        copies.put(arg, rval);
+        return rval;
+    }
+    
     private Argument[] cloneArgPair(Argument[] args) {
         Argument[] rval = new Argument[2];
         rval[0] = new Argument(args[0]);
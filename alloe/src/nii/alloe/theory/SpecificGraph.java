@@ -4,108 +4,384 @@ import java.util.*;
 import java.io.*;
 
 /**
- * A graph with no weights on each link.
+ * A graph with no weights on each link. For small graphs the links are held as a single
+ * row-major bitmap (each row starting on a new word). For larger graphs each row holds its
+ * links as a sorted array of columns, which is changed to a bitmap of the row only once the
+ * array would be larger than the bitmap, so a graph of n elements with a few links from each
+ * uses memory in proportion to its links rather than to n * n. The transpose is kept in the
+ * same way, so that a column can be scanned as quickly as a row. The number of links in each
+ * row and column is kept, so checking whether an element has any link is O(1).
  *
  * @see Graph
  */
 
 public class SpecificGraph implements Graph, Serializable {
+    /** As computed for the form written before the links were held as bitmaps */
+    private static final long serialVersionUID = 5612744600828628440L;
     public String relation;
-    private TreeSet<Integer> links;
-    private static int n;
-    
+    private int n;
+    /** The links, by row */
+    private Lines rows;
+    /** The links, by column */
+    private transient Lines columns;
+    private transient int[] rowCount;
+    private transient int[] columnCount;
+    private transient int linkCount;
+    private transient int modCount;
+    /** The links of a graph read in the old form, until the size of the graph is known */
+    private transient TreeSet<Integer> legacyLinks;
+
+    /** Graphs with at most this many elements are stored as a single bitmap */
+    static final int DENSE_LIMIT = 2048;
+
+    /** The set bits of each of n lines of n bits. If n is at most DENSE_LIMIT this is a single
+     * bitmap, otherwise each line is a sorted array of its bits until the array would be larger
+     * than a bitmap of the line, then a bitmap until it falls to half that size. */
+    private static class Lines implements Serializable {
+        private static final long serialVersionUID = 8120443117542712386L;
+        final int n;
+        final int words;
+        /** The most bits a line may have before it is held as a bitmap */
+        final int arrayLimit;
+        /** The bits as a single bitmap, or null if stored by line */
+        long[] dense;
+        /** The bitmap of each line, or null if the line is held as an array or is empty */
+        long[][] bitmaps;
+        /** The sorted bits of each line, or null if the line is held as a bitmap or is empty */
+        int[][] arrays;
+        /** The number of bits set in each line, if stored by line */
+        int[] sizes;
+
+        Lines(int n) {
+            this.n = n;
+            this.words = (n + 63) >>> 6;
+            this.arrayLimit = Math.max(2 * words, 8);
+            if(n <= DENSE_LIMIT) {
+                dense = new long[n * words];
+            } else {
+                bitmaps = new long[n][];
+                arrays = new int[n][];
+                sizes = new int[n];
+            }
+        }
+
+        Lines(Lines l) {
+            this.n = l.n;
+            this.words = l.words;
+            this.arrayLimit = l.arrayLimit;
+            if(l.dense != null) {
+                dense = l.dense.clone();
+            } else {
+                bitmaps = new long[n][];
+                arrays = new int[n][];
+                sizes = l.sizes.clone();
+                for(int i = 0; i < n; i++) {
+                    if(l.bitmaps[i] != null)
+                        bitmaps[i] = l.bitmaps[i].clone();
+                    if(l.arrays[i] != null)
+                        arrays[i] = Arrays.copyOf(l.arrays[i], sizes[i]);
+                }
+            }
+        }
+
+        boolean get(int i, int j) {
+            if(dense != null)
+                return ((dense[i * words + (j >>> 6)] >>> (j & 63)) & 1L) != 0;
+            if(bitmaps[i] != null)
+                return ((bitmaps[i][j >>> 6] >>> (j & 63)) & 1L) != 0;
+            return arrays[i] != null && Arrays.binarySearch(arrays[i], 0, sizes[i], j) >= 0;
+        }
+
+        /** @return true if the bit was not already set */
+        boolean set(int i, int j) {
+            long bit = 1L << (j & 63);
+            if(dense != null) {
+                int w = i * words + (j >>> 6);
+                if((dense[w] & bit) != 0)
+                    return false;
+                dense[w] |= bit;
+                return true;
+            }
+            if(bitmaps[i] == null) {
+                int[] array = arrays[i];
+                int size = sizes[i];
+                int k = array == null ? -1 : Arrays.binarySearch(array, 0, size, j);
+                if(k >= 0)
+                    return false;
+                if(size < arrayLimit) {
+                    k = -k - 1;
+                    if(array == null) {
+                        array = arrays[i] = new int[4];
+                    } else if(size == array.length) {
+                        array = arrays[i] = Arrays.copyOf(array, Math.min(2 * size, arrayLimit));
+                    }
+                    System.arraycopy(array, k, array, k + 1, size - k);
+                    array[k] = j;
+                    sizes[i]++;
+                    return true;
+                }
+                toBitmap(i);
+            }
+            long[] bitmap = bitmaps[i];
+            if((bitmap[j >>> 6] & bit) != 0)
+                return false;
+            bitmap[j >>> 6] |= bit;
+            sizes[i]++;
+            return true;
+        }
+
+        /** @return true if the bit was set */
+        boolean clear(int i, int j) {
+            long bit = 1L << (j & 63);
+            if(dense != null) {
+                int w = i * words + (j >>> 6);
+                if((dense[w] & bit) == 0)
+                    return false;
+                dense[w] &= ~bit;
+                return true;
+            }
+            if(bitmaps[i] != null) {
+                long[] bitmap = bitmaps[i];
+                if((bitmap[j >>> 6] & bit) == 0)
+                    return false;
+                bitmap[j >>> 6] &= ~bit;
+                if(--sizes[i] <= arrayLimit / 2)
+                    toArray(i);
+                return true;
+            }
+            int[] array = arrays[i];
+            int k = array == null ? -1 : Arrays.binarySearch(array, 0, sizes[i], j);
+            if(k < 0)
+                return false;
+            System.arraycopy(array, k + 1, array, k, sizes[i] - k - 1);
+            if(--sizes[i] == 0)
+                arrays[i] = null;
+            return true;
+        }
+
+        private void toBitmap(int i) {
+            long[] bitmap = new long[words];
+            for(int k = 0; k < sizes[i]; k++) {
+                int j = arrays[i][k];
+                bitmap[j >>> 6] |= 1L << (j & 63);
+            }
+            bitmaps[i] = bitmap;
+            arrays[i] = null;
+        }
+
+        private void toArray(int i) {
+            int[] array = new int[Math.max(sizes[i], 4)];
+            int k = 0;
+            for(int j = next(i, 0); j >= 0; j = next(i, j + 1)) {
+                array[k++] = j;
+            }
+            arrays[i] = sizes[i] == 0 ? null : array;
+            bitmaps[i] = null;
+        }
+
+        /** Set every bit of line i */
+        void fill(int i) {
+            long[] bitmap;
+            if(dense != null) {
+                bitmap = dense;
+            } else {
+                bitmap = bitmaps[i] = new long[words];
+                arrays[i] = null;
+                sizes[i] = n;
+            }
+            int base = dense != null ? i * words : 0;
+            for(int w = 0; w < words; w++) {
+                int bits = n - (w << 6);
+                bitmap[base + w] = bits >= 64 ? -1L : (1L << bits) - 1;
+            }
+        }
+
+        /** Clear every bit of line i */
+        void release(int i) {
+            if(dense != null) {
+                Arrays.fill(dense, i * words, (i + 1) * words, 0L);
+            } else {
+                bitmaps[i] = null;
+                arrays[i] = null;
+                sizes[i] = 0;
+            }
+        }
+
+        /** The first bit of line i at or after j, or -1 if there is none */
+        int next(int i, int j) {
+            if(j >= n)
+                return -1;
+            long[] bitmap;
+            int base;
+            if(dense != null) {
+                bitmap = dense;
+                base = i * words;
+            } else if(bitmaps[i] != null) {
+                bitmap = bitmaps[i];
+                base = 0;
+            } else {
+                int[] array = arrays[i];
+                if(array == null)
+                    return -1;
+                int k = Arrays.binarySearch(array, 0, sizes[i], j);
+                k = k < 0 ? -k - 1 : k;
+                return k < sizes[i] ? array[k] : -1;
+            }
+            int w = j >>> 6;
+            long bits = bitmap[base + w] & (-1L << (j & 63));
+            while(bits == 0) {
+                if(++w == words)
+                    return -1;
+                bits = bitmap[base + w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+    }
+
     SpecificGraph(int n, String relation) {
-        this.n = n;
         this.relation = relation;
-        links = new TreeSet<Integer>();
+        init(n);
     }
-    
-    private SpecificGraph(int n, String relation, TreeSet<Integer> links) {
+
+    /** Make an empty n x n graph */
+    private void init(int n) {
         this.n = n;
-        this.relation = relation;
-        this.links = links;
+        rows = new Lines(n);
+        columns = new Lines(n);
+        rowCount = new int[n];
+        columnCount = new int[n];
+        linkCount = 0;
+    }
+
+    private SpecificGraph(SpecificGraph g) {
+        this.n = g.n;
+        this.relation = g.relation;
+        rows = new Lines(g.rows);
+        columns = new Lines(g.columns);
+        rowCount = g.rowCount.clone();
+        columnCount = g.columnCount.clone();
+        linkCount = g.linkCount;
     }
-    
+
+    private void addLink(int i, int j) {
+        if(rows.set(i, j)) {
+            columns.set(j, i);
+            rowCount[i]++;
+            columnCount[j]++;
+            linkCount++;
+            modCount++;
+        }
+    }
+
+    private void removeLink(int i, int j) {
+        if(rows.clear(i, j)) {
+            columns.clear(j, i);
+            columnCount[j]--;
+            rowCount[i]--;
+            linkCount--;
+            modCount++;
+        }
+    }
+
+    private void addRow(int i) {
+        if(rowCount[i] == n)
+            return;
+        int linked = rows.next(i, 0);
+        for(int j = 0; j < n; j++) {
+            if(j == linked) {
+                linked = rows.next(i, j + 1);
+            } else {
+                columns.set(j, i);
+                columnCount[j]++;
+            }
+        }
+        rows.fill(i);
+        linkCount += n - rowCount[i];
+        rowCount[i] = n;
+        modCount++;
+    }
+
+    private void removeRow(int i) {
+        if(rowCount[i] == 0)
+            return;
+        for(int j = rows.next(i, 0); j >= 0; j = rows.next(i, j + 1)) {
+            columns.clear(j, i);
+            columnCount[j]--;
+        }
+        rows.release(i);
+        linkCount -= rowCount[i];
+        rowCount[i] = 0;
+        modCount++;
+    }
+
     public void makeRandom(double prob) {
         Random r = new Random();
-        
-        for(int i = 0; i < n * n; i++) {
-            if(r.nextDouble() <= prob) {
-                links.add(i);
-            } else {
-                links.remove(i);
+
+        for(int i = 0; i < n; i++) {
+            for(int j = 0; j < n; j++) {
+                if(r.nextDouble() <= prob) {
+                    addLink(i, j);
+                } else {
+                    removeLink(i, j);
+                }
             }
         }
     }
-    
+
     public boolean mutable(int i, int j) {
             return true;
     }
-    
+
     public boolean isConnected(int i, int j) {
         if(i >= 0 && j >= 0) {
-            return links.contains(i * n + j);
+            return rows.get(i, j);
         } else if(i >= 0) {
-            for(j = 0; j < n; j++) {
-                if(links.contains(i * n + j))
-                    return true;
-            }
-            return false;
+            return rowCount[i] > 0;
         } else if(j >= 0) {
-            for(i = 0; i < n; i++) {
-                if(links.contains(i * n + j))
-                    return true;
-            }
-            return false;
+            return columnCount[j] > 0;
         } else {
             return linkCount() > 0;
         }
     }
-    
+
     public void add(int i, int j) {
         //System.out.println("Adding: " + i + " -> " + j);
         if(i >= 0 && j >= 0) {
-            links.add(i * n + j);
+            addLink(i, j);
         } else if(i >= 0) {
-            for(j = 0; j < n; j++) {
-                links.add(i * n + j);
-            }
+            addRow(i);
         } else if(j >= 0) {
             for(i = 0; i < n; i++) {
-                links.add(i * n + j);
+                addLink(i, j);
             }
         } else {
             for(i = 0; i < n; i++) {
-                for(j = 0; j < n; j++) {
-                    links.add(i * n + j);
-                }
+                addRow(i);
             }
         }
 
     }
-    
+
     public void remove(int i, int j) {
         //System.out.println("Removing: " + i + " -> " + j);
         if(i >= 0 && j >= 0) {
-            links.remove(i * n + j);
+            removeLink(i, j);
         } else if(i >= 0) {
-            for(j = 0; j < n; j++) {
-                links.remove(i * n + j);
-            }
+            removeRow(i);
         } else if(j >= 0) {
+            if(columnCount[j] == 0)
+                return;
             for(i = 0; i < n; i++) {
-                links.remove(i * n + j);
+                removeLink(i, j);
             }
         } else {
             for(i = 0; i < n; i++) {
-                for(j = 0; j < n; j++) {
-                    links.remove(i * n + j);
-                }
+                removeRow(i);
             }
         }
 
     }
-  
+
     public void setVal(int i, int j, double val) {
 	if(val == 1) {
 	    add(i,j);
@@ -119,11 +395,57 @@ public class SpecificGraph implements Graph, Serializable {
     public double getVal(int i, int j) {
 	return isConnected(i,j) ?  1.0 : 0.0;
     }
-  
+
     public int linkCount() {
-        return links.size();
+        return linkCount;
+    }
+
+    /** @return the number of links from element i */
+    public int rowLinkCount(int i) {
+        return rowCount[i];
+    }
+
+    /** @return the number of links to element j */
+    public int columnLinkCount(int j) {
+        return columnCount[j];
+    }
+
+    /** Find the next link from an element
+     * @param i The element
+     * @param j The first element to check for a link to
+     * @return The first element at or after j which i is connected to, or -1 if there is none
+     */
+    public int nextConnected(int i, int j) {
+        if(j >= n || rowCount[i] == 0)
+            return -1;
+        return rows.next(i, j);
     }
-    
+
+    /** Find the next link to an element
+     * @param j The element
+     * @param i The first element to check for a link from
+     * @return The first element at or after i which is connected to j, or -1 if there is none
+     */
+    public int nextConnectedTo(int j, int i) {
+        if(i >= n || columnCount[j] == 0)
+            return -1;
+        return columns.next(j, i);
+    }
+
+    /** The index (i * n + j) of the first link at or after index */
+    private int nextLink(int index) {
+        if(n == 0)
+            return -1;
+        int i = index / n;
+        int j = index % n;
+        for(; i < n; i++, j = 0) {
+            int next = nextConnected(i, j);
+            if(next >= 0)
+                return i * n + next;
+        }
+        return -1;
+    }
+
     public void dumpToDot(String dotFile) {
         try {
             PrintStream dot = new PrintStream(new FileOutputStream(dotFile));
@@ -143,13 +465,74 @@ public class SpecificGraph implements Graph, Serializable {
         }
     }
 
-    
+    /** The links in order. As for a TreeSet, the iterator throws a ConcurrentModificationException
+     * if a link is added or removed other than through the iterator */
     public Iterator<Integer> iterator(int n) {
         if(this.n != n)
             throw new IllegalArgumentException();
-        else
-            return links.iterator();
+        return new Iterator<Integer>() {
+            int next = nextLink(0);
+            int last = -1;
+            int expectedModCount = modCount;
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public Integer next() {
+                if(modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                if(next < 0)
+                    throw new NoSuchElementException();
+                last = next;
+                next = nextLink(last + 1);
+                return last;
+            }
+
+            public void remove() {
+                if(last < 0)
+                    throw new IllegalStateException();
+                if(modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                int size = SpecificGraph.this.n;
+                removeLink(last / size, last % size);
+                expectedModCount = modCount;
+                last = -1;
+            }
+        };
+    }
+
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = ois.readFields();
+        relation = (String)fields.get("relation", null);
+        if(fields.getObjectStreamClass().getField("links") != null) {
+            // The old form held the links (i * n + j) in a tree set and did not hold n, see readLegacy
+            legacyLinks = (TreeSet<Integer>)fields.get("links", null);
+            init(0);
+            return;
+        }
+        Lines read = (Lines)fields.get("rows", null);
+        init(fields.get("n", 0));
+        for(int i = 0; i < n; i++) {
+            for(int j = read.next(i, 0); j >= 0; j = read.next(i, j + 1)) {
+                addLink(i, j);
+            }
+        }
     }
-    
-    public Graph createCopy() { return new SpecificGraph(n,relation,new TreeSet<Integer>(links)); }
-};
\ No newline at end of file
+
+    /** Complete a graph read in the form written before the links were held as bitmaps.
+     * That form did not hold the size of the graph, which was that of the model holding it.
+     * @param n The full size of the model the graph was read with
+     */
+    void readLegacy(int n) {
+        if(legacyLinks == null)
+            return;
+        init(n);
+        for(int link : legacyLinks) {
+            addLink(link / n, link % n);
+        }
+        legacyLinks = null;
+    }
+
+    public Graph createCopy() { return new SpecificGraph(this); }
+};
@@ -31,6 +31,10 @@ public class ClassifySuite extends TestCase {
     public static Test suite() {
         TestSuite suite = new TestSuite("ClassifySuite");
         suite.addTest(nii.alloe.classify.DataSetTest.suite());
+        suite.addTest(nii.alloe.classify.ColumnarDataSetTest.suite());
+        suite.addTest(nii.alloe.classify.SparseLogisticRegressionTest.suite());
+        suite.addTest(nii.alloe.classify.FeatureVectorFormerTest.suite());
+        suite.addTest(nii.alloe.classify.ProbModelBuilderTest.suite());
         return suite;
     }
     
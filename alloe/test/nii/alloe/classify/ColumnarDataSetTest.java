@@ -0,0 +1,145 @@
+/*
+ * ColumnarDataSetTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.classify;
+
+import junit.framework.*;
+import nii.alloe.corpus.TermList;
+import java.util.*;
+import java.io.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ColumnarDataSetTest extends TestCase {
+    TermList termList;
+    File file;
+
+    public ColumnarDataSetTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        termList = new TermList();
+        termList.add("term1");
+        termList.add("term2");
+        termList.add("term3");
+        file = File.createTempFile("alloe", ".cfv");
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ColumnarDataSetTest.class);
+
+        return suite;
+    }
+
+    private void writeInstances() throws IOException {
+        DataSetWriter writer = new DataSetWriter(file, termList);
+        writer.prepRelation("relation", Arrays.asList("att1", "att2", "att3").iterator());
+        writer.addInstance("relation", 0, 1, new int[] { 0, 2 }, new double[] { 1.0, 2.5 }, 2, 1);
+        writer.addInstance("relation", "term2", "term3", new int[] { 1 }, new double[] { 3.0 }, 1, 0);
+        writer.addNonOccInstance("relation", 2, 0);
+        writer.close();
+    }
+
+    /**
+     * Test of rows method, of class nii.alloe.classify.ColumnarDataSet.
+     */
+    public void testRows() throws Exception {
+        System.out.println("rows");
+        writeInstances();
+        assertTrue(ColumnarDataSet.isColumnar(file));
+        ColumnarDataSet instance = ColumnarDataSet.open(file);
+        assertEquals(Arrays.asList("relation"), instance.getRelations());
+        assertEquals(Arrays.asList("att1", "att2", "att3"), instance.getAttributes("relation"));
+        assertEquals(3, instance.getTermSet().size());
+        assertEquals(2, instance.numInstances("relation"));
+        Iterator<ColumnarDataSet.Row> iter = instance.rows("relation");
+        ColumnarDataSet.Row row = iter.next();
+        assertEquals(0, row.term1);
+        assertEquals(1, row.term2);
+        assertEquals(1.0, row.classVal);
+        assertEquals(2, row.numValues());
+        assertEquals(2, row.index(1));
+        assertEquals(2.5, row.value(1));
+        row = iter.next();
+        assertEquals(2, row.term2);
+        assertEquals(1, row.index(0));
+        assertFalse(iter.hasNext());
+        assertEquals(1, instance.getNonOccTermPairs("relation").size());
+        instance.close();
+    }
+
+    /**
+     * Test of appending with DataSetWriter, of class nii.alloe.classify.ColumnarDataSet.
+     */
+    public void testAppend() throws Exception {
+        System.out.println("append");
+        writeInstances();
+        termList.add("term4");
+        DataSetWriter writer = new DataSetWriter(file, termList, true);
+        writer.addInstance("relation", 3, 0, new int[0], new double[0], 0, 0);
+        writer.close();
+        ColumnarDataSet instance = ColumnarDataSet.open(file);
+        assertEquals(3, instance.numInstances("relation"));
+        assertEquals("term4", instance.getTermSet().get(3));
+        DataSet dataSet = instance.toDataSet();
+        assertEquals(3, dataSet.instances.get("relation").numInstances());
+        assertEquals(termList.get(3) + DataSet.glue + termList.get(0), dataSet.getTerms("relation").get(2));
+        instance.close();
+    }
+
+    /**
+     * Test that DataSetWriter does not append with a term list that does not extend the file's.
+     */
+    public void testAppendOtherTerms() throws Exception {
+        System.out.println("appendOtherTerms");
+        writeInstances();
+        TermList shorter = new TermList();
+        shorter.add("term1");
+        shorter.add("term2");
+        TermList reordered = new TermList();
+        reordered.add("term1");
+        reordered.add("term3");
+        reordered.add("term2");
+        reordered.add("term4");
+        for(TermList terms : Arrays.asList(shorter, reordered)) {
+            try {
+                new DataSetWriter(file, terms, true);
+                fail("Appended with " + terms);
+            } catch(IllegalArgumentException x) {
+            }
+        }
+        // The file is unchanged
+        ColumnarDataSet instance = ColumnarDataSet.open(file);
+        assertEquals(2, instance.numInstances("relation"));
+        assertEquals(termList, instance.getTermSet());
+        instance.close();
+    }
+
+    /**
+     * Test of writeARFF method, of class nii.alloe.classify.ColumnarDataSet.
+     */
+    public void testWriteARFF() throws Exception {
+        System.out.println("writeARFF");
+        writeInstances();
+        ColumnarDataSet instance = ColumnarDataSet.open(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream ps = new PrintStream(bytes);
+        instance.writeARFF("relation", ps);
+        ps.close();
+        String[] lines = bytes.toString().split("\n");
+        assertEquals("@relation relation", lines[0]);
+        assertEquals("@attribute class {0,1}", lines[4]);
+        assertEquals("{0 1,2 2.5,3 1}", lines[6]);
+        assertEquals("{1 3}", lines[7]);
+        instance.close();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * FeatureVectorFormerTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.classify;
+
+import junit.framework.*;
+import java.util.*;
+import java.io.*;
+import nii.alloe.corpus.*;
+import nii.alloe.corpus.pattern.*;
+import nii.alloe.tools.process.AlloeProgressListener;
+import weka.core.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class FeatureVectorFormerTest extends TestCase {
+
+    Corpus corpus;
+    Vector<String> relations;
+    Vector<PatternSet> patterns;
+    Vector<TermPairSet> termPairs;
+
+    public FeatureVectorFormerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        TermList terms = new TermList();
+        terms.add("animal");
+        terms.add("cat");
+        terms.add("dog");
+        terms.add("fruit");
+        terms.add("apple");
+        terms.add("pet");
+        corpus = new Corpus(terms, "test-fvf.idx");
+        corpus.openIndex(true);
+        corpus.addDoc("animal such as cat");
+        corpus.addDoc("animal such as dog");
+        corpus.addDoc("the dog and other animal");
+        corpus.addDoc("fruit such as apple or cat");
+        corpus.addDoc("pet such as cat and pet such as dog");
+        corpus.addDoc("the cat and other pet");
+        corpus.addDoc("apple and other fruit");
+        corpus.addDoc("cat likes dog");
+        corpus.addDoc("dog likes cat");
+        corpus.addDoc("dog likes apple");
+        corpus.addDoc("fruit such as apple");
+        corpus.addDoc("nothing to see here");
+        corpus.closeIndex();
+
+        relations = new Vector<String>();
+        patterns = new Vector<PatternSet>();
+        termPairs = new Vector<TermPairSet>();
+        String[][] relationPatterns = { { "1 such as 2", "2 and other 1" }, { "1 likes 2", "1 such as 2" } };
+        for(int r = 0; r < relationPatterns.length; r++) {
+            relations.add("r" + r);
+            PatternSet ps = new PatternSet();
+            for(String p : relationPatterns[r]) {
+                ps.put(new Pattern(p), 1.0);
+            }
+            patterns.add(ps);
+            TermPairSet tps = new TermPairSet();
+            tps.add("animal", "cat");
+            tps.add("pet", "dog");
+            termPairs.add(tps);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        File f = new File("test-fvf.idx");
+        for(File f2 : f.listFiles()) {
+            f2.delete();
+        }
+        f.delete();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(FeatureVectorFormerTest.class);
+
+        return suite;
+    }
+
+    /** Count the matches of each pattern to each term pair one pattern at a time, by
+     * reading the contexts of each pattern's query */
+    private Map<String, List<Double>> expected(int r) {
+        Map<String, List<Double>> rval = new TreeMap<String, List<Double>>();
+        Pattern[] pats = patterns.get(r).keySet().toArray(new Pattern[0]);
+        for(int p = 0; p < pats.length; p++) {
+            Iterator<Corpus.Hit> contexts = corpus.getContextsForPattern(pats[p]);
+            while(contexts.hasNext()) {
+                Corpus.Hit hit = contexts.next();
+                String[] terms = hit.getTerms();
+                for(int j = 0; j < terms.length; j++) {
+                    for(int k = 0; k < terms.length; k++) {
+                        if(pats[p].matches(hit.getText(), terms[j], terms[k], false)) {
+                            String key = terms[j] + DataSet.glue + terms[k];
+                            List<Double> counts = rval.get(key);
+                            if(counts == null) {
+                                counts = new ArrayList<Double>(Collections.nCopies(pats.length + 1, 0.0));
+                                rval.put(key, counts);
+                            }
+                            counts.set(p, counts.get(p) + 1.0);
+                        }
+                    }
+                }
+            }
+        }
+        for(Map.Entry<String, List<Double>> e : rval.entrySet()) {
+            String[] ss = e.getKey().split(DataSet.glue);
+            e.getValue().set(pats.length, termPairs.get(r).contains(ss[0], ss[1]) ? 1.0 : 0.0);
+        }
+        return rval;
+    }
+
+    /** The values of each instance of a relation, by term pair */
+    private static Map<String, List<Double>> actual(DataSet dataSet, String relation) {
+        Map<String, List<Double>> rval = new TreeMap<String, List<Double>>();
+        Instances instances = dataSet.instances.get(relation);
+        Vector<String> pairs = dataSet.getTerms(relation);
+        assertEquals(pairs.size(), instances.numInstances());
+        for(int i = 0; i < instances.numInstances(); i++) {
+            List<Double> values = new ArrayList<Double>();
+            for(int a = 0; a < instances.numAttributes(); a++) {
+                values.add(instances.instance(i).value(a));
+            }
+            assertNull("Duplicate instance " + pairs.get(i), rval.put(pairs.get(i), values));
+        }
+        return rval;
+    }
+
+    private FeatureVectorFormer former(int threads) {
+        FeatureVectorFormer instance = new FeatureVectorFormer(relations, patterns, corpus, termPairs);
+        instance.setThreads(threads);
+        instance.setShardSize(2);
+        return instance;
+    }
+
+    /**
+     * Test of makeFeatureVectors method, of class nii.alloe.classify.FeatureVectorFormer.
+     */
+    public void testMakeFeatureVectors() {
+        System.out.println("makeFeatureVectors");
+        Map<String, List<Double>> r0 = expected(0);
+        // Counts of "1 such as 2", "2 and other 1" and the class
+        assertEquals(Arrays.asList(new Double[] { 1.0, 0.0, 1.0 }), r0.get("animal => cat"));
+        assertEquals(Arrays.asList(new Double[] { 2.0, 1.0, 0.0 }), r0.get("fruit => apple"));
+        assertEquals(Arrays.asList(new Double[] { 1.0, 0.0, 1.0 }), r0.get("pet => dog"));
+        for(int threads = 1; threads <= 3; threads += 2) {
+            DataSet dataSet = former(threads).makeFeatureVectors();
+            for(int r = 0; r < relations.size(); r++) {
+                assertEquals("threads=" + threads, expected(r), actual(dataSet, relations.get(r)));
+            }
+        }
+    }
+
+    /** Pauses the former the first time it reports progress within a relation */
+    private static class Pauser implements AlloeProgressListener {
+        final FeatureVectorFormer former;
+        Thread pausing;
+        boolean finished;
+
+        Pauser(FeatureVectorFormer former) {
+            this.former = former;
+        }
+
+        public void progressChange(double newProgress) {
+            if(pausing != null || newProgress <= 0.0 || newProgress >= 0.5)
+                return;
+            pausing = new Thread() {
+                public void run() {
+                    try {
+                        former.pause();
+                    } catch(Exception x) {
+                        throw new RuntimeException(x);
+                    }
+                }
+            };
+            pausing.start();
+            // Wait until pause has set the state and is waiting for this thread
+            while(pausing.getState() != Thread.State.WAITING && pausing.isAlive()) {
+                Thread.yield();
+            }
+        }
+
+        public synchronized void finished() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void waitForFinish() throws InterruptedException {
+            while(!finished) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Test of pause and resume methods, of class nii.alloe.classify.FeatureVectorFormer.
+     */
+    public void testPauseResume() throws Exception {
+        System.out.println("pauseResume");
+        for(int threads = 1; threads <= 3; threads += 2) {
+            FeatureVectorFormer instance = former(threads);
+            Pauser pauser = new Pauser(instance);
+            instance.addProgressListener(pauser);
+            instance.start();
+            while(pauser.pausing == null) {
+                Thread.sleep(10);
+            }
+            pauser.pausing.join();
+            assertFalse(pauser.finished);
+            instance.resume();
+            pauser.waitForFinish();
+            for(int r = 0; r < relations.size(); r++) {
+                assertEquals("threads=" + threads, expected(r), actual(instance.dataSet, relations.get(r)));
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * ProbModelBuilderTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.classify;
+
+import junit.framework.*;
+import nii.alloe.corpus.TermList;
+import nii.alloe.theory.*;
+import nii.alloe.tools.process.AlloeProgressListener;
+import weka.classifiers.*;
+import weka.core.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ProbModelBuilderTest extends TestCase {
+    static final int TERMS = 30;
+    DataSet dataSet;
+    Map<String, Classifier> classifs;
+    Map<String, String> names;
+    /** A term pair of each relation with an instance that is zero */
+    Map<String, int[]> zeroPair;
+
+    public ProbModelBuilderTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Make two relations with an instance for most term pairs, where att0 is evidence for the
+     * class and att1 against. Every seventh instance is zero.
+     */
+    protected void setUp() throws Exception {
+        TermList termList = new TermList();
+        for(int i = 0; i < TERMS; i++) {
+            termList.add("term" + (char)('a' + i / 26) + (char)('a' + i % 26));
+        }
+        dataSet = new DataSet(termList);
+        names = new TreeMap<String, String>();
+        zeroPair = new HashMap<String, int[]>();
+        Random r = new Random(3);
+        for(String relation : new String[] { "r0", "r1" }) {
+            names.put(relation, relation);
+            dataSet.prepRelation(relation, Arrays.asList("att0", "att1", "att2").iterator());
+            int n = 0;
+            for(int i = 0; i < TERMS; i++) {
+                for(int j = 0; j < TERMS; j++) {
+                    if((i + j) % 5 == 0)
+                        continue;
+                    double[] values = new double[4];
+                    if(n++ % 7 != 0) {
+                        for(int k = 0; k < 3; k++) {
+                            values[k] = r.nextInt(3);
+                        }
+                    } else if(!zeroPair.containsKey(relation)) {
+                        zeroPair.put(relation, new int[] { i, j });
+                    }
+                    double z = -0.5 + 0.8 * values[0] - 0.6 * values[1];
+                    values[3] = r.nextDouble() < 1 / (1 + Math.exp(-z)) ? 1 : 0;
+                    dataSet.addInstance(new SparseInstance(1.0, values), relation, i, j);
+                }
+            }
+            // More instances than a batch of several threads, so a relation takes several batches
+            assertTrue(n > 600);
+        }
+        classifs = dataSet.buildClassifierSet(new SparseLogisticRegression());
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ProbModelBuilderTest.class);
+
+        return suite;
+    }
+
+    private ProbModelBuilder builder(int threads) {
+        ProbModelBuilder instance = new ProbModelBuilder(new Logic(""), dataSet, classifs, names);
+        instance.setThreads(threads);
+        return instance;
+    }
+
+    private static void assertSameGraphs(Model expResult, Model result) {
+        for(String relation : new String[] { "r0", "r1" }) {
+            Graph g1 = expResult.getGraphByName(relation);
+            Graph g2 = result.getGraphByName(relation);
+            assertTrue(g2 instanceof ProbabilityGraph);
+            for(int i = 0; i < TERMS; i++) {
+                for(int j = 0; j < TERMS; j++) {
+                    assertEquals(relation + " " + i + " " + j, g1.getVal(i, j), g2.getVal(i, j), 1e-12);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of buildProbModel method, of class nii.alloe.classify.ProbModelBuilder.
+     */
+    public void testBuildProbModel() {
+        System.out.println("buildProbModel");
+        Model expResult = builder(1).buildProbModel();
+        assertNotNull(expResult);
+        for(String relation : new String[] { "r0", "r1" }) {
+            // A zero instance is not classified, so has the same value as a pair with no instance
+            Graph g = expResult.getGraphByName(relation);
+            int[] zero = zeroPair.get(relation);
+            assertEquals(g.getVal(0, 0), g.getVal(zero[0], zero[1]), 1e-12);
+            assertFalse(g.getVal(0, 0) == g.getVal(0, 1) && g.getVal(0, 1) == g.getVal(0, 2));
+        }
+        assertSameGraphs(expResult, builder(3).buildProbModel());
+    }
+
+    /** Pauses the builder the first time its progress reaches a point */
+    private static class Pauser implements AlloeProgressListener {
+        final ProbModelBuilder builder;
+        final double at;
+        Thread pausing;
+        Model model;
+        boolean finished;
+
+        Pauser(ProbModelBuilder builder, double at) {
+            this.builder = builder;
+            this.at = at;
+        }
+
+        public void progressChange(double newProgress) {
+            if(pausing != null || newProgress < at)
+                return;
+            model = builder.model;
+            pausing = new Thread() {
+                public void run() {
+                    try {
+                        builder.pause();
+                    } catch(Exception x) {
+                        throw new RuntimeException(x);
+                    }
+                }
+            };
+            pausing.start();
+            // Wait until pause has set the state and is waiting for this thread
+            while(pausing.getState() != Thread.State.WAITING && pausing.isAlive()) {
+                Thread.yield();
+            }
+        }
+
+        public synchronized void finished() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void waitForFinish() throws InterruptedException {
+            while(!finished) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Test of pause and resume methods, within a relation and between relations, of class
+     * nii.alloe.classify.ProbModelBuilder.
+     */
+    public void testPauseResume() throws Exception {
+        System.out.println("pauseResume");
+        Model expResult = builder(1).buildProbModel();
+        for(int threads = 1; threads <= 3; threads += 2) {
+            for(double at : new double[] { 0.1, 0.5 }) {
+                ProbModelBuilder instance = builder(threads);
+                Pauser pauser = new Pauser(instance, at);
+                instance.addProgressListener(pauser);
+                instance.start();
+                while(pauser.pausing == null) {
+                    Thread.sleep(10);
+                }
+                pauser.pausing.join();
+                assertFalse(pauser.finished);
+                instance.resume();
+                pauser.waitForFinish();
+                // The model built before the pause was continued
+                assertSame(pauser.model, instance.model);
+                assertSameGraphs(expResult, instance.model);
+            }
+        }
+    }
+}
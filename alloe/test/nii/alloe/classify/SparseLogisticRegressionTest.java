@@ -0,0 +1,119 @@
+/*
+ * SparseLogisticRegressionTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.classify;
+
+import junit.framework.*;
+import nii.alloe.corpus.TermList;
+import weka.core.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class SparseLogisticRegressionTest extends TestCase {
+    DataSet dataSet;
+    Instances is;
+
+    public SparseLogisticRegressionTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Make instances from a logistic model, where att0 is evidence for the class, att1 against
+     * and att2 and att3 are noise
+     */
+    protected void setUp() throws Exception {
+        TermList termList = new TermList();
+        termList.add("term1");
+        termList.add("term2");
+        dataSet = new DataSet(termList);
+        dataSet.prepRelation("relation", Arrays.asList("att0", "att1", "att2", "att3").iterator());
+        Random r = new Random(1);
+        for(int i = 0; i < 2000; i++) {
+            double[] values = new double[5];
+            double z = -0.5;
+            for(int j = 0; j < 4; j++) {
+                if(r.nextInt(3) == 0) {
+                    values[j] = r.nextInt(5) + 1;
+                }
+            }
+            z += 0.8 * values[0] - 0.6 * values[1];
+            values[4] = r.nextDouble() < 1 / (1 + Math.exp(-z)) ? 1 : 0;
+            dataSet.addInstance(new SparseInstance(1.0, values), "relation", 0, 1);
+        }
+        is = dataSet.instances.get("relation");
+        is.setClassIndex(4);
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(SparseLogisticRegressionTest.class);
+
+        return suite;
+    }
+
+    /**
+     * Test of buildClassifier method, of class nii.alloe.classify.SparseLogisticRegression.
+     */
+    public void testBuildClassifier() throws Exception {
+        System.out.println("buildClassifier");
+        SparseLogisticRegression instance = new SparseLogisticRegression();
+        instance.buildClassifier(is);
+        double[] weights = instance.getWeights();
+        assertEquals(4, weights.length);
+        assertEquals(0.8, weights[0], 0.2);
+        assertEquals(-0.6, weights[1], 0.2);
+        assertEquals(0.0, weights[2], 0.2);
+        assertEquals(-0.5, instance.getBias(), 0.3);
+        // The bias is not penalised, so the mean probability is the proportion of positives
+        double sumProb = 0, positives = 0;
+        for(int i = 0; i < is.numInstances(); i++) {
+            double[] dist = instance.distributionForInstance(is.instance(i));
+            assertEquals(1.0, dist[0] + dist[1], 1e-9);
+            sumProb += dist[1];
+            positives += is.instance(i).value(4);
+        }
+        assertEquals(positives, sumProb, 0.5);
+    }
+
+    /**
+     * Test of training on several threads, of class nii.alloe.classify.SparseLogisticRegression.
+     */
+    public void testThreads() throws Exception {
+        System.out.println("threads");
+        SparseLogisticRegression instance = new SparseLogisticRegression();
+        instance.buildClassifier(is);
+        SparseLogisticRegression threaded = new SparseLogisticRegression();
+        threaded.setThreads(3);
+        threaded.buildClassifier(is);
+        for(int i = 0; i < 100; i++) {
+            assertEquals(instance.probability(is.instance(i)), threaded.probability(is.instance(i)), 1e-4);
+        }
+    }
+
+    /**
+     * Test of buildClassifier method with a columnar data set, of class nii.alloe.classify.SparseLogisticRegression.
+     */
+    public void testBuildColumnar() throws Exception {
+        System.out.println("buildColumnar");
+        File file = File.createTempFile("alloe", ".cfv");
+        try {
+            DataSetWriter.write(dataSet, file);
+            ColumnarDataSet cds = ColumnarDataSet.open(file);
+            Map<String,weka.classifiers.Classifier> classifs = cds.buildClassifierSet(new SparseLogisticRegression());
+            cds.close();
+            SparseLogisticRegression instance = new SparseLogisticRegression();
+            instance.buildClassifier(is);
+            SparseLogisticRegression columnar = (SparseLogisticRegression)classifs.get("relation");
+            for(int i = 0; i < 100; i++) {
+                assertEquals(instance.probability(is.instance(i)), columnar.probability(is.instance(i)), 1e-9);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
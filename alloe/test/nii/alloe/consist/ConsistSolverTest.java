@@ -9,6 +9,8 @@ package nii.alloe.consist;
 
 import junit.framework.*;
 import java.util.*;
+import java.io.*;
+import nii.alloe.theory.*;
 
 /**
  *
@@ -58,4 +60,86 @@ public class ConsistSolverTest extends TestCase {
         
     }
     
+    /**
+     * Test of solve method against every choice of rows, of class nii.aloe.consist.ConsistSolver.
+     */
+    public void testSolveRandom() {
+        Random r = new Random(3);
+        for(int t = 0; t < 10; t++) {
+            SparseMatrix m = SimplexTest.randomMatrix(r, 12, 20);
+            ConsistSolver instance = new ConsistSolver();
+            instance.solve(m);
+            assertEquals(minimumCost(m), instance.cost, 1e-6);
+        }
+    }
+
+    /**
+     * Test of solve method with several threads, of class nii.aloe.consist.ConsistSolver.
+     */
+    public void testSolveThreads() {
+        Random r = new Random(7);
+        for(int t = 0; t < 10; t++) {
+            SparseMatrix m = SimplexTest.randomMatrix(r, 14, 24);
+            ConsistSolver instance = new ConsistSolver();
+            instance.setThreads(4);
+            instance.solve(m);
+            assertEquals(minimumCost(m), instance.cost, 1e-6);
+            double c = 0;
+            for(int row : instance.soln) {
+                c += m.elemVal(row, 0);
+            }
+            assertEquals(instance.cost, c, 1e-6);
+        }
+    }
+
+    /**
+     * Test of solve method splitting the model into components, of class nii.aloe.consist.ConsistSolver.
+     */
+    public void testSolveComponents() throws IOException {
+        Logic logic = new Logic(new File("logics/hypernym.logic"));
+        logic.setModelSize(13);
+        Model m = new Model(logic);
+        ProbabilityGraph g = m.addProbabilityGraph("r1");
+        g.setBaseVal(0.02);
+        // Three components, and a term 12 in no link
+        for(int k = 0; k < 12; k += 4) {
+            g.setVal(k,k+1,0.99);
+            g.setVal(k+1,k+2,0.8);
+            g.setVal(k+2,k+3,0.99);
+            g.setVal(k,k+2,.45);
+            g.setVal(k+1,k+3,.45);
+            g.setVal(k,k+3,.01);
+        }
+        ConsistSolver whole = new ConsistSolver();
+        whole.solve(logic, m);
+        for(int threads = 1; threads <= 3; threads += 2) {
+            ConsistSolver instance = new ConsistSolver();
+            instance.setSplitComponents(true);
+            instance.setThreads(threads);
+            instance.solve(logic, m);
+            assertEquals(whole.soln, instance.soln);
+            assertEquals(whole.cost, instance.cost, Math.abs(whole.cost) * ConsistProblem.PERTURBATION_SIZE);
+        }
+        // Each component is changed
+        assertEquals(6, whole.soln.size());
+    }
+
+    /** The cheapest set of rows covering every column, by trying every set */
+    private static double minimumCost(SparseMatrix m) {
+        int[] rows = m.rows.keys();
+        double best = Double.MAX_VALUE;
+        for(int set = 0; set < (1 << rows.length); set++) {
+            double c = 0;
+            TreeSet<Integer> covered = new TreeSet<Integer>();
+            for(int k = 0; k < rows.length; k++) {
+                if((set & (1 << k)) != 0) {
+                    c += m.elemVal(rows[k], 0);
+                    covered.addAll(m.getRow(rows[k]));
+                }
+            }
+            if(covered.containsAll(m.getCols()))
+                best = Math.min(best, c);
+        }
+        return best;
+    }
 }
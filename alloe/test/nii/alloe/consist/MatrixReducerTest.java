@@ -0,0 +1,76 @@
+/*
+ * MatrixReducerTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.consist;
+
+import junit.framework.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class MatrixReducerTest extends TestCase {
+
+    public MatrixReducerTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of reduce method, of class nii.alloe.consist.MatrixReducer.
+     */
+    public void testReduce() {
+        System.out.println("reduce");
+        SparseMatrix m = new SparseMatrix();
+        m.setElem(1,0,3);
+        m.setElem(1,1);
+        m.setElem(2,0,1);
+        m.setElem(2,1);
+        m.setElem(2,2);
+        m.setElem(3,0,2);
+        m.setElem(3,2);
+        m.setElem(3,3);
+        MatrixReducer instance = new MatrixReducer(m);
+        assertTrue(instance.reduce());
+        // Row 2 is cheaper than row 1 and covers all its columns, then column 1
+        // (now only row 2) is contained in column 2
+        assertEquals(new TreeSet<Integer>(Arrays.asList(2, 3)), m.getRows());
+        assertEquals(new TreeSet<Integer>(Arrays.asList(0, 1, 3)), m.getCols());
+        assertFalse(new MatrixReducer(m).reduce());
+        m.isOK();
+    }
+
+    /**
+     * Test that no dominated rows or columns remain after reduce, of class nii.alloe.consist.MatrixReducer.
+     */
+    public void testReduceRandom() {
+        System.out.println("reduce random");
+        Random r = new Random(11);
+        for(int t = 0; t < 20; t++) {
+            SparseMatrix m = new SparseMatrix();
+            for(int row = 0; row < 40; row++) {
+                m.setElem(row, 0, 1 + r.nextInt(5));
+            }
+            for(int col = 1; col < 30; col++) {
+                int size = 1 + r.nextInt(4);
+                for(int k = 0; k < size; k++) {
+                    m.setElem(r.nextInt(40), col);
+                }
+            }
+            new MatrixReducer(m).reduce();
+            m.isOK();
+            for(int row : m.getRows()) {
+                for(int superRow : m.getRows()) {
+                    assertFalse(m.elemVal(row,0) > m.elemVal(superRow,0) && m.rowSubset(row, superRow));
+                }
+            }
+            for(int col : m.getCols()) {
+                for(int col2 : m.getCols()) {
+                    assertFalse(col != 0 && col2 != 0 && col != col2 && m.colSubset(col2, col));
+                }
+            }
+        }
+    }
+}
@@ -50,4 +50,54 @@ public class SimplexTest extends TestCase {
         }
     }
     
+    /**
+     * Test of setBounds and setBasis, of class nii.aloe.consist.Simplex. Fixing a row to 0 from
+     * the optimal basis should give the same cost as solving without the row.
+     */
+    public void testWarmStart() {
+        System.out.println("warmStart");
+        Random r = new Random(5);
+        for(int t = 0; t < 20; t++) {
+            SparseMatrix m = randomMatrix(r, 30, 40);
+            Simplex instance = new Simplex();
+            instance.load(m, null);
+            instance.solve();
+            assertTrue(instance.success);
+            double rootCost = instance.cost;
+            Simplex.Basis basis = instance.getBasis();
+            for(int row : m.rows.keys()) {
+                instance.setBasis(basis);
+                instance.setBounds(row, 0, 0);
+                instance.solve();
+                SparseMatrix m2 = m.createCopy();
+                m2.removeRow(row);
+                Simplex fresh = new Simplex();
+                fresh.simplexSolve(m2);
+                boolean uncovered = m2.getColumnCount() < m.getColumnCount();
+                assertEquals(uncovered, instance.infeasible);
+                if(!uncovered) {
+                    assertTrue(instance.success && fresh.success);
+                    assertEquals(fresh.cost, instance.cost, 1e-6);
+                }
+                instance.setBounds(row, 0, 1);
+            }
+            instance.setBasis(basis);
+            instance.solve();
+            assertEquals(rootCost, instance.cost, 1e-6);
+        }
+    }
+
+    static SparseMatrix randomMatrix(Random r, int rows, int cols) {
+        SparseMatrix m = new SparseMatrix();
+        for(int row = 0; row < rows; row++) {
+            m.setElem(row, 0, 1 + r.nextInt(10) + r.nextDouble() * 1e-3);
+        }
+        for(int col = 1; col <= cols; col++) {
+            int size = 1 + r.nextInt(4);
+            for(int k = 0; k < size; k++) {
+                m.setElem(r.nextInt(rows), col);
+            }
+        }
+        return m;
+    }
 }
@@ -377,4 +377,106 @@ public class SparseMatrixTest extends TestCase {
         assertEquals(expResult, instance.getElemCount());
         instance.isOK();
     }  
+    
+    /**
+     * Test of snapshot and restore methods, of class nii.aloe.consist.SparseMatrix.
+     */
+    public void testSnapshot() {
+        System.out.println("snapshot");
+        Random r = new Random(4);
+        SparseMatrix instance = new SparseMatrix();
+        for(int i = 0; i < 200; i++) {
+            instance.setElem(r.nextInt(30), r.nextInt(30), 1 + r.nextInt(3));
+        }
+        SparseMatrix copy = instance.createCopy();
+        int outer = instance.snapshot();
+        instance.removeRow(instance.getRows().iterator().next());
+        instance.setElem(40, 3, 2.0);
+        SparseMatrix middle = instance.createCopy();
+        int inner = instance.snapshot();
+        for(int i = 0; i < 200; i++) {
+            int row = r.nextInt(45);
+            int col = r.nextInt(35);
+            if(r.nextBoolean())
+                instance.removeElem(row, col);
+            else
+                instance.setElem(row, col, r.nextInt(3));
+        }
+        instance.selectRow(instance.getRows().iterator().next());
+        instance.isOK();
+        instance.restore(inner);
+        instance.isOK();
+        assertEquals(middle, instance);
+        instance.restore(outer);
+        instance.isOK();
+        assertEquals(copy, instance);
+        assertEquals(copy.getElemCount(), instance.getElemCount());
+    }
+    
+    /**
+     * Test of nested snapshots with no changes between them, of class nii.aloe.consist.SparseMatrix.
+     */
+    public void testNestedSnapshots() {
+        System.out.println("nestedSnapshots");
+        SparseMatrix instance = new SparseMatrix();
+        instance.setElem(1, 1, 1.0);
+        instance.setElem(2, 3, 2.0);
+        SparseMatrix copy = instance.createCopy();
+        int outer = instance.snapshot();
+        int inner = instance.snapshot();
+        assertTrue(outer != inner);
+        instance.setElem(1, 1, 3.0);
+        instance.removeRow(2);
+        instance.restore(inner);
+        assertEquals(copy, instance);
+        instance.setElem(4, 4, 1.0);
+        instance.restore(outer);
+        assertEquals(copy, instance);
+        try {
+            instance.restore(inner);
+            fail("Expected IllegalArgumentException");
+        } catch(IllegalArgumentException x) {
+        }
+        // Every snapshot was closed, so the next one is the outermost again
+        assertEquals(outer, instance.snapshot());
+        instance.setElem(5, 5, 1.0);
+        int kept = instance.snapshot();
+        instance.removeElem(5, 5);
+        instance.commit(outer);
+        assertEquals(0.0, instance.elemVal(5, 5));
+        try {
+            instance.restore(kept);
+            fail("Expected IllegalArgumentException");
+        } catch(IllegalArgumentException x) {
+        }
+        assertEquals(outer, instance.snapshot());
+        instance.restore(outer);
+        instance.isOK();
+    }
+    
+    /**
+     * Test of removeRow method when most elements are removed, of class nii.aloe.consist.SparseMatrix.
+     */
+    public void testCompaction() {
+        System.out.println("compaction");
+        SparseMatrix instance = new SparseMatrix();
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < 10; j++) {
+                instance.setElem(i, j);
+            }
+        }
+        for(int i = 0; i < 95; i++) {
+            instance.removeRow(i);
+        }
+        instance.isOK();
+        assertEquals(5, instance.getRowCount());
+        assertEquals(50, instance.getElemCount());
+        assertEquals(95, instance.getRows().iterator().next().intValue());
+        for(int i = 0; i < 95; i++) {
+            instance.setElem(i, 3);
+        }
+        instance.isOK();
+        assertEquals(100, instance.getCol(3).size());
+        assertEquals(10, instance.getRow(97).size());
+    }
 }
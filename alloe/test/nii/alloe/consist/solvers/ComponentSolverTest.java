@@ -0,0 +1,109 @@
+/*
+ * ComponentSolverTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.consist.solvers;
+
+import junit.framework.*;
+import nii.alloe.theory.*;
+import java.io.*;
+import nii.alloe.consist.ConsistProblem;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ComponentSolverTest extends TestCase {
+
+    public ComponentSolverTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Three copies of the model of GrowingSolverTest, on terms 0-3, 4-7 and 8-11, and a term
+     * 12 in no link
+     */
+    private Model makeModel(Logic logic) {
+        logic.setModelSize(13);
+        Model m = new Model(logic);
+        ProbabilityGraph g = m.addProbabilityGraph("r1");
+        g.setBaseVal(0.02);
+        for(int k = 0; k < 12; k += 4) {
+            g.setVal(k,k+1,0.99);
+            g.setVal(k+1,k+2,0.8);
+            g.setVal(k+2,k+3,0.99);
+            g.setVal(k,k+2,.45);
+            g.setVal(k+1,k+3,.45);
+            g.setVal(k,k+3,.01);
+        }
+        return m;
+    }
+
+    /** Check that the solution is the same as when the model is solved as a whole */
+    private void checkSolve(ComponentSolver.Method method, int threads) throws IOException {
+        Logic logic = new Logic(new File("logics/hypernym.logic"));
+        Model m = makeModel(logic);
+        ComponentSolver instance = new ComponentSolver(logic, m, method);
+        instance.setThreads(threads);
+
+        instance.solve();
+
+        ComponentSolver.Solution expResult = method.solve(logic, m);
+        assertEquals(3, instance.components);
+        assertEquals(expResult.soln, instance.soln);
+        assertEquals(expResult.cost, instance.cost, Math.abs(expResult.cost) * ConsistProblem.PERTURBATION_SIZE);
+    }
+
+    /**
+     * Test of solve method, of class nii.alloe.consist.solvers.ComponentSolver.
+     */
+    public void testSolve() throws IOException {
+        System.out.println("solve");
+        checkSolve(ComponentSolver.CONSIST, 1);
+        checkSolve(ComponentSolver.GROWING, 1);
+        checkSolve(ComponentSolver.RES_FREE, 1);
+        checkSolve(ComponentSolver.GREEDY_SAT, 1);
+
+        Logic logic = new Logic(new File("logics/hypernym.logic"));
+        Model m = makeModel(logic);
+        ComponentSolver instance = new ComponentSolver(logic, m, ComponentSolver.GROWING);
+        instance.solve();
+        Model expModel = m.createSpecificCopy();
+        for(int k = 0; k < 12; k += 4) {
+            expModel.remove(expModel.id("r1",k+1,k+2));
+        }
+        assertEquals(expModel, instance.soln);
+    }
+
+    /**
+     * Test of solve method with several threads, of class nii.alloe.consist.solvers.ComponentSolver.
+     */
+    public void testSolveThreads() throws IOException {
+        System.out.println("solve threads");
+        checkSolve(ComponentSolver.CONSIST, 3);
+        checkSolve(ComponentSolver.GROWING, 3);
+        checkSolve(ComponentSolver.RES_FREE, 3);
+        checkSolve(ComponentSolver.GREEDY_SAT, 3);
+    }
+
+    /**
+     * Test that a consistent model is its own solution, of class nii.alloe.consist.solvers.ComponentSolver.
+     */
+    public void testSolveConsistent() throws IOException {
+        System.out.println("solve consistent");
+        Logic logic = new Logic(new File("logics/hypernym.logic"));
+        logic.setModelSize(4);
+        Model m = new Model(logic);
+        ProbabilityGraph g = m.addProbabilityGraph("r1");
+        g.setBaseVal(0.02);
+        g.setVal(0,1,0.99);
+        g.setVal(2,3,0.99);
+        ComponentSolver instance = new ComponentSolver(logic, m, ComponentSolver.CONSIST);
+        instance.setThreads(2);
+        instance.solve();
+        assertEquals(2, instance.components);
+        assertEquals(m.createSpecificCopy(), instance.soln);
+        assertEquals(0.0, instance.cost);
+    }
+}
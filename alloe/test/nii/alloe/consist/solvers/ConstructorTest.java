@@ -62,4 +62,35 @@ public class ConstructorTest extends TestCase {
         
     }
     
+    /**
+     * Test that solve gives the same solution checking only changed links as with a full check.
+     */
+    public void testSolveDeltaCheck() throws IOException {
+        System.out.println("solveDeltaCheck");
+        Logic logic = new Logic(new File("logics/synonym.logic"));
+        logic.setModelSize(5);
+        Random random = new Random(11);
+        for(int k = 0; k < 4; k++) {
+            Model probModel = new Model(logic);
+            probModel.addBasicGraphs(logic);
+            ProbabilityGraph pg = probModel.addProbabilityGraph("r1");
+            pg.setBaseVal(.1);
+            for(int i = 0; i < 5; i++) {
+                for(int j = 0; j < 5; j++) {
+                    if(i != j && random.nextInt(3) == 0)
+                        pg.setVal(i,j,.05 + .9 * random.nextDouble());
+                }
+            }
+            for(int method = Constructor.METHOD_GREEDY; method <= Constructor.METHOD_ASTAR; method++) {
+                Constructor full = new Constructor(Constructor.ADD_NODES_MOST_CENTRAL,method);
+                full.deltaCheck = false;
+                full.solve(probModel, logic);
+                Constructor delta = new Constructor(Constructor.ADD_NODES_MOST_CENTRAL,method);
+                delta.solve(probModel, logic);
+                assertEquals(full.solvedModel, delta.solvedModel);
+                assertEquals(full.cost, delta.cost, 1e-9);
+            }
+        }
+    }
+    
 }
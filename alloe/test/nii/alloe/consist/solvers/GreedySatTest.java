@@ -64,4 +64,33 @@ public class GreedySatTest extends TestCase {
         }
     }
     
+    /**
+     * Test that solve gives the same solution updating only flipped links as with a full check.
+     */
+    public void testSolveDeltaCheck() throws IOException {
+        System.out.println("solveDeltaCheck");
+        Logic logic = new Logic(new File("logics/hypernym.logic"));
+        logic.setModelSize(6);
+        Random random = new Random(13);
+        for(int k = 0; k < 4; k++) {
+            Model m = new Model(logic);
+            ProbabilityGraph g = m.addProbabilityGraph("r1");
+            g.setBaseVal(0.02);
+            for(int i = 0; i < 6; i++) {
+                for(int j = 0; j < 6; j++) {
+                    if(i != j && random.nextInt(3) == 0)
+                        g.setVal(i,j,.05 + .9 * random.nextDouble());
+                }
+            }
+            GreedySat full = new GreedySat(logic,m);
+            full.canFail = true;
+            full.deltaCheck = false;
+            GreedySat delta = new GreedySat(logic,m);
+            delta.canFail = true;
+            assertEquals(full.solve(), delta.solve());
+            assertEquals(full.soln, delta.soln);
+            assertEquals(full.cost, delta.cost, 1e-9);
+        }
+    }
+    
 }
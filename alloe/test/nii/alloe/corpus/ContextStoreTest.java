@@ -0,0 +1,102 @@
+/*
+ * ContextStoreTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ContextStoreTest extends TestCase {
+
+    public ContextStoreTest(String testName) {
+        super(testName);
+    }
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("contexts", ".bin");
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+        ContextStore.partFile(file, 1).delete();
+    }
+
+    /**
+     * Test of writing and reading a store, of class nii.alloe.corpus.ContextStore.
+     */
+    public void testReadWrite() throws Exception {
+        System.out.println("readWrite");
+        ContextStore.Writer writer = new ContextStore.Writer(file, Arrays.asList(new String[] { "Cat", "dog" }));
+        writer.add("the cat and the dog", new String[] { "cat", "dog" });
+        writer.add("", new String[0]);
+        writer.add("caf\u00e9 animal", new String[] { "animal" });
+        writer.close();
+
+        ContextStore instance = ContextStore.open(file);
+        assertEquals(3, instance.size());
+        assertEquals("the cat and the dog", instance.getText(0));
+        assertTrue(Arrays.equals(new int[] { 0, 1 }, instance.getTermIds(0)));
+        assertTrue(Arrays.equals(new String[] { "cat", "dog" }, instance.getTerms(0)));
+        assertEquals("", instance.getText(1));
+        assertEquals(0, instance.getTerms(1).length);
+        assertEquals("caf\u00e9 animal", instance.getText(2));
+        assertTrue(Arrays.equals(new String[] { "animal" }, instance.getTerms(2)));
+        assertTrue(Arrays.equals(new int[] { 0, 3, 5, 11 }, instance.getTokens(2)));
+        assertEquals(3, instance.getTermDictionary().length);
+        try {
+            instance.getText(3);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException x) {
+        }
+    }
+
+    /**
+     * Test of appending parts to a store, of class nii.alloe.corpus.ContextStore.
+     */
+    public void testAppend() throws Exception {
+        System.out.println("append");
+        ContextStore.Writer writer = new ContextStore.Writer(file, Arrays.asList(new String[] { "cat" }));
+        writer.add("the cat", new String[] { "cat" });
+        writer.close();
+        ContextStore store = ContextStore.open(file);
+        writer = new ContextStore.Writer(file, store, Arrays.asList(new String[] { "dog" }));
+        writer.add("the dog and the cat", new String[] { "dog", "cat" });
+        writer.add("a bird", new String[0]);
+        writer.close();
+
+        ContextStore instance = ContextStore.open(file);
+        assertEquals(3, instance.size());
+        assertEquals("the cat", instance.getText(0));
+        assertEquals("the dog and the cat", instance.getText(1));
+        assertTrue(Arrays.equals(new int[] { 1, 0 }, instance.getTermIds(1)));
+        assertTrue(Arrays.equals(new String[] { "dog", "cat" }, instance.getTerms(1)));
+        assertEquals("a bird", instance.getText(2));
+        assertEquals(2, instance.getTermDictionary().length);
+
+        // Writing a new store removes the appended parts
+        writer = new ContextStore.Writer(file, Arrays.asList(new String[0]));
+        writer.add("a fish", new String[0]);
+        writer.close();
+        assertFalse(ContextStore.partFile(file, 1).exists());
+        assertEquals(1, ContextStore.open(file).size());
+    }
+
+    /**
+     * Test of tokenize method, of class nii.alloe.corpus.ContextStore.
+     */
+    public void testTokenize() {
+        System.out.println("tokenize");
+        assertTrue(Arrays.equals(new int[] { 0, 3, 4, 7 }, ContextStore.tokenize("the cat")));
+        assertTrue(Arrays.equals(new int[] { 2, 4, 6, 7 }, ContextStore.tokenize(", a1, b.")));
+        assertEquals(0, ContextStore.tokenize(" ,. ").length);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * CorpusLoaderTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class CorpusLoaderTest extends TestCase {
+
+    File textFile;
+
+    public CorpusLoaderTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        textFile = new File("test-loader.txt");
+        PrintWriter out = new PrintWriter(new FileWriter(textFile));
+        String[] names = { "alice", "bob", "joe bob", "joe", "carol" };
+        String[] verbs = { "likes", "hates", "knows", "meets" };
+        for(int i = 0; i < 200; i++) {
+            String a = names[i % names.length];
+            String b = names[(i * 7 + 3) % names.length];
+            out.println("line " + i + " " + a + " " + verbs[i % verbs.length] + " " + b +
+                    ". then " + b + " calls " + a + " again; nobody here " + i);
+        }
+        out.close();
+    }
+
+    protected void tearDown() throws Exception {
+        textFile.delete();
+        delete(new File("test-loader-seq.idx"));
+        delete(new File("test-loader-par.idx"));
+    }
+
+    private static void delete(File f) {
+        if(f.isDirectory()) {
+            for(File f2 : f.listFiles()) {
+                delete(f2);
+            }
+        }
+        f.delete();
+    }
+
+    private static TermList terms() {
+        TermList terms = new TermList();
+        terms.add("alice");
+        terms.add("bob");
+        terms.add("joe bob");
+        terms.add("joe");
+        terms.add("carol");
+        return terms;
+    }
+
+    private Corpus load(String indexFile, int threads) throws IOException {
+        CorpusLoader loader = new CorpusLoader(terms(), new TextCorpusFile(textFile.getPath()), new File(indexFile));
+        loader.setThreads(threads);
+        loader.setQueueSize(4);
+        loader.run();
+        return loader.corpus;
+    }
+
+    private static List<String> docs(Corpus corpus) {
+        PostingList all = new PostingList();
+        for(int i = 0; i < corpus.getTotalDocs(); i++) {
+            all.add(i);
+        }
+        List<String> rval = new ArrayList<String>();
+        Iterator<Corpus.Hit> hits = corpus.getContextsForHits(all);
+        while(hits.hasNext()) {
+            Corpus.Hit hit = hits.next();
+            rval.add(hit.getText() + " " + Arrays.asList(hit.getTerms()));
+        }
+        return rval;
+    }
+
+    /**
+     * Test of run method with several worker threads, of class nii.alloe.corpus.CorpusLoader.
+     */
+    public void testRunPipelined() throws IOException {
+        System.out.println("runPipelined");
+        Corpus sequential = load("test-loader-seq.idx", 1);
+        Corpus pipelined = load("test-loader-par.idx", 4);
+        assertTrue(sequential.getTotalDocs() > 200);
+        assertEquals(sequential.getTotalDocs(), pipelined.getTotalDocs());
+        assertEquals(docs(sequential), docs(pipelined));
+        assertEquals(sequential.getHitsForTerm("joe bob"), pipelined.getHitsForTerm("joe bob"));
+    }
+}
@@ -190,6 +190,21 @@ public class CorpusTest extends TestCase {
     public void testInitTermsInCorpusCache() {
         System.out.println("initTermsInCorpusCache");
         instance.initTermsInCorpusCache();
+        HashSet<Corpus.TermPair> expResult = new HashSet<Corpus.TermPair>();
+        Iterator<Corpus.TermPair> iter = instance.getTermsInCorpus();
+        while(iter.hasNext())
+            expResult.add(iter.next());
+        instance.clearTermsInCorpusCache();
+        
+        // A tiny hit cache budget makes every term its own block
+        instance.setHitCacheSize(1);
+        instance.initTermsInCorpusCache();
+        HashSet<Corpus.TermPair> result = new HashSet<Corpus.TermPair>();
+        iter = instance.getTermsInCorpus();
+        while(iter.hasNext())
+            result.add(iter.next());
+        assertEquals(expResult, result);
+        assertTrue(instance.areTermsInCorpus("joe bob", "alice"));
         instance.clearTermsInCorpusCache();
     }
     
@@ -335,6 +350,73 @@ public class CorpusTest extends TestCase {
         assertEquals(expResult, result);
     }
     
+    /**
+     * Test of appending to an index, of class nii.alloe.corpus.Corpus.
+     */
+    public void testAppend() throws Exception {
+        System.out.println("append");
+        instance.openIndex(false);
+        instance.addDoc("alice meets joe");
+        instance.closeIndex(false);
+        assertEquals(6, instance.getTotalDocs());
+        
+        Corpus corpus = Corpus.openCorpus(new File("test.idx"));
+        assertEquals(6, corpus.getTotalDocs());
+        Iterator<Corpus.Hit> result = corpus.getContextsForTerms("alice", "joe");
+        assertEquals("alice hates joe bob", result.next().getText());
+        assertEquals("joe doesnt know alice or bob", result.next().getText());
+        assertEquals("alice meets joe", result.next().getText());
+        assertFalse(result.hasNext());
+    }
+    
+    /**
+     * Test of querying the same corpus object before and after appending, of class nii.alloe.corpus.Corpus.
+     */
+    public void testAppendAfterQuery() throws Exception {
+        System.out.println("appendAfterQuery");
+        instance.initTermsInCorpusCache();
+        assertEquals(3, instance.getHitsForTerm("alice"));
+        assertEquals(2, instance.getHitsFromIterator(instance.getContextsForTerms("alice", "joe")));
+        
+        instance.openIndex(false);
+        instance.addDoc("alice meets joe");
+        instance.addDoc("alice and bob");
+        instance.closeIndex(false);
+        assertEquals(5, instance.getHitsForTerm("alice"));
+        assertEquals(3, instance.getHitsFromIterator(instance.getContextsForTerms("alice", "joe")));
+        TermPairSet pairs = new TermPairSet();
+        pairs.add("alice", "bob");
+        assertEquals(4, instance.getCooccurrences(pairs, 1).get(new Corpus.TermPair("alice", "bob")).size());
+        
+        // The terms in corpus cache no longer holds the pairs found before the append
+        try {
+            instance.getTermsInCorpus();
+            fail("Terms in corpus cache not cleared");
+        } catch(IllegalStateException x) {
+        }
+    }
+    
+    /**
+     * Test of extendTerms method, of class nii.alloe.corpus.Corpus.
+     */
+    public void testExtendTerms() throws Exception {
+        System.out.println("extendTerms");
+        assertEquals(1, instance.extendTerms(Arrays.asList(new String[] { "hillbilly", "alice" })));
+        assertTrue(instance.terms.contains("hillbilly"));
+        Iterator<Corpus.Hit> result = instance.getContextsForTerm("hillbilly");
+        Corpus.Hit hit = result.next();
+        assertEquals("joe bob is a hillbilly", hit.getText());
+        assertTrue(Arrays.asList(hit.getTerms()).contains("hillbilly"));
+        assertFalse(result.hasNext());
+        
+        instance.openIndex(false);
+        instance.addDoc("bob is no hillbilly");
+        instance.closeIndex();
+        Corpus corpus = Corpus.openCorpus(new File("test.idx"));
+        assertEquals(2, corpus.getHitsForTerm("hillbilly"));
+        assertTrue(corpus.areTermsInCorpus("joe bob", "hillbilly"));
+    }
+    
     /**
      * Test of getTotalDocs method, of class nii.alloe.corpus.Corpus.
      */
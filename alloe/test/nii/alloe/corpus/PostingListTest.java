@@ -0,0 +1,88 @@
+/*
+ * PostingListTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PostingListTest extends TestCase {
+    
+    public PostingListTest(String testName) {
+        super(testName);
+    }
+    
+    private static PostingList make(int[] docs) {
+        PostingList rval = new PostingList();
+        for(int doc : docs) {
+            rval.add(doc);
+        }
+        return rval;
+    }
+    
+    /**
+     * Test of add method, of class nii.alloe.corpus.PostingList.
+     */
+    public void testAdd() {
+        System.out.println("add");
+        PostingList instance = make(new int[] { 5, 1, 3, 3, 9 });
+        assertEquals(4, instance.size());
+        assertEquals(1, instance.get(0));
+        assertEquals(9, instance.get(3));
+        assertTrue(instance.contains(3));
+        assertFalse(instance.contains(4));
+    }
+    
+    /**
+     * Test of intersect method, of class nii.alloe.corpus.PostingList.
+     */
+    public void testIntersect() {
+        System.out.println("intersect");
+        PostingList pl1 = make(new int[] { 1, 4, 7, 100, 1000 });
+        PostingList pl2 = new PostingList();
+        for(int i = 0; i < 2000; i += 2) {
+            pl2.add(i);
+        }
+        PostingList result = pl1.intersect(pl2);
+        assertEquals("[4, 100, 1000]", result.toString());
+        assertEquals(result.toString(), pl2.intersect(pl1).toString());
+        assertEquals(0, pl1.intersect(new PostingList()).size());
+    }
+    
+    /**
+     * Test of headList method, of class nii.alloe.corpus.PostingList.
+     */
+    public void testHeadList() {
+        System.out.println("headList");
+        PostingList instance = make(new int[] { 1, 4, 7, 100 });
+        assertEquals("[1, 4]", instance.headList(7).toString());
+        assertEquals(0, instance.headList(0).size());
+    }
+    
+    /**
+     * Test of union method, of class nii.alloe.corpus.PostingList.
+     */
+    public void testUnion() {
+        System.out.println("union");
+        PostingList pl1 = make(new int[] { 1, 4, 7 });
+        PostingList pl2 = make(new int[] { 2, 4, 9 });
+        assertEquals("[1, 2, 4, 7, 9]", pl1.union(pl2).toString());
+        assertEquals("[1, 4, 7]", pl1.union(new PostingList()).toString());
+    }
+    
+    /**
+     * Test of subList method, of class nii.alloe.corpus.PostingList.
+     */
+    public void testSubList() {
+        System.out.println("subList");
+        PostingList instance = make(new int[] { 1, 4, 7, 100 });
+        assertEquals("[4, 7]", instance.subList(1, 3).toString());
+        assertEquals(0, instance.subList(4, 4).size());
+    }
+}
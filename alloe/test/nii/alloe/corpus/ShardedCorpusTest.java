@@ -0,0 +1,132 @@
+/*
+ * ShardedCorpusTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.util.*;
+import java.io.*;
+import nii.alloe.corpus.pattern.Pattern;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class ShardedCorpusTest extends TestCase {
+
+    ShardedCorpus instance;
+
+    public ShardedCorpusTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        TermList terms = new TermList();
+        terms.add("alice");
+        terms.add("bob");
+        terms.add("joe bob");
+        terms.add("joe");
+        instance = new ShardedCorpus(terms, new File("test-sharded.idx"), 2);
+        instance.openIndex(true);
+        instance.addDoc("alice likes bob");
+        instance.addDoc("bob is nice");
+        instance.addDoc("joe bob is a hillbilly");
+        instance.addDoc("alice hates joe bob");
+        instance.addDoc("joe doesn't know alice or bob");
+        instance.closeIndex();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(new File("test-sharded.idx"));
+        delete(new File("test-unsharded.idx"));
+    }
+
+    private static void delete(File f) {
+        if (f.isDirectory()) {
+            for (File f2 : f.listFiles()) {
+                delete(f2);
+            }
+        }
+        f.delete();
+    }
+
+    private static Set<String> texts(Iterator<Corpus.Hit> hits) {
+        TreeSet<String> rval = new TreeSet<String>();
+        while (hits.hasNext()) {
+            rval.add(hits.next().getText());
+        }
+        return rval;
+    }
+
+    /**
+     * Test of getContextsForTerms method, of class nii.alloe.corpus.ShardedCorpus.
+     */
+    public void testGetContextsForTerms() {
+        System.out.println("getContextsForTerms");
+        Iterator<Corpus.Hit> result = instance.getContextsForTerms("alice", "bob");
+        assertEquals(3, instance.getHitsFromIterator(result));
+        assertEquals(new TreeSet<String>(Arrays.asList(new String[] { "alice likes bob", "alice hates joe bob",
+        "joe doesnt know alice or bob" })), texts(result));
+    }
+
+    /**
+     * Test of getContextsForPattern method, of class nii.alloe.corpus.ShardedCorpus.
+     */
+    public void testGetContextsForPattern() throws Exception {
+        System.out.println("getContextsForPattern");
+        Iterator<Corpus.Hit> result = instance.getContextsForPattern(new Pattern("1 hates 2"));
+        assertEquals(1, instance.getHitsFromIterator(result));
+        assertEquals(Collections.singleton("alice hates joe bob"), texts(instance.getContextsForPattern(new Pattern("1 hates 2"))));
+
+        // The scatter-gather result must agree with a single index over the same documents
+        TermList terms = new TermList();
+        terms.add("alice");
+        terms.add("bob");
+        terms.add("joe bob");
+        terms.add("joe");
+        Corpus plain = new Corpus(terms, "test-unsharded.idx");
+        plain.openIndex(true);
+        plain.addDoc("alice likes bob");
+        plain.addDoc("bob is nice");
+        plain.addDoc("joe bob is a hillbilly");
+        plain.addDoc("alice hates joe bob");
+        plain.addDoc("joe doesn't know alice or bob");
+        plain.closeIndex();
+        String[] patterns = { "1 hates 2", "1 likes 2", "1 * know 2", "1 or 2", "1 2 is a hillbilly" };
+        for (String p : patterns) {
+            Iterator<Corpus.Hit> expected = plain.getContextsForPattern(new Pattern(p));
+            Iterator<Corpus.Hit> actual = instance.getContextsForPattern(new Pattern(p));
+            assertEquals(p, plain.getHitsFromIterator(expected), instance.getHitsFromIterator(actual));
+            assertEquals(p, texts(expected), texts(actual));
+        }
+    }
+
+    /**
+     * Test of getCooccurrences and getContextsForHits methods, of class nii.alloe.corpus.ShardedCorpus.
+     */
+    public void testGetCooccurrences() {
+        System.out.println("getCooccurrences");
+        TermPairSet termPairs = new TermPairSet();
+        termPairs.add("alice", "bob");
+        Map<Corpus.TermPair, PostingList> result = instance.getCooccurrences(termPairs, 2);
+        PostingList hits = result.get(new Corpus.TermPair("alice", "bob"));
+        assertEquals(3, hits.size());
+        assertEquals(texts(instance.getContextsForTerms("alice", "bob")), texts(instance.getContextsForHits(hits)));
+    }
+
+    /**
+     * Test of openCorpus method, of class nii.alloe.corpus.ShardedCorpus.
+     */
+    public void testOpenCorpus() throws Exception {
+        System.out.println("openCorpus");
+        Corpus corpus = Corpus.openCorpus(new File("test-sharded.idx"));
+        assertTrue(corpus instanceof ShardedCorpus);
+        assertEquals(5, corpus.getTotalDocs());
+        assertEquals(3, ((ShardedCorpus) corpus).getShard(0).getTotalDocs());
+        assertEquals(5, corpus.getHitsForTerm("bob"));
+        assertTrue(corpus.areTermsInCorpus("joe bob", "alice"));
+        assertFalse(corpus.isTermInCorpus("carol"));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * TermListTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class TermListTest extends TestCase {
+
+    public TermListTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of indexOf method, of class nii.alloe.corpus.TermList.
+     */
+    public void testIndexOf() {
+        System.out.println("indexOf");
+        TermList instance = new TermList();
+        instance.add("cat");
+        instance.add("dog");
+        instance.add("cat");
+        assertEquals(0, instance.indexOf("cat"));
+        assertEquals(1, instance.indexOf("dog"));
+        assertEquals(-1, instance.indexOf("fish"));
+        instance.add("fish");
+        assertEquals(3, instance.indexOf("fish"));
+        instance.remove(0);
+        assertEquals(1, instance.indexOf("cat"));
+        assertEquals(0, instance.indexOf("dog"));
+    }
+
+    /**
+     * Test of set method, of class nii.alloe.corpus.TermList.
+     */
+    public void testSet() {
+        System.out.println("set");
+        TermList instance = new TermList();
+        instance.add("cat");
+        instance.add("dog");
+        assertEquals(1, instance.indexOf("dog"));
+        assertEquals("dog", instance.set(1, "fish"));
+        assertEquals(1, instance.indexOf("fish"));
+        assertEquals(-1, instance.indexOf("dog"));
+        instance.setElementAt("bird", 0);
+        assertEquals(0, instance.indexOf("bird"));
+        assertFalse(instance.contains("cat"));
+    }
+}
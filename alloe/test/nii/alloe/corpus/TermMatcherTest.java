@@ -0,0 +1,82 @@
+/*
+ * TermMatcherTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.util.*;
+import nii.alloe.tools.strings.Strings;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class TermMatcherTest extends TestCase {
+    
+    TermMatcher instance;
+    TermList terms;
+    
+    public TermMatcherTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        terms = new TermList();
+        terms.add("alice");
+        terms.add("bob");
+        terms.add("joe bob");
+        terms.add("joe");
+        terms.add("Bobby");
+        instance = new TermMatcher(terms);
+    }
+
+    /**
+     * Test of findTerms method, of class nii.alloe.corpus.TermMatcher.
+     */
+    public void testFindTerms() {
+        System.out.println("findTerms");
+        Set<String> result = instance.findTerms("Alice hates joe bob, not bobby");
+        Set<String> expResult = new TreeSet<String>();
+        expResult.add("alice");
+        expResult.add("joe bob");
+        expResult.add("joe");
+        expResult.add("bob");
+        expResult.add("bobby");
+        assertEquals(expResult, result);
+        
+        assertTrue(instance.findTerms("alicebob joebob").isEmpty());
+    }
+    
+    /**
+     * Check findTerms gives the same result as matching each term by regex
+     */
+    public void testFindTermsAgreesWithRegex() {
+        System.out.println("findTerms (regex agreement)");
+        String[] docs = { "alice likes bob", "bob is nice", "joe bob is a hillbilly",
+        "alice hates joe bob", "joe doesnt know alice or bob", "bob_joe bobby alice2 joe-bob" };
+        for(String doc : docs) {
+            Set<String> expResult = new TreeSet<String>();
+            for(String term : terms) {
+                if(doc.matches(".*\\b" + Strings.quoteMeta(term.toLowerCase()) + "\\b.*"))
+                    expResult.add(term.toLowerCase());
+            }
+            assertEquals(doc, expResult, instance.findTerms(doc));
+        }
+    }
+    
+    /**
+     * Test of findLongest method, of class nii.alloe.corpus.TermMatcher.
+     */
+    public void testFindLongest() {
+        System.out.println("findLongest");
+        List<TermMatcher.Match> result = instance.findLongest("alice hates joe bob");
+        assertEquals(2, result.size());
+        assertEquals("alice", result.get(0).term);
+        assertEquals(0, result.get(0).start);
+        assertEquals("joe bob", result.get(1).term);
+        assertEquals(12, result.get(1).start);
+        assertEquals(19, result.get(1).end);
+    }
+}
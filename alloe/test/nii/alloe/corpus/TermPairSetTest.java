@@ -0,0 +1,217 @@
+/*
+ * TermPairSetTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+import nii.alloe.tools.process.PauseSignal;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class TermPairSetTest extends TestCase {
+
+    public TermPairSetTest(String testName) {
+        super(testName);
+    }
+
+    private static class Collect implements EachTermPairAction {
+        Vector<String> pairs = new Vector<String>();
+        public void doAction(String term1, String term2) {
+            pairs.add(term1 + " => " + term2);
+        }
+    }
+
+    /**
+     * Test of add method, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testAdd() {
+        System.out.println("add");
+        TermPairSet instance = new TermPairSet();
+        assertTrue(instance.add("dog", "animal"));
+        assertTrue(instance.add("cat", "animal"));
+        assertFalse(instance.add("Dog", "Animal"));
+        assertTrue(instance.add("animal", "dog"));
+        assertEquals(3, instance.size());
+        assertTrue(instance.contains("DOG", "animal"));
+        assertFalse(instance.contains("dog", "cat"));
+        assertFalse(instance.contains("fish", "animal"));
+        TermDictionary dict = instance.getDictionary();
+        assertEquals(3, dict.size());
+        assertEquals("dog", dict.term(dict.id("Dog")));
+        assertTrue(instance.contains(dict.id("cat"), dict.id("animal")));
+        assertFalse(instance.contains(dict.id("animal"), dict.id("cat")));
+        assertFalse(instance.contains(-1, dict.id("cat")));
+    }
+
+    /**
+     * Test of remove method, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testRemove() {
+        System.out.println("remove");
+        TermPairSet instance = new TermPairSet();
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < 10; j++) {
+                instance.add("t" + i, "t" + j);
+            }
+        }
+        for(int i = 0; i < 100; i += 2) {
+            for(int j = 0; j < 10; j++) {
+                assertTrue(instance.remove("t" + i, "t" + j));
+            }
+        }
+        assertFalse(instance.remove("t0", "t1"));
+        assertFalse(instance.remove("x", "t1"));
+        assertEquals(500, instance.size());
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < 10; j++) {
+                assertEquals(i % 2 == 1, instance.contains("t" + i, "t" + j));
+            }
+        }
+        Iterator<String[]> iter = instance.iterator();
+        while(iter.hasNext()) {
+            if(iter.next()[1].equals("t3"))
+                iter.remove();
+        }
+        assertEquals(450, instance.size());
+        assertFalse(instance.contains("t1", "t3"));
+    }
+
+    /**
+     * Test of forEachPair method, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testForEachPair() {
+        System.out.println("forEachPair");
+        TermPairSet instance = new TermPairSet();
+        instance.add("b", "a");
+        instance.add("a", "c");
+        instance.add("b", "c");
+        instance.add("a", "b");
+        Collect all = new Collect();
+        instance.forEachPair(all);
+        assertEquals(Arrays.asList("b => a", "b => c", "a => b", "a => c"), all.pairs);
+
+        final int[] budget = new int[1];
+        PauseSignal signal = new PauseSignal() {
+            public boolean shouldPause() {
+                return budget[0]-- <= 0;
+            }
+        };
+        Collect resumed = new Collect();
+        budget[0] = 3;
+        String from = instance.forEachPair(resumed, null, signal);
+        assertEquals("a => c", from);
+        assertEquals(0.75, instance.getForEachPairProgress(from));
+        budget[0] = 3;
+        assertNull(instance.forEachPair(resumed, from, signal));
+        assertEquals(all.pairs, resumed.pairs);
+
+        Collect rhs = new Collect();
+        instance.forEachRHS("a", rhs);
+        assertEquals(Arrays.asList("a => b", "a => c"), rhs.pairs);
+        Collect lhs = new Collect();
+        instance.forEachLHS("c", lhs);
+        assertEquals(Arrays.asList("b => c", "a => c"), lhs.pairs);
+    }
+
+    /**
+     * Test of addAll method with a shared dictionary, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testAddAll() {
+        System.out.println("addAll");
+        TermPairSet set1 = new TermPairSet();
+        set1.add("dog", "animal");
+        TermPairSet set2 = new TermPairSet(set1.getDictionary());
+        set2.add("cat", "animal");
+        set2.add("dog", "animal");
+        assertTrue(set1.addAll(set2));
+        assertFalse(set1.addAll(set2));
+        assertEquals(2, set1.size());
+        TermPairSet set3 = new TermPairSet();
+        set3.add("fish", "animal");
+        assertTrue(set1.addAll(set3));
+        assertTrue(set1.contains("fish", "animal"));
+    }
+
+    /**
+     * Test of serialization, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testSerialize() throws Exception {
+        System.out.println("serialize");
+        TermPairSet instance = new TermPairSet();
+        instance.add("Dog", "animal");
+        instance.add("cat", "animal");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(instance);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        TermPairSet result = (TermPairSet)ois.readObject();
+        assertEquals(2, result.size());
+        assertTrue(result.contains("dog", "Animal"));
+        assertTrue(result.contains("cat", "animal"));
+        assertEquals("Dog", result.iterator().next()[0]);
+    }
+
+    private static Object copy(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(o);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        return ois.readObject();
+    }
+
+    /**
+     * Test of resuming forEachPair after serialization, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testSerializeResume() throws Exception {
+        System.out.println("serializeResume");
+        // The ids of p and q would be in the other order if the terms were added in pair order
+        TermPairSet instance = new TermPairSet();
+        instance.add("u", "v");
+        instance.add("t", "p");
+        instance.add("u", "q");
+        instance.add("w", "p");
+        instance.add("w", "q");
+        Collect all = new Collect();
+        instance.forEachPair(all);
+
+        final int[] budget = new int[1];
+        PauseSignal signal = new PauseSignal() {
+            public boolean shouldPause() {
+                return budget[0]-- <= 0;
+            }
+        };
+        Collect resumed = new Collect();
+        budget[0] = 3;
+        String from = instance.forEachPair(resumed, null, signal);
+        assertEquals("w => p", from);
+        TermPairSet result = (TermPairSet)copy(instance);
+        budget[0] = 10;
+        assertNull(result.forEachPair(resumed, from, signal));
+        assertEquals(all.pairs, resumed.pairs);
+    }
+
+    /**
+     * Test of serialization of sets sharing a dictionary, of class nii.alloe.corpus.TermPairSet.
+     */
+    public void testSerializeShared() throws Exception {
+        System.out.println("serializeShared");
+        TermPairSet set1 = new TermPairSet();
+        set1.add("dog", "animal");
+        TermPairSet set2 = new TermPairSet(set1.getDictionary());
+        set2.add("cat", "animal");
+        TermPairSet[] result = (TermPairSet[])copy(new TermPairSet[] { set1, set2 });
+        assertSame(result[0].getDictionary(), result[1].getDictionary());
+        assertTrue(result[0].getDictionary().isIgnoreCase());
+        assertTrue(result[0].addAll(result[1]));
+        assertTrue(result[0].contains("Cat", "animal"));
+        assertEquals(2, result[0].size());
+    }
+}
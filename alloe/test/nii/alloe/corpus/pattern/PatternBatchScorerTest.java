@@ -0,0 +1,126 @@
+/*
+ * PatternBatchScorerTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus.pattern;
+
+import junit.framework.*;
+import java.util.*;
+import java.io.*;
+import nii.alloe.corpus.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PatternBatchScorerTest extends TestCase {
+
+    Corpus corpus;
+    TermPairSet termPairs;
+    Vector<Pattern> patterns;
+
+    public PatternBatchScorerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        String[][] pairs = { { "animal", "dog" }, { "animal", "cat" }, { "fruit", "apple" },
+        { "fruit", "pear" }, { "tool", "hammer" }, { "tool", "saw" } };
+        String[] templates = { "%1 including %2 today", "%1 including %2 yesterday", "%1 especially %2 here",
+        "several %1 including %2", "the %2 and other %1 were seen", "the %1 and other %2 were seen" };
+        TermList terms = new TermList();
+        termPairs = new TermPairSet();
+        for(String[] pair : pairs) {
+            if(!terms.contains(pair[0]))
+                terms.add(pair[0]);
+            terms.add(pair[1]);
+            termPairs.add(pair[0], pair[1]);
+        }
+        corpus = new Corpus(terms, "test-batch.idx");
+        corpus.openIndex(true);
+        for(int i = 0; i < pairs.length; i++) {
+            for(int j = 0; j < templates.length; j++) {
+                corpus.addDoc(templates[j].replaceAll("%1", pairs[i][0]).replaceAll("%2", pairs[i][1]));
+                // The same contexts with a pair which is not in the set
+                String other = pairs[(i + 2) % pairs.length][1];
+                corpus.addDoc(templates[j].replaceAll("%1", pairs[i][0]).replaceAll("%2", other));
+            }
+            corpus.addDoc("the " + pairs[i][1] + " including nothing");
+        }
+        corpus.closeIndex();
+
+        patterns = new Vector<Pattern>();
+        String[] pats = { "1 including 2", "1 including 2 today", "1 especially 2", "several 1 including 2",
+        "2 and other 1", "1 and other 2", "the 1 and other 2 were seen", "1 including 2 yesterday", "1 nowhere 2" };
+        for(String p : pats) {
+            patterns.add(new Pattern(p));
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        File f = new File("test-batch.idx");
+        for(File f2 : f.listFiles()) {
+            f2.delete();
+        }
+        f.delete();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(PatternBatchScorerTest.class);
+
+        return suite;
+    }
+
+    private void assertBatchScores(String name, BatchPatternMetric metric) {
+        for(int threads = 1; threads <= 3; threads += 2) {
+            Map<Pattern, Double> result = metric.scorePatterns(patterns, threads);
+            assertEquals(patterns.size(), result.size());
+            for(Pattern p : patterns) {
+                assertEquals(name + " " + p + " threads=" + threads, metric.scorePattern(p), result.get(p).doubleValue(), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Test that the scorePatterns method of each batch metric gives the same scores as its
+     * scorePattern method.
+     */
+    public void testScorePatterns() throws Exception {
+        System.out.println("scorePatterns");
+        int batchMetrics = 0;
+        for(String name : PatternMetricFactory.getPatternMetrics()) {
+            if(name.equals(PatternMetricFactory.WORDNET))
+                continue;
+            PatternMetric metric = PatternMetricFactory.getPatternMetric(name, corpus, termPairs);
+            if(!(metric instanceof BatchPatternMetric))
+                continue;
+            batchMetrics++;
+            assertBatchScores(name, (BatchPatternMetric)metric);
+            if(metric instanceof MinSupportPrecisionMetric) {
+                // Sketches which stop after a few contexts, some of them positive
+                for(int sketchSize = 0; sketchSize <= 4; sketchSize++) {
+                    ((MinSupportPrecisionMetric)metric).setSketchSize(sketchSize);
+                    assertBatchScores(name + " sketchSize=" + sketchSize, (BatchPatternMetric)metric);
+                }
+            }
+        }
+        assertEquals(2, batchMetrics);
+    }
+
+    /**
+     * Test of count method with a sketch, of class nii.alloe.corpus.pattern.PatternBatchScorer.
+     */
+    public void testCountSketch() {
+        System.out.println("countSketch");
+        PatternBatchScorer instance = new PatternBatchScorer(corpus, termPairs);
+        instance.setSketchSize(2);
+        PatternBatchScorer.Counts c = instance.count(patterns).get(patterns.get(0));
+        // "1 including 2" has 3 templates for each pair, with a pair from the set and a pair not
+        // from it, and a context with no pair
+        assertEquals(6 * 7, c.hits);
+        assertTrue(c.sketchExceeded);
+        assertEquals(3, c.contexts - c.positiveContexts);
+        assertTrue(c.positiveContexts > 0);
+    }
+}
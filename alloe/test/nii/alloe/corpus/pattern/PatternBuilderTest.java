@@ -0,0 +1,95 @@
+/*
+ * PatternBuilderTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus.pattern;
+
+import junit.framework.*;
+import java.util.*;
+import java.io.*;
+import nii.alloe.corpus.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PatternBuilderTest extends TestCase {
+
+    Corpus corpus;
+    TermPairSet termPairs;
+
+    public PatternBuilderTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        String[][] pairs = { { "animal", "dog" }, { "animal", "cat" }, { "fruit", "apple" },
+        { "fruit", "pear" }, { "tool", "hammer" }, { "tool", "saw" } };
+        String[] templates = { "%1 including %2 today", "%1 including %2 yesterday", "%1 especially %2 today",
+        "%1 especially %2 here", "%1 notably %2 here", "%1 notably %2 yesterday", "several %1 including %2",
+        "several %1 especially %2", "some %1 notably %2", "the %2 and other %1 were seen" };
+        TermList terms = new TermList();
+        termPairs = new TermPairSet();
+        for(String[] pair : pairs) {
+            if(!terms.contains(pair[0]))
+                terms.add(pair[0]);
+            terms.add(pair[1]);
+            termPairs.add(pair[0], pair[1]);
+        }
+        corpus = new Corpus(terms, "test-patterns.idx");
+        corpus.openIndex(true);
+        for(int i = 0; i < pairs.length; i++) {
+            for(int j = 0; j < templates.length; j++) {
+                if((i + j) % 4 == 3)
+                    continue;
+                corpus.addDoc(templates[j].replaceAll("%1", pairs[i][0]).replaceAll("%2", pairs[i][1]));
+            }
+            corpus.addDoc("the " + pairs[i][1] + " sat next to the " + pairs[(i + 1) % pairs.length][1]);
+        }
+        corpus.closeIndex();
+    }
+
+    protected void tearDown() throws Exception {
+        File f = new File("test-patterns.idx");
+        for(File f2 : f.listFiles()) {
+            f2.delete();
+        }
+        f.delete();
+    }
+
+    /** Records the patterns in the order they are generated */
+    private static class Recorder implements PatternSetListener {
+        final List<String> generated = new ArrayList<String>();
+        public void patternGenerated(Pattern p, double score) { generated.add(p + " " + score); }
+        public void patternDropped(Pattern p) { generated.add("-" + p); }
+        public void clearPatterns() { generated.clear(); }
+        public void progressChange(double newProgress) { }
+        public void finished() { }
+    }
+
+    private List<String> build(int threads, int frontierSize) {
+        PatternBuilder instance = new PatternBuilder(corpus, termPairs, PatternMetricFactory.PSEUDO_FM, "test");
+        Recorder recorder = new Recorder();
+        instance.addProgressListener(recorder);
+        instance.setThreads(threads);
+        instance.setFrontierSize(frontierSize);
+        instance.setMaxIterations(500);
+        PatternSet patterns = instance.buildPatterns();
+        assertEquals(patterns.size(), recorder.generated.size());
+        return recorder.generated;
+    }
+
+    /**
+     * Test of buildPatterns method with a frontier expanded on several threads, of class
+     * nii.alloe.corpus.pattern.PatternBuilder.
+     */
+    public void testExpandFrontier() {
+        System.out.println("expandFrontier");
+        List<String> expResult = build(1, 4);
+        assertTrue(expResult.size() > 10);
+        for(int i = 0; i < 3; i++) {
+            assertEquals(expResult, build(4, 4));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * PatternMatcherTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.corpus.pattern;
+
+import junit.framework.*;
+import java.util.*;
+import nii.alloe.corpus.ContextStore;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class PatternMatcherTest extends TestCase {
+
+    public PatternMatcherTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of match method, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testMatch() {
+        System.out.println("match");
+        PatternMatcher instance = new PatternMatcher(new Pattern("1 such * 2"), false);
+        PatternMatcher.Context context = new PatternMatcher.Context("animals such as cats");
+        assertTrue(Arrays.equals(new int[] { 0, 7, 16, 20 }, instance.match(context, "animals", "cats")));
+        assertTrue(Arrays.equals(new int[] { 0, 7, 16, 20 }, instance.match(context, "Animals", "CATS")));
+        assertNull(instance.match(context, "cats", "animals"));
+        assertNull(instance.match(new PatternMatcher.Context("animals such cats"), "animals", "cats"));
+
+        instance = new PatternMatcher(new Pattern("2 and other 1"), false);
+        context = new PatternMatcher.Context("cats, dogs and other animals");
+        assertTrue(Arrays.equals(new int[] { 21, 28, 6, 10 }, instance.match(context, "animals", "dogs")));
+        assertNull(instance.match(context, "animals", "cats"));
+    }
+
+    /**
+     * Test of lazy matching, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testLazy() {
+        System.out.println("lazy");
+        Pattern pattern = new Pattern("1 such * 2");
+        PatternMatcher.Context context = new PatternMatcher.Context("animals such cats");
+        assertFalse(new PatternMatcher(pattern, false).matches(context, "animals", "cats"));
+        assertTrue(new PatternMatcher(pattern, true).matches(context, "animals", "cats"));
+        assertTrue(pattern.matches("animals suchcats", "animals", "cats", true));
+        assertFalse(pattern.matches("animals suchcats", "animals", "cats", false));
+    }
+
+    /**
+     * Test of canMatch method, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testCanMatch() {
+        System.out.println("canMatch");
+        PatternMatcher instance = new PatternMatcher(new Pattern("1 such as 2"), false);
+        assertTrue(instance.canMatch(new PatternMatcher.Context("big animals such as cats")));
+        assertFalse(instance.canMatch(new PatternMatcher.Context("animals such as")));
+        int[] positions = instance.match(new PatternMatcher.Context("big animals such as cats"), null, null);
+        assertEquals(0, positions[0]);
+        assertEquals(11, positions[1]);
+        assertEquals(20, positions[2]);
+        assertEquals(24, positions[3]);
+    }
+
+    /**
+     * Test of matching safe literals, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testLiterals() {
+        System.out.println("literals");
+        Pattern pattern = new Pattern("1 (" + Pattern.makeSafe("a1*") + ") 2");
+        assertTrue(pattern.matches("x (a1*) y", "x", "y"));
+        assertFalse(pattern.matches("x (a1b) y", "x", "y"));
+    }
+
+    /**
+     * Test of Context created from a tokenization, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testContextFromTokens() {
+        System.out.println("contextFromTokens");
+        String text = ", animals, such as cats!";
+        PatternMatcher.Context c1 = new PatternMatcher.Context(text);
+        PatternMatcher.Context c2 = new PatternMatcher.Context(text, ContextStore.tokenize(text));
+        assertTrue(Arrays.equals(c1.runEnd, c2.runEnd));
+    }
+
+    /**
+     * Test of getWords method, of class nii.alloe.corpus.pattern.PatternMatcher.
+     */
+    public void testGetWords() {
+        System.out.println("getWords");
+        PatternMatcher instance = new PatternMatcher(new Pattern("such 1s, such as * 2 x"), false);
+        assertEquals(Arrays.asList(new String[] { "such", "as" }), Arrays.asList(instance.getWords()));
+        instance = new PatternMatcher(new Pattern("such 1s, such as * 2 x"), true);
+        assertEquals(0, instance.getWords().length);
+        PatternMatcher.Context context = new PatternMatcher.Context("cats, such as dogs!");
+        assertEquals(Arrays.asList(new String[] { "cats", "such", "as", "dogs" }), context.getWords());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * DeltaCheckerTest.java
+ * JUnit based test
+ */
+
+package nii.alloe.theory;
+
+import junit.framework.*;
+import java.util.*;
+
+/**
+ *
+ * @author John McCrae, National Institute of Informatics
+ */
+public class DeltaCheckerTest extends TestCase {
+    Logic logic;
+    Model model;
+    SpecificGraph g;
+
+    public DeltaCheckerTest(String testName) {
+        super(testName);
+    }
+
+    protected void setUp() throws Exception {
+        logic = new Logic("r(1,2); r(2,3) -> r(1,3)\nr(1,2) -> r(2,1)\n");
+        logic.setModelSize(30);
+        model = new Model(logic);
+        g = model.addSpecificGraph("r");
+        Random random = new Random(5);
+        for(int k = 0; k < 60; k++) {
+            g.add(random.nextInt(30), random.nextInt(30));
+        }
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(DeltaCheckerTest.class);
+
+        return suite;
+    }
+
+    private static class Collector implements InconsistentAction {
+        TreeSet<String> found = new TreeSet<String>();
+
+        public boolean doAction(Logic logic, Model m, Rule rule) {
+            found.add(rule.toString());
+            return true;
+        }
+    }
+
+    private TreeSet<String> fullCheck() {
+        Collector c = new Collector();
+        logic.consistCheck(model, c);
+        return c.found;
+    }
+
+    private static TreeSet<String> strings(Collection<Rule> rules) {
+        TreeSet<String> rval = new TreeSet<String>();
+        for(Rule r : rules) {
+            rval.add(r.toString());
+        }
+        return rval;
+    }
+
+    /**
+     * Test of consistCheck method, of class nii.alloe.theory.DeltaChecker.
+     */
+    public void testConsistCheck() {
+        System.out.println("consistCheck");
+        DeltaChecker instance = new DeltaChecker(logic);
+        TreeSet<String> before = fullCheck();
+        int link = model.id("r", 3, 4);
+        if(g.isConnected(3, 4))
+            g.remove(3, 4);
+        else
+            g.add(3, 4);
+        TreeSet<String> after = fullCheck();
+        Collector c = new Collector();
+        instance.consistCheck(model, link, c);
+        // Every new inconsistency contains the link, and was found
+        TreeSet<String> added = new TreeSet<String>(after);
+        added.removeAll(before);
+        assertTrue(c.found.containsAll(added));
+        assertTrue(after.containsAll(c.found));
+    }
+
+    /**
+     * Test of update method, of class nii.alloe.theory.DeltaChecker.
+     */
+    public void testUpdate() {
+        System.out.println("update");
+        DeltaChecker instance = new DeltaChecker(logic);
+        instance.trackViolations(model);
+        assertEquals(fullCheck(), strings(instance.getViolations()));
+        Random random = new Random(7);
+        for(int k = 0; k < 40; k++) {
+            int i = random.nextInt(30);
+            int j = random.nextInt(30);
+            if(g.isConnected(i, j))
+                g.remove(i, j);
+            else
+                g.add(i, j);
+            instance.update(model.id("r", i, j));
+            assertEquals(fullCheck(), strings(instance.getViolations()));
+        }
+    }
+}
@@ -50,8 +50,8 @@ public class LogicTest extends TestCase {
         SpecificGraph g = model.addSpecificGraph("r");
         g.add(1,2);
         g.add(2,3);
-        g.add(4,5);
-        g.add(5,4);
+        g.add(3,4);
+        g.add(4,3);
     }
 
     protected void tearDown() throws Exception {
@@ -95,6 +95,54 @@ public class LogicTest extends TestCase {
         assertTrue(inconsist.wasFound());
     }
 
+    private class CollectRules implements InconsistentAction {
+        TreeSet<String> found = new TreeSet<String>();
+        
+        public boolean doAction(Logic logic, Model m, Rule rule) {
+            found.add(rule.toString());
+            return true;
+        }
+    }
+    
+    /**
+     * Test of joinOrder method, of class nii.alloe.theory.Logic.
+     */
+    public void testJoinOrder() {
+        System.out.println("joinOrder");
+        Logic instance = new Logic("s(3,4); r(1,2); s(2,3) -> r(1,4)\n");
+        instance.setModelSize(50);
+        Model m = new Model(instance);
+        SpecificGraph r = m.addSpecificGraph("r");
+        SpecificGraph s = m.addSpecificGraph("s");
+        Random random = new Random(2);
+        for(int k = 0; k < 500; k++) {
+            s.add(random.nextInt(50), random.nextInt(50));
+        }
+        for(int k = 0; k < 40; k++) {
+            r.add(random.nextInt(50), random.nextInt(50));
+        }
+        Rule rule = instance.rules.getFirst();
+        int[] order = instance.joinOrder(m, rule, new Logic.OrderFreeCondition() {
+            public boolean check(int argument, Rule rule, Graph g, int i, int j) { return true; }
+            public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
+        });
+        assertTrue(Arrays.equals(new int[] { 1, 2, 0, 3 }, order));
+        
+        // The same inconsistencies are found as when the terms are taken in order
+        CollectRules joined = new CollectRules();
+        instance.consistCheck(m, joined);
+        CollectRules inOrder = new CollectRules();
+        instance.consistCheck(m, rule, 0, inOrder, new Logic.CheckerCondition() {
+            public boolean check(int argument, Rule rule, Graph g, int i, int j) {
+                return (argument < rule.premiseCount && g.isConnected(i,j)) ||
+                        (argument >= rule.premiseCount && !g.isConnected(i,j));
+            }
+            public boolean mustConnect(int argument, Rule rule) { return argument < rule.premiseCount; }
+        });
+        assertFalse(inOrder.found.isEmpty());
+        assertEquals(inOrder.found, joined.found);
+    }
+    
     /**
      * Test of findAllPotentialResolvers method, of class nii.alloe.theory.Logic.
      */
@@ -151,4 +199,37 @@ public class LogicTest extends TestCase {
         assertEquals(expResult, result);
     }
     
+    /**
+     * Test of setThreads method, of class nii.alloe.theory.Logic.
+     */
+    public void testSetThreads() {
+        System.out.println("setThreads");
+        Logic instance = new Logic("r(1,2); r(2,3) -> r(1,3)\nr(1,2) -> r(2,1)\n-> r(1,1)\nr(1,2); s(1,2) -> \n");
+        instance.setModelSize(40);
+        Model m = new Model(instance);
+        SpecificGraph r = m.addSpecificGraph("r");
+        SpecificGraph s = m.addSpecificGraph("s");
+        Random random = new Random(3);
+        for(int k = 0; k < 120; k++) {
+            r.add(random.nextInt(40), random.nextInt(40));
+            s.add(random.nextInt(40), random.nextInt(40));
+        }
+        CollectRules sequential = new CollectRules();
+        instance.consistCheck(m, sequential);
+        Model compulsory = instance.getCompulsoryModel(m);
+        assertFalse(sequential.found.isEmpty());
+        
+        instance.setThreads(4);
+        CollectRules parallel = new CollectRules();
+        instance.consistCheck(m, parallel);
+        assertEquals(sequential.found, parallel.found);
+        assertEquals(compulsory, instance.getCompulsoryModel(m));
+        instance.setThreads(1);
+        
+        instance = new Logic("r(1,2); r(2,3) -> r(1,3)\nr(1,1) -> ");
+        instance.setModelSize(5);
+        List<Integer> negative = instance.getNegativeModel(model);
+        instance.setThreads(3);
+        assertEquals(negative, instance.getNegativeModel(model));
+    }
 }
@@ -118,7 +118,17 @@ public class ProbabilityGraphTest extends TestCase {
      * Test of createCopy method, of class nii.alloe.theory.ProbabilityGraph.
      */
     public void testCreateCopy() {
-        System.out.println("createCopy (no test)");
+        System.out.println("createCopy");
+        ProbabilityGraph instance = new ProbabilityGraph(4);
+        instance.setBaseVal(0.1);
+        instance.setVal(1, 2, .9);
+        ProbabilityGraph copy = (ProbabilityGraph)instance.createCopy();
+        instance.setVal(1, 2, .2);
+        instance.setVal(3, 0, .8);
+        assertTrue(copy.isConnected(1, 2));
+        assertFalse(copy.isConnected(3, 0));
+        assertEquals(Integer.valueOf(6), copy.iterator(4).next());
+        assertFalse(instance.isConnected(1, 2));
     }
 
     /**
@@ -150,7 +160,12 @@ public class ProbabilityGraphTest extends TestCase {
      */
     public void testAddVal() {
         System.out.println("addVal");
-
+        ProbabilityGraph instance = new ProbabilityGraph(4);
+        instance.setBaseVal(0.25);
+        instance.setVal(2, 1, .5);
+        assertEquals(Math.log(.75) - Math.log(.25), instance.addVal(0, 0), 1e-9);
+        assertEquals(0.0, instance.addVal(2, 1), 1e-9);
+        assertEquals(-instance.addVal(0, 0), instance.removeVal(0, 0), 1e-9);
     }
 
     /**
@@ -169,6 +184,35 @@ public class ProbabilityGraphTest extends TestCase {
  
     }
 
+    /**
+     * Test of setVals method, of class nii.alloe.theory.ProbabilityGraph.
+     */
+    public void testSetVals() {
+        System.out.println("setVals");
+        ProbabilityGraph instance = new ProbabilityGraph(100);
+        ProbabilityGraph expResult = new ProbabilityGraph(100);
+        instance.setVal(5, 5, .3);
+        expResult.setVal(5, 5, .3);
+        int[] is = new int[1000], js = new int[1000];
+        double[] probs = new double[1000];
+        for(int k = 0; k < 1000; k++) {
+            is[k] = k / 10;
+            js[k] = (k * 7) % 100;
+            probs[k] = (k % 9) / 8.0;
+            if(k < 900)
+                expResult.setVal(is[k], js[k], probs[k]);
+        }
+        instance.setVals(is, js, probs, 900);
+        assertEquals(expResult.linkCount(), instance.linkCount());
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < 100; j++) {
+                assertEquals(expResult.posVal(i, j), instance.posVal(i, j));
+                assertEquals(expResult.negVal(i, j), instance.negVal(i, j));
+            }
+        }
+        assertEquals(expResult.columnRows(7).length, instance.columnRows(7).length);
+    }
+
     /**
      * Test of setPosNegVal method, of class nii.alloe.theory.ProbabilityGraph.
      */
@@ -184,4 +228,66 @@ public class ProbabilityGraphTest extends TestCase {
         System.out.println("setBaseVal");
 
     }
+
+    /**
+     * Test of columnRows method, of class nii.alloe.theory.ProbabilityGraph.
+     */
+    public void testColumnRows() {
+        System.out.println("columnRows");
+        ProbabilityGraph instance = new ProbabilityGraph(100);
+        instance.setBaseVal(0.1);
+        for(int i = 0; i < 100; i++) {
+            instance.setVal(i, (i * 7) % 10, i % 3 == 0 ? .9 : .2);
+        }
+        int[] rows = instance.columnRows(7);
+        assertEquals(10, rows.length);
+        for(int k = 0; k < rows.length; k++) {
+            assertEquals(10 * k + 1, rows[k]);
+        }
+        assertEquals(0, instance.columnRows(50).length);
+        assertTrue(instance.isConnected(-1, 7));
+        assertFalse(instance.isConnected(-1, 50));
+        assertTrue(instance.isConnected(3, -1));
+        assertFalse(instance.isConnected(1, -1));
+        Iterator<Integer> iter = instance.iterator(100);
+        int last = -1;
+        int count = 0;
+        while(iter.hasNext()) {
+            int link = iter.next();
+            assertTrue(link > last);
+            assertTrue(instance.isConnected(link / 100, link % 100));
+            last = link;
+            count++;
+        }
+        assertEquals(34, count);
+    }
+
+    /**
+     * Test of serialization, of class nii.alloe.theory.ProbabilityGraph.
+     */
+    public void testSerialize() throws Exception {
+        System.out.println("serialize");
+        ProbabilityGraph instance = new ProbabilityGraph(100);
+        instance.setBaseVal(0.1);
+        for(int i = 0; i < 100; i++) {
+            instance.setVal(i, (i * 7) % 10, i % 3 == 0 ? .9 : .2);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(instance);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ProbabilityGraph result = (ProbabilityGraph)ois.readObject();
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < 100; j++) {
+                assertEquals(instance.posVal(i, j), result.posVal(i, j));
+                assertEquals(instance.negVal(i, j), result.negVal(i, j));
+            }
+        }
+        assertEquals(instance.linkCount(), result.linkCount());
+        assertTrue(Arrays.equals(instance.columnRows(7), result.columnRows(7)));
+        result.setVal(50, 50, .9);
+        assertTrue(result.isConnected(50, -1));
+        assertFalse(instance.isConnected(50, 50));
+    }
 }
@@ -182,4 +182,192 @@ public class SpecificGraphTest extends TestCase {
         fail("The test case is a prototype.");
     }
     
+    /**
+     * Test of rowLinkCount and columnLinkCount methods, of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testLinkCounts() {
+        System.out.println("linkCounts");
+        for (int n : new int[] { 70, SpecificGraph.DENSE_LIMIT + 1 }) {
+            SpecificGraph instance = new SpecificGraph(n, "r");
+            instance.add(3, -1);
+            instance.add(-1, 65);
+            instance.remove(3, 4);
+            assertEquals(n - 1, instance.rowLinkCount(3));
+            assertEquals(n, instance.columnLinkCount(65));
+            assertEquals(1, instance.columnLinkCount(0));
+            assertEquals(0, instance.columnLinkCount(4));
+            assertEquals(2 * n - 2, instance.linkCount());
+            assertTrue(instance.isConnected(-1, 65));
+            assertFalse(instance.isConnected(-1, 4));
+            assertFalse(instance.isConnected(0, 0));
+            assertTrue(instance.isConnected(0, 65));
+            instance.remove(-1, 65);
+            assertFalse(instance.isConnected(0, -1));
+            assertEquals(n - 2, instance.linkCount());
+            instance.remove(-1, -1);
+            assertEquals(0, instance.linkCount());
+            assertFalse(instance.isConnected(-1, -1));
+        }
+    }
+
+    /**
+     * Test of iteration in order, of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testIteratorOrder() {
+        System.out.println("iteratorOrder");
+        int n = 130;
+        SpecificGraph instance = new SpecificGraph(n, "r");
+        int[] links = { 0, 63, 64, 129, 2 * n + 127, n * n - 1 };
+        for (int link : links) {
+            instance.add(link / n, link % n);
+        }
+        Iterator<Integer> iter = instance.iterator(n);
+        for (int link : links) {
+            assertEquals(link, (int) iter.next());
+        }
+        assertFalse(iter.hasNext());
+        assertEquals(63, instance.nextConnected(0, 1));
+        assertEquals(129, instance.nextConnected(0, 65));
+        assertEquals(-1, instance.nextConnected(1, 0));
+
+        iter = instance.iterator(n);
+        iter.next();
+        instance.remove(0, 0);
+        try {
+            iter.next();
+            fail("Expected ConcurrentModificationException");
+        } catch (ConcurrentModificationException x) {
+        }
+    }
+
+    /**
+     * Test of nextConnectedTo method, of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testNextConnectedTo() {
+        System.out.println("nextConnectedTo");
+        int[] sizes = { 130, SpecificGraph.DENSE_LIMIT + 10 };
+        for (int n : sizes) {
+            SpecificGraph instance = new SpecificGraph(n, "r");
+            instance.add(0, 5);
+            instance.add(70, 5);
+            instance.add(129, 5);
+            instance.add(3, -1);
+            assertEquals(0, instance.nextConnectedTo(5, 0));
+            assertEquals(3, instance.nextConnectedTo(5, 1));
+            assertEquals(70, instance.nextConnectedTo(5, 4));
+            assertEquals(129, instance.nextConnectedTo(5, 71));
+            assertEquals(-1, instance.nextConnectedTo(5, 130));
+            assertEquals(3, instance.nextConnectedTo(6, 0));
+            assertEquals(-1, instance.nextConnectedTo(6, 4));
+
+            instance.remove(70, 5);
+            instance.remove(3, -1);
+            assertEquals(129, instance.nextConnectedTo(5, 1));
+            assertEquals(-1, instance.nextConnectedTo(6, 0));
+            Graph copy = instance.createCopy();
+            instance.remove(-1, -1);
+            assertEquals(-1, instance.nextConnectedTo(5, 0));
+            assertEquals(0, ((SpecificGraph) copy).nextConnectedTo(5, 0));
+        }
+    }
+
+    /**
+     * Test of createCopy method on a real graph, of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testCopyIsIndependent() {
+        System.out.println("copyIsIndependent");
+        SpecificGraph instance = new SpecificGraph(SpecificGraph.DENSE_LIMIT + 10, "r");
+        instance.add(1, 2);
+        Graph copy = instance.createCopy();
+        instance.add(2, 1);
+        assertTrue(copy.isConnected(1, 2));
+        assertFalse(copy.isConnected(2, 1));
+        assertEquals(1, copy.linkCount());
+        // Graphs of different sizes can be used at once
+        SpecificGraph small = new SpecificGraph(3, "r");
+        small.add(2, 2);
+        assertEquals(8, (int) small.iterator(3).next());
+        assertTrue(instance.isConnected(2, 1));
+    }
+
+    /**
+     * Test of lines which change between arrays and bitmaps as links are added and removed,
+     * of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testSparseLines() {
+        System.out.println("sparseLines");
+        int n = SpecificGraph.DENSE_LIMIT + 10;
+        SpecificGraph instance = new SpecificGraph(n, "r");
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        Random r = new Random(7);
+        // A few rows and columns with enough links to need a bitmap, then most removed again
+        for (int round = 0; round < 2; round++) {
+            for (int k = 0; k < 4000; k++) {
+                int i = r.nextInt(3), j = r.nextInt(300);
+                if (r.nextInt(10) < (round == 0 ? 5 : 1)) {
+                    instance.add(i, j);
+                    instance.add(j, i + 1000);
+                    expected.add(i * n + j);
+                    expected.add(j * n + i + 1000);
+                } else if (round == 1) {
+                    instance.remove(i, j);
+                    instance.remove(j, i + 1000);
+                    expected.remove(i * n + j);
+                    expected.remove(j * n + i + 1000);
+                }
+            }
+            assertEquals(expected.size(), instance.linkCount());
+            Iterator<Integer> iter = instance.iterator(n);
+            for (int link : expected) {
+                assertEquals(link, (int) iter.next());
+            }
+            assertFalse(iter.hasNext());
+            for (int i = 0; i < 300; i++) {
+                for (int j = 0; j < 3; j++) {
+                    assertEquals(expected.contains(j * n + i), instance.isConnected(j, i));
+                    int next = instance.nextConnectedTo(j + 1000, i);
+                    Integer exp = null;
+                    for (int i2 = i; i2 < 300 && exp == null; i2++) {
+                        if (expected.contains(i2 * n + j + 1000))
+                            exp = i2;
+                    }
+                    assertEquals(exp == null ? -1 : exp, next);
+                }
+            }
+        }
+        Graph copy = instance.createCopy();
+        instance.remove(-1, -1);
+        assertEquals(expected.size(), copy.linkCount());
+        assertEquals(0, instance.linkCount());
+        assertEquals(-1, instance.nextConnected(0, 0));
+    }
+
+    /**
+     * Test of serialization, of class nii.alloe.theory.SpecificGraph.
+     */
+    public void testSerialize() throws Exception {
+        System.out.println("serialize");
+        for (int n : new int[] { 70, SpecificGraph.DENSE_LIMIT + 10 }) {
+            SpecificGraph instance = new SpecificGraph(n, "r");
+            instance.add(3, -1);
+            instance.add(5, 65);
+            instance.add(n - 1, 0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(instance);
+            oos.close();
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            SpecificGraph result = (SpecificGraph) ois.readObject();
+            assertEquals("r", result.relation);
+            assertEquals(n + 2, result.linkCount());
+            assertEquals(n, result.rowLinkCount(3));
+            assertEquals(2, result.columnLinkCount(65));
+            assertEquals(5, result.nextConnectedTo(65, 4));
+            Iterator<Integer> iter1 = instance.iterator(n), iter2 = result.iterator(n);
+            while (iter1.hasNext()) {
+                assertEquals(iter1.next(), iter2.next());
+            }
+            assertFalse(iter2.hasNext());
+        }
+    }
 }
@@ -37,6 +37,7 @@ public class TheorySuite extends TestCase {
         suite.addTest(nii.alloe.theory.MembershipGraphTest.suite());
         suite.addTest(nii.alloe.theory.ProbabilityGraphTest.suite());
         suite.addTest(nii.alloe.theory.ModelTest.suite());
+        suite.addTest(nii.alloe.theory.DeltaCheckerTest.suite());
         return suite;
     }
     